@@ -0,0 +1,448 @@
+package shivanhunter.voxelmodeller;
+
+import java.nio.ByteBuffer;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.math.collision.Ray;
+import com.badlogic.gdx.utils.IntArray;
+
+/**
+ * A set of axis-aligned boxes that together cover exactly the solid voxels
+ * of a model, for use as collision shapes.
+ *
+ * Boxes are found with a greedy merge: starting at the first solid cell not
+ * yet covered, a box grows as far as it can along z, then y, then x, while
+ * every cell it would take is solid and not yet covered. The cells are kept
+ * as bit rows, so growing a box tests 64 cells at a time. This doesn't
+ * always give the fewest boxes, but it comes close on typical models and
+ * handles a 256x256x256 model quickly enough to run on every save.
+ *
+ * Ray and overlap queries use a bounding volume hierarchy over the boxes,
+ * built the first time it is needed. Queries are in the same coordinates as
+ * the model: a box covering cells x1 to x2 spans rootLocation.x + x1 to
+ * rootLocation.x + x2.
+ */
+public class CollisionBoxes {
+	// format version written by write()
+	private static final int VERSION = 0;
+
+	// most boxes in one leaf of the hierarchy
+	private static final int LEAF_SIZE = 4;
+
+	// ints per node of the hierarchy: bounds, then the right child of an
+	// inner node or the first box of a leaf, then 0 or the leaf's box count
+	private static final int NODE_SIZE = 8;
+
+	// the boxes, 6 ints each: x1, y1, z1, x2, y2, z2 (maxima exclusive)
+	private IntArray boxes = new IntArray();
+
+	// the model's root location and scale when the boxes were built
+	private Vector3 rootLocation;
+	private int scale;
+
+	// hierarchy nodes and the box indices its leaves point into, or null
+	// until first needed
+	private int[] nodes;
+	private int[] order;
+
+	/**
+	 * Covers the solid voxels of a grid with boxes.
+	 *
+	 * @param blocks the voxel data
+	 * @param width the size of the grid in x
+	 * @param height the size of the grid in y
+	 * @param depth the size of the grid in z
+	 * @param rootLocation the position of the grid's first corner
+	 * @param scale the scale of the model
+	 */
+	CollisionBoxes(byte[][][] blocks, int width, int height, int depth, Vector3 rootLocation, int scale) {
+		this.rootLocation = new Vector3(rootLocation);
+		this.scale = scale;
+
+		// one bit per solid cell not yet covered by a box
+		int words = (depth + 63) >> 6;
+		long[][][] free = new long[width][height][words];
+		for (int i = 0; i < width; ++i) {
+			for (int j = 0; j < height; ++j) {
+				byte[] row = blocks[i][j];
+				long[] bits = free[i][j];
+				for (int k = 0; k < depth; ++k) {
+					if (row[k] != 0) bits[k >> 6] |= 1L << k;
+				}
+			}
+		}
+
+		for (int i = 0; i < width; ++i) {
+			for (int j = 0; j < height; ++j) {
+				long[] bits = free[i][j];
+				int k = nextSet(bits, 0, depth);
+				while (k < depth) {
+					// grow along z, then y, then x
+					int k2 = k+1;
+					while (k2 < depth && (bits[k2 >> 6] & 1L << k2) != 0) k2++;
+
+					int j2 = j+1;
+					while (j2 < height && allSet(free[i][j2], k, k2)) j2++;
+
+					int i2 = i+1;
+					grow:
+					while (i2 < width) {
+						for (int y = j; y < j2; ++y) {
+							if (!allSet(free[i2][y], k, k2)) break grow;
+						}
+						i2++;
+					}
+
+					for (int x = i; x < i2; ++x) {
+						for (int y = j; y < j2; ++y) clear(free[x][y], k, k2);
+					}
+					boxes.addAll(i, j, k, i2, j2, k2);
+
+					k = nextSet(bits, k2, depth);
+				}
+			}
+		}
+		boxes.shrink();
+	}
+
+	/**
+	 * Returns the first set bit of a row at or after an index.
+	 *
+	 * @param bits the row
+	 * @param from the first index to look at
+	 * @param depth the length of the row
+	 * @return the index of the bit, or depth if there is none
+	 */
+	private static int nextSet(long[] bits, int from, int depth) {
+		if (from >= depth) return depth;
+		int w = from >> 6;
+		long word = bits[w] & -1L << from;
+		while (word == 0) {
+			if (++w == bits.length) return depth;
+			word = bits[w];
+		}
+		return Math.min((w << 6) + Long.numberOfTrailingZeros(word), depth);
+	}
+
+	/**
+	 * Returns whether every bit of a range of a row is set.
+	 *
+	 * @param bits the row
+	 * @param from the first index (inclusive)
+	 * @param to the last index (exclusive)
+	 * @return true if the range is all set
+	 */
+	private static boolean allSet(long[] bits, int from, int to) {
+		for (int w = from >> 6; w <= (to-1) >> 6; ++w) {
+			long mask = rangeMask(w, from, to);
+			if ((bits[w] & mask) != mask) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Clears a range of a row.
+	 *
+	 * @param bits the row
+	 * @param from the first index (inclusive)
+	 * @param to the last index (exclusive)
+	 */
+	private static void clear(long[] bits, int from, int to) {
+		for (int w = from >> 6; w <= (to-1) >> 6; ++w) bits[w] &= ~rangeMask(w, from, to);
+	}
+
+	/**
+	 * Returns the bits of a range that fall in one word of a row.
+	 *
+	 * @param w the index of the word
+	 * @param from the first index of the range (inclusive)
+	 * @param to the last index of the range (exclusive)
+	 * @return the mask of the range within the word
+	 */
+	private static long rangeMask(int w, int from, int to) {
+		long mask = -1L;
+		if (from > w << 6) mask &= -1L << from;
+		if (to < (w+1) << 6) mask &= (1L << to) - 1;
+		return mask;
+	}
+
+	/**
+	 * Returns the number of boxes.
+	 *
+	 * @return the number of boxes
+	 */
+	public int getBoxCount() {
+		return boxes.size/6;
+	}
+
+	/**
+	 * Returns the cells covered by a box.
+	 *
+	 * @param index the index of the box
+	 * @param region receives the cells of the box
+	 * @return the region
+	 */
+	public VoxelRegion getBox(int index, VoxelRegion region) {
+		int[] b = boxes.items;
+		int n = index*6;
+		region.x1 = b[n];
+		region.y1 = b[n+1];
+		region.z1 = b[n+2];
+		region.x2 = b[n+3];
+		region.y2 = b[n+4];
+		region.z2 = b[n+5];
+		return region;
+	}
+
+	/**
+	 * Finds the nearest box hit by a ray.
+	 *
+	 * @param ray the ray, in model coordinates
+	 * @param hitPoint receives the point where the ray enters the box, or null
+	 * @return the index of the box, or -1 if the ray misses every box
+	 */
+	public int raycast(Ray ray, Vector3 hitPoint) {
+		buildHierarchy();
+		if (order.length == 0) return -1;
+
+		float ox = ray.origin.x - rootLocation.x, oy = ray.origin.y - rootLocation.y,
+				oz = ray.origin.z - rootLocation.z;
+		float ix = 1/ray.direction.x, iy = 1/ray.direction.y, iz = 1/ray.direction.z;
+
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = 0;
+		float nearest = Float.MAX_VALUE;
+		int hit = -1;
+
+		while (top > 0) {
+			int node = stack[--top];
+			if (enter(nodes, node, ox, oy, oz, ix, iy, iz) >= nearest) continue;
+
+			int count = nodes[node+7];
+			if (count == 0) {
+				// visit the nearer child first
+				int left = node + NODE_SIZE, right = nodes[node+6];
+				float tLeft = enter(nodes, left, ox, oy, oz, ix, iy, iz),
+						tRight = enter(nodes, right, ox, oy, oz, ix, iy, iz);
+				if (tLeft < tRight) {
+					if (tRight < nearest) stack[top++] = right;
+					if (tLeft < nearest) stack[top++] = left;
+				} else {
+					if (tLeft < nearest) stack[top++] = left;
+					if (tRight < nearest) stack[top++] = right;
+				}
+			} else {
+				for (int n = nodes[node+6]; n < nodes[node+6] + count; ++n) {
+					float t = enter(boxes.items, order[n]*6, ox, oy, oz, ix, iy, iz);
+					if (t < nearest) {
+						nearest = t;
+						hit = order[n];
+					}
+				}
+			}
+		}
+
+		if (hit >= 0 && hitPoint != null) {
+			hitPoint.set(ray.direction).scl(nearest).add(ray.origin);
+		}
+		return hit;
+	}
+
+	/**
+	 * Returns where a ray enters a box, using the slab test.
+	 *
+	 * @param bounds an array holding the box as x1, y1, z1, x2, y2, z2
+	 * @param n the index of the box in the array
+	 * @param ox the x coordinate of the ray's origin
+	 * @param oy the y coordinate of the ray's origin
+	 * @param oz the z coordinate of the ray's origin
+	 * @param ix 1 over the x component of the ray's direction
+	 * @param iy 1 over the y component of the ray's direction
+	 * @param iz 1 over the z component of the ray's direction
+	 * @return the distance along the ray, 0 if the origin is inside, or
+	 * Float.MAX_VALUE if the ray misses
+	 */
+	private static float enter(int[] bounds, int n, float ox, float oy, float oz,
+			float ix, float iy, float iz) {
+		float tx1 = (bounds[n] - ox)*ix, tx2 = (bounds[n+3] - ox)*ix,
+				ty1 = (bounds[n+1] - oy)*iy, ty2 = (bounds[n+4] - oy)*iy,
+				tz1 = (bounds[n+2] - oz)*iz, tz2 = (bounds[n+5] - oz)*iz;
+		float tMin = Math.max(Math.max(Math.min(tx1, tx2), Math.min(ty1, ty2)), Math.max(Math.min(tz1, tz2), 0));
+		float tMax = Math.min(Math.min(Math.max(tx1, tx2), Math.max(ty1, ty2)), Math.max(tz1, tz2));
+		return tMin <= tMax ? tMin : Float.MAX_VALUE;
+	}
+
+	/**
+	 * Finds the boxes that overlap a bounding box. Boxes that only touch it
+	 * count as overlapping.
+	 *
+	 * @param bounds the bounding box, in model coordinates
+	 * @param results receives the indices of the overlapping boxes
+	 */
+	public void findOverlapping(BoundingBox bounds, IntArray results) {
+		buildHierarchy();
+		if (order.length == 0) return;
+
+		float x1 = bounds.min.x - rootLocation.x, y1 = bounds.min.y - rootLocation.y,
+				z1 = bounds.min.z - rootLocation.z, x2 = bounds.max.x - rootLocation.x,
+				y2 = bounds.max.y - rootLocation.y, z2 = bounds.max.z - rootLocation.z;
+
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = 0;
+
+		while (top > 0) {
+			int node = stack[--top];
+			if (!overlaps(nodes, node, x1, y1, z1, x2, y2, z2)) continue;
+
+			int count = nodes[node+7];
+			if (count == 0) {
+				stack[top++] = nodes[node+6];
+				stack[top++] = node + NODE_SIZE;
+			} else {
+				for (int n = nodes[node+6]; n < nodes[node+6] + count; ++n) {
+					if (overlaps(boxes.items, order[n]*6, x1, y1, z1, x2, y2, z2)) results.add(order[n]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns whether a box overlaps or touches the given bounds.
+	 *
+	 * @param bounds an array holding the box as x1, y1, z1, x2, y2, z2
+	 * @param n the index of the box in the array
+	 * @param x1 the lowest x of the bounds
+	 * @param y1 the lowest y of the bounds
+	 * @param z1 the lowest z of the bounds
+	 * @param x2 the highest x of the bounds
+	 * @param y2 the highest y of the bounds
+	 * @param z2 the highest z of the bounds
+	 * @return true if they overlap
+	 */
+	private static boolean overlaps(int[] bounds, int n, float x1, float y1, float z1,
+			float x2, float y2, float z2) {
+		return bounds[n] <= x2 && bounds[n+3] >= x1 &&
+				bounds[n+1] <= y2 && bounds[n+4] >= y1 &&
+				bounds[n+2] <= z2 && bounds[n+5] >= z1;
+	}
+
+	/**
+	 * Builds the bounding volume hierarchy over the boxes if it hasn't been
+	 * built yet. Nodes are split at the median box center along their
+	 * longest side, and stored depth first, so the left child of a node
+	 * directly follows it.
+	 */
+	private void buildHierarchy() {
+		if (nodes != null) return;
+
+		int count = getBoxCount();
+		order = new int[count];
+		for (int i = 0; i < count; ++i) order[i] = i;
+
+		IntArray built = new IntArray();
+		if (count > 0) build(built, 0, count);
+		nodes = built.toArray();
+	}
+
+	/**
+	 * Builds the node for a range of the box order and its children.
+	 *
+	 * @param built the nodes built so far
+	 * @param start the first box of the range (inclusive)
+	 * @param end the last box of the range (exclusive)
+	 */
+	private void build(IntArray built, int start, int end) {
+		int[] b = boxes.items;
+		int node = built.size;
+		int[] bounds = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+				Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+		for (int n = start; n < end; ++n) {
+			for (int a = 0; a < 3; ++a) {
+				bounds[a] = Math.min(bounds[a], b[order[n]*6 + a]);
+				bounds[a+3] = Math.max(bounds[a+3], b[order[n]*6 + a+3]);
+			}
+		}
+		built.addAll(bounds);
+		built.add(start);
+		built.add(end - start);
+		if (end - start <= LEAF_SIZE) return;
+
+		// split at the median center along the longest side
+		int axis = 0;
+		for (int a = 1; a < 3; ++a) {
+			if (bounds[a+3] - bounds[a] > bounds[axis+3] - bounds[axis]) axis = a;
+		}
+		int middle = (start + end) >>> 1;
+		select(axis, start, end-1, middle);
+
+		built.items[node+7] = 0;
+		build(built, start, middle);
+		built.items[node+6] = built.size;
+		build(built, middle, end);
+	}
+
+	/**
+	 * Partially sorts a range of the box order so the box at an index is the
+	 * one that would be there if the range were sorted by center, with
+	 * smaller centers before it and larger ones after (quickselect).
+	 *
+	 * @param axis the axis of the centers to compare
+	 * @param left the first index of the range (inclusive)
+	 * @param right the last index of the range (inclusive)
+	 * @param target the index to place
+	 */
+	private void select(int axis, int left, int right, int target) {
+		while (left < right) {
+			int pivot = center(order[(left + right) >>> 1], axis);
+			int i = left, j = right;
+			while (i <= j) {
+				while (center(order[i], axis) < pivot) i++;
+				while (center(order[j], axis) > pivot) j--;
+				if (i <= j) {
+					int t = order[i];
+					order[i++] = order[j];
+					order[j--] = t;
+				}
+			}
+			if (target <= j) {
+				right = j;
+			} else if (target >= i) {
+				left = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns twice the center of a box along an axis.
+	 *
+	 * @param box the index of the box
+	 * @param axis the axis
+	 * @return the sum of the box's minimum and maximum along the axis
+	 */
+	private int center(int box, int axis) {
+		return boxes.items[box*6 + axis] + boxes.items[box*6 + axis+3];
+	}
+
+	/**
+	 * Writes the boxes to a file. Refer to voxel_spec.txt.
+	 *
+	 * @param file the file to write
+	 */
+	public void write(FileHandle file) {
+		ByteBuffer buffer = ByteBuffer.allocate(18 + 12*getBoxCount());
+		buffer.put((byte)VERSION);
+		buffer.put((byte)(scale-1));
+		buffer.putFloat(rootLocation.x);
+		buffer.putFloat(rootLocation.y);
+		buffer.putFloat(rootLocation.z);
+		buffer.putInt(getBoxCount());
+		for (int n = 0; n < boxes.size; ++n) buffer.putShort((short)boxes.get(n));
+		file.writeBytes(buffer.array(), false);
+	}
+}
@@ -0,0 +1,235 @@
+package shivanhunter.voxelmodeller;
+
+import java.util.List;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.g2d.SpriteCache;
+import com.badlogic.gdx.graphics.g2d.TextureRegion;
+import com.badlogic.gdx.utils.Disposable;
+
+/**
+ * The list of colors on the right side of the screen. Each color takes a
+ * 32x16 slot holding a remove button and a swatch, filling columns from the
+ * top right corner; the slot after the last color holds the add button.
+ *
+ * All sprites come from the GUI atlas and are kept in a SpriteCache, so the
+ * palette is drawn in one call from a vertex buffer that is only rebuilt
+ * after invalidate() or a change of selection, mouseover or screen size.
+ * Since slots are laid out in a fixed grid, finding the slot under the mouse
+ * is a few divisions however many colors there are.
+ */
+public class ColorPalette implements Disposable {
+	// size of one slot in pixels, and of a swatch's outline within it
+	public static final int SLOT_WIDTH = 32, SLOT_HEIGHT = 16;
+	private static final int SWATCH_SIZE = 14;
+
+	// sprites needed for each slot: remove button, swatch and four edges
+	private static final int SPRITES_PER_SLOT = 6;
+
+	private List<Color> colors;
+	private int selected = 1, mouseOver = -1;
+
+	// atlas regions, null until the atlas has loaded
+	private TextureRegion removeRegion, addRegion, whiteRegion;
+
+	// layout: screen size and the number of slots in a column
+	private int width, height, slotsPerColumn;
+
+	private SpriteCache cache;
+	private int cacheSize, cacheId;
+	private boolean dirty = true;
+
+	/**
+	 * Creates a palette showing a list of colors. The list is used as it is;
+	 * call invalidate() after changing it.
+	 *
+	 * @param colors the colors to show; index 0 is no voxel and has no swatch
+	 * @param width the width of the screen in pixels
+	 * @param height the height of the screen in pixels
+	 */
+	public ColorPalette(List<Color> colors, int width, int height) {
+		this.colors = colors;
+		resize(width, height);
+	}
+
+	/**
+	 * Sets the atlas regions to draw with. Nothing is drawn until these are
+	 * set.
+	 *
+	 * @param remove the remove button
+	 * @param add the add button
+	 * @param white a plain white region, stretched for swatches and outlines
+	 */
+	public void setRegions(TextureRegion remove, TextureRegion add, TextureRegion white) {
+		removeRegion = remove;
+		addRegion = add;
+		whiteRegion = white;
+		dirty = true;
+	}
+
+	/**
+	 * Lays the palette out for a new screen size.
+	 *
+	 * @param width the width of the screen in pixels
+	 * @param height the height of the screen in pixels
+	 */
+	public void resize(int width, int height) {
+		this.width = width;
+		this.height = height;
+		slotsPerColumn = Math.max(1, height / SLOT_HEIGHT);
+		if (cache != null) cache.getProjectionMatrix().setToOrtho2D(0, 0, width, height);
+		dirty = true;
+	}
+
+	/**
+	 * Marks the palette as needing to be rebuilt, which should be done after
+	 * the color list changes.
+	 */
+	public void invalidate() {
+		dirty = true;
+	}
+
+	/**
+	 * Returns the index of the selected color.
+	 * @return the selected index, at least 1
+	 */
+	public int getSelected() {
+		return selected;
+	}
+
+	/**
+	 * Selects a color.
+	 * @param index the index of the color in the list
+	 */
+	public void setSelected(int index) {
+		if (index != selected) dirty = true;
+		selected = index;
+	}
+
+	/**
+	 * Updates the color highlighted under the mouse.
+	 *
+	 * @param screenX the x position on the screen
+	 * @param screenY the y position on the screen, from the top
+	 */
+	public void setMouseOver(int screenX, int screenY) {
+		int slot = getSlot(screenX, screenY);
+		int index = slot < colors.size() && isOverSwatch(screenX) ? slot : -1;
+		if (index != mouseOver) dirty = true;
+		mouseOver = index;
+	}
+
+	/**
+	 * Returns the slot at a screen position.
+	 *
+	 * @param screenX the x position on the screen
+	 * @param screenY the y position on the screen, from the top
+	 * @return the index of the color whose slot this is, the number of colors
+	 *         for the add button's slot, or -1 if the position is not on the
+	 *         palette
+	 */
+	public int getSlot(int screenX, int screenY) {
+		if (screenX < 0 || screenX >= width || screenY < 0) return -1;
+		int row = screenY / SLOT_HEIGHT;
+		if (row >= slotsPerColumn) return -1;
+
+		int column = (width - 1 - screenX) / SLOT_WIDTH;
+		int slot = column*slotsPerColumn + row;
+		return slot <= colors.size() ? slot : -1;
+	}
+
+	/**
+	 * Returns whether a screen position is on the right half of a slot, where
+	 * swatches and the add button are. The left half holds remove buttons.
+	 *
+	 * @param screenX the x position on the screen
+	 * @return true if the position is on the right half of its column
+	 */
+	public boolean isOverSwatch(int screenX) {
+		return (width - 1 - screenX) % SLOT_WIDTH < SLOT_WIDTH/2;
+	}
+
+	/**
+	 * Draws the palette, rebuilding its sprites first if anything changed.
+	 * Does nothing until the atlas regions are set.
+	 */
+	public void draw() {
+		if (whiteRegion == null) return;
+		if (dirty) rebuild();
+
+		Gdx.gl.glEnable(GL20.GL_BLEND);
+		Gdx.gl.glBlendFunc(GL20.GL_SRC_ALPHA, GL20.GL_ONE_MINUS_SRC_ALPHA);
+		cache.begin();
+		cache.draw(cacheId);
+		cache.end();
+		Gdx.gl.glDisable(GL20.GL_BLEND);
+	}
+
+	/**
+	 * Rebuilds the cached sprites from the color list, growing the cache if
+	 * it can't hold them all.
+	 */
+	private void rebuild() {
+		int needed = colors.size()*SPRITES_PER_SLOT + 1;
+		if (cache == null || needed > cacheSize) {
+			if (cache != null) cache.dispose();
+			cacheSize = Math.max(needed, 2*cacheSize);
+			cache = new SpriteCache(cacheSize, false);
+			cache.getProjectionMatrix().setToOrtho2D(0, 0, width, height);
+		}
+
+		cache.clear();
+		cache.beginCache();
+		for (int i = 0; i < colors.size(); ++i) {
+			int x = slotRight(i), y = slotTop(i);
+
+			cache.setColor(Color.WHITE);
+			if (i > 1) cache.add(removeRegion, x-SLOT_WIDTH, y-SLOT_HEIGHT, 16, 16);
+			if (i != 0) {
+				cache.setColor(colors.get(i));
+				cache.add(whiteRegion, x-SWATCH_SIZE, y-SWATCH_SIZE, SWATCH_SIZE-2, SWATCH_SIZE-2);
+			}
+
+			// outline with brighter color for the selected color and mouseover color
+			if (i == selected) cache.setColor(Color.WHITE);
+			else if (i == mouseOver) cache.setColor(Color.LIGHT_GRAY);
+			else cache.setColor(Color.GRAY);
+			int left = x-SWATCH_SIZE-1, bottom = y-SWATCH_SIZE-1;
+			cache.add(whiteRegion, left, bottom, SWATCH_SIZE, 1);
+			cache.add(whiteRegion, left, y-2, SWATCH_SIZE, 1);
+			cache.add(whiteRegion, left, bottom, 1, SWATCH_SIZE);
+			cache.add(whiteRegion, x-2, bottom, 1, SWATCH_SIZE);
+		}
+		cache.setColor(Color.WHITE);
+		cache.add(addRegion, slotRight(colors.size())-16, slotTop(colors.size())-16, 16, 16);
+		cacheId = cache.endCache();
+		dirty = false;
+	}
+
+	/**
+	 * Returns the x position of the right edge of a slot.
+	 * @param slot the index of the slot
+	 * @return the x position in pixels, from the left
+	 */
+	private int slotRight(int slot) {
+		return width - (slot / slotsPerColumn)*SLOT_WIDTH;
+	}
+
+	/**
+	 * Returns the y position of the top edge of a slot.
+	 * @param slot the index of the slot
+	 * @return the y position in pixels, from the bottom
+	 */
+	private int slotTop(int slot) {
+		return height - (slot % slotsPerColumn)*SLOT_HEIGHT;
+	}
+
+	/**
+	 * Disposes the sprite cache.
+	 */
+	@Override public void dispose() {
+		if (cache != null) cache.dispose();
+	}
+}
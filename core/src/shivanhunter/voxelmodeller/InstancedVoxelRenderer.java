@@ -0,0 +1,290 @@
+package shivanhunter.voxelmodeller;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.BufferUtils;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.ObjectMap;
+
+/**
+ * Draws many copies of VoxelModels with hardware instancing. Each model's
+ * mesh is uploaded once by the VoxelModel itself; the copies only add a
+ * position and a scale to a per-instance attribute buffer, so any number of
+ * copies of one model cost a single draw call.
+ *
+ * Usage mirrors ModelBatch: call begin(), then render() once per copy, then
+ * end(). Copies are grouped by model and drawn in end().
+ *
+ * Instancing needs a GL 3.0 context (Gdx.gl30). Without one, the renderer
+ * falls back to one draw call per copy using the same shader, so the output
+ * is identical either way.
+ *
+ * This is for code that places many copies of models in a scene, such as a
+ * game using the modeller's files. The editor itself draws one model, so it
+ * keeps using ModelBatch, which also gives it fog, levels of detail and the
+ * bounds and selection overlays that this renderer doesn't draw. The
+ * desktop InstancingBenchmark compares the two for 1k and 10k copies.
+ */
+public class InstancedVoxelRenderer implements Disposable {
+	/*
+	 * Floats per instance: x, y and z offset of the model's voxel origin, and
+	 * the factor that converts voxels to world units (1/scale)
+	 */
+	private static final int INSTANCE_FLOATS = 4;
+
+	private static final String vertexShader =
+			"attribute vec3 a_position;\n" +
+			"attribute vec3 a_color;\n" +
+			"attribute vec3 a_normal;\n" +
+			"attribute vec4 a_instance;\n" +
+			"uniform mat4 u_projViewTrans;\n" +
+			"uniform vec3 u_lightDir;\n" +
+			"uniform vec3 u_lightColor;\n" +
+			"uniform vec3 u_ambientColor;\n" +
+			"varying vec3 v_color;\n" +
+			"void main() {\n" +
+			"	float diffuse = max(dot(a_normal, -u_lightDir), 0.0);\n" +
+			"	v_color = a_color * (u_ambientColor + u_lightColor*diffuse);\n" +
+			"	vec3 position = a_position*a_instance.w + a_instance.xyz;\n" +
+			"	gl_Position = u_projViewTrans * vec4(position, 1.0);\n" +
+			"}\n";
+
+	private static final String fragmentShader =
+			"#ifdef GL_ES\n" +
+			"precision mediump float;\n" +
+			"#endif\n" +
+			"varying vec3 v_color;\n" +
+			"void main() {\n" +
+			"	gl_FragColor = vec4(v_color, 1.0);\n" +
+			"}\n";
+
+	// shader shared by the instanced and fallback paths
+	private ShaderProgram shader;
+
+	// GL handle of the per-instance attribute buffer (0 without GL 3.0)
+	private int instanceBuffer;
+
+	// staging buffer for uploading instance data
+	private FloatBuffer instanceData;
+
+	// instance data collected since begin(), grouped by model
+	private ObjectMap<VoxelModel, FloatArray> batches;
+
+	// unused FloatArrays from previous frames, reused to avoid garbage
+	private ObjectMap<VoxelModel, FloatArray> pool;
+
+	// light direction and colors, matching MainScreen's key and fill light
+	private Vector3 lightDirection;
+	private Vector3 lightColor;
+	private Vector3 ambientColor;
+
+	private Camera cam;
+
+	/*
+	 * Number of draw calls issued by the last end(). With instancing this is
+	 * the number of meshes of the distinct models rendered, not the number of
+	 * copies.
+	 */
+	public int drawCalls;
+
+	/**
+	 * Creates a new InstancedVoxelRenderer. Throws a GdxRuntimeException if
+	 * the shader fails to compile.
+	 */
+	public InstancedVoxelRenderer() {
+		shader = new ShaderProgram(vertexShader, fragmentShader);
+		if (!shader.isCompiled()) {
+			throw new GdxRuntimeException("Instancing shader failed: " + shader.getLog());
+		}
+
+		if (isInstancingSupported()) {
+			IntBuffer handle = BufferUtils.newIntBuffer(1);
+			Gdx.gl.glGenBuffers(1, handle);
+			instanceBuffer = handle.get(0);
+		}
+
+		instanceData = BufferUtils.newFloatBuffer(INSTANCE_FLOATS*64);
+		batches = new ObjectMap<VoxelModel, FloatArray>();
+		pool = new ObjectMap<VoxelModel, FloatArray>();
+
+		lightDirection = new Vector3(-1f, -0.8f, -0.4f).nor();
+		lightColor = new Vector3(1f, 1f, 1f);
+		ambientColor = new Vector3(0.2f, 0.2f, 0.25f);
+	}
+
+	/**
+	 * Returns whether the current GL context supports instanced drawing. If
+	 * not, end() issues one draw call per copy.
+	 *
+	 * @return true if instanced draw calls are available
+	 */
+	public static boolean isInstancingSupported() {
+		return Gdx.gl30 != null;
+	}
+
+	/**
+	 * Starts collecting copies to be drawn with the given camera.
+	 *
+	 * @param cam the camera to render with
+	 */
+	public void begin(Camera cam) {
+		if (this.cam != null) throw new IllegalStateException("end() must be called before begin()");
+		this.cam = cam;
+
+		// move last frame's arrays into the pool so they can be refilled
+		for (ObjectMap.Entry<VoxelModel, FloatArray> entry : batches.entries()) {
+			entry.value.clear();
+			pool.put(entry.key, entry.value);
+		}
+		batches.clear();
+	}
+
+	/**
+	 * Queues a copy of the given model at the given world position. As with
+	 * a ModelInstance, the model's root location is placed at this position.
+	 * The model is drawn at 1/scale world units per voxel.
+	 *
+	 * @param model the model to draw
+	 * @param x the world x position of the model's root location
+	 * @param y the world y position of the model's root location
+	 * @param z the world z position of the model's root location
+	 */
+	public void render(VoxelModel model, float x, float y, float z) {
+		if (cam == null) throw new IllegalStateException("begin() must be called before render()");
+
+		FloatArray batch = batches.get(model);
+		if (batch == null) {
+			batch = pool.remove(model);
+			if (batch == null) batch = new FloatArray(INSTANCE_FLOATS*16);
+			batches.put(model, batch);
+		}
+
+		// the mesh is in voxel units relative to the voxel origin, so the
+		// offset is the position plus the root location in world units
+		float voxelSize = 1f/model.getScale();
+		Vector3 root = model.getRootLocation();
+		batch.add(x + root.x*voxelSize);
+		batch.add(y + root.y*voxelSize);
+		batch.add(z + root.z*voxelSize);
+		batch.add(voxelSize);
+	}
+
+	/**
+	 * Draws every copy queued since begin(), one draw call per model if
+	 * instancing is supported.
+	 */
+	public void end() {
+		if (cam == null) throw new IllegalStateException("begin() must be called before end()");
+		drawCalls = 0;
+
+		shader.begin();
+		shader.setUniformMatrix("u_projViewTrans", cam.combined);
+		shader.setUniformf("u_lightDir", lightDirection);
+		shader.setUniformf("u_lightColor", lightColor);
+		shader.setUniformf("u_ambientColor", ambientColor);
+
+		for (ObjectMap.Entry<VoxelModel, FloatArray> entry : batches.entries()) {
+			for (Mesh mesh : entry.key.getMeshes()) {
+				if (mesh.getNumIndices() == 0) continue;
+
+				if (isInstancingSupported()) {
+					renderInstanced(mesh, entry.value);
+				} else {
+					renderSeparately(mesh, entry.value);
+				}
+			}
+		}
+
+		shader.end();
+
+		// pool arrays of models that were not drawn this frame are dropped
+		// so that disposed models don't stay referenced
+		pool.clear();
+		cam = null;
+	}
+
+	/**
+	 * Draws all copies of a mesh in one instanced draw call.
+	 *
+	 * @param mesh the mesh to draw
+	 * @param instances the instance data, INSTANCE_FLOATS per copy
+	 */
+	private void renderInstanced(Mesh mesh, FloatArray instances) {
+		int count = instances.size/INSTANCE_FLOATS;
+
+		// grow the staging buffer if necessary
+		if (instanceData.capacity() < instances.size) {
+			instanceData = BufferUtils.newFloatBuffer(instances.size*2);
+		}
+		instanceData.clear();
+		instanceData.put(instances.items, 0, instances.size);
+		instanceData.flip();
+
+		mesh.bind(shader);
+
+		Gdx.gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, instanceBuffer);
+		Gdx.gl.glBufferData(GL20.GL_ARRAY_BUFFER, instances.size*4, instanceData, GL20.GL_STREAM_DRAW);
+
+		int location = shader.getAttributeLocation("a_instance");
+		shader.enableVertexAttribute(location);
+		shader.setVertexAttribute(location, INSTANCE_FLOATS, GL20.GL_FLOAT, false, INSTANCE_FLOATS*4, 0);
+		Gdx.gl30.glVertexAttribDivisor(location, 1);
+
+		Gdx.gl30.glDrawElementsInstanced(
+				GL20.GL_TRIANGLES, mesh.getNumIndices(), GL20.GL_UNSIGNED_SHORT, 0, count);
+		drawCalls++;
+
+		// reset state so other renderers aren't affected
+		Gdx.gl30.glVertexAttribDivisor(location, 0);
+		shader.disableVertexAttribute(location);
+		Gdx.gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, 0);
+
+		mesh.unbind(shader);
+	}
+
+	/**
+	 * Draws each copy of a mesh with its own draw call, passing the instance
+	 * data as a constant vertex attribute. Used when instancing is not
+	 * supported.
+	 *
+	 * @param mesh the mesh to draw
+	 * @param instances the instance data, INSTANCE_FLOATS per copy
+	 */
+	private void renderSeparately(Mesh mesh, FloatArray instances) {
+		int location = shader.getAttributeLocation("a_instance");
+
+		mesh.bind(shader);
+		shader.disableVertexAttribute(location);
+		for (int i = 0; i < instances.size; i += INSTANCE_FLOATS) {
+			Gdx.gl.glVertexAttrib4f(location,
+					instances.items[i],
+					instances.items[i+1],
+					instances.items[i+2],
+					instances.items[i+3]);
+			Gdx.gl.glDrawElements(GL20.GL_TRIANGLES, mesh.getNumIndices(), GL20.GL_UNSIGNED_SHORT, 0);
+			drawCalls++;
+		}
+		mesh.unbind(shader);
+	}
+
+	/**
+	 * Deallocates the shader and instance buffer.
+	 */
+	@Override public void dispose() {
+		shader.dispose();
+		if (instanceBuffer != 0) {
+			IntBuffer handle = BufferUtils.newIntBuffer(1);
+			handle.put(instanceBuffer).flip();
+			Gdx.gl.glDeleteBuffers(1, handle);
+		}
+	}
+}
@@ -5,25 +5,28 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 
 import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import com.badlogic.gdx.ApplicationAdapter;
 import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.Input.Keys;
 import com.badlogic.gdx.InputMultiplexer;
 import com.badlogic.gdx.InputProcessor;
+import com.badlogic.gdx.assets.AssetManager;
 import com.badlogic.gdx.files.FileHandle;
 import com.badlogic.gdx.graphics.Color;
 import com.badlogic.gdx.graphics.GL20;
 import com.badlogic.gdx.graphics.PerspectiveCamera;
-import com.badlogic.gdx.graphics.Texture;
-import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.graphics.g2d.TextureAtlas;
 import com.badlogic.gdx.graphics.g2d.TextureRegion;
 import com.badlogic.gdx.graphics.g3d.Environment;
+import com.badlogic.gdx.graphics.g3d.Material;
+import com.badlogic.gdx.graphics.g3d.Model;
 import com.badlogic.gdx.graphics.g3d.ModelBatch;
+import com.badlogic.gdx.graphics.g3d.ModelInstance;
 import com.badlogic.gdx.graphics.g3d.attributes.ColorAttribute;
 import com.badlogic.gdx.graphics.g3d.environment.DirectionalLight;
-import com.badlogic.gdx.graphics.glutils.ShapeRenderer;
-import com.badlogic.gdx.graphics.glutils.ShapeRenderer.ShapeType;
 import com.badlogic.gdx.math.MathUtils;
 import com.badlogic.gdx.math.Vector2;
 import com.badlogic.gdx.math.Vector3;
@@ -35,6 +38,9 @@ import com.badlogic.gdx.scenes.scene2d.ui.Button.ButtonStyle;
 import com.badlogic.gdx.scenes.scene2d.utils.ChangeListener;
 import com.badlogic.gdx.scenes.scene2d.utils.Drawable;
 import com.badlogic.gdx.scenes.scene2d.utils.TextureRegionDrawable;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.ObjectMap;
+import com.badlogic.gdx.utils.Timer;
 
 public class MainScreen extends ApplicationAdapter implements InputProcessor {
 	// camera control vars
@@ -42,36 +48,74 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 	private float camDistance = 10;
 	private float xRot, yRot;
 	
+	// set when camDistance or a rotation changes, so the camera is only
+	// recomputed on frames where it moved
+	private boolean cameraChanged = true;
+	
 	// environment/rendering vars
 	private Environment environment;
 	private Color fogColor;
 	
 	// batch objects
-	private SpriteBatch guiBatch;
-	private ShapeRenderer colorBatch;
 	private ModelBatch modelBatch;
 	
 	// model state
 	private VoxelModel model;
 	private ArrayList<Color> colors;
 	
+	// on-disk cache of meshes of loaded models
+	private MeshCache meshCache;
+	
+	// recently used models kept in memory
+	private ModelCache modelCache;
+	
+	// the .voxel file of the current model and its journal, or null if the
+	// model has no such file yet; changes are journaled every few seconds
+	private FileHandle modelFile;
+	private VoxelJournal journal;
+	private Timer.Task autosaveTask;
+	private static final float AUTOSAVE_SECONDS = 30;
+	
 	// GUI stuff
 	private Stage stage;
-	private int selectedColor = 1, mouseOverColor;
-	private Ray pickRay;
+	private ColorPalette palette;
+	private final Ray pickRay = new Ray(new Vector3(), new Vector3());
 	private Vector2 mousePosition;
+	
+	// cell under the cursor, reused by every pick
+	private final int[] cursorCell = new int[3];
 	private boolean movingCamera = false;
+	
+	// brush used to paint, and whether a stroke is in progress
+	private VoxelBrush brush = new VoxelBrush();
+	private boolean painting = false;
+	
+	// selected region of the model, or null, and the first corner of a
+	// selection being made, or null
+	private VoxelRegion selection;
+	private int[] selectionAnchor;
+	private Model selectionModel;
+	private ModelInstance selectionInstance;
+	
+	// copied voxels, kept when switching models so they can be pasted into
+	// another model
+	private VoxelClipboard clipboard;
+	
+	// resolution last used to voxelize a triangle mesh
+	private int importResolution = 128;
+	
+	// whether saving also writes collision boxes to a .boxes file
+	private boolean exportCollision;
 
-	// buttons for color menu control
-	private Texture
-		removeColor,
-		addColor;
+	// loads the GUI atlas in the background; the GUI is created once it is in
+	private AssetManager assets;
+	private TextureAtlas guiAtlas;
+	private ObjectMap<String, Drawable> drawables = new ObjectMap<String, Drawable>();
 	
 	/*
 	 * TODO list:
 	 * 
-	 * implement changing size of model
-	 * implement three independent dimensions for width, depth, height
+	 * implement changing size of model per dimension
 	 * implement changing root location
 	 * implement selecting colors
 	 */
@@ -82,10 +126,13 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 	@Override public void create() {
 		initCamera();
 		
+		// only draw when something may have changed: input events, resizes
+		// and requestRendering() each give one frame, so an idle editor
+		// draws nothing
+		Gdx.graphics.setContinuousRendering(false);
+		
 		// set up batch objects
 		modelBatch = new ModelBatch();
-		guiBatch = new SpriteBatch();
-		colorBatch = new ShapeRenderer();
 
 		// set up environment
 		fogColor = new Color(.15f, .2f, .25f, 1);
@@ -96,6 +143,16 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 		
 		// initialize model
 		model = new VoxelModel(8);
+		meshCache = new MeshCache(Gdx.files.external(".voxelmodeller/meshcache"), 256L << 20);
+		modelCache = new ModelCache(512L << 20, 256L << 20, meshCache);
+		
+		// timer tasks run on the render thread, between frames
+		autosaveTask = new Timer.Task() {
+			public void run() {
+				autosave();
+			}
+		};
+		Timer.schedule(autosaveTask, AUTOSAVE_SECONDS, AUTOSAVE_SECONDS);
 		
 		// set up mouse input
 		mousePosition = new Vector2();
@@ -126,6 +183,7 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 		
 		colors.add(Color.PINK);
 		colors.add(Color.ORANGE);
+		palette = new ColorPalette(colors, Gdx.graphics.getWidth(), Gdx.graphics.getHeight());
 		
 		// set up GUI
 		stage = new Stage();
@@ -136,24 +194,38 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 		muxer.addProcessor(this);
 		Gdx.input.setInputProcessor(muxer);
 		
-		// get textures for buttons
+		// all GUI images are packed into one atlas (see the packGui task),
+		// which loads in the background while the model is already drawn
+		assets = new AssetManager();
+		assets.load("gui.atlas", TextureAtlas.class);
+	}
+	
+	/**
+	 * Creates the GUI buttons from the GUI atlas and attaches them to the
+	 * Stage. Called once, when the atlas has finished loading.
+	 */
+	private void createGui() {
+		guiAtlas = assets.get("gui.atlas", TextureAtlas.class);
+		
+		// get textures for the color list; swatches use the middle of a
+		// white region so stretching it never samples past its edges
 		// TODO: elegantly fail in some way if these or other textures are not present
-		removeColor = new Texture(Gdx.files.internal("removecolor.png"));
-		addColor = new Texture(Gdx.files.internal("addcolor.png"));
+		palette.setRegions(guiAtlas.findRegion("removecolor"), guiAtlas.findRegion("addcolor"),
+				new TextureRegion(guiAtlas.findRegion("white"), 1, 1, 2, 2));
 		
 		// load GUI buttons
-		Button saveButton = newButton("save.png", "save_over.png", "save_down.png");
-		Button loadButton = newButton("load.png", "load_over.png", "load_down.png");
-		Button newButton = newButton("new.png", "new_over.png", "new_down.png");
-		Button addxButton = newButton("root_addx.png", "root_addx_over.png", "root_addx_over.png");
-		Button addyButton = newButton("root_addy.png", "root_addy_over.png", "root_addy_over.png");
-		Button addzButton = newButton("root_addz.png", "root_addz_over.png", "root_addz_over.png");
-		Button subxButton = newButton("root_subx.png", "root_subx_over.png", "root_subx_over.png");
-		Button subyButton = newButton("root_suby.png", "root_suby_over.png", "root_suby_over.png");
-		Button subzButton = newButton("root_subz.png", "root_subz_over.png", "root_subz_over.png");
-		Button resetButton = newButton("root_reset.png", "root_reset_over.png", "root_reset_over.png");
-		Button addsizeButton = newButton("size_add.png", "size_add_over.png", "size_add_over.png");
-		Button subsizeButton = newButton("size_sub.png", "size_sub_over.png", "size_sub_over.png");
+		Button saveButton = newButton("save", "save_over", "save_down");
+		Button loadButton = newButton("load", "load_over", "load_down");
+		Button newButton = newButton("new", "new_over", "new_down");
+		Button addxButton = newButton("root_addx", "root_addx_over", "root_addx_over");
+		Button addyButton = newButton("root_addy", "root_addy_over", "root_addy_over");
+		Button addzButton = newButton("root_addz", "root_addz_over", "root_addz_over");
+		Button subxButton = newButton("root_subx", "root_subx_over", "root_subx_over");
+		Button subyButton = newButton("root_suby", "root_suby_over", "root_suby_over");
+		Button subzButton = newButton("root_subz", "root_subz_over", "root_subz_over");
+		Button resetButton = newButton("root_reset", "root_reset_over", "root_reset_over");
+		Button addsizeButton = newButton("size_add", "size_add_over", "size_add_over");
+		Button subsizeButton = newButton("size_sub", "size_sub_over", "size_sub_over");
 		
 		// position buttons in top left corner
 		int position = Gdx.graphics.getHeight() - 32;
@@ -227,23 +299,23 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 		
 		resetButton.addCaptureListener(new ChangeListener() {
 		    public void changed (ChangeEvent event, Actor actor) {
-		        model.getRootLocation().x = -model.getSize()/2f;
-		        model.getRootLocation().y = -model.getSize()/2f;
-		        model.getRootLocation().z = -model.getSize()/2f;
+		        model.getRootLocation().x = -model.getWidth()/2f;
+		        model.getRootLocation().y = -model.getHeight()/2f;
+		        model.getRootLocation().z = -model.getDepth()/2f;
 		        model.update();
 		    }
 		});
 		
 		addsizeButton.addCaptureListener(new ChangeListener() {
 		    public void changed (ChangeEvent event, Actor actor) {
-		        model.setSize(model.getSize() + 1);
+		        model.setSize(model.getWidth() + 1, model.getHeight() + 1, model.getDepth() + 1);
 		        model.update();
 		    }
 		});
 		
 		subsizeButton.addCaptureListener(new ChangeListener() {
 		    public void changed (ChangeEvent event, Actor actor) {
-		        model.setSize(model.getSize() - 1);
+		        model.setSize(model.getWidth() - 1, model.getHeight() - 1, model.getDepth() - 1);
 		        model.update();
 		    }
 		});
@@ -264,12 +336,13 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 	}
 	
 	/**
-	 * Convenience method to create a new button given a set of filenames.
+	 * Convenience method to create a new button given a set of atlas region
+	 * names.
 	 * TODO: elegantly fail somehow if textures aren't present
 	 * 
-	 * @param up image path for the normal state of the button
-	 * @param mouseOver image path for the mouseover state of the button
-	 * @param mouseDown image path for the pressed state of the button
+	 * @param up region name for the normal state of the button
+	 * @param mouseOver region name for the mouseover state of the button
+	 * @param mouseDown region name for the pressed state of the button
 	 * @return the new Button using the given images
 	 */
 	private Button newButton(String up, String mouseOver, String mouseDown) {
@@ -282,56 +355,206 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 	}
 	
 	/**
-	 * Convenience function to get a LibGDX Drawable object from an image filename
+	 * Convenience function to get a LibGDX Drawable object from a region of
+	 * the GUI atlas. Drawables are shared, so a region used by several
+	 * buttons or states is only wrapped once.
 	 * TODO: elegantly fail somehow if texture isn't present
 	 * 
-	 * @param texture the file path of the image to use
+	 * @param region the name of the atlas region to use
 	 * @return the Drawable object
 	 */
-	private Drawable getDrawable(String texture) {
-		Texture tex = new Texture(Gdx.files.internal(texture));
-		return new TextureRegionDrawable(new TextureRegion(tex));
+	private Drawable getDrawable(String region) {
+		Drawable drawable = drawables.get(region);
+		if (drawable == null) {
+			drawable = new TextureRegionDrawable(guiAtlas.findRegion(region));
+			drawables.put(region, drawable);
+		}
+		return drawable;
 	}
 	
 	/**
-	 * Opens a dialog to save the current model as a file.
+	 * Opens a dialog to save the current model as a file. Files ending in
+	 * .vox are exported as MagicaVoxel files, which can't hold everything in
+	 * a model, so exporting doesn't count as saving. If collision export is
+	 * on, the model's collision boxes are written next to the saved file.
 	 */
 	private void saveFile() {
 		FileHandle toWrite = getFile(false);
-		if (toWrite != null) {
+		if (toWrite != null && toWrite.extension().equalsIgnoreCase("vox")) {
 			toWrite.delete();
-			toWrite.writeBytes(model.serialize(), false);	
+			VoxFormat.write(model, toWrite);
+		} else if (toWrite != null) {
+			// writing the whole file also folds in and removes its journal
+			VoxelJournal saved = new VoxelJournal(toWrite);
+			saved.save(model.getData());
+			model.markSaved();
+			modelFile = toWrite;
+			journal = saved;
+			
+			if (exportCollision) {
+				model.getCollisionBoxes().write(toWrite.sibling(toWrite.nameWithoutExtension() + ".boxes"));
+			}
+			
+			// the saved model is now cached under its file
+			modelCache.put(toWrite, model, journal);
 		}
 	}
 	
+	/**
+	 * Appends unsaved changes of the current model to the journal of its
+	 * file, so they survive a crash without rewriting the whole file. Once
+	 * the journal is big enough, it is folded into a new full file instead.
+	 * Models without a .voxel file are not saved.
+	 */
+	private void autosave() {
+		if (journal == null || !model.isModified()) return;
+		
+		try {
+			VoxelData data = model.getData();
+			journal.append(data);
+			if (journal.needsFold()) journal.save(data);
+		} catch (GdxRuntimeException e) {
+			System.err.println("Autosave to " + modelFile.path() + " failed: " + e.getMessage());
+			return;
+		}
+		model.markSaved();
+		modelCache.put(modelFile, model, journal);
+	}
+	
 	/**
 	 * Opens a dialog to load a file as the current model. Does not affect the
 	 * current model if the file chosen is a corrupt/invalid model file.
+	 * Recently used models are taken from the model cache instead of being
+	 * loaded again. OBJ and STL files are voxelized.
 	 */
 	private void loadFile() {
 		FileHandle toRead = getFile(true);
-		if (toRead != null) {
+		if (toRead != null && (toRead.extension().equalsIgnoreCase("obj") ||
+				toRead.extension().equalsIgnoreCase("stl"))) {
+			importMesh(toRead);
+		} else if (toRead != null) {
 			VoxelModel newModel = null;
 			try {
-				newModel = new VoxelModel(toRead.readBytes());
+				newModel = modelCache.get(toRead);
 			}
 			catch (IllegalArgumentException e) {
 				System.err.println("Incorrectly formatted file: " + toRead.path() + ", loading failed.");
 			}
 			
-			if (newModel != null) {
-				model.dispose();
+			if (newModel != null && newModel != model) {
+				retireModel();
 				model = newModel;
+				modelCache.trim(model);
+				modelFile = toRead;
+				journal = modelCache.getJournal(toRead);
 			}
 		}
 	}
 	
+	/**
+	 * Voxelizes a triangle mesh file as the current model, asking for the
+	 * resolution first. Does not affect the current model if the file can't
+	 * be read or the dialog is cancelled.
+	 * 
+	 * @param file the OBJ or STL file to import
+	 */
+	private void importMesh(FileHandle file) {
+		MeshVoxelizer voxelizer;
+		try {
+			voxelizer = new MeshVoxelizer(file);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Incorrectly formatted file: " + file.path() + ", loading failed.");
+			return;
+		}
+		
+		String answer = JOptionPane.showInputDialog(null,
+				"Voxels along the longest side (1-" + MeshVoxelizer.MAX_RESOLUTION + "):", importResolution);
+		if (answer == null) return;
+		try {
+			importResolution = Integer.parseInt(answer.trim());
+		} catch (NumberFormatException e) {
+			return;
+		}
+		
+		VoxelModel newModel = voxelizer.voxelize(importResolution);
+		
+		retireModel();
+		model = newModel;
+		modelCache.trim(model);
+	}
+	
 	/**
 	 * creates a new model as the current model.
 	 */
 	private void newFile() {
-		model.dispose();
-		model = new VoxelModel(model.getSize());
+		VoxelModel newModel = new VoxelModel(model.getWidth(), model.getHeight(), model.getDepth());
+		retireModel();
+		model = newModel;
+		modelCache.trim(model);
+	}
+	
+	/**
+	 * Should be called before the current model is replaced. Its changes are
+	 * journaled first. The model is disposed unless the model cache holds
+	 * it, in which case it stays cached for quick switching back.
+	 */
+	private void retireModel() {
+		autosave();
+		modelFile = null;
+		journal = null;
+		if (!modelCache.contains(model)) model.dispose();
+		setSelection(null);
+		selectionAnchor = null;
+	}
+	
+	/**
+	 * Sets the selected region and rebuilds the wireframe box showing it.
+	 * 
+	 * @param region the region to select, or null to clear the selection
+	 */
+	private void setSelection(VoxelRegion region) {
+		if (selectionModel != null) selectionModel.dispose();
+		selectionModel = null;
+		selectionInstance = null;
+		selection = region;
+		
+		if (region != null) {
+			selectionModel = VoxelModel.buildWireBox(
+					region.x2 - region.x1, region.y2 - region.y1, region.z2 - region.z1,
+					new Material(ColorAttribute.createDiffuse(Color.YELLOW)));
+			selectionInstance = new ModelInstance(selectionModel);
+		}
+	}
+	
+	/**
+	 * Marks the voxel under the cursor as a corner of the selection. The
+	 * first press selects that voxel alone, the second selects the box
+	 * between both corners.
+	 */
+	private void markSelectionCorner() {
+		int[] cell = cursorCell;
+		if (!model.pickCell(pickRay, cell, false)) return;
+		
+		if (selectionAnchor == null) {
+			selectionAnchor = cell.clone();
+			setSelection(new VoxelRegion(cell[0], cell[1], cell[2], cell[0]+1, cell[1]+1, cell[2]+1));
+		} else {
+			int[] a = selectionAnchor;
+			setSelection(new VoxelRegion(
+					Math.min(a[0], cell[0]), Math.min(a[1], cell[1]), Math.min(a[2], cell[2]),
+					Math.max(a[0], cell[0])+1, Math.max(a[1], cell[1])+1, Math.max(a[2], cell[2])+1));
+			selectionAnchor = null;
+		}
+	}
+	
+	/**
+	 * Pastes the clipboard with its first cell at the empty cell under the
+	 * cursor.
+	 */
+	private void pasteAtCursor() {
+		int[] cell = cursorCell;
+		if (clipboard == null || !model.pickCell(pickRay, cell, true)) return;
+		model.paste(clipboard, cell[0], cell[1], cell[2]);
 	}
 	
 	/**
@@ -344,7 +567,8 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 	 */
 	private FileHandle getFile(boolean open) {
 		JFileChooser chooser = new JFileChooser();
-		chooser.setFileFilter(new FileNameExtensionFilter("Voxel model", "voxel"));
+		chooser.setFileFilter(new FileNameExtensionFilter("Voxel model", "voxel", "vox"));
+		if (open) chooser.addChoosableFileFilter(new FileNameExtensionFilter("Triangle mesh", "obj", "stl"));
 		try {
 			chooser.setCurrentDirectory(new File(
 					MainScreen.class.getClassLoader().getResource(".").toURI().getPath()));
@@ -362,24 +586,22 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 	}
 	
 	/**
-	 * Sets up the GUI batch objects and creates a PerspectiveCamera using the
-	 * window's current width and height. Should be called on window resize.
+	 * Creates a PerspectiveCamera using the window's current width and
+	 * height. Should be called on window resize.
 	 */
 	private void initCamera() {
-		guiBatch = new SpriteBatch();
-		colorBatch = new ShapeRenderer();
-		
 		cam = new PerspectiveCamera(67, Gdx.graphics.getWidth(), Gdx.graphics.getHeight());
 		cam.position.set(10f, 8f, 6f);
 		cam.lookAt(0, 0, 0);
 		cam.near = 1f;
 		cam.far = 512f;
 		cam.update();
+		cameraChanged = true;
 	}
 	
 	/**
 	 * Updates the camera's position based on the camDistance and rotation
-	 * variables. Should be called whenever any of these change.
+	 * variables. Called by render() when cameraChanged is set.
 	 */
 	private void updateCamera() {
 		cam.position.set(
@@ -390,14 +612,16 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 		cam.lookAt(0, 0, 0);
 		cam.update();
 		updatePickRay();
+		cameraChanged = false;
 	}
 	
 	/**
 	 * Updates the pick ray based on the camera's position and mouse position.
-	 * Should be called whenever tha mouse or camera is moved.
+	 * Should be called whenever tha mouse or camera is moved. The camera's
+	 * own ray is copied rather than kept, since the camera reuses it.
 	 */
 	private void updatePickRay() {
-		pickRay = cam.getPickRay(mousePosition.x,  mousePosition.y);
+		pickRay.set(cam.getPickRay(mousePosition.x,  mousePosition.y));
 	}
 	
 	/**
@@ -407,6 +631,7 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 	 */
 	public void addColor(Color c) {
 		colors.add(c);
+		palette.invalidate();
 	}
 
 	/**
@@ -417,59 +642,38 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 		Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT | GL20.GL_DEPTH_BUFFER_BIT);
         Gdx.gl.glClearColor(fogColor.r, fogColor.g, fogColor.b, fogColor.a);
 		
-        updateCamera();
+        if (cameraChanged) updateCamera();
+        
+        // finish loading the GUI a step at a time without blocking frames,
+        // asking for another frame until it is done since nothing else will
+        if (guiAtlas == null) {
+        	if (assets.update()) createGui();
+        	else Gdx.graphics.requestRendering();
+        }
+        
+        // remesh everything painted since the last frame in one go
+        model.flushEdits();
+		
+		// pick a level of detail from the projected size of one voxel
+		float pixelsPerVoxel = Gdx.graphics.getHeight() /
+				(2*camDistance*(float)Math.tan(Math.toRadians(cam.fieldOfView/2)));
+		int level = VoxelLOD.selectLevel(pixelsPerVoxel);
 		
 		modelBatch.begin(cam);
-		modelBatch.render(model.instance, environment);
-		modelBatch.render(model.boundsInstance, environment);
-		modelBatch.render(model.rootInstance, environment);
+		modelBatch.render(model.getInstances(level), environment);
+		modelBatch.render(model.getBoundsInstance(), environment);
+		modelBatch.render(model.getRootInstance(), environment);
+		if (selectionInstance != null) {
+			Vector3 root = model.getRootLocation();
+			selectionInstance.transform.setToTranslation(
+					root.x + selection.x1, root.y + selection.y1, root.z + selection.z1);
+			modelBatch.render(selectionInstance, environment);
+		}
 		modelBatch.end();
 
 		// draw color array as a list of colors on the right side of the screen
-		guiBatch.begin();
-		int x = Gdx.graphics.getWidth(), y = Gdx.graphics.getHeight();
-		for (int i = 0; i < colors.size(); ++i) {
-			if (i > 1) guiBatch.draw(removeColor, x-32, y-16);
-			y -= 16;
-			if (y < 16) {
-				x -= 32;
-				y = Gdx.graphics.getHeight();
-			}
-		}
-		guiBatch.draw(addColor, x-16, y-16);
-		guiBatch.end();
-
-		// draw filled color using a shapeRenderer
-		colorBatch.begin(ShapeType.Filled);
-		x = Gdx.graphics.getWidth();
-		y = Gdx.graphics.getHeight();
-		for (int i = 0; i < colors.size(); ++i) {
-			colorBatch.setColor(colors.get(i));
-			if (i != 0) colorBatch.rect(x-14, y-14, 12, 12);
-			y -= 16;
-			if (y < 16) {
-				x -= 32;
-				y = Gdx.graphics.getHeight();
-			}
-		}
-		colorBatch.end();
-
-		// draw outlines with brighter color for the selected color and mouseover color
-		colorBatch.begin(ShapeType.Line);
-		x = Gdx.graphics.getWidth();
-		y = Gdx.graphics.getHeight();
-		for (int i = 0; i < colors.size(); ++i) {
-			if (i == selectedColor) colorBatch.setColor(Color.WHITE);
-			else if (i == mouseOverColor) colorBatch.setColor(Color.LIGHT_GRAY);
-			else colorBatch.setColor(Color.GRAY);
-			colorBatch.rect(x-15, y-15, 14, 14);
-			y -= 16;
-			if (y < 16) {
-				x -= 32;
-				y = Gdx.graphics.getHeight();
-			}
-		}
-		colorBatch.end();
+		// (nothing is drawn until the GUI atlas has loaded)
+		palette.draw();
 		
 		// update GUI elements
 		stage.act(Gdx.graphics.getDeltaTime());
@@ -485,6 +689,7 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 	 */
 	@Override public void resize(int width, int height) {
 		initCamera();
+		palette.resize(width, height);
 	    stage.getViewport().update(width, height, true);
 	}
 	
@@ -492,17 +697,21 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 	 * Disposes any resources this screen uses that aren't handled by GC.
 	 */
 	@Override public void dispose () {
+		autosaveTask.cancel();
 		modelBatch.dispose();
-		guiBatch.dispose();
-		colorBatch.dispose();
+		palette.dispose();
 		stage.dispose();
-		model.dispose();
+		assets.dispose();
+		retireModel();
+		modelCache.dispose();
+		Gdx.app.log("VoxelModeller", meshCache.getStats());
 	}
 
 	/**
 	 * LibGDX method: called whenever a touch event starts being registered
 	 * 
-	 * Only start dragging camera if the touch is not from button 0
+	 * Only start dragging camera if the touch is not from button 0; button 0
+	 * starts a brush stroke unless it's over the color list
 	 * 
 	 * @param screenX the touch's x position on the screen
 	 * @param screenY the touch's y position on the screen
@@ -511,13 +720,23 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 	 */
 	@Override public boolean touchDown(int screenX, int screenY, int pointer, int button) {
 		if (button != 0) movingCamera = true;
+		
+		if (button == 0 && !isOverColorList(screenX, screenY)) {
+			mousePosition.x = screenX;
+			mousePosition.y = screenY;
+			updatePickRay();
+			
+			painting = true;
+			model.beginStroke();
+			model.paint(pickRay, colors.get(palette.getSelected()), brush);
+		}
 		return true;
 	}
 
 	/**
 	 * LibGDX method: called whenever a touch event stops being registered
 	 * 
-	 * stop dragging camera, handle input
+	 * stop dragging camera or painting, handle input
 	 * 
 	 * @param screenX the touch's x position on the screen
 	 * @param screenY the touch's y position on the screen
@@ -527,43 +746,49 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 	@Override public boolean touchUp(int screenX, int screenY, int pointer, int button) {
 		if (button != 0) movingCamera = false;
 		
+		if (button == 0 && painting) {
+			painting = false;
+			model.endStroke();
+			return true;
+		}
+		
 		if (button == 0) {
-			int x = Gdx.graphics.getWidth(), y = Gdx.graphics.getHeight();
-			screenY = y - screenY;
-			
-			for (int i = 0; i < colors.size(); ++i) {
-				if (screenY > y-16 && screenY < y) {
-					if (screenX > x-32 && screenX < x-16) {
-						if (i > 1) colors.remove(i);
-						if (selectedColor == i) selectedColor = 1;
-						return true;
-					} else if (screenX > x-16 && screenX < x) {
-						selectedColor = i;
-						return true;
-					}
-				}
-				
-				y -= 16;
-				if (y < 16) {
-					x -= 32;
-					y = Gdx.graphics.getHeight();
-				}
-			}
+			int slot = palette.getSlot(screenX, screenY);
+			boolean swatch = palette.isOverSwatch(screenX);
 			
-			if (screenX > x-16 && screenX < x) {
+			if (slot == colors.size() && swatch) {
 				colors.add(new Color(1, 1, 1, 1));
-				return true;
+				palette.invalidate();
+			} else if (slot >= 0 && slot < colors.size() && swatch) {
+				palette.setSelected(slot);
+			} else if (slot > 1 && slot < colors.size()) {
+				colors.remove(slot);
+				int selected = palette.getSelected();
+				if (selected == slot) palette.setSelected(1);
+				else if (selected > slot) palette.setSelected(selected - 1);
+				palette.invalidate();
 			}
 		}
 		
-		if (button == 0) model.modify(pickRay, colors.get(selectedColor));
 		return true;
 	}
+	
+	/**
+	 * Returns whether a screen position is over the color list, including
+	 * the button to add a color.
+	 * 
+	 * @param screenX the x position on the screen
+	 * @param screenY the y position on the screen, from the top
+	 * @return true if the position is over the color list
+	 */
+	private boolean isOverColorList(int screenX, int screenY) {
+		return palette.getSlot(screenX, screenY) >= 0;
+	}
 
 	/**
 	 * LibGDX method: called whenever the mouse moves while a button is held down
 	 * 
-	 * update mouse position and pickRay, move camera if applicable
+	 * update mouse position and pickRay, move camera or paint if applicable
 	 * 
 	 * @param screenX the touch's x position on the screen
 	 * @param screenY the touch's y position on the screen
@@ -577,11 +802,15 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 			xRot -= dx/100f;
 			yRot -= dy/100f;
 			yRot = MathUtils.clamp(yRot, -1.55f, 1.55f);
+			cameraChanged = true;
 		}
 			
 		mousePosition.x = screenX;
 		mousePosition.y = screenY;
 		updatePickRay();
+		
+		// edits are only remeshed once per frame, however often this is called
+		if (painting) model.paint(pickRay, colors.get(palette.getSelected()), brush);
 		return true;
 	}
 
@@ -595,24 +824,7 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 		mousePosition.y = screenY;
 		updatePickRay();
 		
-		int x = Gdx.graphics.getWidth(), y = Gdx.graphics.getHeight();
-		screenY = y - screenY;
-		for (int i = 0; i < colors.size(); ++i) {
-			if (screenY > y-16 && screenY < y) {
-				if (screenX > x-16 && screenX < x) {
-					mouseOverColor = i;
-					return true;
-				}
-			}
-			
-			y -= 16;
-			if (y < 16) {
-				x -= 32;
-				y = Gdx.graphics.getHeight();
-			}
-		}
-		
-		mouseOverColor = -1;
+		palette.setMouseOver(screenX, screenY);
 		return true;
 	}
 
@@ -630,14 +842,99 @@ public class MainScreen extends ApplicationAdapter implements InputProcessor {
 			camDistance *= 1.25f;
 		}
 		camDistance = MathUtils.clamp(camDistance, 4, 256);
+		cameraChanged = true;
 		return true;
 	}
 
+	/**
+	 * LibGDX method: called whenever a key is pressed
+	 * 
+	 * F shrinks the model to fit its voxels, L toggles baked lighting and E
+	 * toggles whether the selected color emits light, M switches between
+	 * blocky and smooth meshing, B switches the brush between a cube and a
+	 * sphere, [ and ] shrink and grow the brush
+	 * 
+	 * 1, 2 and 3 toggle mirror editing along x, y and z; X, Y and Z turn the
+	 * model (or the selection) a quarter turn around that axis, or flip it
+	 * along the axis while shift is held; they do nothing while control is
+	 * held, so the usual undo and redo shortcuts never turn the model
+	 * 
+	 * Q marks a corner of the selection, escape clears it; ctrl+C, ctrl+X
+	 * and ctrl+V copy, cut and paste
+	 * 
+	 * K toggles writing collision boxes when saving
+	 * 
+	 * @param keycode the code of the pressed key
+	 */
+	@Override public boolean keyDown(int keycode) {
+		switch (keycode) {
+			case Keys.F: model.shrinkToFit(); return true;
+			case Keys.L: model.setBakedLighting(!model.hasBakedLighting()); return true;
+			case Keys.M: model.setSmooth(!model.isSmooth()); return true;
+			case Keys.E:
+				// toggle the selected color between not emitting and fully bright
+				Color c = colors.get(palette.getSelected());
+				model.setEmission(c, model.getEmission(c) > 0 ? 0 : VoxelLighting.MAX_LIGHT);
+				return true;
+			case Keys.B:
+				brush.setShape(brush.getShape() == VoxelBrush.Shape.CUBE ?
+						VoxelBrush.Shape.SPHERE : VoxelBrush.Shape.CUBE);
+				return true;
+			case Keys.LEFT_BRACKET: brush.setRadius(brush.getRadius() - 1); return true;
+			case Keys.RIGHT_BRACKET: brush.setRadius(brush.getRadius() + 1); return true;
+			case Keys.NUM_1: model.setSymmetry(0, !model.getSymmetry(0)); return true;
+			case Keys.NUM_2: model.setSymmetry(1, !model.getSymmetry(1)); return true;
+			case Keys.NUM_3: model.setSymmetry(2, !model.getSymmetry(2)); return true;
+			case Keys.X:
+				if (!isControlPressed()) transform(0);
+				else if (selection != null) clipboard = model.cut(selection);
+				return true;
+			case Keys.Y: if (!isControlPressed()) transform(1); return true;
+			case Keys.Z: if (!isControlPressed()) transform(2); return true;
+			case Keys.Q: markSelectionCorner(); return true;
+			case Keys.K: exportCollision = !exportCollision; return true;
+			case Keys.ESCAPE: setSelection(null); selectionAnchor = null; return true;
+			case Keys.C:
+				if (isControlPressed() && selection != null) clipboard = model.copy(selection);
+				return true;
+			case Keys.V:
+				if (isControlPressed()) pasteAtCursor();
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Turns the model a quarter turn around an axis, or flips it along the
+	 * axis if shift is held.
+	 * 
+	 * @param axis 0 for x, 1 for y, 2 for z
+	 */
+	private void transform(int axis) {
+		boolean flip = Gdx.input.isKeyPressed(Keys.SHIFT_LEFT) || Gdx.input.isKeyPressed(Keys.SHIFT_RIGHT);
+		
+		if (selection != null) {
+			if (flip) model.flip(selection, axis);
+			else model.rotate(selection, axis, 1);
+		} else {
+			if (flip) model.flip(axis);
+			else model.rotate(axis, 1);
+		}
+	}
+	
+	/**
+	 * Returns whether either control key is held.
+	 * 
+	 * @return true if control is pressed
+	 */
+	private boolean isControlPressed() {
+		return Gdx.input.isKeyPressed(Keys.CONTROL_LEFT) || Gdx.input.isKeyPressed(Keys.CONTROL_RIGHT);
+	}
+	
 	/*
 	 * more LibGDX methods from InputProcessor and Screen, unused
 	 */
 	
-	@Override public boolean keyDown(int keycode) { return false; }
 	@Override public boolean keyUp(int keycode) { return false; }
 	@Override public boolean keyTyped(char character) { return false; }
 
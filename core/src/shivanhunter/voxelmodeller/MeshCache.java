@@ -0,0 +1,226 @@
+package shivanhunter.voxelmodeller;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+
+/**
+ * A content-addressed cache of generated mesh vertices on disk. Entries are
+ * keyed by a hash of the voxel data, the palette and the mesher settings, so
+ * a model that hasn't changed since it was last meshed can skip meshing and
+ * ambient occlusion entirely.
+ *
+ * Each entry is one file in the cache directory. The total size of the
+ * directory is kept under a budget by deleting the least recently used
+ * entries; a file's last modified time is its last use.
+ *
+ * Entry file layout:
+ *
+ * [int] magic number
+ * [int] number of floats
+ * number of floats * {
+ * 	[float] vertex data, as produced by VoxelMesher.mesh()
+ * }
+ *
+ * Indices are not stored since they only depend on the number of quads.
+ */
+public class MeshCache {
+	// identifies cache entry files
+	private static final int MAGIC = 0x564D4331; // "VMC1"
+
+	// file extension of cache entries
+	private static final String EXTENSION = ".mesh";
+
+	// directory holding the entries
+	private FileHandle directory;
+
+	// maximum total size of all entries, in bytes
+	private long maxBytes;
+
+	// current total size of all entries, or -1 if not yet counted
+	private long totalBytes = -1;
+
+	// statistics since this cache was created
+	private int hits, misses;
+	private long hitNanos, missNanos;
+
+	/**
+	 * Creates a mesh cache in the given directory. The directory is created
+	 * when the first entry is written.
+	 *
+	 * @param directory the directory to store entries in
+	 * @param maxBytes the maximum total size of all entries
+	 */
+	public MeshCache(FileHandle directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Computes the cache key of a grid of voxel data. The key covers the
+	 * voxel indices, dimensions, palette and mesher settings, so any change
+	 * to what the mesher would output gives a different key.
+	 *
+	 * A hit is trusted without comparing the voxel data, so the key is a
+	 * SHA-256 digest: a checksum would let two different models share a
+	 * mesh.
+	 *
+	 * @param blocks the voxel data
+	 * @param width the size of the data in x
+	 * @param height the size of the data in y
+	 * @param depth the size of the data in z
+	 * @param colors the colors for voxel indices
+	 * @param emission the emission level of each voxel index, or null if the
+	 * mesh has no baked lighting
+	 * @return the key, usable as a file name
+	 */
+	public static String key(byte[][][] blocks, int width, int height, int depth,
+			ArrayList<Color> colors, byte[] emission) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new GdxRuntimeException(e);
+		}
+
+		// header: dimensions, palette and mesher settings, and the emission
+		// levels when lit since they change the vertex colors
+		ByteBuffer header = ByteBuffer.allocate(21 + colors.size()*13);
+		header.putInt(width).putInt(height).putInt(depth);
+		header.putInt(VoxelMesher.VERSION).putInt(VoxelMesher.AO_Quality);
+		header.put((byte)(emission != null ? 1 : 0));
+		for (int i = 0; i < colors.size(); ++i) {
+			Color c = colors.get(i);
+			header.putFloat(c.r).putFloat(c.g).putFloat(c.b);
+			header.put(emission != null ? emission[i+1] : 0);
+		}
+		digest.update(header.array());
+
+		// voxel data, one row at a time
+		for (int i = 0; i < width; ++i) {
+			for (int j = 0; j < height; ++j) {
+				digest.update(blocks[i][j], 0, depth);
+			}
+		}
+
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest()) key.append(String.format("%02x", b & 0xFF));
+		return key.toString();
+	}
+
+	/**
+	 * Looks up cached vertices. On a hit, the entry is marked as recently
+	 * used.
+	 *
+	 * @param key the key from key()
+	 * @return the cached vertices, or null if there is no valid entry
+	 */
+	public float[] get(String key) {
+		long start = System.nanoTime();
+		FileHandle file = directory.child(key + EXTENSION);
+		if (!file.exists()) return null;
+
+		float[] vertices;
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(file.readBytes());
+			if (buffer.getInt() != MAGIC) return null;
+
+			int count = buffer.getInt();
+			if (count < 0 || buffer.remaining() != count*4) return null;
+
+			vertices = new float[count];
+			buffer.asFloatBuffer().get(vertices);
+		} catch (RuntimeException e) {
+			// truncated or corrupt entry: treat as a miss, it will be replaced
+			return null;
+		}
+
+		file.file().setLastModified(System.currentTimeMillis());
+		hits++;
+		hitNanos += System.nanoTime() - start;
+		return vertices;
+	}
+
+	/**
+	 * Stores vertices under a key and evicts least recently used entries if
+	 * the cache is over budget. Failing to write an entry is not an error;
+	 * the cache is only an optimization.
+	 *
+	 * @param key the key from key()
+	 * @param vertices the vertices to store
+	 * @param meshNanos how long generating the vertices took, for statistics
+	 */
+	public void put(String key, float[] vertices, long meshNanos) {
+		misses++;
+		missNanos += meshNanos;
+
+		ByteBuffer buffer = ByteBuffer.allocate(8 + vertices.length*4);
+		buffer.putInt(MAGIC);
+		buffer.putInt(vertices.length);
+		buffer.asFloatBuffer().put(vertices);
+
+		try {
+			FileHandle file = directory.child(key + EXTENSION);
+			if (totalBytes >= 0 && file.exists()) totalBytes -= file.length();
+			file.writeBytes(buffer.array(), false);
+			if (totalBytes >= 0) totalBytes += buffer.capacity();
+		} catch (GdxRuntimeException e) {
+			System.err.println("Could not write mesh cache entry: " + e.getMessage());
+			return;
+		}
+
+		evict();
+	}
+
+	/**
+	 * Deletes least recently used entries until the cache is within its
+	 * budget.
+	 */
+	private void evict() {
+		FileHandle[] entries = directory.list(EXTENSION);
+
+		if (totalBytes < 0) {
+			totalBytes = 0;
+			for (FileHandle entry : entries) totalBytes += entry.length();
+		}
+		if (totalBytes <= maxBytes) return;
+
+		// oldest first
+		Arrays.sort(entries, new Comparator<FileHandle>() {
+			public int compare(FileHandle a, FileHandle b) {
+				long ta = a.lastModified(), tb = b.lastModified();
+				return ta < tb ? -1 : (ta == tb ? 0 : 1);
+			}
+		});
+
+		for (int i = 0; i < entries.length && totalBytes > maxBytes; ++i) {
+			long length = entries[i].length();
+			if (entries[i].delete()) totalBytes -= length;
+		}
+	}
+
+	/**
+	 * Returns the hit rate and time saved since this cache was created. The
+	 * time saved is estimated from the average meshing time of misses.
+	 *
+	 * @return a human-readable summary
+	 */
+	public String getStats() {
+		int lookups = hits + misses;
+		float hitRate = lookups == 0 ? 0 : 100f*hits/lookups;
+		float avgMissMs = misses == 0 ? 0 : missNanos/1e6f/misses;
+		float avgHitMs = hits == 0 ? 0 : hitNanos/1e6f/hits;
+		float savedMs = hits*(avgMissMs - avgHitMs);
+
+		return String.format(
+				"mesh cache: %d hits, %d misses (%.0f%% hit rate), avg load %.1f ms vs mesh %.1f ms, ~%.0f ms saved",
+				hits, misses, hitRate, avgHitMs, avgMissMs, Math.max(savedMs, 0));
+	}
+}
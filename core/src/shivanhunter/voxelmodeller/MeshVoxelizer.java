@@ -0,0 +1,656 @@
+package shivanhunter.voxelmodeller;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.IntIntMap;
+
+/**
+ * Turns triangle meshes from OBJ and STL files into voxel models.
+ *
+ * The mesh is scaled so its longest side spans the chosen resolution. Every
+ * cell a triangle touches becomes a voxel of the triangle's color, using an
+ * exact triangle/box overlap test (separating axes), so thin and small
+ * triangles never fall between cells. The outside of the mesh is then
+ * flooded from the borders of the grid, and every cell it doesn't reach is
+ * filled, taking the color of the surface voxel before it in its row. Meshes
+ * with holes are left hollow where the outside leaks in.
+ *
+ * Rasterizing and filling are split into slabs along x, one per thread;
+ * each slab only writes its own cells. The outside flood fills whole runs
+ * of a row at a time and runs on one thread.
+ *
+ * Triangle colors come from OBJ vertex colors (the "v x y z r g b"
+ * extension) or the Kd of OBJ materials, and from the VisCAM/SolidView
+ * color in the attribute bytes of binary STL files. Textures are not used.
+ * STL files are taken as z up and turned to y up.
+ */
+public class MeshVoxelizer {
+	// largest resolution, the size limit of a model
+	public static final int MAX_RESOLUTION = 256;
+
+	// grows boxes slightly so triangles exactly on a cell face touch both cells
+	private static final float EPSILON = 1e-4f;
+
+	// triangle corners, 9 floats per triangle
+	private FloatArray positions = new FloatArray();
+
+	// color of each triangle as 0xRRGGBB
+	private IntArray triangleColors = new IntArray();
+
+	/**
+	 * Reads the triangles of an OBJ or STL file, chosen by the file's
+	 * extension. Throws an IllegalArgumentException if the file can't be read
+	 * or has no triangles.
+	 *
+	 * @param file the file to read
+	 */
+	public MeshVoxelizer(FileHandle file) {
+		try {
+			if (file.extension().equalsIgnoreCase("stl")) {
+				readStl(file);
+			} else {
+				readObj(file);
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException(e);
+		}
+		if (triangleColors.size == 0) throw new IllegalArgumentException();
+	}
+
+	/**
+	 * Returns the number of triangles read.
+	 *
+	 * @return the number of triangles
+	 */
+	public int getTriangleCount() {
+		return triangleColors.size;
+	}
+
+	/**
+	 * Reads an OBJ file with its materials. Polygons are split into fans of
+	 * triangles.
+	 *
+	 * @param file the file to read
+	 */
+	private void readObj(FileHandle file) throws IOException {
+		FloatArray vertices = new FloatArray();
+		IntArray vertexColors = new IntArray();
+		HashMap<String, Integer> materials = new HashMap<String, Integer>();
+		int color = 0xFFFFFF;
+		int[] face = new int[16];
+
+		BufferedReader reader = file.reader(1 << 16);
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				StringTokenizer tokens = new StringTokenizer(line);
+				if (!tokens.hasMoreTokens()) continue;
+				String type = tokens.nextToken();
+
+				if (type.equals("v")) {
+					for (int a = 0; a < 3; ++a) vertices.add(Float.parseFloat(tokens.nextToken()));
+					if (tokens.countTokens() >= 3) {
+						vertexColors.add(toRgb(
+								Float.parseFloat(tokens.nextToken()),
+								Float.parseFloat(tokens.nextToken()),
+								Float.parseFloat(tokens.nextToken())));
+					} else {
+						vertexColors.add(-1);
+					}
+				} else if (type.equals("f")) {
+					int n = 0;
+					while (tokens.hasMoreTokens()) {
+						String token = tokens.nextToken();
+						int slash = token.indexOf('/');
+						int index = Integer.parseInt(slash < 0 ? token : token.substring(0, slash));
+						index = index < 0 ? vertexColors.size + index : index-1;
+						if (index < 0 || index >= vertexColors.size) throw new IllegalArgumentException();
+						if (n == face.length) face = Arrays.copyOf(face, n*2);
+						face[n++] = index;
+					}
+					for (int i = 2; i < n; ++i) {
+						addTriangle(vertices, vertexColors, face[0], face[i-1], face[i], color);
+					}
+				} else if (type.equals("usemtl") && tokens.hasMoreTokens()) {
+					Integer material = materials.get(tokens.nextToken());
+					color = material != null ? material : 0xFFFFFF;
+				} else if (type.equals("mtllib") && tokens.hasMoreTokens()) {
+					FileHandle library = file.sibling(tokens.nextToken());
+					if (library.exists()) readMtl(library, materials);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Adds an OBJ triangle. Its color is the average of its vertex colors if
+	 * all three have one, otherwise the color of the current material.
+	 *
+	 * @param vertices the vertex positions
+	 * @param vertexColors the vertex colors, -1 for none
+	 * @param a the index of the first vertex
+	 * @param b the index of the second vertex
+	 * @param c the index of the third vertex
+	 * @param material the color of the current material
+	 */
+	private void addTriangle(FloatArray vertices, IntArray vertexColors, int a, int b, int c, int material) {
+		int[] corners = {a, b, c};
+		int red = 0, green = 0, blue = 0;
+		boolean colored = true;
+		for (int corner : corners) {
+			for (int i = 0; i < 3; ++i) positions.add(vertices.get(corner*3 + i));
+
+			int rgb = vertexColors.get(corner);
+			if (rgb < 0) colored = false;
+			red += rgb >> 16 & 0xFF;
+			green += rgb >> 8 & 0xFF;
+			blue += rgb & 0xFF;
+		}
+		triangleColors.add(colored ? (red/3) << 16 | (green/3) << 8 | blue/3 : material);
+	}
+
+	/**
+	 * Reads the diffuse colors of the materials in an MTL file.
+	 *
+	 * @param file the file to read
+	 * @param materials receives the color of each material by name
+	 */
+	private static void readMtl(FileHandle file, HashMap<String, Integer> materials) throws IOException {
+		BufferedReader reader = file.reader(1 << 16);
+		try {
+			String line, name = null;
+			while ((line = reader.readLine()) != null) {
+				StringTokenizer tokens = new StringTokenizer(line);
+				if (!tokens.hasMoreTokens()) continue;
+				String type = tokens.nextToken();
+
+				if (type.equals("newmtl") && tokens.hasMoreTokens()) {
+					name = tokens.nextToken();
+					materials.put(name, 0xFFFFFF);
+				} else if (type.equals("Kd") && name != null) {
+					materials.put(name, toRgb(
+							Float.parseFloat(tokens.nextToken()),
+							Float.parseFloat(tokens.nextToken()),
+							Float.parseFloat(tokens.nextToken())));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads an STL file, binary or ASCII. A file is binary if its size
+	 * matches the triangle count in its header.
+	 *
+	 * @param file the file to read
+	 */
+	private void readStl(FileHandle file) throws IOException {
+		long length = file.length();
+		boolean binary = false;
+		if (length >= 84) {
+			DataInputStream in = new DataInputStream(file.read(84));
+			try {
+				in.skipBytes(80);
+				long count = Integer.reverseBytes(in.readInt()) & 0xFFFFFFFFL;
+				binary = length == 84 + 50*count;
+			} finally {
+				in.close();
+			}
+		}
+
+		if (binary) {
+			DataInputStream in = new DataInputStream(file.read(1 << 16));
+			try {
+				in.skipBytes(80);
+				int count = Integer.reverseBytes(in.readInt());
+				for (int t = 0; t < count; ++t) {
+					in.skipBytes(12); // normal
+					for (int v = 0; v < 3; ++v) {
+						addStlVertex(
+								Float.intBitsToFloat(Integer.reverseBytes(in.readInt())),
+								Float.intBitsToFloat(Integer.reverseBytes(in.readInt())),
+								Float.intBitsToFloat(Integer.reverseBytes(in.readInt())));
+					}
+
+					// 5 bits each of blue, green and red, and a bit set if valid
+					int attribute = Short.reverseBytes(in.readShort()) & 0xFFFF;
+					if ((attribute & 0x8000) != 0) {
+						triangleColors.add(toRgb(
+								(attribute >> 10 & 31)/31f,
+								(attribute >> 5 & 31)/31f,
+								(attribute & 31)/31f));
+					} else {
+						triangleColors.add(0xFFFFFF);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} else {
+			BufferedReader reader = file.reader(1 << 16);
+			try {
+				String line;
+				int corners = 0;
+				while ((line = reader.readLine()) != null) {
+					StringTokenizer tokens = new StringTokenizer(line);
+					if (!tokens.hasMoreTokens() || !tokens.nextToken().equals("vertex")) continue;
+					addStlVertex(
+							Float.parseFloat(tokens.nextToken()),
+							Float.parseFloat(tokens.nextToken()),
+							Float.parseFloat(tokens.nextToken()));
+					if (++corners % 3 == 0) triangleColors.add(0xFFFFFF);
+				}
+				if (corners % 3 != 0) throw new IllegalArgumentException();
+			} finally {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Adds an STL vertex, turning z up into y up.
+	 *
+	 * @param x the x coordinate in the file
+	 * @param y the y coordinate in the file
+	 * @param z the z coordinate in the file
+	 */
+	private void addStlVertex(float x, float y, float z) {
+		positions.add(x);
+		positions.add(z);
+		positions.add(-y);
+	}
+
+	/**
+	 * Packs a color with channels from 0 to 1.
+	 *
+	 * @param r the red channel
+	 * @param g the green channel
+	 * @param b the blue channel
+	 * @return the color as 0xRRGGBB
+	 */
+	private static int toRgb(float r, float g, float b) {
+		return toByte(r) << 16 | toByte(g) << 8 | toByte(b);
+	}
+
+	/**
+	 * Converts a color channel from 0 to 1 into a byte value.
+	 *
+	 * @param channel the channel
+	 * @return the channel from 0 to 255
+	 */
+	private static int toByte(float channel) {
+		return Math.max(0, Math.min(Math.round(channel*255), 255));
+	}
+
+	/**
+	 * Voxelizes the mesh into a new VoxelModel, centered on the origin.
+	 *
+	 * @param resolution the number of voxels along the longest side of the
+	 * mesh, from 1 to MAX_RESOLUTION
+	 * @return the voxelized model
+	 */
+	public VoxelModel voxelize(int resolution) {
+		ArrayList<Color> colors = new ArrayList<Color>();
+		byte[][][] blocks = voxelize(resolution, colors);
+		Vector3 root = new Vector3(-blocks.length/2f, -blocks[0].length/2f, -blocks[0][0].length/2f);
+		return new VoxelModel(new VoxelData(blocks, colors, root, 16), null);
+	}
+
+	/**
+	 * Voxelizes the mesh into a new grid.
+	 *
+	 * @param resolution the number of voxels along the longest side
+	 * @param colors receives the colors of the grid's voxel indices
+	 * @return the voxel data
+	 */
+	byte[][][] voxelize(int resolution, ArrayList<Color> colors) {
+		resolution = Math.max(1, Math.min(resolution, MAX_RESOLUTION));
+		final float[] pos = positions.items;
+		final int triangles = triangleColors.size;
+
+		// scale the longest side of the bounds to the resolution
+		final float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+		float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		for (int i = 0; i < triangles*9; ++i) {
+			min[i%3] = Math.min(min[i%3], pos[i]);
+			max[i%3] = Math.max(max[i%3], pos[i]);
+		}
+		float longest = Math.max(max[0]-min[0], Math.max(max[1]-min[1], max[2]-min[2]));
+		final float scale = longest > 0 ? resolution/longest : 1;
+
+		final int width = size(max[0]-min[0], scale), height = size(max[1]-min[1], scale),
+				depth = size(max[2]-min[2], scale);
+		final byte[][][] blocks = new byte[width][height][depth];
+
+		final byte[] indices = buildPalette(colors);
+
+		// sort the triangles into the slabs they touch
+		int threads = Math.min(Runtime.getRuntime().availableProcessors(), width);
+		final int[] slabStart = new int[threads+1];
+		for (int s = 0; s <= threads; ++s) slabStart[s] = width*s/threads;
+		int[] slabOf = new int[width];
+		for (int s = 0; s < threads; ++s) {
+			for (int i = slabStart[s]; i < slabStart[s+1]; ++i) slabOf[i] = s;
+		}
+
+		final IntArray[] buckets = new IntArray[threads];
+		for (int s = 0; s < threads; ++s) buckets[s] = new IntArray();
+		for (int t = 0; t < triangles; ++t) {
+			float x1 = Math.min(pos[t*9], Math.min(pos[t*9+3], pos[t*9+6])),
+					x2 = Math.max(pos[t*9], Math.max(pos[t*9+3], pos[t*9+6]));
+			int first = slabOf[cell((x1-min[0])*scale - EPSILON, width)],
+					last = slabOf[cell((x2-min[0])*scale + EPSILON, width)];
+			for (int s = first; s <= last; ++s) buckets[s].add(t);
+		}
+
+		// rasterize the triangles of each slab in parallel
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int s = 0; s < threads; ++s) {
+			final int slab = s;
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					rasterize(blocks, buckets[slab], slabStart[slab], slabStart[slab+1],
+							min, scale, indices);
+					return null;
+				}
+			});
+		}
+		VoxelLighting.runAll(tasks);
+
+		// fill everything the outside doesn't reach, in parallel by slab
+		final long[][][] outside = floodOutside(blocks, width, height, depth);
+		tasks.clear();
+		for (int s = 0; s < threads; ++s) {
+			final int slab = s;
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					fillInside(blocks, outside, slabStart[slab], slabStart[slab+1]);
+					return null;
+				}
+			});
+		}
+		VoxelLighting.runAll(tasks);
+
+		return blocks;
+	}
+
+	/**
+	 * Returns the number of cells a side of the mesh spans, from 1 to
+	 * MAX_RESOLUTION.
+	 *
+	 * @param extent the length of the side
+	 * @param scale the cells per unit of length
+	 * @return the number of cells
+	 */
+	private static int size(float extent, float scale) {
+		return Math.max(1, Math.min((int)Math.ceil(extent*scale - EPSILON), MAX_RESOLUTION));
+	}
+
+	/**
+	 * Returns the cell containing a scaled coordinate, clamped to the grid.
+	 *
+	 * @param coordinate the coordinate in cells
+	 * @param size the size of the grid along the axis
+	 * @return the index of the cell
+	 */
+	private static int cell(float coordinate, int size) {
+		return Math.max(0, Math.min((int)Math.floor(coordinate), size-1));
+	}
+
+	/**
+	 * Builds the colors of the voxel indices from the triangle colors. If
+	 * there are more distinct colors than a model holds, colors are rounded
+	 * to fewer bits per channel until they fit.
+	 *
+	 * @param colors receives the colors; index 1 is element 0
+	 * @return the voxel index of each triangle
+	 */
+	private byte[] buildPalette(ArrayList<Color> colors) {
+		int triangles = triangleColors.size;
+		IntIntMap palette = new IntIntMap();
+		int mask = 0xFFFFFF;
+		for (int bits = 8; bits > 0; --bits) {
+			int channel = 0xFF & (0xFF << (8-bits));
+			mask = channel << 16 | channel << 8 | channel;
+
+			palette.clear();
+			for (int t = 0; t < triangles && palette.size <= 254; ++t) {
+				int rgb = triangleColors.get(t) & mask;
+				if (!palette.containsKey(rgb)) palette.put(rgb, palette.size+1);
+			}
+			if (palette.size <= 254) break;
+		}
+
+		byte[] indices = new byte[triangles];
+		for (int t = 0; t < triangles; ++t) {
+			indices[t] = (byte)palette.get(triangleColors.get(t) & mask, 0);
+		}
+
+		// rounded colors take the middle of the range they stand for
+		int half = (~mask & 0xFF) + 1 >> 1;
+		Color[] ordered = new Color[palette.size];
+		for (IntIntMap.Entry entry : palette.entries()) {
+			int r = Math.min((entry.key >> 16 & 0xFF) + half, 255),
+					g = Math.min((entry.key >> 8 & 0xFF) + half, 255),
+					b = Math.min((entry.key & 0xFF) + half, 255);
+			ordered[entry.value-1] = new Color(r/255f, g/255f, b/255f, 1);
+		}
+		for (Color c : ordered) colors.add(c);
+		return indices;
+	}
+
+	/**
+	 * Writes the cells touched by the given triangles into a slab of a grid.
+	 *
+	 * @param blocks the grid
+	 * @param triangles the triangles touching the slab
+	 * @param x1 the first x of the slab (inclusive)
+	 * @param x2 the last x of the slab (exclusive)
+	 * @param min the lowest corner of the mesh's bounds
+	 * @param scale the cells per unit of length
+	 * @param indices the voxel index of each triangle
+	 */
+	private void rasterize(byte[][][] blocks, IntArray triangles, int x1, int x2,
+			float[] min, float scale, byte[] indices) {
+		int height = blocks[0].length, depth = blocks[0][0].length;
+		float[] pos = positions.items;
+		float[] v = new float[9];
+
+		for (int n = 0; n < triangles.size; ++n) {
+			int t = triangles.get(n);
+			for (int i = 0; i < 9; ++i) v[i] = (pos[t*9+i] - min[i%3])*scale;
+
+			int i1 = Math.max(cell(Math.min(v[0], Math.min(v[3], v[6])) - EPSILON, blocks.length), x1),
+					i2 = Math.min(cell(Math.max(v[0], Math.max(v[3], v[6])) + EPSILON, blocks.length), x2-1),
+					j1 = cell(Math.min(v[1], Math.min(v[4], v[7])) - EPSILON, height),
+					j2 = cell(Math.max(v[1], Math.max(v[4], v[7])) + EPSILON, height),
+					k1 = cell(Math.min(v[2], Math.min(v[5], v[8])) - EPSILON, depth),
+					k2 = cell(Math.max(v[2], Math.max(v[5], v[8])) + EPSILON, depth);
+			byte index = indices[t];
+
+			// a triangle inside one cell needs no test
+			boolean single = i1 == i2 && j1 == j2 && k1 == k2;
+			for (int i = i1; i <= i2; ++i) {
+				for (int j = j1; j <= j2; ++j) {
+					byte[] row = blocks[i][j];
+					for (int k = k1; k <= k2; ++k) {
+						if (single || overlaps(v, i+0.5f, j+0.5f, k+0.5f, 0.5f + EPSILON)) row[k] = index;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tests whether a triangle overlaps a cube, by looking for a separating
+	 * axis among the cube's normals, the triangle's normal and the cross
+	 * products of their edges (Akenine-Moller).
+	 *
+	 * @param v the corners of the triangle, 9 floats
+	 * @param cx the x coordinate of the cube's center
+	 * @param cy the y coordinate of the cube's center
+	 * @param cz the z coordinate of the cube's center
+	 * @param h half the size of the cube
+	 * @return true if they overlap
+	 */
+	private static boolean overlaps(float[] v, float cx, float cy, float cz, float h) {
+		float ax = v[0]-cx, ay = v[1]-cy, az = v[2]-cz,
+				bx = v[3]-cx, by = v[4]-cy, bz = v[5]-cz,
+				cx2 = v[6]-cx, cy2 = v[7]-cy, cz2 = v[8]-cz;
+
+		// the cube's normals
+		if (Math.min(ax, Math.min(bx, cx2)) > h || Math.max(ax, Math.max(bx, cx2)) < -h) return false;
+		if (Math.min(ay, Math.min(by, cy2)) > h || Math.max(ay, Math.max(by, cy2)) < -h) return false;
+		if (Math.min(az, Math.min(bz, cz2)) > h || Math.max(az, Math.max(bz, cz2)) < -h) return false;
+
+		// the triangle's normal
+		float e0x = bx-ax, e0y = by-ay, e0z = bz-az,
+				e1x = cx2-bx, e1y = cy2-by, e1z = cz2-bz,
+				e2x = ax-cx2, e2y = ay-cy2, e2z = az-cz2;
+		float nx = e0y*e1z - e0z*e1y, ny = e0z*e1x - e0x*e1z, nz = e0x*e1y - e0y*e1x;
+		if (Math.abs(nx*ax + ny*ay + nz*az) > h*(Math.abs(nx) + Math.abs(ny) + Math.abs(nz))) return false;
+
+		// each edge crossed with each of the cube's normals
+		float[] edges = {e0x, e0y, e0z, e1x, e1y, e1z, e2x, e2y, e2z};
+		for (int e = 0; e < 9; e += 3) {
+			float ex = edges[e], ey = edges[e+1], ez = edges[e+2];
+			if (separates(-ez*ay + ey*az, -ez*by + ey*bz, -ez*cy2 + ey*cz2,
+					h*(Math.abs(ez) + Math.abs(ey)))) return false;
+			if (separates(ez*ax - ex*az, ez*bx - ex*bz, ez*cx2 - ex*cz2,
+					h*(Math.abs(ez) + Math.abs(ex)))) return false;
+			if (separates(-ey*ax + ex*ay, -ey*bx + ex*by, -ey*cx2 + ex*cy2,
+					h*(Math.abs(ey) + Math.abs(ex)))) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether the projections of a triangle's corners on an axis lie
+	 * outside the projection of a cube centered on the origin.
+	 *
+	 * @param p0 the projection of the first corner
+	 * @param p1 the projection of the second corner
+	 * @param p2 the projection of the third corner
+	 * @param r the projected half size of the cube
+	 * @return true if the axis separates them
+	 */
+	private static boolean separates(float p0, float p1, float p2, float r) {
+		return Math.min(p0, Math.min(p1, p2)) > r || Math.max(p0, Math.max(p1, p2)) < -r;
+	}
+
+	/**
+	 * Finds the empty cells connected to the borders of a grid, filling one
+	 * run of empty cells along z at a time.
+	 *
+	 * @param blocks the grid
+	 * @param width the size of the grid in x
+	 * @param height the size of the grid in y
+	 * @param depth the size of the grid in z
+	 * @return a bit for every cell, set if the cell is outside
+	 */
+	private static long[][][] floodOutside(byte[][][] blocks, int width, int height, int depth) {
+		long[][][] outside = new long[width][height][(depth+63) >> 6];
+		IntArray stack = new IntArray();
+
+		// seed every empty border cell
+		for (int i = 0; i < width; ++i) {
+			for (int j = 0; j < height; ++j) {
+				if (i == 0 || j == 0 || i == width-1 || j == height-1) {
+					for (int k = 0; k < depth; ++k) stack.add(i << 16 | j << 8 | k);
+				} else {
+					stack.add(i << 16 | j << 8);
+					stack.add(i << 16 | j << 8 | depth-1);
+				}
+			}
+		}
+
+		while (stack.size > 0) {
+			int cell = stack.pop();
+			int i = cell >>> 16, j = cell >> 8 & 0xFF, k = cell & 0xFF;
+			byte[] row = blocks[i][j];
+			long[] bits = outside[i][j];
+			if (row[k] != 0 || (bits[k >> 6] & 1L << k) != 0) continue;
+
+			// the whole run of empty cells around the cell
+			int k1 = k, k2 = k;
+			while (k1 > 0 && row[k1-1] == 0 && (bits[k1-1 >> 6] & 1L << k1-1) == 0) k1--;
+			while (k2 < depth-1 && row[k2+1] == 0 && (bits[k2+1 >> 6] & 1L << k2+1) == 0) k2++;
+			for (int n = k1; n <= k2; ++n) bits[n >> 6] |= 1L << n;
+
+			// one seed for each run the neighbouring rows have alongside it
+			if (i > 0) pushRuns(blocks, outside, stack, i-1, j, k1, k2);
+			if (i < width-1) pushRuns(blocks, outside, stack, i+1, j, k1, k2);
+			if (j > 0) pushRuns(blocks, outside, stack, i, j-1, k1, k2);
+			if (j < height-1) pushRuns(blocks, outside, stack, i, j+1, k1, k2);
+		}
+
+		return outside;
+	}
+
+	/**
+	 * Pushes the first cell of each run of empty cells not yet flooded in
+	 * part of a row.
+	 *
+	 * @param blocks the grid
+	 * @param outside the flooded cells
+	 * @param stack the cells to flood from
+	 * @param i the x coordinate of the row
+	 * @param j the y coordinate of the row
+	 * @param k1 the first z to look at (inclusive)
+	 * @param k2 the last z to look at (inclusive)
+	 */
+	private static void pushRuns(byte[][][] blocks, long[][][] outside, IntArray stack,
+			int i, int j, int k1, int k2) {
+		byte[] row = blocks[i][j];
+		long[] bits = outside[i][j];
+		boolean inRun = false;
+		for (int k = k1; k <= k2; ++k) {
+			boolean open = row[k] == 0 && (bits[k >> 6] & 1L << k) == 0;
+			if (open && !inRun) stack.add(i << 16 | j << 8 | k);
+			inRun = open;
+		}
+	}
+
+	/**
+	 * Fills the cells of a slab that are neither solid nor outside with the
+	 * color of the last solid cell before them in their row.
+	 *
+	 * @param blocks the grid
+	 * @param outside the cells outside the mesh
+	 * @param x1 the first x of the slab (inclusive)
+	 * @param x2 the last x of the slab (exclusive)
+	 */
+	private static void fillInside(byte[][][] blocks, long[][][] outside, int x1, int x2) {
+		for (int i = x1; i < x2; ++i) {
+			for (int j = 0; j < blocks[i].length; ++j) {
+				byte[] row = blocks[i][j];
+				long[] bits = outside[i][j];
+				byte last = 0;
+				for (int k = 0; k < row.length; ++k) {
+					if (row[k] != 0) {
+						last = row[k];
+					} else if ((bits[k >> 6] & 1L << k) == 0) {
+						row[k] = last;
+					}
+				}
+			}
+		}
+	}
+}
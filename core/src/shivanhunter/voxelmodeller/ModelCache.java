@@ -0,0 +1,197 @@
+package shivanhunter.voxelmodeller;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.badlogic.gdx.files.FileHandle;
+
+/**
+ * Keeps recently used VoxelModels in memory so switching between files
+ * doesn't have to read, parse and mesh them again. Models are keyed by the
+ * path of their file.
+ *
+ * The cache has separate budgets for voxel data on the heap and for meshes
+ * on the GPU. When over budget, the least recently used models first have
+ * their meshes released, which are cheap to rebuild from the voxel data and
+ * the mesh cache. Only if that's not enough are whole models dropped; those
+ * are reloaded from their file when next needed. Models with unsaved changes
+ * are never dropped, only their meshes are released.
+ *
+ * Each .voxel file's model comes with the VoxelJournal it was loaded
+ * through, which its changes should be appended to. A journal holds a copy
+ * of its model's data; the copies of inactive models without unsaved
+ * changes are released and taken again from the model when it's next used.
+ */
+public class ModelCache {
+	/*
+	 * A cached model, its journal (null for .vox files) and the
+	 * modification time of its file when it was loaded or saved.
+	 */
+	private static class Entry {
+		VoxelModel model;
+		VoxelJournal journal;
+		long fileTime;
+	}
+
+	// entries in access order, least recently used first
+	private LinkedHashMap<String, Entry> entries;
+
+	// budgets for voxel data and meshes, in bytes
+	private long maxHeapBytes, maxMeshBytes;
+
+	// used to rebuild released meshes cheaply
+	private MeshCache meshCache;
+
+	/**
+	 * Creates an empty model cache.
+	 *
+	 * @param maxHeapBytes the budget for voxel data of cached models
+	 * @param maxMeshBytes the budget for GPU meshes of cached models
+	 * @param meshCache the mesh cache used when loading and restoring
+	 * models, or null
+	 */
+	public ModelCache(long maxHeapBytes, long maxMeshBytes, MeshCache meshCache) {
+		this.maxHeapBytes = maxHeapBytes;
+		this.maxMeshBytes = maxMeshBytes;
+		this.meshCache = meshCache;
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * Returns the model for a file, from memory if possible. Released meshes
+	 * are rebuilt. A cached model whose file changed on disk since it was
+	 * loaded is reloaded, unless it has unsaved changes. Throws an
+	 * IllegalArgumentException if the file has to be loaded and is not a
+	 * valid model file. Changes journaled next to the file are replayed.
+	 * Files ending in .vox are imported as MagicaVoxel files.
+	 *
+	 * @param file the model file
+	 * @return the model, ready to render
+	 */
+	public VoxelModel get(FileHandle file) {
+		Entry entry = entries.get(file.path());
+
+		if (entry != null && !entry.model.isModified() && file.lastModified() != entry.fileTime) {
+			entries.remove(file.path());
+			entry.model.dispose();
+			entry = null;
+		}
+
+		if (entry == null) {
+			entry = new Entry();
+			if (file.extension().equalsIgnoreCase("vox")) {
+				entry.model = VoxFormat.read(file, meshCache);
+			} else {
+				entry.journal = new VoxelJournal(file);
+				entry.model = new VoxelModel(entry.journal.load(), meshCache);
+			}
+			entry.fileTime = file.lastModified();
+			entries.put(file.path(), entry);
+		} else {
+			entry.model.restoreMeshes(meshCache);
+			if (entry.journal != null) entry.journal.restoreCopy(entry.model.getData());
+		}
+
+		return entry.model;
+	}
+
+	/**
+	 * Returns the journal of a cached .voxel file's model.
+	 *
+	 * @param file the model file
+	 * @return the journal, or null if the file isn't cached or is not a
+	 * .voxel file
+	 */
+	public VoxelJournal getJournal(FileHandle file) {
+		Entry entry = entries.get(file.path());
+		return entry == null ? null : entry.journal;
+	}
+
+	/**
+	 * Adds a model to the cache under the path of its file, or updates the
+	 * file time of an existing entry. Should be called after a model is
+	 * saved, or after its journal folded into the file.
+	 *
+	 * @param file the file the model was saved to
+	 * @param model the model
+	 * @param journal the journal of the file, or null
+	 */
+	public void put(FileHandle file, VoxelModel model, VoxelJournal journal) {
+		Entry entry = entries.get(file.path());
+
+		if (entry != null && entry.model != model) entry.model.dispose();
+		if (entry == null) entry = new Entry();
+
+		entry.model = model;
+		entry.journal = journal;
+		entry.fileTime = file.lastModified();
+		entries.put(file.path(), entry);
+	}
+
+	/**
+	 * Returns whether the given model is held by this cache.
+	 *
+	 * @param model the model to look for
+	 * @return true if the cache owns the model
+	 */
+	public boolean contains(VoxelModel model) {
+		for (Entry entry : entries.values()) {
+			if (entry.model == model) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Brings the cache within its budgets, least recently used models first.
+	 * Journal copies of inactive models are released, then meshes, before
+	 * any voxel data is dropped. The active model is never touched.
+	 *
+	 * @param active the model currently being shown, or null
+	 */
+	public void trim(VoxelModel active) {
+		long heapBytes = 0, meshBytes = 0;
+		for (Entry entry : entries.values()) {
+			// a journal's copy matches a model without unsaved changes, so
+			// it can be taken again from the model
+			if (entry.journal != null && entry.model != active && !entry.model.isModified()) {
+				entry.journal.releaseCopy();
+			}
+			heapBytes += entry.model.getVoxelBytes();
+			if (entry.journal != null) heapBytes += entry.journal.getCopyBytes();
+			meshBytes += entry.model.getMeshBytes();
+		}
+
+		// release meshes first: they can be rebuilt from the voxel data
+		Iterator<Entry> it = entries.values().iterator();
+		while (meshBytes > maxMeshBytes && it.hasNext()) {
+			VoxelModel model = it.next().model;
+			if (model == active || !model.hasMeshes()) continue;
+
+			meshBytes -= model.getMeshBytes();
+			model.releaseMeshes();
+		}
+
+		// then drop whole models that can be reloaded from their files
+		it = entries.values().iterator();
+		while (heapBytes > maxHeapBytes && it.hasNext()) {
+			VoxelModel model = it.next().model;
+			if (model == active || model.isModified()) continue;
+
+			heapBytes -= model.getVoxelBytes();
+			meshBytes -= model.getMeshBytes();
+			model.dispose();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Disposes every cached model.
+	 */
+	public void dispose() {
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			entry.getValue().model.dispose();
+		}
+		entries.clear();
+	}
+}
@@ -4,14 +4,39 @@ import shivanhunter.voxelmodeller.VoxelModel.Axis;
 
 import com.badlogic.gdx.math.Vector3;
 
+/**
+ * Where a pick ray hit a voxel and which face it entered through. Picking
+ * happens on every mouse move, so a model reuses one RayHit for all of its
+ * picks instead of creating one each time; copy it to keep it.
+ */
 public class RayHit {
 	public static final int AXIS_X = 1, AXIS_Y = 2, AXIS_Z = 3;
-	
-	public final Axis axis;
-	public final Vector3 hitPoint;
-	
+
+	public Axis axis;
+	public final Vector3 hitPoint = new Vector3();
+
+	/**
+	 * Creates a RayHit to be filled in with set().
+	 */
+	public RayHit() {
+	}
+
 	public RayHit(Axis axis, Vector3 hitPoint) {
-		this.hitPoint = hitPoint;
+		set(axis, hitPoint.x, hitPoint.y, hitPoint.z);
+	}
+
+	/**
+	 * Sets the face and point of the hit.
+	 *
+	 * @param axis the face the ray entered the voxel through
+	 * @param x the x coordinate of the hit point
+	 * @param y the y coordinate of the hit point
+	 * @param z the z coordinate of the hit point
+	 * @return this RayHit
+	 */
+	public RayHit set(Axis axis, float x, float y, float z) {
 		this.axis = axis;
+		hitPoint.set(x, y, z);
+		return this;
 	}
 }
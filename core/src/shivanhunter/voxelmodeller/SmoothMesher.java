@@ -0,0 +1,410 @@
+package shivanhunter.voxelmodeller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.g3d.Material;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.graphics.g3d.utils.ModelBuilder;
+import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.ShortArray;
+
+/**
+ * Generates a smooth surface for a grid of voxel indices, as an alternative
+ * to the blocky faces generated by VoxelMesher. Uses surface nets: the grid
+ * is sampled at voxel centers, every cell between eight neighbouring
+ * centers that has both solid and empty corners gets one vertex at the
+ * average of the points where its edges cross the surface, and every pair
+ * of neighbouring voxels of which one is solid gets a quad joining the
+ * vertices of the four cells around it.
+ *
+ * Vertices are shared by the quads around them, so the result is an
+ * indexed mesh. Vertex colors are the average palette color of the solid
+ * corners, normals follow the surface and the vertex layout is the same as
+ * VoxelMesher's. Cells outside the grid count as empty, so the surface is
+ * closed.
+ *
+ * Like VoxelMesher, a SmoothMesher can mesh regions of its grid separately;
+ * the grid must not change while it is in use.
+ */
+public class SmoothMesher {
+	/*
+	 * Maximum number of vertices in one mesh part. Indices are shorts read
+	 * as unsigned by GL.
+	 */
+	public static final int MAX_VERTICES = 65536;
+
+	// the 12 edges of a cell, as pairs of corners; a corner's bits are its
+	// offsets in x, y and z
+	private static final int[] EDGES = {
+		0, 1, 2, 3, 4, 5, 6, 7,
+		0, 2, 1, 3, 4, 6, 5, 7,
+		0, 4, 1, 5, 2, 6, 3, 7
+	};
+
+	/**
+	 * The output of the mesher: shared vertices, VoxelMesher.FLOATS floats
+	 * each, and three indices into them per triangle.
+	 */
+	public static class Surface {
+		public final float[] vertices;
+		public final int[] indices;
+
+		/**
+		 * Creates a surface.
+		 *
+		 * @param vertices the vertices of the surface
+		 * @param indices the vertex indices of its triangles
+		 */
+		public Surface(float[] vertices, int[] indices) {
+			this.vertices = vertices;
+			this.indices = indices;
+		}
+	}
+
+	// the grid being meshed, in the same layout as VoxelModel's voxel data
+	private byte[][][] blocks;
+
+	// size of the grid in x, y and z
+	private int width, height, depth;
+
+	// colors for voxel indices (index 1 is colors[0])
+	private ArrayList<Color> colors;
+
+	// baked light multiplied into vertex colors, or null for no lighting
+	private VoxelLighting lighting;
+
+	/**
+	 * Creates a mesher for the given grid.
+	 *
+	 * @param blocks the voxel indices to mesh
+	 * @param width the size of the grid in x
+	 * @param height the size of the grid in y
+	 * @param depth the size of the grid in z
+	 * @param colors the colors for voxel indices
+	 */
+	public SmoothMesher(byte[][][] blocks, int width, int height, int depth, ArrayList<Color> colors) {
+		this.blocks = blocks;
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.colors = colors;
+	}
+
+	/**
+	 * Sets baked lighting to darken vertex colors with. The lighting must be
+	 * for the same grid as this mesher.
+	 *
+	 * @param lighting the lighting of the grid, or null for none
+	 * @return this mesher for chaining
+	 */
+	public SmoothMesher setLighting(VoxelLighting lighting) {
+		this.lighting = lighting;
+		return this;
+	}
+
+	/**
+	 * Meshes the grid in cubic chunks, in parallel. Each chunk's surface
+	 * has its own vertices, so it can be rebuilt on its own later with
+	 * mesh().
+	 *
+	 * @param chunkSize the size of a chunk in cells
+	 * @return the surfaces of the chunks, indexed (x*chunksY + y)*chunksZ + z
+	 */
+	public Surface[] meshChunks(final int chunkSize) {
+		int cx = (width + chunkSize - 1)/chunkSize,
+				cy = (height + chunkSize - 1)/chunkSize,
+				cz = (depth + chunkSize - 1)/chunkSize;
+		final Surface[] surfaces = new Surface[cx*cy*cz];
+
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>(surfaces.length);
+		for (int i = 0; i < cx; ++i) {
+			for (int j = 0; j < cy; ++j) {
+				for (int k = 0; k < cz; ++k) {
+					final int chunk = (i*cy + j)*cz + k;
+					final int x = i*chunkSize, y = j*chunkSize, z = k*chunkSize;
+					tasks.add(new Callable<Object>() {
+						public Object call() {
+							surfaces[chunk] = mesh(x, y, z, x+chunkSize, y+chunkSize, z+chunkSize);
+							return null;
+						}
+					});
+				}
+			}
+		}
+		VoxelLighting.runAll(tasks);
+
+		return surfaces;
+	}
+
+	/**
+	 * Generates the surface between the voxels of a region and their
+	 * neighbours in positive directions. At the lower boundary of the grid,
+	 * the region also covers the surface towards the empty space outside, so
+	 * meshing a set of regions that cover the grid gives the whole surface.
+	 *
+	 * @param x1 the lower x coordinate of the region (inclusive)
+	 * @param y1 the lower y coordinate of the region (inclusive)
+	 * @param z1 the lower z coordinate of the region (inclusive)
+	 * @param x2 the upper x coordinate of the region (exclusive)
+	 * @param y2 the upper y coordinate of the region (exclusive)
+	 * @param z2 the upper z coordinate of the region (exclusive)
+	 * @return the generated surface
+	 */
+	public Surface mesh(int x1, int y1, int z1, int x2, int y2, int z2) {
+		x2 = Math.min(x2, width);
+		y2 = Math.min(y2, height);
+		z2 = Math.min(z2, depth);
+
+		// the voxels whose positive neighbours are covered, including the
+		// empty layer below the grid
+		int lx = x1 <= 0 ? -1 : x1, ly = y1 <= 0 ? -1 : y1, lz = z1 <= 0 ? -1 : z1;
+		if (lx >= x2 || ly >= y2 || lz >= z2) return new Surface(new float[0], new int[0]);
+
+		// the cells around those voxel pairs; cell (x, y, z) has the voxels
+		// from (x, y, z) to (x+1, y+1, z+1) as its corners
+		int cx1 = Math.max(lx-1, -1), cy1 = Math.max(ly-1, -1), cz1 = Math.max(lz-1, -1);
+		int rows = y2 - cy1, columns = z2 - cz1;
+
+		// the vertex index of every cell in the current and previous slice
+		// of cells, or -1 for cells the surface doesn't cross
+		int[] previous = new int[rows*columns], current = new int[rows*columns];
+		Arrays.fill(current, -1);
+
+		FloatArray vertices = new FloatArray();
+		IntArray indices = new IntArray();
+
+		for (int x = cx1; x < x2; ++x) {
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+
+			for (int y = cy1; y < y2; ++y) {
+				for (int z = cz1; z < z2; ++z) {
+					int corners = getCorners(x, y, z);
+					current[(y-cy1)*columns + (z-cz1)] = corners == 0 || corners == 0xFF ? -1 :
+							addVertex(vertices, x, y, z, corners);
+				}
+			}
+
+			// the first slice only provides vertices to the next
+			if (x < lx) continue;
+
+			for (int y = ly; y < y2; ++y) {
+				for (int z = lz; z < z2; ++z) {
+					boolean solid = isSolid(x, y, z);
+					int cell = (y-cy1)*columns + (z-cz1);
+
+					// quads face from the solid voxel towards the empty one
+					if (solid != isSolid(x+1, y, z)) {
+						addQuad(indices, solid, current[cell-columns-1], current[cell-1],
+								current[cell], current[cell-columns]);
+					}
+					if (x < 0) continue;
+					if (solid != isSolid(x, y+1, z)) {
+						addQuad(indices, solid, previous[cell-1], previous[cell],
+								current[cell], current[cell-1]);
+					}
+					if (solid != isSolid(x, y, z+1)) {
+						addQuad(indices, solid, previous[cell-columns], current[cell-columns],
+								current[cell], previous[cell]);
+					}
+				}
+			}
+		}
+
+		return new Surface(vertices.toArray(), indices.toArray());
+	}
+
+	/**
+	 * Returns whether a cell of the grid is solid. Cells outside the grid
+	 * are empty.
+	 *
+	 * @param x the x coordinate of the cell
+	 * @param y the y coordinate of the cell
+	 * @param z the z coordinate of the cell
+	 * @return true if the cell holds a voxel
+	 */
+	private boolean isSolid(int x, int y, int z) {
+		return x >= 0 && x < width && y >= 0 && y < height && z >= 0 && z < depth &&
+				blocks[x][y][z] != 0;
+	}
+
+	/**
+	 * Finds which corners of a cell of the sampling grid are solid.
+	 *
+	 * @param x the x coordinate of the lowest corner
+	 * @param y the y coordinate of the lowest corner
+	 * @param z the z coordinate of the lowest corner
+	 * @return one bit per corner, set for solid corners
+	 */
+	private int getCorners(int x, int y, int z) {
+		int corners = 0;
+		for (int c = 0; c < 8; ++c) {
+			if (isSolid(x + (c & 1), y + (c >> 1 & 1), z + (c >> 2))) corners |= 1 << c;
+		}
+		return corners;
+	}
+
+	/**
+	 * Adds the vertex of a cell that the surface crosses.
+	 *
+	 * @param vertices the vertices to add to
+	 * @param x the x coordinate of the cell's lowest corner
+	 * @param y the y coordinate of the cell's lowest corner
+	 * @param z the z coordinate of the cell's lowest corner
+	 * @param corners the cell's solid corners
+	 * @return the index of the new vertex
+	 */
+	private int addVertex(FloatArray vertices, int x, int y, int z, int corners) {
+		// average the crossed edges' midpoints, relative to the lowest corner
+		float px = 0, py = 0, pz = 0;
+		int crossings = 0;
+		for (int e = 0; e < EDGES.length; e += 2) {
+			int a = EDGES[e], b = EDGES[e+1];
+			if ((corners >> a & 1) == (corners >> b & 1)) continue;
+			px += ((a & 1) + (b & 1))*0.5f;
+			py += ((a >> 1 & 1) + (b >> 1 & 1))*0.5f;
+			pz += ((a >> 2) + (b >> 2))*0.5f;
+			crossings++;
+		}
+
+		// the normal points from the solid corners towards the empty ones;
+		// the colors of the solid corners are blended
+		float nx = 0, ny = 0, nz = 0, r = 0, g = 0, b = 0;
+		int solid = 0;
+		for (int c = 0; c < 8; ++c) {
+			int dx = c & 1, dy = c >> 1 & 1, dz = c >> 2;
+			if ((corners >> c & 1) == 0) {
+				nx += dx*2 - 1;
+				ny += dy*2 - 1;
+				nz += dz*2 - 1;
+			} else {
+				nx -= dx*2 - 1;
+				ny -= dy*2 - 1;
+				nz -= dz*2 - 1;
+				Color color = colors.get((blocks[x+dx][y+dy][z+dz] & 0xFF) - 1);
+				r += color.r;
+				g += color.g;
+				b += color.b;
+				solid++;
+			}
+		}
+		float length = (float)Math.sqrt(nx*nx + ny*ny + nz*nz);
+		if (length == 0) {
+			// a checkerboard of corners has no direction; pick any
+			ny = length = 1;
+		}
+		float light = lighting != null ? lighting.getPointLight(x+1, y+1, z+1) : 1;
+
+		// sample points are at voxel centers
+		int index = vertices.size/VoxelMesher.FLOATS;
+		vertices.add(x + 0.5f + px/crossings);
+		vertices.add(y + 0.5f + py/crossings);
+		vertices.add(z + 0.5f + pz/crossings);
+		vertices.add(r/solid*light);
+		vertices.add(g/solid*light);
+		vertices.add(b/solid*light);
+		vertices.add(nx/length);
+		vertices.add(ny/length);
+		vertices.add(nz/length);
+		return index;
+	}
+
+	/**
+	 * Adds the two triangles of a quad, counter-clockwise when seen from
+	 * the empty side.
+	 *
+	 * @param indices the indices to add to
+	 * @param forward whether the vertices are counter-clockwise seen from
+	 * the empty side already, rather than clockwise
+	 * @param v0 the first vertex
+	 * @param v1 the second vertex
+	 * @param v2 the third vertex
+	 * @param v3 the fourth vertex
+	 */
+	private static void addQuad(IntArray indices, boolean forward, int v0, int v1, int v2, int v3) {
+		if (!forward) {
+			int swap = v1;
+			v1 = v3;
+			v3 = swap;
+		}
+		indices.add(v0);
+		indices.add(v1);
+		indices.add(v2);
+		indices.add(v2);
+		indices.add(v3);
+		indices.add(v0);
+	}
+
+	/**
+	 * Builds a LibGDX Model from a generated surface. The triangles are split
+	 * into as many mesh parts as needed to stay within the range of short
+	 * indices, copying the vertices each part uses.
+	 *
+	 * @param surface a surface generated by mesh()
+	 * @param mat the material to render the model with
+	 * @return the new Model
+	 */
+	public static Model buildModel(Surface surface, Material mat) {
+		float[] vertices = surface.vertices;
+		int[] indices = surface.indices;
+
+		ModelBuilder builder = new ModelBuilder();
+		builder.begin();
+
+		// the index of each surface vertex in the current part, or -1
+		int[] local = new int[vertices.length/VoxelMesher.FLOATS];
+		Arrays.fill(local, -1);
+		FloatArray partVertices = new FloatArray();
+		ShortArray partIndices = new ShortArray();
+
+		for (int t = 0; t < indices.length; t += 3) {
+			int added = 0;
+			for (int i = t; i < t+3; ++i) {
+				if (local[indices[i]] < 0) added++;
+			}
+
+			// start a new part if the triangle's vertices don't fit
+			if (partVertices.size/VoxelMesher.FLOATS + added > MAX_VERTICES) {
+				addPart(builder, partVertices, partIndices, mat);
+				Arrays.fill(local, -1);
+			}
+
+			for (int i = t; i < t+3; ++i) {
+				int v = indices[i];
+				if (local[v] < 0) {
+					local[v] = partVertices.size/VoxelMesher.FLOATS;
+					partVertices.addAll(vertices, v*VoxelMesher.FLOATS, VoxelMesher.FLOATS);
+				}
+				partIndices.add((short)local[v]);
+			}
+		}
+		if (partIndices.size > 0) addPart(builder, partVertices, partIndices, mat);
+
+		return builder.end();
+	}
+
+	/**
+	 * Adds a mesh part to a model being built and clears the part's lists.
+	 *
+	 * @param builder the builder of the model
+	 * @param vertices the vertices of the part
+	 * @param indices the indices of the part
+	 * @param mat the material to render the part with
+	 */
+	private static void addPart(ModelBuilder builder, FloatArray vertices, ShortArray indices, Material mat) {
+		Mesh mesh = new Mesh(true, vertices.size/VoxelMesher.FLOATS, indices.size, VoxelMesher.attributes);
+		mesh.setVertices(vertices.items, 0, vertices.size);
+		mesh.setIndices(indices.items, 0, indices.size);
+		builder.part("", mesh, GL20.GL_TRIANGLES, mat);
+
+		vertices.clear();
+		indices.clear();
+	}
+}
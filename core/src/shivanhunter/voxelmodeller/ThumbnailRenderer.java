@@ -0,0 +1,359 @@
+package shivanhunter.voxelmodeller;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import shivanhunter.voxelmodeller.VoxelModel.Axis;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.IntFloatMap;
+
+/**
+ * Renders voxel models to images on the CPU, without a window or GL
+ * context, for thumbnails of many model files.
+ *
+ * Each pixel casts a ray through the voxel grid, stepping from cell to cell
+ * (a 3D DDA) until it hits a voxel. The hit face is shaded like the editor
+ * shows it: the palette color, darkened by the same ambient occlusion the
+ * mesher bakes into vertex colors (interpolated across the face), and lit by
+ * the editor's two directional lights. Empty pixels are transparent.
+ *
+ * The view always frames the whole grid, looking along a chosen direction,
+ * with a perspective or orthographic projection. One image renders on one
+ * thread; renderAll() spreads a batch of files over all cores.
+ */
+public class ThumbnailRenderer {
+	// the editor's directional lights: colors and directions of travel
+	private static final float[][] LIGHT_COLORS = {{1f, 1f, 1f}, {0.2f, 0.2f, 0.25f}};
+	private static final Vector3[] LIGHT_DIRECTIONS = {
+			new Vector3(-1f, -0.8f, -0.4f).nor(), new Vector3(1f, 0.8f, 0.4f).nor()};
+
+	// every Axis, by ordinal
+	private static final Axis[] AXES = Axis.values();
+
+	// normal of each Axis, by ordinal
+	private static final int[][] NORMALS = {
+			{1, 0, 0}, {-1, 0, 0}, {0, 1, 0}, {0, -1, 0}, {0, 0, 1}, {0, 0, -1}};
+
+	// size of the rendered images
+	private int width, height;
+
+	// projection and view
+	private boolean perspective = true;
+	private float fieldOfView = 67;
+	private Vector3 viewDirection = new Vector3(-10f, -8f, -6f).nor();
+
+	/**
+	 * Creates a renderer for images of the given size, with the editor's
+	 * starting view.
+	 *
+	 * @param width the width of the images in pixels
+	 * @param height the height of the images in pixels
+	 */
+	public ThumbnailRenderer(int width, int height) {
+		this.width = Math.max(width, 1);
+		this.height = Math.max(height, 1);
+	}
+
+	/**
+	 * Sets whether to use a perspective projection or an orthographic one.
+	 *
+	 * @param perspective true for perspective
+	 */
+	public void setPerspective(boolean perspective) {
+		this.perspective = perspective;
+	}
+
+	/**
+	 * Sets the vertical field of view of the perspective projection.
+	 *
+	 * @param degrees the field of view in degrees
+	 */
+	public void setFieldOfView(float degrees) {
+		fieldOfView = Math.max(1, Math.min(degrees, 170));
+	}
+
+	/**
+	 * Sets the direction the view looks in.
+	 *
+	 * @param direction the direction, which must not be zero
+	 */
+	public void setViewDirection(Vector3 direction) {
+		viewDirection.set(direction).nor();
+	}
+
+	/**
+	 * Renders voxel data to pixels.
+	 *
+	 * @param data the voxel data to render
+	 * @return the pixels as ARGB ints, row by row from the top
+	 */
+	public int[] render(VoxelData data) {
+		byte[][][] blocks = data.getBlocks();
+		int w = data.getWidth(), h = data.getHeight(), d = data.getDepth();
+		ArrayList<Color> colors = data.getColors();
+		VoxelMesher shading = new VoxelMesher(blocks, w, h, d, colors);
+		IntFloatMap shades = new IntFloatMap();
+
+		// light reaching each face direction
+		float[][] faceLight = new float[6][3];
+		for (int a = 0; a < 6; ++a) {
+			for (int l = 0; l < LIGHT_COLORS.length; ++l) {
+				Vector3 dir = LIGHT_DIRECTIONS[l];
+				float lambert = Math.max(0, -(NORMALS[a][0]*dir.x + NORMALS[a][1]*dir.y + NORMALS[a][2]*dir.z));
+				for (int c = 0; c < 3; ++c) faceLight[a][c] += LIGHT_COLORS[l][c]*lambert;
+			}
+		}
+
+		// camera basis around the center of the grid
+		Vector3 forward = new Vector3(viewDirection);
+		Vector3 right = new Vector3(forward).crs(Vector3.Y);
+		if (right.len2() < 1e-6f) right.set(1, 0, 0);
+		right.nor();
+		Vector3 up = new Vector3(right).crs(forward).nor();
+		Vector3 center = new Vector3(w/2f, h/2f, d/2f);
+		float radius = (float)Math.sqrt(w*w + h*h + d*d)/2;
+
+		// scale the view so the bounding sphere fits the shorter side
+		float aspect = width/(float)height;
+		float fit = Math.max(1, 1/aspect);
+		float tanHalf = (float)Math.tan(Math.toRadians(fieldOfView/2));
+		float distance = perspective ?
+				radius*fit/(float)Math.sin(Math.atan(tanHalf)) : radius*2;
+		Vector3 eye = new Vector3(forward).scl(-distance).add(center);
+		float[] e = {eye.x, eye.y, eye.z}, f = {forward.x, forward.y, forward.z},
+				r = {right.x, right.y, right.z}, up3 = {up.x, up.y, up.z};
+
+		int[] pixels = new int[width*height];
+		int[] hit = new int[4];
+		float[] origin = new float[3], direction = new float[3];
+
+		for (int py = 0; py < height; ++py) {
+			float v = 1 - 2*(py + 0.5f)/height;
+			for (int px = 0; px < width; ++px) {
+				float u = (2*(px + 0.5f)/width - 1)*aspect;
+
+				if (perspective) {
+					for (int c = 0; c < 3; ++c) {
+						origin[c] = e[c];
+						direction[c] = f[c] + (r[c]*u + up3[c]*v)*tanHalf;
+					}
+				} else {
+					float half = radius*fit;
+					for (int c = 0; c < 3; ++c) {
+						origin[c] = e[c] + (r[c]*u + up3[c]*v)*half;
+						direction[c] = f[c];
+					}
+				}
+
+				float t = trace(blocks, w, h, d, origin, direction, hit);
+				if (t < 0) continue;
+
+				int index = blocks[hit[0]][hit[1]][hit[2]] & 0xFF;
+				Color color = colors.get(index-1);
+				float shade = shade(shading, shades, hit, origin, direction, t);
+				float[] light = faceLight[hit[3]];
+				int red = toByte(color.r*shade*light[0]), green = toByte(color.g*shade*light[1]),
+						blue = toByte(color.b*shade*light[2]);
+				pixels[py*width + px] = 0xFF000000 | red << 16 | green << 8 | blue;
+			}
+		}
+
+		return pixels;
+	}
+
+	/**
+	 * Follows a ray through a grid to the first voxel it hits.
+	 *
+	 * @param blocks the grid
+	 * @param w the size of the grid in x
+	 * @param h the size of the grid in y
+	 * @param d the size of the grid in z
+	 * @param origin the origin of the ray, in cells
+	 * @param direction the direction of the ray
+	 * @param hit receives the x, y and z of the hit cell and the ordinal of
+	 * the Axis of the face the ray entered through
+	 * @return the distance along the ray in multiples of direction, or -1
+	 * if the ray misses
+	 */
+	private static float trace(byte[][][] blocks, int w, int h, int d,
+			float[] origin, float[] direction, int[] hit) {
+		int[] size = {w, h, d};
+
+		// clip the ray to the grid, remembering the face it enters through
+		float tMin = 0, tMax = Float.MAX_VALUE;
+		int face = -1;
+		for (int a = 0; a < 3; ++a) {
+			if (direction[a] == 0) {
+				if (origin[a] < 0 || origin[a] > size[a]) return -1;
+				continue;
+			}
+			float t1 = -origin[a]/direction[a], t2 = (size[a] - origin[a])/direction[a];
+			if (t1 > t2) {
+				float t = t1;
+				t1 = t2;
+				t2 = t;
+			}
+			if (t1 > tMin) {
+				tMin = t1;
+				face = a*2 + (direction[a] > 0 ? 1 : 0);
+			}
+			tMax = Math.min(tMax, t2);
+		}
+		if (tMin > tMax) return -1;
+		if (face < 0) face = 1;
+
+		int[] cell = new int[3], step = new int[3];
+		float[] next = new float[3], delta = new float[3];
+		for (int a = 0; a < 3; ++a) {
+			cell[a] = Math.max(0, Math.min((int)Math.floor(origin[a] + direction[a]*tMin), size[a]-1));
+			step[a] = direction[a] > 0 ? 1 : -1;
+			delta[a] = direction[a] != 0 ? Math.abs(1/direction[a]) : Float.MAX_VALUE;
+			next[a] = direction[a] != 0 ?
+					((direction[a] > 0 ? cell[a]+1 : cell[a]) - origin[a])/direction[a] : Float.MAX_VALUE;
+		}
+		float t = tMin;
+
+		while (true) {
+			if (blocks[cell[0]][cell[1]][cell[2]] != 0) {
+				hit[0] = cell[0];
+				hit[1] = cell[1];
+				hit[2] = cell[2];
+				hit[3] = face;
+				return t;
+			}
+
+			// step to the nearest boundary; entering through the face
+			// opposite the step
+			int a = next[0] <= next[1] && next[0] <= next[2] ? 0 : next[1] <= next[2] ? 1 : 2;
+			cell[a] += step[a];
+			if (cell[a] < 0 || cell[a] >= size[a]) return -1;
+			t = next[a];
+			next[a] += delta[a];
+			face = a*2 + (step[a] > 0 ? 1 : 0);
+		}
+	}
+
+	/**
+	 * Returns the shade at a point on a hit face, interpolated between the
+	 * shades of the face's corners.
+	 *
+	 * @param shading the mesher computing corner shades
+	 * @param shades corner shades computed so far
+	 * @param hit the hit cell and face
+	 * @param origin the origin of the ray
+	 * @param direction the direction of the ray
+	 * @param t the distance to the hit
+	 * @return the shade, from 0 to 1
+	 */
+	private static float shade(VoxelMesher shading, IntFloatMap shades, int[] hit,
+			float[] origin, float[] direction, float t) {
+		int face = hit[3], normal = face/2;
+		int ua = (normal+1) % 3, va = (normal+2) % 3;
+
+		// the face's plane, and where the ray meets it on the other axes
+		int[] corner = {hit[0], hit[1], hit[2]};
+		if (face % 2 == 0) corner[normal]++;
+		float fu = Math.max(0, Math.min(origin[ua] + direction[ua]*t - corner[ua], 1)),
+				fv = Math.max(0, Math.min(origin[va] + direction[va]*t - corner[va], 1));
+
+		float s00 = cornerShade(shading, shades, corner, face, ua, 0, va, 0),
+				s10 = cornerShade(shading, shades, corner, face, ua, 1, va, 0),
+				s01 = cornerShade(shading, shades, corner, face, ua, 0, va, 1),
+				s11 = cornerShade(shading, shades, corner, face, ua, 1, va, 1);
+		return (s00*(1-fu) + s10*fu)*(1-fv) + (s01*(1-fu) + s11*fu)*fv;
+	}
+
+	/**
+	 * Returns the shade of one corner of a face, computing it the first time.
+	 *
+	 * @param shading the mesher computing corner shades
+	 * @param shades corner shades computed so far
+	 * @param corner the lowest corner of the face
+	 * @param face the ordinal of the face's Axis
+	 * @param ua the first axis across the face
+	 * @param du the offset of the corner along ua
+	 * @param va the second axis across the face
+	 * @param dv the offset of the corner along va
+	 * @return the shade, from 0 to 1
+	 */
+	private static float cornerShade(VoxelMesher shading, IntFloatMap shades, int[] corner,
+			int face, int ua, int du, int va, int dv) {
+		int[] p = {corner[0], corner[1], corner[2]};
+		p[ua] += du;
+		p[va] += dv;
+
+		int key = ((p[0]*257 + p[1])*257 + p[2])*6 + face;
+		float shade = shades.get(key, -1);
+		if (shade < 0) {
+			shade = shading.getVertexShade(p[0], p[1], p[2], AXES[face]);
+			shades.put(key, shade);
+		}
+		return shade;
+	}
+
+	/**
+	 * Converts a color channel from 0 to 1 into a byte value.
+	 *
+	 * @param channel the channel
+	 * @return the channel from 0 to 255
+	 */
+	private static int toByte(float channel) {
+		return Math.max(0, Math.min((int)(channel*255 + 0.5f), 255));
+	}
+
+	/**
+	 * Renders voxel data to a PNG file.
+	 *
+	 * @param data the voxel data to render
+	 * @param file the file to write
+	 */
+	public void writePng(VoxelData data, File file) throws IOException {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		image.setRGB(0, 0, width, height, render(data), 0, width);
+		if (!ImageIO.write(image, "png", file)) throw new IOException("No PNG writer");
+	}
+
+	/**
+	 * Renders a thumbnail for each .voxel file in a list, in parallel on all
+	 * cores. Each thumbnail is written to the output directory as the file's
+	 * name with a .png extension. Files that can't be read are reported and
+	 * skipped.
+	 *
+	 * @param files the .voxel files to render
+	 * @param outputDirectory the directory to write the thumbnails to
+	 * @return the number of thumbnails written
+	 */
+	public int renderAll(List<File> files, final File outputDirectory) {
+		final AtomicInteger written = new AtomicInteger();
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+
+		for (final File file : files) {
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					FileHandle handle = new FileHandle(file);
+					try {
+						VoxelData data = VoxelJournal.read(handle);
+						writePng(data, new File(outputDirectory, handle.nameWithoutExtension() + ".png"));
+						written.incrementAndGet();
+					} catch (Exception e) {
+						System.err.println("Could not render " + file.getPath() + ": " + e);
+					}
+					return null;
+				}
+			});
+		}
+		VoxelLighting.runAll(tasks);
+
+		return written.get();
+	}
+}
@@ -0,0 +1,637 @@
+package shivanhunter.voxelmodeller;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.IntMap;
+
+/**
+ * Import and export of MagicaVoxel .vox files.
+ *
+ * A .vox file is a tree of RIFF-style chunks: a 4 byte id, the size of the
+ * chunk's content, the size of its children, then the content and the
+ * children, all little-endian. The MAIN chunk holds a SIZE and an XYZI chunk
+ * for each model, the palette (RGBA) and, since version 150, a scene graph of
+ * transform (nTRN), group (nGRP) and shape (nSHP) nodes placing the models.
+ * A model is at most 256 voxels along each axis, so larger scenes are made of
+ * several models.
+ *
+ * Importing reads the file twice as a stream. The first pass skips the voxels
+ * and reads everything else, to find where each model goes and how large the
+ * combined grid is. The second pass writes each XYZI voxel straight into that
+ * grid. Memory use is the grid and a small buffer, whatever the size of the
+ * file. Cells hold .vox palette indices until the end, when they are remapped
+ * to the colors actually used.
+ *
+ * MagicaVoxel's z axis is up. It becomes y here, and its y becomes -z.
+ */
+public class VoxFormat {
+	// version written on export
+	private static final int VERSION = 150;
+
+	// voxels read or written per buffer
+	private static final int BUFFER_VOXELS = 4096;
+
+	// deepest scene graph accepted, to stop on cycles
+	private static final int MAX_DEPTH = 64;
+
+	// longest string accepted in a dictionary
+	private static final int MAX_STRING = 1 << 16;
+
+	// the default MagicaVoxel palette as 0xRRGGBB, used if a file has none
+	private static final int[] DEFAULT_PALETTE = new int[256];
+
+	static {
+		// a 6x6x6 color cube without black, blue changing fastest
+		int index = 1;
+		for (int r = 5; r >= 0; --r) {
+			for (int g = 5; g >= 0; --g) {
+				for (int b = 5; b >= 0; --b) {
+					if (index == 216) break;
+					DEFAULT_PALETTE[index++] = r*0x33 << 16 | g*0x33 << 8 | b*0x33;
+				}
+			}
+		}
+
+		// then ramps of red, green, blue and gray skipping the cube's levels
+		int[] ramp = {0xEE, 0xDD, 0xBB, 0xAA, 0x88, 0x77, 0x55, 0x44, 0x22, 0x11};
+		for (int v : ramp) DEFAULT_PALETTE[index++] = v << 16;
+		for (int v : ramp) DEFAULT_PALETTE[index++] = v << 8;
+		for (int v : ramp) DEFAULT_PALETTE[index++] = v;
+		for (int v : ramp) DEFAULT_PALETTE[index++] = v << 16 | v << 8 | v;
+	}
+
+	/*
+	 * A node of the scene graph. Transforms have a translation, rotation and
+	 * one child, groups have children, shapes have models.
+	 */
+	private static class Node {
+		int[] children = new int[0];
+		int[] models = new int[0];
+		int[] translation;
+		int rotation = 4;
+	}
+
+	/*
+	 * A model placed in the scene: world = translation + rotation * (voxel -
+	 * size/2), with the rotation as a row-major 3x3 matrix.
+	 */
+	private static class Placement {
+		int[] rotation = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+		int[] translation = new int[3];
+	}
+
+	/*
+	 * Everything about a file but its voxels, read by the first pass.
+	 */
+	private static class Scene {
+		ArrayList<int[]> sizes = new ArrayList<int[]>();
+		IntMap<Node> nodes = new IntMap<Node>();
+		IntMap<Array<Placement>> placements = new IntMap<Array<Placement>>();
+		int[] palette = DEFAULT_PALETTE;
+	}
+
+	/**
+	 * Reads a .vox file as a new VoxelModel. The models of the file are
+	 * combined into one grid as placed by its scene graph; whatever lies
+	 * beyond 256 voxels along an axis is cut off. Throws an
+	 * IllegalArgumentException if the file is not a valid .vox file.
+	 *
+	 * @param file the file to read
+	 * @param meshCache the cache to look up and store the mesh in, or null
+	 * @return the imported model
+	 */
+	public static VoxelModel read(FileHandle file, MeshCache meshCache) {
+		Scene scene = new Scene();
+		readFile(file, scene, null, null);
+		place(scene);
+
+		// bounds of all placed models, in .vox coordinates
+		int[] min = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE};
+		int[] max = {Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+		for (IntMap.Entry<Array<Placement>> entry : scene.placements.entries()) {
+			int[] size = scene.sizes.get(entry.key);
+			for (Placement p : entry.value) {
+				for (int corner = 0; corner < 8; ++corner) {
+					int[] v = {
+							(corner & 1) != 0 ? size[0]-1 : 0,
+							(corner & 2) != 0 ? size[1]-1 : 0,
+							(corner & 4) != 0 ? size[2]-1 : 0};
+					int[] world = transform(p, size, v[0], v[1], v[2]);
+					for (int a = 0; a < 3; ++a) {
+						min[a] = Math.min(min[a], world[a]);
+						max[a] = Math.max(max[a], world[a]);
+					}
+				}
+			}
+		}
+
+		// an empty scene still needs a cell
+		if (min[0] > max[0]) {
+			min[0] = min[1] = min[2] = 0;
+			max[0] = max[1] = max[2] = 0;
+		}
+
+		// .vox x, z, -y become x, y, z here
+		int width = max[0]-min[0]+1, height = max[2]-min[2]+1, depth = max[1]-min[1]+1;
+		if (width > 256 || height > 256 || depth > 256) {
+			System.err.println("Scene in " + file.path() + " is larger than 256 voxels, cutting it off.");
+		}
+		width = Math.min(width, 256);
+		height = Math.min(height, 256);
+		depth = Math.min(depth, 256);
+
+		byte[][][] blocks = new byte[width][height][depth];
+		readFile(file, scene, blocks, new int[] {min[0], min[2], max[1]});
+
+		// replace .vox palette indices with indices into the used colors
+		boolean[] used = new boolean[256];
+		for (int i = 0; i < width; ++i) {
+			for (int j = 0; j < height; ++j) {
+				for (byte b : blocks[i][j]) used[b & 0xFF] = true;
+			}
+		}
+
+		ArrayList<Color> colors = new ArrayList<Color>();
+		byte[] remap = new byte[256];
+		for (int c = 1; c < 256; ++c) {
+			if (!used[c]) continue;
+			int rgb = scene.palette[c];
+			colors.add(new Color((rgb >> 16 & 0xFF)/255f, (rgb >> 8 & 0xFF)/255f, (rgb & 0xFF)/255f, 1));
+			remap[c] = (byte)colors.size();
+		}
+
+		for (int i = 0; i < width; ++i) {
+			for (int j = 0; j < height; ++j) {
+				byte[] row = blocks[i][j];
+				for (int k = 0; k < depth; ++k) row[k] = remap[row[k] & 0xFF];
+			}
+		}
+
+		// .vox cell (x, y, z) covers x to x+1, z to z+1 and -y-1 to -y here
+		Vector3 root = new Vector3(min[0], min[2], -max[1]-1);
+		return new VoxelModel(new VoxelData(blocks, colors, root, 16), meshCache);
+	}
+
+	/**
+	 * Reads the chunks of a file. Without a grid, reads everything but the
+	 * voxels into the scene; with one, writes the voxels of every placed
+	 * model into it.
+	 *
+	 * @param file the file to read
+	 * @param scene the scene to read into, or to place voxels by
+	 * @param blocks the grid to write voxels into, or null
+	 * @param origin the .vox x, z and y of the grid's first cell
+	 */
+	private static void readFile(FileHandle file, Scene scene, byte[][][] blocks, int[] origin) {
+		ChunkReader in = new ChunkReader(file.read());
+		try {
+			if (!in.readId().equals("VOX ")) throw new IllegalArgumentException();
+			in.readInt(); // version
+			if (!in.readId().equals("MAIN")) throw new IllegalArgumentException();
+			int content = in.readInt(), children = in.readInt();
+			in.skip(content);
+
+			long end = in.position + children;
+			int model = 0;
+			while (in.position < end) {
+				String id = in.readId();
+				content = in.readInt();
+				children = in.readInt();
+				long next = in.position + content + children;
+				if (content < 0 || children < 0 || next > end) throw new IllegalArgumentException();
+
+				if (id.equals("XYZI")) {
+					if (blocks == null) {
+						in.skip(content);
+					} else {
+						readVoxels(in, scene, model, blocks, origin);
+					}
+					model++;
+				} else if (blocks == null) {
+					readChunk(in, id, scene);
+				}
+
+				if (in.position > next) throw new IllegalArgumentException();
+				in.skip(next - in.position);
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads the content of a chunk other than XYZI into the scene. Unknown
+	 * chunks are left unread.
+	 *
+	 * @param in the reader, at the start of the chunk's content
+	 * @param id the id of the chunk
+	 * @param scene the scene to read into
+	 */
+	private static void readChunk(ChunkReader in, String id, Scene scene) throws IOException {
+		if (id.equals("SIZE")) {
+			int[] size = {in.readInt(), in.readInt(), in.readInt()};
+			if (size[0] < 1 || size[1] < 1 || size[2] < 1) throw new IllegalArgumentException();
+			scene.sizes.add(size);
+		} else if (id.equals("RGBA")) {
+			// entry i of the chunk is palette index i+1
+			scene.palette = new int[256];
+			for (int i = 0; i < 256; ++i) {
+				int rgba = in.readInt();
+				if (i < 255) scene.palette[i+1] = (rgba & 0xFF) << 16 | (rgba & 0xFF00) | (rgba >> 16 & 0xFF);
+			}
+		} else if (id.equals("nTRN")) {
+			int nodeId = in.readInt();
+			in.readDict();
+			Node node = new Node();
+			node.children = new int[] {in.readInt()};
+			in.readInt(); // reserved
+			in.readInt(); // layer
+			int frames = in.readInt();
+
+			// only the first frame of an animation is used
+			node.translation = new int[3];
+			for (int f = 0; f < frames; ++f) {
+				HashMap<String, String> frame = in.readDict();
+				if (f > 0) continue;
+				try {
+					if (frame.containsKey("_t")) {
+						String[] t = frame.get("_t").trim().split("\\s+");
+						for (int a = 0; a < 3; ++a) node.translation[a] = Integer.parseInt(t[a]);
+					}
+					if (frame.containsKey("_r")) node.rotation = Integer.parseInt(frame.get("_r").trim());
+				} catch (RuntimeException e) {
+					throw new IllegalArgumentException(e);
+				}
+			}
+			scene.nodes.put(nodeId, node);
+		} else if (id.equals("nGRP")) {
+			int nodeId = in.readInt();
+			in.readDict();
+			Node node = new Node();
+			node.children = new int[in.readCount()];
+			for (int i = 0; i < node.children.length; ++i) node.children[i] = in.readInt();
+			scene.nodes.put(nodeId, node);
+		} else if (id.equals("nSHP")) {
+			int nodeId = in.readInt();
+			in.readDict();
+			Node node = new Node();
+			node.models = new int[in.readCount()];
+			for (int i = 0; i < node.models.length; ++i) {
+				node.models[i] = in.readInt();
+				in.readDict();
+			}
+			scene.nodes.put(nodeId, node);
+		}
+	}
+
+	/**
+	 * Writes the voxels of an XYZI chunk into a grid at each placement of its
+	 * model, a buffer at a time.
+	 *
+	 * @param in the reader, at the start of the chunk's content
+	 * @param scene the scene placing the model
+	 * @param model the index of the model
+	 * @param blocks the grid to write into
+	 * @param origin the .vox x, z and y of the grid's first cell
+	 */
+	private static void readVoxels(ChunkReader in, Scene scene, int model,
+			byte[][][] blocks, int[] origin) throws IOException {
+		int count = in.readCount();
+		Array<Placement> placements = scene.placements.get(model);
+		if (placements == null || model >= scene.sizes.size()) {
+			in.skip(4L*count);
+			return;
+		}
+
+		int[] size = scene.sizes.get(model);
+		int width = blocks.length, height = blocks[0].length, depth = blocks[0][0].length;
+		byte[] buffer = new byte[4*Math.min(count, BUFFER_VOXELS)];
+
+		for (int read = 0; read < count; ) {
+			int n = Math.min(count - read, BUFFER_VOXELS);
+			in.readFully(buffer, 4*n);
+			read += n;
+
+			for (int v = 0; v < 4*n; v += 4) {
+				byte index = buffer[v+3];
+				if (index == 0) continue;
+
+				for (Placement p : placements) {
+					int[] world = transform(p, size, buffer[v] & 0xFF, buffer[v+1] & 0xFF, buffer[v+2] & 0xFF);
+					int i = world[0] - origin[0], j = world[2] - origin[1], k = origin[2] - world[1];
+					if (i < width && j < height && k < depth) blocks[i][j][k] = index;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Places every model of a scene by walking its scene graph from the root
+	 * node. Files without a scene graph place each model once, unmoved.
+	 *
+	 * @param scene the scene to place the models of
+	 */
+	private static void place(Scene scene) {
+		if (scene.nodes.containsKey(0)) {
+			place(scene, scene.nodes.get(0), new Placement(), 0);
+		} else {
+			for (int m = 0; m < scene.sizes.size(); ++m) addPlacement(scene, m, new Placement());
+		}
+	}
+
+	/**
+	 * Places the models below a node of the scene graph.
+	 *
+	 * @param scene the scene the node belongs to
+	 * @param node the node
+	 * @param parent the combined transform of the node's ancestors
+	 * @param level the depth of the node in the graph
+	 */
+	private static void place(Scene scene, Node node, Placement parent, int level) {
+		if (level > MAX_DEPTH) throw new IllegalArgumentException();
+
+		Placement placement = parent;
+		if (node.translation != null) {
+			// world = parent.t + parent.r * (t + r * p)
+			int[] r = rotationMatrix(node.rotation);
+			placement = new Placement();
+			for (int row = 0; row < 3; ++row) {
+				for (int col = 0; col < 3; ++col) {
+					int sum = 0;
+					for (int n = 0; n < 3; ++n) sum += parent.rotation[row*3+n]*r[n*3+col];
+					placement.rotation[row*3+col] = sum;
+				}
+				int sum = parent.translation[row];
+				for (int n = 0; n < 3; ++n) sum += parent.rotation[row*3+n]*node.translation[n];
+				placement.translation[row] = sum;
+			}
+		}
+
+		for (int model : node.models) {
+			if (model >= 0 && model < scene.sizes.size()) addPlacement(scene, model, placement);
+		}
+		for (int child : node.children) {
+			Node childNode = scene.nodes.get(child);
+			if (childNode != null) place(scene, childNode, placement, level+1);
+		}
+	}
+
+	/**
+	 * Adds a placement of a model to a scene.
+	 *
+	 * @param scene the scene
+	 * @param model the index of the model
+	 * @param placement where the model goes
+	 */
+	private static void addPlacement(Scene scene, int model, Placement placement) {
+		Array<Placement> placements = scene.placements.get(model);
+		if (placements == null) {
+			placements = new Array<Placement>();
+			scene.placements.put(model, placements);
+		}
+		placements.add(placement);
+	}
+
+	/**
+	 * Decodes a .vox rotation: bits 0-1 and 2-3 are the columns of the
+	 * non-zero entries of the first two rows, the third row takes the
+	 * remaining column, and bits 4-6 make the entries of each row negative.
+	 *
+	 * @param bits the encoded rotation
+	 * @return the rotation as a row-major 3x3 matrix
+	 */
+	private static int[] rotationMatrix(int bits) {
+		int first = bits & 3, second = bits >> 2 & 3;
+		if (first == second || first > 2 || second > 2) throw new IllegalArgumentException();
+		int[] columns = {first, second, 3 - first - second};
+		int[] matrix = new int[9];
+		for (int row = 0; row < 3; ++row) {
+			matrix[row*3 + columns[row]] = (bits >> (4+row) & 1) != 0 ? -1 : 1;
+		}
+		return matrix;
+	}
+
+	/**
+	 * Returns where a voxel of a placed model ends up in the scene. Models
+	 * are placed around their center.
+	 *
+	 * @param p the placement of the model
+	 * @param size the size of the model
+	 * @param x the x coordinate of the voxel in the model
+	 * @param y the y coordinate of the voxel in the model
+	 * @param z the z coordinate of the voxel in the model
+	 * @return the .vox coordinates of the voxel in the scene
+	 */
+	private static int[] transform(Placement p, int[] size, int x, int y, int z) {
+		x -= size[0]/2;
+		y -= size[1]/2;
+		z -= size[2]/2;
+		int[] r = p.rotation, t = p.translation;
+		return new int[] {
+				t[0] + r[0]*x + r[1]*y + r[2]*z,
+				t[1] + r[3]*x + r[4]*y + r[5]*z,
+				t[2] + r[6]*x + r[7]*y + r[8]*z};
+	}
+
+	/**
+	 * Writes a VoxelModel as a .vox file with a single model. The root
+	 * location, scale and emission levels have no place in the format and are
+	 * not written.
+	 *
+	 * @param model the model to write
+	 * @param file the file to write to
+	 */
+	public static void write(VoxelModel model, FileHandle file) {
+		OutputStream out = new BufferedOutputStream(file.write(false));
+		try {
+			write(model, out);
+		} catch (IOException e) {
+			throw new GdxRuntimeException("Error writing file: " + file, e);
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) { }
+		}
+	}
+
+	/**
+	 * Writes a VoxelModel in .vox format to a stream.
+	 *
+	 * @param model the model to write
+	 * @param out the stream to write to
+	 */
+	public static void write(VoxelModel model, OutputStream out) throws IOException {
+		byte[][][] blocks = model.getBlocks();
+		ArrayList<Color> colors = model.getColors();
+		int width = model.getWidth(), height = model.getHeight(), depth = model.getDepth();
+
+		int count = 0;
+		for (int i = 0; i < width; ++i) {
+			for (int j = 0; j < height; ++j) {
+				for (byte b : blocks[i][j]) if (b != 0) count++;
+			}
+		}
+
+		int sizeChunk = 12 + 12, voxelChunk = 12 + 4 + 4*count, paletteChunk = 12 + 1024;
+
+		out.write(new byte[] {'V', 'O', 'X', ' '});
+		writeInt(out, VERSION);
+		writeChunk(out, "MAIN", 0, sizeChunk + voxelChunk + paletteChunk);
+
+		// x, -z, y here are x, y, z in .vox
+		writeChunk(out, "SIZE", 12, 0);
+		writeInt(out, width);
+		writeInt(out, depth);
+		writeInt(out, height);
+
+		writeChunk(out, "XYZI", 4 + 4*count, 0);
+		writeInt(out, count);
+		byte[] buffer = new byte[4*BUFFER_VOXELS];
+		int n = 0;
+		for (int i = 0; i < width; ++i) {
+			for (int j = 0; j < height; ++j) {
+				byte[] row = blocks[i][j];
+				for (int k = 0; k < depth; ++k) {
+					if (row[k] == 0) continue;
+					buffer[n++] = (byte)i;
+					buffer[n++] = (byte)(depth-1-k);
+					buffer[n++] = (byte)j;
+					buffer[n++] = row[k];
+					if (n == buffer.length) {
+						out.write(buffer);
+						n = 0;
+					}
+				}
+			}
+		}
+		out.write(buffer, 0, n);
+
+		// voxel index i is palette entry i-1; unused entries are black
+		writeChunk(out, "RGBA", 1024, 0);
+		for (int i = 0; i < 256; ++i) {
+			if (i < colors.size()) {
+				Color c = colors.get(i);
+				out.write(new byte[] {
+						(byte)Math.round(c.r*255),
+						(byte)Math.round(c.g*255),
+						(byte)Math.round(c.b*255),
+						(byte)255});
+			} else {
+				writeInt(out, 0xFF000000);
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Writes the header of a chunk.
+	 *
+	 * @param out the stream to write to
+	 * @param id the 4 character id of the chunk
+	 * @param content the size of the chunk's content
+	 * @param children the size of the chunk's children
+	 */
+	private static void writeChunk(OutputStream out, String id, int content, int children) throws IOException {
+		for (int i = 0; i < 4; ++i) out.write(id.charAt(i));
+		writeInt(out, content);
+		writeInt(out, children);
+	}
+
+	/**
+	 * Writes a little-endian int.
+	 *
+	 * @param out the stream to write to
+	 * @param value the value to write
+	 */
+	private static void writeInt(OutputStream out, int value) throws IOException {
+		out.write(value);
+		out.write(value >> 8);
+		out.write(value >> 16);
+		out.write(value >> 24);
+	}
+
+	/*
+	 * Reads little-endian values from a stream, counting the bytes read.
+	 */
+	private static class ChunkReader {
+		private DataInputStream in;
+		long position;
+
+		ChunkReader(InputStream in) {
+			this.in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+		}
+
+		int readInt() throws IOException {
+			position += 4;
+			return Integer.reverseBytes(in.readInt());
+		}
+
+		// reads a count, which must not be negative
+		int readCount() throws IOException {
+			int count = readInt();
+			if (count < 0) throw new IllegalArgumentException();
+			return count;
+		}
+
+		String readId() throws IOException {
+			byte[] id = new byte[4];
+			readFully(id, 4);
+			return new String(id, "US-ASCII");
+		}
+
+		void readFully(byte[] buffer, int length) throws IOException {
+			in.readFully(buffer, 0, length);
+			position += length;
+		}
+
+		// strings are a byte count followed by the bytes
+		String readString() throws IOException {
+			int length = readCount();
+			if (length > MAX_STRING) throw new IllegalArgumentException();
+			byte[] bytes = new byte[length];
+			readFully(bytes, bytes.length);
+			return new String(bytes, "UTF-8");
+		}
+
+		// dictionaries are a count followed by key and value strings
+		HashMap<String, String> readDict() throws IOException {
+			int count = readCount();
+			HashMap<String, String> dict = new HashMap<String, String>();
+			for (int i = 0; i < count; ++i) dict.put(readString(), readString());
+			return dict;
+		}
+
+		void skip(long n) throws IOException {
+			while (n > 0) {
+				long skipped = in.skip(n);
+				if (skipped <= 0) {
+					if (in.read() < 0) throw new EOFException();
+					skipped = 1;
+				}
+				n -= skipped;
+				position += skipped;
+			}
+		}
+
+		void close() {
+			try {
+				in.close();
+			} catch (IOException e) { }
+		}
+	}
+}
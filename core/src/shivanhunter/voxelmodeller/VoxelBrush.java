@@ -0,0 +1,93 @@
+package shivanhunter.voxelmodeller;
+
+/**
+ * The shape and size of the area painted by one brush stroke step. A brush
+ * with radius 0 paints a single voxel, whatever its shape.
+ */
+public class VoxelBrush {
+	/*
+	 * Shapes of the painted area: a cube is every cell within the radius on
+	 * each axis, a sphere every cell whose center is within the radius
+	 */
+	public enum Shape {
+		CUBE,
+		SPHERE
+	}
+
+	// largest supported radius
+	public static final int MAX_RADIUS = 16;
+
+	private Shape shape;
+	private int radius;
+
+	/**
+	 * Creates a brush that paints a single voxel.
+	 */
+	public VoxelBrush() {
+		this(Shape.CUBE, 0);
+	}
+
+	/**
+	 * Creates a brush with the given shape and radius.
+	 *
+	 * @param shape the shape of the painted area
+	 * @param radius the radius in voxels, from 0 to MAX_RADIUS
+	 */
+	public VoxelBrush(Shape shape, int radius) {
+		setShape(shape);
+		setRadius(radius);
+	}
+
+	/**
+	 * Returns the shape of the brush.
+	 *
+	 * @return the shape of the painted area
+	 */
+	public Shape getShape() {
+		return shape;
+	}
+
+	/**
+	 * Sets the shape of the brush.
+	 *
+	 * @param shape the shape of the painted area
+	 */
+	public void setShape(Shape shape) {
+		this.shape = shape;
+	}
+
+	/**
+	 * Returns the radius of the brush.
+	 *
+	 * @return the radius in voxels
+	 */
+	public int getRadius() {
+		return radius;
+	}
+
+	/**
+	 * Sets the radius of the brush, clamped to 0 to MAX_RADIUS.
+	 *
+	 * @param radius the radius in voxels
+	 */
+	public void setRadius(int radius) {
+		this.radius = Math.max(0, Math.min(radius, MAX_RADIUS));
+	}
+
+	/**
+	 * Returns whether a cell at the given offset from the brush center is
+	 * painted.
+	 *
+	 * @param dx the offset in x
+	 * @param dy the offset in y
+	 * @param dz the offset in z
+	 * @return true if the cell is inside the brush
+	 */
+	public boolean contains(int dx, int dy, int dz) {
+		if (Math.abs(dx) > radius || Math.abs(dy) > radius || Math.abs(dz) > radius) return false;
+		if (shape == Shape.CUBE) return true;
+
+		// compare against (radius + 0.5)^2 so small spheres aren't just plus signs
+		return dx*dx + dy*dy + dz*dz <= radius*radius + radius;
+	}
+}
@@ -0,0 +1,348 @@
+package shivanhunter.voxelmodeller;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.badlogic.gdx.utils.GdxRuntimeException;
+
+/**
+ * Encodes and decodes the voxel data of version 3 .voxel files, which split
+ * the grid into cubic chunks that are stored independently. Refer to
+ * voxel_spec.txt.
+ *
+ * Each chunk is run-length encoded in the same way as VoxelClipboard, then
+ * deflated if that makes it smaller. Chunks with too many short runs for
+ * that to pay off, like noise, are stored as plain cells instead.
+ *
+ * Since chunks don't depend on each other, they are encoded and decoded in
+ * parallel on threads of their own, and an offset table lets each decoder
+ * find its chunk directly.
+ */
+class VoxelChunks {
+	// edge length of a chunk in cells; chunks on the far edges may be smaller
+	static final int CHUNK_SIZE = 32;
+
+	// chunk encodings
+	static final int EMPTY = 0, RLE = 1, DEFLATE = 2, RAW = 3;
+
+	// size of one offset table entry: encoding byte and offset int
+	private static final int ENTRY_SIZE = 5;
+
+	/*
+	 * Threads for encoding and decoding chunks, separate from the shared
+	 * worker threads since files are also loaded from tasks on those
+	 */
+	private static ExecutorService executor;
+
+	/**
+	 * Encodes voxel data as an offset table followed by the encoded chunks.
+	 *
+	 * @param blocks the voxel data, indexed [x][y][z]
+	 * @return the encoded data
+	 */
+	static byte[] encode(final byte[][][] blocks) {
+		final int width = blocks.length, height = blocks[0].length, depth = blocks[0][0].length;
+		int cx = chunks(width), cy = chunks(height), cz = chunks(depth);
+		int count = cx*cy*cz;
+
+		final byte[][] encoded = new byte[count][];
+		final byte[] encodings = new byte[count];
+
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>(count);
+		for (int i = 0; i < cx; ++i) {
+			for (int j = 0; j < cy; ++j) {
+				for (int k = 0; k < cz; ++k) {
+					final int chunk = (i*cy + j)*cz + k;
+					final int x = i*CHUNK_SIZE, y = j*CHUNK_SIZE, z = k*CHUNK_SIZE;
+					tasks.add(new Callable<Object>() {
+						public Object call() {
+							encodeChunk(blocks, x, y, z, chunk, encoded, encodings);
+							return null;
+						}
+					});
+				}
+			}
+		}
+		VoxelLighting.runAll(getExecutor(), tasks);
+
+		// offset table, then chunk data in chunk order
+		int dataSize = 0;
+		for (byte[] chunk : encoded) dataSize += chunk.length;
+		ByteBuffer buffer = ByteBuffer.allocate(count*ENTRY_SIZE + dataSize);
+		int offset = 0;
+		for (int c = 0; c < count; ++c) {
+			buffer.put(encodings[c]);
+			buffer.putInt(offset);
+			offset += encoded[c].length;
+		}
+		for (byte[] chunk : encoded) buffer.put(chunk);
+		return buffer.array();
+	}
+
+	/**
+	 * Encodes one chunk, keeping whichever encoding is smallest.
+	 *
+	 * @param blocks the voxel data
+	 * @param x the first x cell of the chunk
+	 * @param y the first y cell of the chunk
+	 * @param z the first z cell of the chunk
+	 * @param chunk the index of the chunk
+	 * @param encoded receives the encoded bytes of each chunk
+	 * @param encodings receives the encoding of each chunk
+	 */
+	static void encodeChunk(byte[][][] blocks, int x, int y, int z,
+			int chunk, byte[][] encoded, byte[] encodings) {
+		int x2 = Math.min(x + CHUNK_SIZE, blocks.length);
+		int y2 = Math.min(y + CHUNK_SIZE, blocks[0].length);
+		int z2 = Math.min(z + CHUNK_SIZE, blocks[0][0].length);
+
+		// runs are abandoned for plain cells once they are no smaller, checked
+		// after each row, so the margin fits the runs of a row and one more
+		int cells = (x2-x)*(y2-y)*(z2-z);
+		byte[] runs = new byte[cells + 2*CHUNK_SIZE + 4];
+		int size = 0;
+		int value = -1, length = 0;
+		for (int i = x; i < x2 && size < cells; ++i) {
+			for (int j = y; j < y2 && size < cells; ++j) {
+				byte[] row = blocks[i][j];
+				for (int k = z; k < z2; ++k) {
+					int index = row[k] & 0xFF;
+					if (index == value) {
+						length++;
+					} else {
+						if (length > 0) size = writeRun(runs, size, length, value);
+						value = index;
+						length = 1;
+					}
+				}
+			}
+		}
+
+		// a single empty run needs no data at all
+		if (value == 0 && length == cells) {
+			encodings[chunk] = EMPTY;
+			encoded[chunk] = new byte[0];
+			return;
+		}
+		if (size < cells) size = writeRun(runs, size, length, value);
+
+		if (size >= cells) {
+			byte[] raw = new byte[cells];
+			int position = 0;
+			for (int i = x; i < x2; ++i) {
+				for (int j = y; j < y2; ++j) {
+					System.arraycopy(blocks[i][j], z, raw, position, z2-z);
+					position += z2-z;
+				}
+			}
+			encodings[chunk] = RAW;
+			encoded[chunk] = raw;
+			return;
+		}
+
+		// deflated chunks start with the size of the inflated runs
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(runs, 0, size);
+		deflater.finish();
+		byte[] deflated = new byte[4 + size];
+		int deflatedSize = 4;
+		while (!deflater.finished() && deflatedSize < deflated.length) {
+			deflatedSize += deflater.deflate(deflated, deflatedSize, deflated.length - deflatedSize);
+		}
+		boolean smaller = deflater.finished() && deflatedSize < size;
+		deflater.end();
+
+		if (smaller) {
+			ByteBuffer.wrap(deflated).putInt(size);
+			encodings[chunk] = DEFLATE;
+			encoded[chunk] = Arrays.copyOf(deflated, deflatedSize);
+		} else {
+			encodings[chunk] = RLE;
+			encoded[chunk] = Arrays.copyOf(runs, size);
+		}
+	}
+
+	/**
+	 * Appends one run to the encoded data: its length as a varint, then the
+	 * voxel index. Writes at most 4 bytes for a run within one chunk.
+	 *
+	 * @param runs the encoded data
+	 * @param size the number of bytes already in runs
+	 * @param length the number of cells in the run
+	 * @param index the voxel index of the run
+	 * @return the number of bytes in runs after the run
+	 */
+	private static int writeRun(byte[] runs, int size, int length, int index) {
+		while (length >= 0x80) {
+			runs[size++] = (byte)(length | 0x80);
+			length >>>= 7;
+		}
+		runs[size++] = (byte)length;
+		runs[size++] = (byte)index;
+		return size;
+	}
+
+	/**
+	 * Decodes an offset table and encoded chunks into voxel data. Throws an
+	 * IllegalArgumentException if the data is malformed.
+	 *
+	 * @param data the encoded data, from the buffer's position to its limit
+	 * @param blocks the voxel data to fill, all empty, indexed [x][y][z]
+	 */
+	static void decode(ByteBuffer data, final byte[][][] blocks) {
+		int width = blocks.length, height = blocks[0].length, depth = blocks[0][0].length;
+		int cx = chunks(width), cy = chunks(height), cz = chunks(depth);
+		int count = cx*cy*cz;
+
+		final ByteBuffer buffer = data.slice();
+		int dataStart = count*ENTRY_SIZE;
+		if (buffer.remaining() < dataStart) throw new IllegalArgumentException();
+
+		// chunk bounds within the buffer from the offset table
+		final int[] starts = new int[count+1];
+		final byte[] encodings = new byte[count];
+		for (int c = 0; c < count; ++c) {
+			encodings[c] = buffer.get(c*ENTRY_SIZE);
+			starts[c] = dataStart + buffer.getInt(c*ENTRY_SIZE + 1);
+		}
+		starts[count] = buffer.limit();
+		for (int c = 0; c < count; ++c) {
+			if (starts[c] < dataStart || starts[c] > starts[c+1]) throw new IllegalArgumentException();
+		}
+
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>(count);
+		for (int i = 0; i < cx; ++i) {
+			for (int j = 0; j < cy; ++j) {
+				for (int k = 0; k < cz; ++k) {
+					final int chunk = (i*cy + j)*cz + k;
+					final int x = i*CHUNK_SIZE, y = j*CHUNK_SIZE, z = k*CHUNK_SIZE;
+					if (encodings[chunk] == EMPTY) continue;
+					tasks.add(new Callable<Object>() {
+						public Object call() throws DataFormatException {
+							decodeChunk(buffer, starts[chunk], starts[chunk+1], encodings[chunk],
+									blocks, x, y, z);
+							return null;
+						}
+					});
+				}
+			}
+		}
+		if (tasks.isEmpty()) return;
+
+		try {
+			VoxelLighting.runAll(getExecutor(), tasks);
+		} catch (GdxRuntimeException e) {
+			throw new IllegalArgumentException(e.getCause());
+		}
+	}
+
+	/**
+	 * Decodes one chunk into the voxel data.
+	 *
+	 * @param buffer the encoded data
+	 * @param start the position of the chunk's first byte
+	 * @param end the position after the chunk's last byte
+	 * @param encoding the chunk's encoding
+	 * @param blocks the voxel data to fill
+	 * @param x the first x cell of the chunk
+	 * @param y the first y cell of the chunk
+	 * @param z the first z cell of the chunk
+	 * @throws DataFormatException if deflated data is corrupt
+	 */
+	static void decodeChunk(ByteBuffer buffer, int start, int end, int encoding,
+			byte[][][] blocks, int x, int y, int z) throws DataFormatException {
+		// each task reads through its own view of the shared buffer
+		ByteBuffer view = buffer.duplicate();
+		view.position(start);
+
+		int w = Math.min(CHUNK_SIZE, blocks.length - x);
+		int h = Math.min(CHUNK_SIZE, blocks[0].length - y);
+		int d = Math.min(CHUNK_SIZE, blocks[0][0].length - z);
+		int total = w*h*d;
+
+		if (encoding == RAW) {
+			if (end - start != total) throw new IllegalArgumentException();
+			for (int i = 0; i < w; ++i) {
+				for (int j = 0; j < h; ++j) {
+					view.get(blocks[x+i][y+j], z, d);
+				}
+			}
+			return;
+		}
+
+		byte[] runs;
+		int size;
+		if (encoding == RLE) {
+			size = end - start;
+			runs = new byte[size];
+			view.get(runs);
+		} else if (encoding == DEFLATE && end - start >= 4) {
+			size = view.getInt();
+			if (size < 0 || size > 2*CHUNK_SIZE*CHUNK_SIZE*CHUNK_SIZE) throw new IllegalArgumentException();
+
+			byte[] input = new byte[end - start - 4];
+			view.get(input);
+			Inflater inflater = new Inflater();
+			inflater.setInput(input);
+			runs = new byte[size];
+			int inflated = inflater.inflate(runs);
+			inflater.end();
+			if (inflated != size) throw new IllegalArgumentException();
+		} else {
+			throw new IllegalArgumentException();
+		}
+
+		// fill runs one row segment at a time; empty runs are skipped
+		int position = 0, read = 0;
+		while (read < size) {
+			int length = 0, shift = 0;
+			byte b;
+			do {
+				if (read >= size || shift > 21) throw new IllegalArgumentException();
+				b = runs[read++];
+				length |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			if (read >= size || length > total - position) throw new IllegalArgumentException();
+			byte index = runs[read++];
+
+			int runEnd = position + length;
+			if (index != 0) {
+				while (position < runEnd) {
+					int i = position/(h*d), j = (position/d) % h, k = position % d;
+					int rowEnd = Math.min(runEnd, position + d - k);
+					Arrays.fill(blocks[x+i][y+j], z+k, z+k + rowEnd-position, index);
+					position = rowEnd;
+				}
+			}
+			position = runEnd;
+		}
+		if (position != total) throw new IllegalArgumentException();
+	}
+
+	/**
+	 * Returns the chunk threads, creating them on first use.
+	 *
+	 * @return the executor for chunk tasks
+	 */
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) executor = VoxelLighting.newPool("voxel-chunks");
+		return executor;
+	}
+
+	/**
+	 * Returns the number of chunks needed to cover a number of cells.
+	 *
+	 * @param cells the size of the grid along one axis
+	 * @return the number of chunks along that axis
+	 */
+	static int chunks(int cells) {
+		return (cells + CHUNK_SIZE - 1)/CHUNK_SIZE;
+	}
+}
@@ -0,0 +1,205 @@
+package shivanhunter.voxelmodeller;
+
+import java.util.ArrayList;
+
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.utils.ByteArray;
+
+/**
+ * A copied region of voxel data that can be pasted into any VoxelModel.
+ *
+ * The cells are stored run-length encoded in the same order as the voxel
+ * data (z fastest, then y, then x), with runs continuing across rows, so
+ * large empty or uniform areas take a few bytes. Each run is its length as a
+ * varint (7 bits per byte, high bit set on all but the last byte) followed
+ * by the voxel index.
+ *
+ * The clipboard keeps its own palette of only the colors it uses, so it does
+ * not depend on the model it was copied from. Indices are remapped to the
+ * target model's palette when pasting.
+ */
+public class VoxelClipboard {
+	// size of the copied region
+	private int width, height, depth;
+
+	// colors of the copied voxels; index 1 is colors[0]
+	private ArrayList<Color> colors = new ArrayList<Color>();
+
+	// run-length encoded voxel indices
+	private byte[] runs;
+
+	// number of solid voxels
+	private int voxels;
+
+	/**
+	 * Copies a region of voxel data. The region must lie inside the grid.
+	 *
+	 * @param blocks the voxel data to copy from
+	 * @param palette the colors of the voxel data
+	 * @param region the region to copy
+	 */
+	VoxelClipboard(byte[][][] blocks, ArrayList<Color> palette, VoxelRegion region) {
+		width = region.x2 - region.x1;
+		height = region.y2 - region.y1;
+		depth = region.z2 - region.z1;
+
+		// source index -> clipboard index, 0 until the color is first used
+		byte[] remap = new byte[256];
+		ByteArray encoded = new ByteArray();
+
+		int value = -1, length = 0;
+		for (int i = region.x1; i < region.x2; ++i) {
+			for (int j = region.y1; j < region.y2; ++j) {
+				byte[] row = blocks[i][j];
+				for (int k = region.z1; k < region.z2; ++k) {
+					int index = row[k] & 0xFF;
+
+					if (index != 0) {
+						if (remap[index] == 0) {
+							colors.add(palette.get(index-1));
+							remap[index] = (byte)colors.size();
+						}
+						index = remap[index] & 0xFF;
+						voxels++;
+					}
+
+					if (index == value) {
+						length++;
+					} else {
+						if (length > 0) writeRun(encoded, length, value);
+						value = index;
+						length = 1;
+					}
+				}
+			}
+		}
+		if (length > 0) writeRun(encoded, length, value);
+
+		runs = encoded.toArray();
+	}
+
+	/**
+	 * Appends one run to the encoded data.
+	 *
+	 * @param encoded the encoded data
+	 * @param length the number of cells in the run
+	 * @param index the voxel index of the run
+	 */
+	private static void writeRun(ByteArray encoded, int length, int index) {
+		while (length >= 0x80) {
+			encoded.add((byte)(length | 0x80));
+			length >>>= 7;
+		}
+		encoded.add((byte)length);
+		encoded.add((byte)index);
+	}
+
+	/**
+	 * Writes the solid voxels of this clipboard into a grid; empty cells
+	 * leave the grid unchanged. Cells that fall outside the grid are skipped.
+	 * Each voxel is also written at its mirrored positions for every mirror
+	 * axis that is set, mirrored around the center of the grid.
+	 *
+	 * @param grid the voxel data to write into
+	 * @param size the width, height and depth of the grid
+	 * @param x the x coordinate of the grid cell for the clipboard's first cell
+	 * @param y the y coordinate of the grid cell for the clipboard's first cell
+	 * @param z the z coordinate of the grid cell for the clipboard's first cell
+	 * @param indices the grid index for each clipboard index
+	 * @param mirror whether to mirror along x, y and z
+	 * @param changed a region to extend by every written cell
+	 */
+	void pasteInto(byte[][][] grid, int[] size, int x, int y, int z,
+			byte[] indices, boolean[] mirror, VoxelRegion changed) {
+		int position = 0, read = 0;
+		int plane = height*depth;
+
+		while (read < runs.length) {
+			// decode the run's length
+			int length = 0, shift = 0;
+			byte b;
+			do {
+				b = runs[read++];
+				length |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			int index = runs[read++] & 0xFF;
+
+			// empty runs are skipped without visiting their cells
+			if (index != 0) {
+				byte value = indices[index];
+				for (int p = position; p < position + length; ++p) {
+					int i = x + p/plane, j = y + (p/depth) % height, k = z + p % depth;
+
+					for (int m = 0; m < 8; ++m) {
+						if ((m & 1) != 0 && !mirror[0] ||
+								(m & 2) != 0 && !mirror[1] ||
+								(m & 4) != 0 && !mirror[2]) continue;
+
+						int mi = (m & 1) != 0 ? size[0]-1-i : i,
+								mj = (m & 2) != 0 ? size[1]-1-j : j,
+								mk = (m & 4) != 0 ? size[2]-1-k : k;
+						if (mi < 0 || mi >= size[0] || mj < 0 || mj >= size[1] ||
+								mk < 0 || mk >= size[2]) continue;
+
+						grid[mi][mj][mk] = value;
+						changed.extend(mi, mj, mk, mi+1, mj+1, mk+1);
+					}
+				}
+			}
+
+			position += length;
+		}
+	}
+
+	/**
+	 * Returns the colors used by the copied voxels.
+	 *
+	 * @return the palette of the clipboard; index 1 is element 0
+	 */
+	ArrayList<Color> getColors() {
+		return colors;
+	}
+
+	/**
+	 * Returns the size of the copied region in x.
+	 * @return the width of the region
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Returns the size of the copied region in y.
+	 * @return the height of the region
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Returns the size of the copied region in z.
+	 * @return the depth of the region
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Returns the number of solid voxels in the clipboard.
+	 *
+	 * @return the number of voxels
+	 */
+	public int getVoxelCount() {
+		return voxels;
+	}
+
+	/**
+	 * Returns the size of the encoded voxel data.
+	 *
+	 * @return the size in bytes, not counting the palette
+	 */
+	public int getEncodedBytes() {
+		return runs.length;
+	}
+}
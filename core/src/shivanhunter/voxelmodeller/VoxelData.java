@@ -0,0 +1,249 @@
+package shivanhunter.voxelmodeller;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.math.Vector3;
+
+/**
+ * The contents of a .voxel file: voxel data, colors and placement, without
+ * anything for rendering. Reading a file into a VoxelData needs no GL
+ * context, so tools can work on models without a window.
+ */
+public class VoxelData {
+	// voxel indices, [x][y][z]; 0 is no voxel, 1 is colors[0]
+	private byte[][][] blocks;
+
+	// colors for voxel indices and the emission level of each index
+	private ArrayList<Color> colors;
+	private byte[] emission = new byte[256];
+
+	// size in x, y and z, the scale and the root location
+	private int width, height, depth;
+	private int scale;
+	private Vector3 rootLocation;
+
+	/**
+	 * Wraps existing voxel data. The arrays are used as they are, not copied.
+	 * No colors emit light.
+	 *
+	 * @param blocks the voxel data, indexed [x][y][z]
+	 * @param colors the colors for voxel indices; index 1 is element 0
+	 * @param rootLocation the position of the model's first corner
+	 * @param scale the scale of the model, from 1 to 256
+	 */
+	VoxelData(byte[][][] blocks, ArrayList<Color> colors, Vector3 rootLocation, int scale) {
+		this(blocks, colors, new byte[256], rootLocation, scale);
+	}
+
+	/**
+	 * Wraps existing voxel data and emission levels. The arrays are used as
+	 * they are, not copied.
+	 *
+	 * @param blocks the voxel data, indexed [x][y][z]
+	 * @param colors the colors for voxel indices; index 1 is element 0
+	 * @param emission the emission level of each of the 256 voxel indices
+	 * @param rootLocation the position of the model's first corner
+	 * @param scale the scale of the model, from 1 to 256
+	 */
+	VoxelData(byte[][][] blocks, ArrayList<Color> colors, byte[] emission,
+			Vector3 rootLocation, int scale) {
+		this.blocks = blocks;
+		this.colors = colors;
+		this.emission = emission;
+		this.rootLocation = rootLocation;
+		this.scale = scale;
+		width = blocks.length;
+		height = blocks[0].length;
+		depth = blocks[0][0].length;
+	}
+
+	/**
+	 * Reads byte data from a .voxel file. Refer to voxel_spec.txt. Throws an
+	 * IllegalArgumentException if the version is unknown or the buffer's size
+	 * does not match what is expected from the model's dimensions and number
+	 * of colors.
+	 *
+	 * @param data the byte data of the file
+	 * @return the contents of the file
+	 */
+	public static VoxelData read(byte[] data) {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		int version, num_materials, headerSize, colorSize = 12;
+		boolean chunked = false;
+		int width, height, depth, scale;
+
+		try {
+			// header bytes give basic info; bytes are read as unsigned
+			version = buffer.get() & 0xFF;
+			num_materials = buffer.get() & 0xFF;
+
+			if (version == 0) {
+				// version 0 models are cubic
+				width = height = depth = (buffer.get() & 0xFF)+1;
+				headerSize = 16;
+			} else if (version >= 1 && version <= 3) {
+				width = (buffer.get() & 0xFF)+1;
+				height = (buffer.get() & 0xFF)+1;
+				depth = (buffer.get() & 0xFF)+1;
+				headerSize = 18;
+
+				// version 2 adds an emission level to each color, version 3
+				// stores voxel data in chunks
+				if (version >= 2) colorSize = 13;
+				chunked = version == 3;
+			} else {
+				throw new IllegalArgumentException();
+			}
+
+			scale = (buffer.get() & 0xFF)+1;
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException();
+		}
+
+		// verify size; chunked data has no fixed size, only the header is checked
+		int dataSize = chunked ? 0 : width*height*depth;
+		if (chunked ? buffer.capacity() < headerSize + num_materials*colorSize :
+				buffer.capacity() != headerSize + num_materials*colorSize + dataSize) {
+			throw new IllegalArgumentException();
+		}
+
+		// next three floats are the root location
+		Vector3 rootLocation = new Vector3(
+				buffer.getFloat(),
+				buffer.getFloat(),
+				buffer.getFloat());
+
+		// next n*3 floats are the block colors, each followed by an emission
+		// level in versions 2 and 3
+		ArrayList<Color> colors = new ArrayList<Color>();
+		byte[] emission = new byte[256];
+		for (int i = 0; i < num_materials; ++i) {
+			colors.add(new Color(
+					buffer.getFloat(),
+					buffer.getFloat(),
+					buffer.getFloat(),
+					1));
+			if (colorSize == 13) {
+				emission[i+1] = (byte)Math.min(buffer.get() & 0xFF, VoxelLighting.MAX_LIGHT);
+			}
+		}
+
+		// remaining bytes are the indices (block data), one row in z at a time,
+		// or in version 3 the chunk table and chunks
+		byte[][][] blocks = new byte[width][height][depth];
+		if (chunked) {
+			VoxelChunks.decode(buffer, blocks);
+		} else {
+			for (int i = 0; i < width; ++i) {
+				for (int j = 0; j < height; ++j) {
+					buffer.get(blocks[i][j]);
+				}
+			}
+		}
+
+		return new VoxelData(blocks, colors, emission, rootLocation, scale);
+	}
+
+	/**
+	 * Serializes the data in format version 3, encoding chunks of voxel data
+	 * in parallel. For format information refer to voxel_spec.txt.
+	 *
+	 * @return the data in serialized format
+	 */
+	public byte[] serialize() {
+		byte[] chunks = VoxelChunks.encode(blocks);
+		ByteBuffer buffer = ByteBuffer.allocate(18 + 13*colors.size() + chunks.length);
+
+		buffer.put((byte)3); // version
+		buffer.put((byte)colors.size()); // number of materials
+		buffer.put((byte)(width-1)); // model size in x
+		buffer.put((byte)(height-1)); // model size in y
+		buffer.put((byte)(depth-1)); // model size in z
+		buffer.put((byte)(scale-1)); // model scale
+
+		buffer.putFloat(rootLocation.x);
+		buffer.putFloat(rootLocation.y);
+		buffer.putFloat(rootLocation.z);
+
+		for (int i = 0; i < colors.size(); ++i) {
+			Color c = colors.get(i);
+			buffer.putFloat(c.r);
+			buffer.putFloat(c.g);
+			buffer.putFloat(c.b);
+			buffer.put(emission[i+1]);
+		}
+
+		buffer.put(chunks);
+		return buffer.array();
+	}
+
+	/**
+	 * Returns the voxel data, indexed [x][y][z].
+	 *
+	 * @return the voxel data
+	 */
+	public byte[][][] getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * Returns the colors for voxel indices.
+	 *
+	 * @return the color list; index 1 is element 0
+	 */
+	public ArrayList<Color> getColors() {
+		return colors;
+	}
+
+	/**
+	 * Returns the emission level of each voxel index.
+	 *
+	 * @return 256 levels from 0 to VoxelLighting.MAX_LIGHT
+	 */
+	public byte[] getEmission() {
+		return emission;
+	}
+
+	/**
+	 * Returns the size of the voxel data in x.
+	 * @return the width
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Returns the size of the voxel data in y.
+	 * @return the height
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Returns the size of the voxel data in z.
+	 * @return the depth
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Returns the scale of the model.
+	 * @return the scale, from 1 to 256
+	 */
+	public int getScale() {
+		return scale;
+	}
+
+	/**
+	 * Returns the position of the model's first corner.
+	 * @return the root location
+	 */
+	public Vector3 getRootLocation() {
+		return rootLocation;
+	}
+}
@@ -0,0 +1,529 @@
+package shivanhunter.voxelmodeller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import com.badlogic.gdx.graphics.Color;
+
+/**
+ * The differences between two versions of a model: which cells changed,
+ * how the palette changed, and whether the model was resized or moved.
+ *
+ * Colors are compared by value, not index, so reordering the palette does
+ * not change any cells. The diff has a palette of its own: the first
+ * version's colors, followed by the colors only the second version has, and
+ * getRemap() maps the second version's indices into it.
+ *
+ * Both versions are split into the same 32x32x32 chunks as version 3 files,
+ * and each chunk is hashed by the colors of its cells. Only chunks whose
+ * hashes differ are compared cell by cell, and chunks are hashed and
+ * compared in parallel on the shared worker threads. Models of different
+ * sizes are compared over the larger size; cells outside a model are empty.
+ */
+public class VoxelDiff {
+	// multiplier of the chunk hashes; the 64 bit FNV prime
+	private static final long PRIME = 0x100000001B3L;
+
+	// the size covering both versions
+	private int width, height, depth;
+
+	// the diff's palette and the number of colors of each version
+	private ArrayList<Color> colors;
+	private int fromColors, toColors;
+
+	// the diff's index of each index of the second version
+	private int[] remap;
+
+	// changed cells, packed as x<<16 | y<<8 | z, with their old and new
+	// indices as stored in each version
+	private int[] cells;
+	private byte[] before, after;
+	private int count;
+
+	private int changedChunks;
+	private boolean resized, paletteChanged, placementChanged;
+
+	private VoxelDiff() {}
+
+	/**
+	 * Compares two versions of a model.
+	 *
+	 * @param from the old version
+	 * @param to the new version
+	 * @return the differences from the old version to the new one
+	 */
+	public static VoxelDiff compare(final VoxelData from, final VoxelData to) {
+		final VoxelDiff diff = new VoxelDiff();
+		diff.width = Math.max(from.getWidth(), to.getWidth());
+		diff.height = Math.max(from.getHeight(), to.getHeight());
+		diff.depth = Math.max(from.getDepth(), to.getDepth());
+		diff.resized = from.getWidth() != to.getWidth() || from.getHeight() != to.getHeight() ||
+				from.getDepth() != to.getDepth();
+		diff.paletteChanged = !from.getColors().equals(to.getColors()) ||
+				!Arrays.equals(from.getEmission(), to.getEmission());
+		diff.placementChanged = from.getScale() != to.getScale() ||
+				!from.getRootLocation().equals(to.getRootLocation());
+
+		diff.colors = new ArrayList<Color>(from.getColors());
+		diff.fromColors = from.getColors().size();
+		diff.toColors = to.getColors().size();
+		diff.remap = matchColors(to.getColors(), diff.colors, true);
+		final int[] toMap = isIdentity(diff.remap, diff.toColors) ? null : diff.remap;
+
+		final int cx = VoxelChunks.chunks(diff.width), cy = VoxelChunks.chunks(diff.height),
+				cz = VoxelChunks.chunks(diff.depth);
+		final long[] fromHashes = hashChunks(from.getBlocks(), null, diff.width, diff.height, diff.depth);
+		final long[] toHashes = hashChunks(to.getBlocks(), toMap, diff.width, diff.height, diff.depth);
+
+		// each slab of chunks along x collects its own changes, in chunk order
+		final Changes[] slabs = new Changes[cx];
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>(cx);
+		for (int i = 0; i < cx; ++i) {
+			final int slab = i;
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					Changes changes = new Changes();
+					for (int j = 0; j < cy; ++j) {
+						for (int k = 0; k < cz; ++k) {
+							int chunk = (slab*cy + j)*cz + k;
+							if (fromHashes[chunk] == toHashes[chunk]) continue;
+							changes.chunks++;
+							changes.scan(from.getBlocks(), to.getBlocks(), toMap,
+									slab*VoxelChunks.CHUNK_SIZE, j*VoxelChunks.CHUNK_SIZE,
+									k*VoxelChunks.CHUNK_SIZE, diff.width, diff.height, diff.depth);
+						}
+					}
+					slabs[slab] = changes;
+					return null;
+				}
+			});
+		}
+		VoxelLighting.runAll(tasks);
+
+		for (Changes changes : slabs) diff.count += changes.size;
+		diff.cells = new int[diff.count];
+		diff.before = new byte[diff.count];
+		diff.after = new byte[diff.count];
+		int position = 0;
+		for (Changes changes : slabs) {
+			System.arraycopy(changes.cells, 0, diff.cells, position, changes.size);
+			System.arraycopy(changes.before, 0, diff.before, position, changes.size);
+			System.arraycopy(changes.after, 0, diff.after, position, changes.size);
+			position += changes.size;
+			diff.changedChunks += changes.chunks;
+		}
+		return diff;
+	}
+
+	/**
+	 * Returns whether the two versions are the same in every way that is
+	 * saved.
+	 *
+	 * @return true if nothing changed
+	 */
+	public boolean isEmpty() {
+		return count == 0 && !resized && !paletteChanged && !placementChanged;
+	}
+
+	/**
+	 * Returns the number of changed cells.
+	 *
+	 * @return the number of cells whose color changed
+	 */
+	public int getChangeCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of chunks whose hashes differ. All changed cells are
+	 * in these chunks, though a chunk of a resized model may have none.
+	 *
+	 * @return the number of chunks that were compared cell by cell
+	 */
+	public int getChangedChunkCount() {
+		return changedChunks;
+	}
+
+	/**
+	 * Returns the x position of a changed cell.
+	 * @param n the index of the change, less than getChangeCount()
+	 * @return the x position of the cell
+	 */
+	public int getX(int n) {
+		return cells[n] >>> 16;
+	}
+
+	/**
+	 * Returns the y position of a changed cell.
+	 * @param n the index of the change, less than getChangeCount()
+	 * @return the y position of the cell
+	 */
+	public int getY(int n) {
+		return (cells[n] >>> 8) & 0xFF;
+	}
+
+	/**
+	 * Returns the z position of a changed cell.
+	 * @param n the index of the change, less than getChangeCount()
+	 * @return the z position of the cell
+	 */
+	public int getZ(int n) {
+		return cells[n] & 0xFF;
+	}
+
+	/**
+	 * Returns the old color of a changed cell.
+	 * @param n the index of the change, less than getChangeCount()
+	 * @return the cell's index in the diff's palette before the change
+	 */
+	public int getBefore(int n) {
+		return before[n] & 0xFF;
+	}
+
+	/**
+	 * Returns the new color of a changed cell.
+	 * @param n the index of the change, less than getChangeCount()
+	 * @return the cell's index in the diff's palette after the change
+	 */
+	public int getAfter(int n) {
+		return remap[after[n] & 0xFF];
+	}
+
+	/**
+	 * Returns the smallest box containing every changed cell.
+	 *
+	 * @return the lowest x, y and z cells and one past the highest x, y and
+	 *         z cells, or null if no cells changed
+	 */
+	public int[] getBounds() {
+		if (count == 0) return null;
+		int[] bounds = {width, height, depth, 0, 0, 0};
+		for (int n = 0; n < count; ++n) {
+			int x = getX(n), y = getY(n), z = getZ(n);
+			bounds[0] = Math.min(bounds[0], x);
+			bounds[1] = Math.min(bounds[1], y);
+			bounds[2] = Math.min(bounds[2], z);
+			bounds[3] = Math.max(bounds[3], x+1);
+			bounds[4] = Math.max(bounds[4], y+1);
+			bounds[5] = Math.max(bounds[5], z+1);
+		}
+		return bounds;
+	}
+
+	/**
+	 * Returns the diff's palette: the old version's colors, followed by the
+	 * colors that only the new version has.
+	 *
+	 * @return the colors of the diff's indices; index 1 is element 0
+	 */
+	public ArrayList<Color> getColors() {
+		return colors;
+	}
+
+	/**
+	 * Returns the number of colors the new version added.
+	 *
+	 * @return the number of colors at the end of the diff's palette that the
+	 *         old version doesn't have
+	 */
+	public int getAddedColorCount() {
+		return colors.size() - fromColors;
+	}
+
+	/**
+	 * Returns the colors of the old version that the new version doesn't
+	 * have.
+	 *
+	 * @return the indices of the removed colors, in increasing order
+	 */
+	public int[] getRemovedColors() {
+		boolean[] kept = new boolean[fromColors+1];
+		for (int i = 1; i <= toColors; ++i) {
+			if (remap[i] <= fromColors) kept[remap[i]] = true;
+		}
+		int removed = 0;
+		int[] indices = new int[fromColors];
+		for (int i = 1; i <= fromColors; ++i) {
+			if (!kept[i]) indices[removed++] = i;
+		}
+		return Arrays.copyOf(indices, removed);
+	}
+
+	/**
+	 * Returns how the new version's indices map into the diff's palette.
+	 *
+	 * @return the diff's index for each of the new version's 256 indices
+	 */
+	public int[] getRemap() {
+		return remap.clone();
+	}
+
+	/**
+	 * Returns the size covering both versions.
+	 * @return the larger width of the two
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Returns the size covering both versions.
+	 * @return the larger height of the two
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Returns the size covering both versions.
+	 * @return the larger depth of the two
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Returns whether the size of the model changed.
+	 * @return true if the versions have different sizes
+	 */
+	public boolean isResized() {
+		return resized;
+	}
+
+	/**
+	 * Returns whether the colors, their order or their emission changed.
+	 * @return true if the versions have different palettes
+	 */
+	public boolean isPaletteChanged() {
+		return paletteChanged;
+	}
+
+	/**
+	 * Returns whether the scale or root location changed.
+	 * @return true if the versions are placed differently
+	 */
+	public boolean isPlacementChanged() {
+		return placementChanged;
+	}
+
+	/**
+	 * Returns a map from every index to itself.
+	 *
+	 * @return the identity map of the 256 indices
+	 */
+	static int[] identity() {
+		int[] map = new int[256];
+		for (int i = 0; i < 256; ++i) map[i] = i;
+		return map;
+	}
+
+	/**
+	 * Returns whether a map leaves the indices of a model's colors the same.
+	 *
+	 * @param map a map of the 256 indices
+	 * @param colors the number of colors of the model
+	 * @return true if every index up to colors maps to itself
+	 */
+	static boolean isIdentity(int[] map, int colors) {
+		for (int i = 0; i <= colors; ++i) {
+			if (map[i] != i) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Maps the indices of a model's colors to the first equal colors in a
+	 * palette. Index 0 always maps to 0.
+	 *
+	 * @param modelColors the model's colors; index 1 is element 0
+	 * @param palette the palette to find colors in
+	 * @param add whether to add colors that aren't found to the palette;
+	 *        otherwise they map to 256 or above, matching no index of the
+	 *        palette
+	 * @return the palette index for each of the model's 256 indices
+	 */
+	static int[] matchColors(ArrayList<Color> modelColors, ArrayList<Color> palette, boolean add) {
+		int[] map = new int[256];
+		int unmatched = 256;
+		for (int i = 0; i < modelColors.size(); ++i) {
+			Color color = modelColors.get(i);
+			int index = palette.indexOf(color);
+			if (index < 0 && add) {
+				palette.add(color);
+				index = palette.size()-1;
+			}
+			map[i+1] = index < 0 ? unmatched++ : index+1;
+		}
+		return map;
+	}
+
+	/**
+	 * Hashes every chunk of a model by the mapped indices of its cells,
+	 * covering a size that may be bigger than the model. Equal chunks of two
+	 * models have equal hashes when their indices map to the same colors.
+	 *
+	 * @param blocks the voxel data
+	 * @param map the index to hash for each of the model's indices, or null
+	 *        to hash the indices themselves
+	 * @param width the width to cover
+	 * @param height the height to cover
+	 * @param depth the depth to cover
+	 * @return the hash of each chunk, in chunk order
+	 */
+	static long[] hashChunks(final byte[][][] blocks, final int[] map,
+			final int width, final int height, final int depth) {
+		final int cx = VoxelChunks.chunks(width), cy = VoxelChunks.chunks(height),
+				cz = VoxelChunks.chunks(depth);
+		final long[] hashes = new long[cx*cy*cz];
+
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>(cx);
+		for (int i = 0; i < cx; ++i) {
+			final int slab = i;
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					for (int j = 0; j < cy; ++j) {
+						for (int k = 0; k < cz; ++k) {
+							hashes[(slab*cy + j)*cz + k] = hashChunk(blocks, map,
+									slab*VoxelChunks.CHUNK_SIZE, j*VoxelChunks.CHUNK_SIZE,
+									k*VoxelChunks.CHUNK_SIZE, width, height, depth);
+						}
+					}
+					return null;
+				}
+			});
+		}
+		VoxelLighting.runAll(tasks);
+		return hashes;
+	}
+
+	/**
+	 * Hashes one chunk. Cells outside the model hash as empty.
+	 *
+	 * @param blocks the voxel data
+	 * @param map the index to hash for each of the model's indices, or null
+	 *        to hash the indices themselves
+	 * @param x the first x cell of the chunk
+	 * @param y the first y cell of the chunk
+	 * @param z the first z cell of the chunk
+	 * @param width the width being covered
+	 * @param height the height being covered
+	 * @param depth the depth being covered
+	 * @return the hash of the chunk
+	 */
+	private static long hashChunk(byte[][][] blocks, int[] map, int x, int y, int z,
+			int width, int height, int depth) {
+		int x2 = Math.min(x + VoxelChunks.CHUNK_SIZE, width);
+		int y2 = Math.min(y + VoxelChunks.CHUNK_SIZE, height);
+		int z2 = Math.min(z + VoxelChunks.CHUNK_SIZE, depth);
+		int inside = Math.max(z, Math.min(z2, blocks[0][0].length));
+
+		// four interleaved hashes, so the multiplications don't wait on
+		// each other; rows are a multiple of 4 cells unless cut off
+		long h0 = 1, h1 = 2, h2 = 3, h3 = 4;
+		for (int i = x; i < x2; ++i) {
+			for (int j = y; j < y2; ++j) {
+				if (i >= blocks.length || j >= blocks[0].length) {
+					h0 *= PRIME;
+					continue;
+				}
+
+				byte[] row = blocks[i][j];
+				int k = z;
+				if (map == null) {
+					for (; k + 3 < inside; k += 4) {
+						h0 = (h0 ^ (row[k] & 0xFF)) * PRIME;
+						h1 = (h1 ^ (row[k+1] & 0xFF)) * PRIME;
+						h2 = (h2 ^ (row[k+2] & 0xFF)) * PRIME;
+						h3 = (h3 ^ (row[k+3] & 0xFF)) * PRIME;
+					}
+					for (; k < inside; ++k) h0 = (h0 ^ (row[k] & 0xFF)) * PRIME;
+				} else {
+					for (; k + 3 < inside; k += 4) {
+						h0 = (h0 ^ map[row[k] & 0xFF]) * PRIME;
+						h1 = (h1 ^ map[row[k+1] & 0xFF]) * PRIME;
+						h2 = (h2 ^ map[row[k+2] & 0xFF]) * PRIME;
+						h3 = (h3 ^ map[row[k+3] & 0xFF]) * PRIME;
+					}
+					for (; k < inside; ++k) h0 = (h0 ^ map[row[k] & 0xFF]) * PRIME;
+				}
+				if (inside < z2) h0 *= PRIME;
+			}
+		}
+		return ((h0*31 + h1)*31 + h2)*31 + h3;
+	}
+
+	/**
+	 * A growing list of changed cells.
+	 */
+	private static class Changes {
+		int[] cells = new int[64];
+		byte[] before = new byte[64], after = new byte[64];
+		int size, chunks;
+
+		/**
+		 * Compares one chunk of two models cell by cell, adding the cells
+		 * whose colors differ.
+		 *
+		 * @param from the old voxel data
+		 * @param to the new voxel data
+		 * @param toMap the old index for each new index, or null if the new
+		 *        indices are the same as the old ones
+		 * @param x the first x cell of the chunk
+		 * @param y the first y cell of the chunk
+		 * @param z the first z cell of the chunk
+		 * @param width the width being compared
+		 * @param height the height being compared
+		 * @param depth the depth being compared
+		 */
+		void scan(byte[][][] from, byte[][][] to, int[] toMap,
+				int x, int y, int z, int width, int height, int depth) {
+			int x2 = Math.min(x + VoxelChunks.CHUNK_SIZE, width);
+			int y2 = Math.min(y + VoxelChunks.CHUNK_SIZE, height);
+			int z2 = Math.min(z + VoxelChunks.CHUNK_SIZE, depth);
+			for (int i = x; i < x2; ++i) {
+				for (int j = y; j < y2; ++j) {
+					byte[] fromRow = i < from.length && j < from[0].length ? from[i][j] : null;
+					byte[] toRow = i < to.length && j < to[0].length ? to[i][j] : null;
+					int fromEnd = fromRow == null ? z : Math.max(z, Math.min(z2, fromRow.length));
+					int toEnd = toRow == null ? z : Math.max(z, Math.min(z2, toRow.length));
+
+					// rows inside both models with the same indices compare directly
+					if (fromEnd == z2 && toEnd == z2 && toMap == null) {
+						for (int k = z; k < z2; ++k) {
+							if (fromRow[k] != toRow[k]) add(i, j, k, fromRow[k], toRow[k]);
+						}
+						continue;
+					}
+
+					for (int k = z; k < z2; ++k) {
+						int a = k < fromEnd ? fromRow[k] & 0xFF : 0;
+						int b = k < toEnd ? toRow[k] & 0xFF : 0;
+						if (a != (toMap == null ? b : toMap[b])) add(i, j, k, (byte)a, (byte)b);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Adds a changed cell.
+		 *
+		 * @param x the x position of the cell
+		 * @param y the y position of the cell
+		 * @param z the z position of the cell
+		 * @param old the old index of the cell
+		 * @param index the new index of the cell
+		 */
+		private void add(int x, int y, int z, byte old, byte index) {
+			if (size == cells.length) {
+				cells = Arrays.copyOf(cells, 2*size);
+				before = Arrays.copyOf(before, 2*size);
+				after = Arrays.copyOf(after, 2*size);
+			}
+			cells[size] = x << 16 | y << 8 | z;
+			before[size] = old;
+			after[size] = index;
+			size++;
+		}
+	}
+}
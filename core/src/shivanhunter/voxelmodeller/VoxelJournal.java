@@ -0,0 +1,548 @@
+package shivanhunter.voxelmodeller;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.StreamUtils;
+
+/**
+ * An append-only log of changes kept next to a .voxel file, so saving a
+ * small edit to a big model writes a few bytes instead of the whole file.
+ * The journal of model.voxel is model.voxel.journal; refer to
+ * voxel_spec.txt for its format.
+ *
+ * Each record holds only what changed since the previous one: the chunks of
+ * voxel data that differ, stored as the XOR of old and new cells so that
+ * unchanged cells are runs of zeros, and the palette and placement only if
+ * they changed. Loading a file replays its journal on top of it. Records
+ * are checksummed and only ever appended, so a write cut short by a crash
+ * loses at most the last record. Once the journal grows too big compared
+ * to the file, it should be folded into a new full file with save().
+ */
+public class VoxelJournal {
+	// journal header: magic, version, and the length and CRC of the file
+	private static final int MAGIC = 0x564A4E4C; // "VJNL"
+	private static final int VERSION = 0;
+	private static final int HEADER_SIZE = 17;
+
+	// record flags: the grid was resized, the palette changed
+	private static final int RESIZED = 1, PALETTE = 2;
+
+	// journals smaller than this are never worth folding
+	private static final long MIN_FOLD_BYTES = 1 << 20;
+
+	private FileHandle file, journalFile;
+
+	// length and CRC of the file the journal applies to
+	private long fileLength;
+	private int fileCrc;
+
+	// length of the valid part of the journal, 0 if there is none, and
+	// whether the journal file holds anything after that
+	private long journalLength;
+	private boolean tornTail;
+
+	// the data as of the last record; the next record is relative to this
+	private byte[][][] blocks;
+	private ArrayList<Color> colors;
+	private byte[] emission;
+	private Vector3 rootLocation = new Vector3();
+	private int scale;
+
+	/**
+	 * Creates a journal for a .voxel file. Nothing is read until load() or
+	 * written until append() or save().
+	 *
+	 * @param file the .voxel file
+	 */
+	public VoxelJournal(FileHandle file) {
+		this.file = file;
+		journalFile = file.sibling(file.name() + ".journal");
+	}
+
+	/**
+	 * Reads the file and replays its journal. A journal that was written for
+	 * a different version of the file is ignored, as is anything after the
+	 * last complete record. Throws an IllegalArgumentException if the file
+	 * is not a valid model file.
+	 *
+	 * @return the data of the file with every journaled change applied
+	 */
+	public VoxelData load() {
+		VoxelData data = replayAll();
+		remember(data);
+		return data;
+	}
+
+	/**
+	 * Reads a file and replays its journal like load(), without keeping the
+	 * copy of the data that further records would need, for callers that
+	 * only read models.
+	 *
+	 * @param file the .voxel file
+	 * @return the data of the file with every journaled change applied
+	 */
+	public static VoxelData read(FileHandle file) {
+		return new VoxelJournal(file).replayAll();
+	}
+
+	/**
+	 * Reads the file and replays its journal, as described in load().
+	 *
+	 * @return the data of the file with every journaled change applied
+	 */
+	private VoxelData replayAll() {
+		byte[] bytes = file.readBytes();
+		VoxelData data = VoxelData.read(bytes);
+		fileLength = bytes.length;
+		fileCrc = crc(bytes, 0, bytes.length);
+		journalLength = 0;
+		tornTail = false;
+
+		if (journalFile.exists()) {
+			byte[] journal = journalFile.readBytes();
+			ByteBuffer buffer = ByteBuffer.wrap(journal);
+
+			if (journal.length >= HEADER_SIZE && buffer.getInt() == MAGIC &&
+					buffer.get() == VERSION && buffer.getLong() == fileLength &&
+					buffer.getInt() == fileCrc) {
+				journalLength = HEADER_SIZE;
+
+				// replay records until one is incomplete or damaged
+				while (buffer.remaining() >= 8) {
+					int length = buffer.getInt(), crc = buffer.getInt();
+					if (length < 0 || length > buffer.remaining() ||
+							crc(journal, buffer.position(), length) != crc) break;
+
+					ByteBuffer record = ByteBuffer.wrap(journal, buffer.position(), length).slice();
+					try {
+						data = replay(record, data);
+					} catch (RuntimeException e) {
+						break;
+					}
+					buffer.position(buffer.position() + length);
+					journalLength = buffer.position();
+				}
+			}
+			tornTail = journalLength != journal.length;
+		}
+		return data;
+	}
+
+	/**
+	 * Applies one record to the data.
+	 *
+	 * @param record the record, without its length and checksum
+	 * @param data the data before the record
+	 * @return the data after the record, which may share arrays with data
+	 */
+	private static VoxelData replay(ByteBuffer record, VoxelData data) {
+		int flags = record.get();
+		int width = (record.get() & 0xFF)+1, height = (record.get() & 0xFF)+1, depth = (record.get() & 0xFF)+1;
+		int scale = (record.get() & 0xFF)+1;
+		Vector3 rootLocation = new Vector3(record.getFloat(), record.getFloat(), record.getFloat());
+
+		ArrayList<Color> colors = data.getColors();
+		byte[] emission = data.getEmission();
+		if ((flags & PALETTE) != 0) {
+			int count = record.get() & 0xFF;
+			colors = new ArrayList<Color>(count);
+			emission = new byte[256];
+			for (int i = 0; i < count; ++i) {
+				colors.add(new Color(record.getFloat(), record.getFloat(), record.getFloat(), 1));
+				emission[i+1] = (byte)Math.min(record.get() & 0xFF, VoxelLighting.MAX_LIGHT);
+			}
+		}
+
+		// a resized grid starts out empty; otherwise the grid must not change size
+		byte[][][] blocks;
+		if ((flags & RESIZED) != 0) {
+			blocks = new byte[width][height][depth];
+		} else if (width == data.getWidth() && height == data.getHeight() && depth == data.getDepth()) {
+			blocks = data.getBlocks();
+		} else {
+			throw new IllegalArgumentException();
+		}
+
+		int cy = VoxelChunks.chunks(height), cz = VoxelChunks.chunks(depth);
+		int count = VoxelChunks.chunks(width)*cy*cz;
+		int chunks = record.getInt();
+		for (int c = 0; c < chunks; ++c) {
+			int chunk = record.getInt();
+			int encoding = record.get();
+			int length = record.getInt();
+			if (chunk < 0 || chunk >= count || length < 0 || length > record.remaining()) {
+				throw new IllegalArgumentException();
+			}
+
+			int x = chunk/(cy*cz)*VoxelChunks.CHUNK_SIZE;
+			int y = chunk/cz % cy*VoxelChunks.CHUNK_SIZE;
+			int z = chunk % cz*VoxelChunks.CHUNK_SIZE;
+			byte[][][] delta = chunkGrid(blocks, x, y, z);
+			try {
+				VoxelChunks.decodeChunk(record, record.position(), record.position() + length,
+						encoding, delta, 0, 0, 0);
+			} catch (DataFormatException e) {
+				throw new IllegalArgumentException(e);
+			}
+			record.position(record.position() + length);
+
+			for (int i = 0; i < delta.length; ++i) {
+				for (int j = 0; j < delta[0].length; ++j) {
+					byte[] row = blocks[x+i][y+j], changes = delta[i][j];
+					for (int k = 0; k < changes.length; ++k) row[z+k] ^= changes[k];
+				}
+			}
+		}
+
+		return new VoxelData(blocks, colors, emission, rootLocation, scale);
+	}
+
+	/**
+	 * Appends the changes since the last load(), append() or save() to the
+	 * journal. Does nothing if nothing changed. Throws a GdxRuntimeException
+	 * if the journal can't be written, or an IllegalStateException if the
+	 * journal's copy of the data was released and not yet restored.
+	 *
+	 * @param data the current data of the model
+	 * @return true if a record was written
+	 */
+	public boolean append(VoxelData data) {
+		if (blocks == null) throw new IllegalStateException("Journal copy was released: " + file.path());
+		byte[][][] current = data.getBlocks();
+		boolean resized = current.length != blocks.length || current[0].length != blocks[0].length ||
+				current[0][0].length != blocks[0][0].length;
+		boolean palette = !colors.equals(data.getColors()) || !Arrays.equals(emission, data.getEmission());
+		boolean placement = scale != data.getScale() || !rootLocation.equals(data.getRootLocation());
+
+		// find changed chunks and encode the XOR of old and new cells
+		int width = data.getWidth(), height = data.getHeight(), depth = data.getDepth();
+		int cx = VoxelChunks.chunks(width), cy = VoxelChunks.chunks(height), cz = VoxelChunks.chunks(depth);
+		ArrayList<byte[]> encoded = new ArrayList<byte[]>();
+		ArrayList<int[]> chunks = new ArrayList<int[]>();
+		byte[][] chunkData = new byte[1][];
+		byte[] chunkEncoding = new byte[1];
+		int dataSize = 0;
+		for (int i = 0; i < cx; ++i) {
+			for (int j = 0; j < cy; ++j) {
+				for (int k = 0; k < cz; ++k) {
+					int x = i*VoxelChunks.CHUNK_SIZE, y = j*VoxelChunks.CHUNK_SIZE, z = k*VoxelChunks.CHUNK_SIZE;
+					byte[][][] delta = diff(current, resized ? null : blocks, x, y, z);
+					if (delta == null) continue;
+
+					VoxelChunks.encodeChunk(delta, 0, 0, 0, 0, chunkData, chunkEncoding);
+					chunks.add(new int[] {(i*cy + j)*cz + k, chunkEncoding[0]});
+					encoded.add(chunkData[0]);
+					dataSize += 9 + chunkData[0].length;
+				}
+			}
+		}
+		if (!resized && !palette && !placement && chunks.isEmpty()) return false;
+
+		int colorCount = data.getColors().size();
+		int size = 17 + (palette ? 1 + 13*colorCount : 0) + 4 + dataSize;
+		ByteBuffer record = ByteBuffer.allocate(8 + size);
+		record.putInt(size);
+		record.putInt(0); // checksum, filled in below
+
+		record.put((byte)((resized ? RESIZED : 0) | (palette ? PALETTE : 0)));
+		record.put((byte)(width-1));
+		record.put((byte)(height-1));
+		record.put((byte)(depth-1));
+		record.put((byte)(data.getScale()-1));
+		record.putFloat(data.getRootLocation().x);
+		record.putFloat(data.getRootLocation().y);
+		record.putFloat(data.getRootLocation().z);
+
+		if (palette) {
+			record.put((byte)colorCount);
+			for (int i = 0; i < colorCount; ++i) {
+				Color c = data.getColors().get(i);
+				record.putFloat(c.r);
+				record.putFloat(c.g);
+				record.putFloat(c.b);
+				record.put(data.getEmission()[i+1]);
+			}
+		}
+
+		record.putInt(chunks.size());
+		for (int c = 0; c < chunks.size(); ++c) {
+			record.putInt(chunks.get(c)[0]);
+			record.put((byte)chunks.get(c)[1]);
+			record.putInt(encoded.get(c).length);
+			record.put(encoded.get(c));
+		}
+		byte[] bytes = record.array();
+		record.putInt(4, crc(bytes, 8, size));
+
+		// start a new journal if there is none for this version of the file,
+		// and drop a damaged tail before appending after it
+		if (journalLength == 0 || tornTail) {
+			ByteBuffer start = ByteBuffer.allocate((int)Math.max(journalLength, HEADER_SIZE));
+			if (journalLength == 0) {
+				start.putInt(MAGIC).put((byte)VERSION).putLong(fileLength).putInt(fileCrc);
+			} else {
+				start.put(journalFile.readBytes(), 0, (int)journalLength);
+			}
+			journalFile.writeBytes(start.array(), false);
+			journalLength = start.capacity();
+			tornTail = false;
+		}
+		journalFile.writeBytes(bytes, true);
+		journalLength += bytes.length;
+
+		// only changed chunks differ from the remembered cells, unless resized
+		if (resized) {
+			remember(data);
+		} else {
+			for (int[] chunk : chunks) {
+				int x = chunk[0]/(cy*cz)*VoxelChunks.CHUNK_SIZE;
+				int y = chunk[0]/cz % cy*VoxelChunks.CHUNK_SIZE;
+				int z = chunk[0] % cz*VoxelChunks.CHUNK_SIZE;
+				int x2 = Math.min(x + VoxelChunks.CHUNK_SIZE, width);
+				int y2 = Math.min(y + VoxelChunks.CHUNK_SIZE, height);
+				int d = Math.min(VoxelChunks.CHUNK_SIZE, depth - z);
+				for (int i = x; i < x2; ++i) {
+					for (int j = y; j < y2; ++j) {
+						System.arraycopy(current[i][j], z, blocks[i][j], z, d);
+					}
+				}
+			}
+			rememberPalette(data);
+		}
+		return true;
+	}
+
+	/**
+	 * Computes the XOR of a chunk's old and new cells, if any changed.
+	 *
+	 * @param current the new data
+	 * @param old the old data, or null to compare against empty cells
+	 * @param x the first x cell of the chunk
+	 * @param y the first y cell of the chunk
+	 * @param z the first z cell of the chunk
+	 * @return the XOR of the chunk's cells, or null if none changed
+	 */
+	private static byte[][][] diff(byte[][][] current, byte[][][] old, int x, int y, int z) {
+		int x2 = Math.min(x + VoxelChunks.CHUNK_SIZE, current.length);
+		int y2 = Math.min(y + VoxelChunks.CHUNK_SIZE, current[0].length);
+		int z2 = Math.min(z + VoxelChunks.CHUNK_SIZE, current[0][0].length);
+
+		// most chunks are unchanged, so look for a difference before
+		// allocating anything
+		boolean changed = false;
+		for (int i = x; i < x2 && !changed; ++i) {
+			for (int j = y; j < y2 && !changed; ++j) {
+				byte[] row = current[i][j], oldRow = old == null ? null : old[i][j];
+				for (int k = z; k < z2; ++k) {
+					if (row[k] != (oldRow == null ? 0 : oldRow[k])) {
+						changed = true;
+						break;
+					}
+				}
+			}
+		}
+		if (!changed) return null;
+
+		byte[][][] delta = chunkGrid(current, x, y, z);
+		for (int i = x; i < x2; ++i) {
+			for (int j = y; j < y2; ++j) {
+				byte[] row = current[i][j], changes = delta[i-x][j-y];
+				byte[] oldRow = old == null ? null : old[i][j];
+				for (int k = z; k < z2; ++k) {
+					changes[k-z] = (byte)(oldRow == null ? row[k] : row[k] ^ oldRow[k]);
+				}
+			}
+		}
+		return delta;
+	}
+
+	/**
+	 * Creates an empty grid the size of a chunk, cut off at the edges of the
+	 * model.
+	 *
+	 * @param blocks the model's voxel data
+	 * @param x the first x cell of the chunk
+	 * @param y the first y cell of the chunk
+	 * @param z the first z cell of the chunk
+	 * @return a grid for the chunk's cells
+	 */
+	private static byte[][][] chunkGrid(byte[][][] blocks, int x, int y, int z) {
+		return new byte[Math.min(VoxelChunks.CHUNK_SIZE, blocks.length - x)]
+				[Math.min(VoxelChunks.CHUNK_SIZE, blocks[0].length - y)]
+				[Math.min(VoxelChunks.CHUNK_SIZE, blocks[0][0].length - z)];
+	}
+
+	/**
+	 * Returns whether the journal has grown big enough that it should be
+	 * folded into the file with save(): once it's half the file's size.
+	 *
+	 * @return true if the journal should be folded
+	 */
+	public boolean needsFold() {
+		return journalLength > Math.max(MIN_FOLD_BYTES, fileLength/2);
+	}
+
+	/**
+	 * Writes the whole model to the file and deletes the journal, which the
+	 * new file already includes. The file is replaced in one step, so if
+	 * writing fails the old file and its journal are left as they were.
+	 * Throws a GdxRuntimeException if the file can't be written.
+	 *
+	 * @param data the current data of the model
+	 */
+	public void save(VoxelData data) {
+		byte[] bytes = data.serialize();
+		replace(file, bytes);
+		fileLength = bytes.length;
+		fileCrc = crc(bytes, 0, bytes.length);
+
+		// a journal left behind by a failed delete no longer matches the file
+		try {
+			journalFile.delete();
+		} catch (GdxRuntimeException e) { }
+		journalLength = 0;
+		tornTail = false;
+
+		remember(data);
+	}
+
+	/**
+	 * Replaces the contents of a file without ever leaving it partly
+	 * written: the bytes go to a temporary sibling, which is synced to disk
+	 * and then renamed over the file. On platforms where a rename doesn't
+	 * replace an existing file, the old file is deleted just before the
+	 * rename, so a crash in between leaves only the complete temporary file.
+	 * Throws a GdxRuntimeException if any step fails, leaving the file
+	 * untouched, or the temporary file in its place if the old one was
+	 * already deleted.
+	 *
+	 * @param target the file to replace
+	 * @param bytes the new contents
+	 */
+	private static void replace(FileHandle target, byte[] bytes) {
+		FileHandle temp = target.sibling(target.name() + ".tmp");
+		FileOutputStream out = null;
+		boolean deleted = false;
+		try {
+			out = new FileOutputStream(temp.file());
+			out.write(bytes);
+			out.getFD().sync();
+			out.close();
+			out = null;
+
+			// where a rename can't replace a file, the old one goes first
+			File from = temp.file(), to = target.file();
+			if (!from.renameTo(to)) {
+				deleted = to.delete();
+				if (!deleted || !from.renameTo(to)) throw new IOException("Can't rename " + from + " to " + to);
+			}
+		} catch (IOException e) {
+			StreamUtils.closeQuietly(out);
+			// once the old file is gone, the temporary file is the only copy
+			if (!deleted) temp.file().delete();
+			throw new GdxRuntimeException("Error writing file: " + target, e);
+		}
+	}
+
+	/**
+	 * Returns the size of the valid part of the journal.
+	 *
+	 * @return the size in bytes, 0 if there is no journal
+	 */
+	public long getLength() {
+		return journalLength;
+	}
+
+	/**
+	 * Returns the heap memory used by the journal's copy of the data, which
+	 * is as big as the model's own voxel data.
+	 *
+	 * @return the size of the copy in bytes, or 0 if it was released
+	 */
+	public long getCopyBytes() {
+		if (blocks == null) return 0;
+		// each row is an array with a header of roughly 16 bytes
+		return (long)blocks.length*blocks[0].length*(blocks[0][0].length + 16) + colors.size()*32;
+	}
+
+	/**
+	 * Drops the journal's copy of the data to save memory while its model
+	 * isn't being edited. restoreCopy() must be called before the next
+	 * append().
+	 */
+	public void releaseCopy() {
+		blocks = null;
+		colors = null;
+		emission = null;
+	}
+
+	/**
+	 * Takes the copy of the data dropped by releaseCopy() again. Does nothing
+	 * if it wasn't released. The data must be what was last loaded, appended
+	 * or saved, so it can only be restored from a model without unsaved
+	 * changes.
+	 *
+	 * @param data the data as of the last record
+	 */
+	public void restoreCopy(VoxelData data) {
+		if (blocks == null) remember(data);
+	}
+
+	/**
+	 * Copies the data as the state the next record is relative to.
+	 *
+	 * @param data the data to copy
+	 */
+	private void remember(VoxelData data) {
+		byte[][][] current = data.getBlocks();
+		if (blocks == null || blocks.length != current.length || blocks[0].length != current[0].length ||
+				blocks[0][0].length != current[0][0].length) {
+			blocks = new byte[current.length][current[0].length][];
+		}
+		for (int i = 0; i < current.length; ++i) {
+			for (int j = 0; j < current[0].length; ++j) {
+				blocks[i][j] = current[i][j].clone();
+			}
+		}
+		rememberPalette(data);
+	}
+
+	/**
+	 * Copies the palette and placement of the data as the state the next
+	 * record is relative to.
+	 *
+	 * @param data the data to copy
+	 */
+	private void rememberPalette(VoxelData data) {
+		colors = new ArrayList<Color>();
+		for (Color c : data.getColors()) colors.add(new Color(c));
+		emission = data.getEmission().clone();
+		rootLocation.set(data.getRootLocation());
+		scale = data.getScale();
+	}
+
+	/**
+	 * Computes the CRC32 of part of an array.
+	 *
+	 * @param bytes the array
+	 * @param offset the first byte
+	 * @param length the number of bytes
+	 * @return the checksum
+	 */
+	private static int crc(byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int)crc.getValue();
+	}
+}
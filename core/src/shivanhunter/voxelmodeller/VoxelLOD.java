@@ -0,0 +1,392 @@
+package shivanhunter.voxelmodeller;
+
+import com.badlogic.gdx.graphics.g3d.Material;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.graphics.g3d.ModelInstance;
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.Array;
+
+/**
+ * Downsampled levels of detail for a VoxelModel. Level 0 is the model's own
+ * voxel data; level n has cells 2^n voxels wide, so levels 1, 2 and 3 are
+ * the 2x, 4x and 8x downsampled grids.
+ *
+ * Each level is built from the level below it: a cell is solid if any of
+ * its eight children is solid, and takes the most common index among its
+ * solid children. This keeps thin features visible from far away.
+ *
+ * Levels and their meshes are built lazily the first time they are needed
+ * and then cached. Edits only mark the edited region as dirty, and only that
+ * region is downsampled again the next time the level is needed. Like the
+ * model's own mesh, each level is meshed in chunks of CHUNK_SIZE cells, and
+ * only the chunks around a dirty region are remeshed, so painting while a
+ * level is shown costs a few chunks per frame. Levels are darkened by the
+ * model's baked lighting, sampled at their vertices in the full grid.
+ */
+public class VoxelLOD {
+	// number of downsampled levels above level 0
+	public static final int LEVELS = 3;
+
+	/*
+	 * Largest number of screen pixels a cell may cover before a finer level
+	 * is used instead.
+	 */
+	public static final float LOD_PIXELS = 2;
+
+	// the model this is a level of detail for
+	private VoxelModel source;
+
+	/*
+	 * Downsampled grids and their sizes in x, y and z, indexed by level
+	 * (level 0 is unused)
+	 */
+	private byte[][][][] grids;
+	private int[][] sizes;
+
+	/*
+	 * Region of each level that needs to be downsampled again, in level 0
+	 * voxel coordinates
+	 */
+	private VoxelRegion[] dirty;
+
+	/*
+	 * Chunk meshes of each level and their instances, indexed by level and
+	 * chunk, or null until the level is first rendered; a chunk with no
+	 * faces has neither
+	 */
+	private Model[][] chunks;
+	private ModelInstance[][] chunkInstances;
+
+	// number of chunks of each level in x, y and z
+	private int[][] chunkCounts;
+
+	/*
+	 * Region of each level that needs to be remeshed, in level 0 voxel
+	 * coordinates
+	 */
+	private VoxelRegion[] meshDirty;
+
+	// instances of the level last requested
+	private Array<ModelInstance> instances = new Array<ModelInstance>();
+
+	// scratch space for the children of a cell being downsampled
+	private byte[] children = new byte[8];
+
+	/**
+	 * Creates the levels of detail for a model. No level is built until it
+	 * is first requested.
+	 *
+	 * @param source the model to downsample
+	 */
+	public VoxelLOD(VoxelModel source) {
+		this.source = source;
+
+		grids = new byte[LEVELS+1][][][];
+		sizes = new int[LEVELS+1][3];
+		dirty = new VoxelRegion[LEVELS+1];
+		chunks = new Model[LEVELS+1][];
+		chunkInstances = new ModelInstance[LEVELS+1][];
+		chunkCounts = new int[LEVELS+1][3];
+		meshDirty = new VoxelRegion[LEVELS+1];
+
+		for (int i = 0; i <= LEVELS; ++i) {
+			dirty[i] = new VoxelRegion();
+			meshDirty[i] = new VoxelRegion();
+		}
+	}
+
+	/**
+	 * Chooses the coarsest level whose cells cover no more than LOD_PIXELS
+	 * screen pixels.
+	 *
+	 * @param pixelsPerVoxel the projected size of one voxel on screen
+	 * @return the level to render, from 0 to LEVELS
+	 */
+	public static int selectLevel(float pixelsPerVoxel) {
+		int level = 0;
+		while (level < LEVELS && pixelsPerVoxel*(2 << level) <= LOD_PIXELS) level++;
+		return level;
+	}
+
+	/**
+	 * Marks a region of the source model as changed. Should be called
+	 * whenever voxel data in the source model is modified.
+	 *
+	 * @param x1 the lower x coordinate of the region (inclusive)
+	 * @param y1 the lower y coordinate of the region (inclusive)
+	 * @param z1 the lower z coordinate of the region (inclusive)
+	 * @param x2 the upper x coordinate of the region (exclusive)
+	 * @param y2 the upper y coordinate of the region (exclusive)
+	 * @param z2 the upper z coordinate of the region (exclusive)
+	 */
+	public void invalidate(int x1, int y1, int z1, int x2, int y2, int z2) {
+		for (int level = 1; level <= LEVELS; ++level) {
+			dirty[level].extend(x1, y1, z1, x2, y2, z2);
+			meshDirty[level].extend(x1, y1, z1, x2, y2, z2);
+		}
+	}
+
+	/**
+	 * Marks a region of the source model whose baked lighting changed, so
+	 * the chunks of every level around it are remeshed.
+	 *
+	 * @param region the cells whose light changed
+	 */
+	public void invalidateLight(VoxelRegion region) {
+		for (int level = 1; level <= LEVELS; ++level) meshDirty[level].extend(region);
+	}
+
+	/**
+	 * Marks every mesh as dirty, keeping the downsampled grids. Should be
+	 * called whenever the palette or lighting of the source model changes.
+	 */
+	public void invalidateMeshes() {
+		for (int level = 1; level <= LEVELS; ++level) {
+			meshDirty[level].set(0, 0, 0, source.getWidth(), source.getHeight(), source.getDepth());
+		}
+	}
+
+	/**
+	 * Discards every level. Should be called whenever the size of the source
+	 * model changes.
+	 */
+	public void invalidateAll() {
+		dispose();
+		for (int level = 1; level <= LEVELS; ++level) {
+			grids[level] = null;
+			dirty[level].clear();
+		}
+	}
+
+	/**
+	 * Returns the grid of the given level, downsampling any dirty region
+	 * first.
+	 *
+	 * @param level the level to get, from 0 to LEVELS
+	 * @return the grid of voxel indices
+	 */
+	public byte[][][] getGrid(int level) {
+		if (level == 0) return source.getBlocks();
+
+		int factor = 1 << level;
+		int[] size = sizes[level];
+
+		// allocate the whole level on first use
+		if (grids[level] == null) {
+			int width = source.getWidth(), height = source.getHeight(), depth = source.getDepth();
+			size[0] = (width + factor - 1)/factor;
+			size[1] = (height + factor - 1)/factor;
+			size[2] = (depth + factor - 1)/factor;
+			grids[level] = new byte[size[0]][size[1]][size[2]];
+			dirty[level].set(0, 0, 0, width, height, depth);
+		}
+
+		VoxelRegion region = dirty[level];
+		if (!region.isEmpty()) {
+			byte[][][] finer = getGrid(level-1);
+			int finerWidth = getSize(level-1, 0),
+					finerHeight = getSize(level-1, 1),
+					finerDepth = getSize(level-1, 2);
+			byte[][][] grid = grids[level];
+
+			// convert the dirty region to this level's cells
+			int x1 = Math.max(region.x1/factor, 0),
+					y1 = Math.max(region.y1/factor, 0),
+					z1 = Math.max(region.z1/factor, 0),
+					x2 = Math.min((region.x2 + factor - 1)/factor, size[0]),
+					y2 = Math.min((region.y2 + factor - 1)/factor, size[1]),
+					z2 = Math.min((region.z2 + factor - 1)/factor, size[2]);
+
+			for (int i = x1; i < x2; ++i) {
+				for (int j = y1; j < y2; ++j) {
+					for (int k = z1; k < z2; ++k) {
+						grid[i][j][k] = downsample(finer, finerWidth, finerHeight, finerDepth, i*2, j*2, k*2);
+					}
+				}
+			}
+
+			region.clear();
+		}
+
+		return grids[level];
+	}
+
+	/**
+	 * Returns the size of the given level along one axis.
+	 *
+	 * @param level the level, from 0 to LEVELS
+	 * @param axis 0 for x, 1 for y, 2 for z
+	 * @return the size of the level in cells
+	 */
+	public int getSize(int level, int axis) {
+		if (level == 0) {
+			switch (axis) {
+				case 0: return source.getWidth();
+				case 1: return source.getHeight();
+				default: return source.getDepth();
+			}
+		}
+		getGrid(level);
+		return sizes[level][axis];
+	}
+
+	/**
+	 * Finds the value of a cell from its eight children in the finer level:
+	 * 0 if every child is empty, otherwise the most common index among the
+	 * solid children.
+	 *
+	 * @param finer the finer grid
+	 * @param width the size of the finer grid in x
+	 * @param height the size of the finer grid in y
+	 * @param depth the size of the finer grid in z
+	 * @param x the x coordinate of the first child
+	 * @param y the y coordinate of the first child
+	 * @param z the z coordinate of the first child
+	 * @return the index of the downsampled cell
+	 */
+	private byte downsample(byte[][][] finer, int width, int height, int depth, int x, int y, int z) {
+		int count = 0;
+
+		// collect solid children, skipping those past the edge of the grid
+		for (int i = x; i < x+2 && i < width; ++i) {
+			for (int j = y; j < y+2 && j < height; ++j) {
+				for (int k = z; k < z+2 && k < depth; ++k) {
+					if (finer[i][j][k] != 0) children[count++] = finer[i][j][k];
+				}
+			}
+		}
+
+		// pick the most common index; ties go to the first one found
+		byte best = 0;
+		int bestCount = 0;
+		for (int i = 0; i < count; ++i) {
+			int matches = 0;
+			for (int j = i; j < count; ++j) {
+				if (children[j] == children[i]) matches++;
+			}
+			if (matches > bestCount) {
+				best = children[i];
+				bestCount = matches;
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * Returns the renderable instances of the given level, one per chunk
+	 * with faces, remeshing the chunks around any region that changed since
+	 * the level was last meshed. The returned array is reused.
+	 *
+	 * @param level the level, from 1 to LEVELS
+	 * @param mat the material to render with
+	 * @param rootLocation the root location of the source model
+	 * @return the instances of the level
+	 */
+	public Array<ModelInstance> getInstances(int level, Material mat, Vector3 rootLocation) {
+		level = MathUtils.clamp(level, 1, LEVELS);
+		int factor = 1 << level;
+		byte[][][] grid = getGrid(level);
+		int[] size = sizes[level], counts = chunkCounts[level];
+
+		// mesh the whole level on first use
+		if (chunks[level] == null) {
+			for (int axis = 0; axis < 3; ++axis) {
+				counts[axis] = (size[axis] + VoxelModel.CHUNK_SIZE - 1)/VoxelModel.CHUNK_SIZE;
+			}
+			chunks[level] = new Model[counts[0]*counts[1]*counts[2]];
+			chunkInstances[level] = new ModelInstance[chunks[level].length];
+			meshDirty[level].set(0, 0, 0, source.getWidth(), source.getHeight(), source.getDepth());
+		}
+
+		VoxelRegion region = meshDirty[level];
+		if (!region.isEmpty()) {
+			// an edit changes the faces of its neighbours and the ambient
+			// occlusion up to AO_Quality cells of this level away
+			int margin = VoxelMesher.AO_Quality+1;
+			int x1 = Math.max(region.x1/factor - margin, 0),
+					y1 = Math.max(region.y1/factor - margin, 0),
+					z1 = Math.max(region.z1/factor - margin, 0),
+					x2 = Math.min((region.x2 + factor - 1)/factor + margin, size[0]),
+					y2 = Math.min((region.y2 + factor - 1)/factor + margin, size[1]),
+					z2 = Math.min((region.z2 + factor - 1)/factor + margin, size[2]);
+			region.clear();
+
+			if (x1 < x2 && y1 < y2 && z1 < z2) {
+				VoxelMesher mesher = new VoxelMesher(grid, size[0], size[1], size[2], source.getColors())
+						.setLighting(source.getLighting());
+				int chunkSize = VoxelModel.CHUNK_SIZE;
+				for (int cx = x1/chunkSize; cx <= (x2-1)/chunkSize; ++cx) {
+					for (int cy = y1/chunkSize; cy <= (y2-1)/chunkSize; ++cy) {
+						for (int cz = z1/chunkSize; cz <= (z2-1)/chunkSize; ++cz) {
+							int x = cx*chunkSize, y = cy*chunkSize, z = cz*chunkSize;
+							float[] vertices = mesher.mesh(factor, x, y, z, x+chunkSize, y+chunkSize, z+chunkSize);
+							setChunk(level, (cx*counts[1] + cy)*counts[2] + cz, vertices, mat);
+						}
+					}
+				}
+			}
+		}
+
+		instances.clear();
+		for (ModelInstance instance : chunkInstances[level]) {
+			if (instance == null) continue;
+			instance.transform.setToTranslation(rootLocation);
+			instances.add(instance);
+		}
+		return instances;
+	}
+
+	/**
+	 * Replaces the model of one chunk of a level.
+	 *
+	 * @param level the level of the chunk
+	 * @param chunk the index of the chunk
+	 * @param vertices the new vertices of the chunk
+	 * @param mat the material to render with
+	 */
+	private void setChunk(int level, int chunk, float[] vertices, Material mat) {
+		if (chunks[level][chunk] != null) chunks[level][chunk].dispose();
+		if (vertices.length == 0) {
+			chunks[level][chunk] = null;
+			chunkInstances[level][chunk] = null;
+		} else {
+			chunks[level][chunk] = VoxelMesher.buildModel(vertices, mat);
+			chunkInstances[level][chunk] = new ModelInstance(chunks[level][chunk]);
+		}
+	}
+
+	/**
+	 * Returns the GPU memory used by the meshes of levels that have been
+	 * built.
+	 *
+	 * @return the size of vertex and index buffers in bytes
+	 */
+	public long getMeshBytes() {
+		long bytes = 0;
+		for (int level = 1; level <= LEVELS; ++level) {
+			if (chunks[level] == null) continue;
+			for (Model chunk : chunks[level]) bytes += VoxelModel.getMeshBytes(chunk);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Deallocates the meshes of every level. Each level is meshed again the
+	 * next time it is requested.
+	 */
+	public void dispose() {
+		for (int level = 1; level <= LEVELS; ++level) {
+			if (chunks[level] != null) {
+				for (Model chunk : chunks[level]) {
+					if (chunk != null) chunk.dispose();
+				}
+			}
+			chunks[level] = null;
+			chunkInstances[level] = null;
+			meshDirty[level].clear();
+		}
+		instances.clear();
+	}
+}
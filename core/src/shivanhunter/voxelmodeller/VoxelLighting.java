@@ -0,0 +1,684 @@
+package shivanhunter.voxelmodeller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import shivanhunter.voxelmodeller.VoxelModel.Axis;
+
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.IntArray;
+
+/**
+ * Baked light levels for a grid of voxels, from 0 (dark) to 15 (full).
+ *
+ * There are two channels. Sky light enters through the top of the grid at
+ * full strength, travels straight down without losing strength and loses
+ * one level per cell in any other direction. Block light starts at voxels
+ * whose color is emissive and loses one level per cell. Light only travels
+ * through empty cells. Both channels are stored in one byte per cell: sky in
+ * the high nibble, block light in the low nibble.
+ *
+ * A full build splits the grid into slabs along x, one per thread. Each
+ * thread floods its own slab; light that crosses into a neighbouring slab
+ * is passed to that slab's thread in the next round. Rounds repeat until no
+ * light crosses a slab boundary. Since light levels only ever increase
+ * during a flood, the result is the same as a single-threaded flood.
+ *
+ * Edits are incremental: when a cell changes, the light that depended on it
+ * is removed with a second flood and the remaining light around the removed
+ * area spreads back in. Bulk edits of a region and changes of a color's
+ * emission work the same way, starting from every cell they changed.
+ */
+public class VoxelLighting {
+	public static final int MAX_LIGHT = 15;
+
+	// light channels
+	private static final int SKY = 0, BLOCK = 1;
+
+	/*
+	 * Brightness of a vertex that no light reaches, so unlit areas are dark
+	 * but not black
+	 */
+	public static final float AMBIENT = 0.15f;
+
+	// offsets to the six neighbours; index 3 is straight down (-y)
+	private static final int[] DX = {-1, 1, 0, 0, 0, 0};
+	private static final int[] DY = {0, 0, 1, -1, 0, 0};
+	private static final int[] DZ = {0, 0, 0, 0, -1, 1};
+	private static final int DOWN = 3;
+
+	// threads shared by all full builds and other parallel work, and their name
+	private static ExecutorService executor;
+	private static final String WORKER_NAME = "voxel-worker";
+
+	// the grid being lit and its size
+	private byte[][][] blocks;
+	private int width, height, depth;
+
+	// emission level of each voxel index
+	private byte[] emission;
+
+	// sky light in the high nibble, block light in the low nibble
+	private byte[][][] light;
+
+	// cells whose light changed during update(), or null during rebuild()
+	private VoxelRegion changed;
+
+	/**
+	 * Creates the lighting for a grid. Call rebuild() to compute it.
+	 *
+	 * @param blocks the voxel data; changes must be reported with update()
+	 * @param width the size of the grid in x
+	 * @param height the size of the grid in y
+	 * @param depth the size of the grid in z
+	 * @param emission the emission level, 0 to 15, of each voxel index
+	 */
+	public VoxelLighting(byte[][][] blocks, int width, int height, int depth, byte[] emission) {
+		this.blocks = blocks;
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.emission = emission;
+		light = new byte[width][height][depth];
+	}
+
+	/*
+	 * cells are packed into one int as x<<16 | y<<8 | z, which fits since no
+	 * dimension is larger than 256
+	 */
+
+	private static int pack(int x, int y, int z) {
+		return x << 16 | y << 8 | z;
+	}
+
+	private int get(int channel, int x, int y, int z) {
+		int value = light[x][y][z];
+		return channel == SKY ? (value >> 4) & 0xF : value & 0xF;
+	}
+
+	private void set(int channel, int x, int y, int z, int level) {
+		int value = light[x][y][z];
+		if (channel == SKY) value = (value & 0x0F) | (level << 4);
+		else value = (value & 0xF0) | level;
+		light[x][y][z] = (byte)value;
+		if (changed != null) changed.extend(x, y, z, x+1, y+1, z+1);
+	}
+
+	/**
+	 * Returns the sky light level of a cell.
+	 *
+	 * @param x the x coordinate of the cell
+	 * @param y the y coordinate of the cell
+	 * @param z the z coordinate of the cell
+	 * @return the sky light level, from 0 to 15
+	 */
+	public int getSky(int x, int y, int z) {
+		return get(SKY, x, y, z);
+	}
+
+	/**
+	 * Returns the block light level of a cell.
+	 *
+	 * @param x the x coordinate of the cell
+	 * @param y the y coordinate of the cell
+	 * @param z the z coordinate of the cell
+	 * @return the block light level, from 0 to 15
+	 */
+	public int getBlock(int x, int y, int z) {
+		return get(BLOCK, x, y, z);
+	}
+
+	/**
+	 * Recomputes all light from scratch, in parallel across slabs of the
+	 * grid.
+	 */
+	public void rebuild() {
+		for (int i = 0; i < width; ++i) {
+			for (int j = 0; j < height; ++j) {
+				Arrays.fill(light[i][j], (byte)0);
+			}
+		}
+
+		int threads = Math.min(Runtime.getRuntime().availableProcessors(), width);
+		final Slab[] slabs = new Slab[threads];
+		for (int s = 0; s < threads; ++s) {
+			slabs[s] = new Slab(width*s/threads, width*(s+1)/threads);
+		}
+
+		for (int channel = SKY; channel <= BLOCK; ++channel) {
+			final int c = channel;
+
+			// seed each slab in parallel
+			ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+			for (final Slab slab : slabs) {
+				tasks.add(new Callable<Object>() {
+					public Object call() {
+						seed(c, slab);
+						propagate(c, slab);
+						return null;
+					}
+				});
+			}
+			runAll(tasks);
+
+			// pass light across slab boundaries until nothing crosses
+			while (exchange(slabs)) {
+				tasks.clear();
+				for (final Slab slab : slabs) {
+					if (slab.queue.size == 0) continue;
+					tasks.add(new Callable<Object>() {
+						public Object call() {
+							propagate(c, slab);
+							return null;
+						}
+					});
+				}
+				runAll(tasks);
+			}
+		}
+	}
+
+	/*
+	 * A range of x owned by one thread during a full build, with its flood
+	 * queue and the light leaving it on either side
+	 */
+	private static class Slab {
+		int x1, x2;
+		IntArray queue = new IntArray();
+		IntArray outLeft = new IntArray(), outRight = new IntArray();
+
+		Slab(int x1, int x2) {
+			this.x1 = x1;
+			this.x2 = x2;
+		}
+	}
+
+	/**
+	 * Sets the initial light of a slab: full sky light in the empty cells of
+	 * the top layer, or the emission level of emissive voxels.
+	 *
+	 * @param channel the channel to seed
+	 * @param slab the slab to seed
+	 */
+	private void seed(int channel, Slab slab) {
+		for (int i = slab.x1; i < slab.x2; ++i) {
+			if (channel == SKY) {
+				for (int k = 0; k < depth; ++k) {
+					if (blocks[i][height-1][k] == 0) {
+						set(SKY, i, height-1, k, MAX_LIGHT);
+						slab.queue.add(pack(i, height-1, k));
+					}
+				}
+			} else {
+				for (int j = 0; j < height; ++j) {
+					for (int k = 0; k < depth; ++k) {
+						int level = emission[blocks[i][j][k] & 0xFF];
+						if (level > 0) {
+							set(BLOCK, i, j, k, level);
+							slab.queue.add(pack(i, j, k));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves light that left each slab into the queue of the slab it entered,
+	 * keeping only values brighter than what's already there. Runs between
+	 * rounds, when no thread is working.
+	 *
+	 * @param slabs every slab
+	 * @return true if any slab has light to spread
+	 */
+	private boolean exchange(Slab[] slabs) {
+		boolean any = false;
+
+		for (int s = 0; s < slabs.length; ++s) {
+			if (s > 0) any |= receive(slabs[s-1].outRight, slabs[s]);
+			if (s < slabs.length-1) any |= receive(slabs[s+1].outLeft, slabs[s]);
+		}
+		for (Slab slab : slabs) {
+			slab.outLeft.clear();
+			slab.outRight.clear();
+		}
+
+		return any;
+	}
+
+	/**
+	 * Applies light that crossed into a slab. Entries are pairs of a packed
+	 * cell and a channel-tagged level.
+	 *
+	 * @param incoming the light entering the slab
+	 * @param slab the slab receiving it
+	 * @return true if any cell got brighter
+	 */
+	private boolean receive(IntArray incoming, Slab slab) {
+		boolean any = false;
+		for (int i = 0; i < incoming.size; i += 2) {
+			int cell = incoming.items[i];
+			int channel = incoming.items[i+1] >> 8, level = incoming.items[i+1] & 0xFF;
+			int x = cell >> 16, y = (cell >> 8) & 0xFF, z = cell & 0xFF;
+			if (get(channel, x, y, z) < level) {
+				set(channel, x, y, z, level);
+				slab.queue.add(cell);
+				any = true;
+			}
+		}
+		return any;
+	}
+
+	/**
+	 * Floods light from every queued cell of a slab through empty cells.
+	 * Light reaching a cell outside the slab is recorded for that slab
+	 * instead of being written.
+	 *
+	 * @param channel the channel to flood
+	 * @param slab the slab to flood
+	 */
+	private void propagate(int channel, Slab slab) {
+		IntArray queue = slab.queue;
+
+		for (int head = 0; head < queue.size; ++head) {
+			int cell = queue.items[head];
+			int x = cell >> 16, y = (cell >> 8) & 0xFF, z = cell & 0xFF;
+			int level = get(channel, x, y, z);
+			if (level <= 1) continue;
+
+			for (int dir = 0; dir < 6; ++dir) {
+				int nx = x + DX[dir], ny = y + DY[dir], nz = z + DZ[dir];
+				if (nx < 0 || nx >= width || ny < 0 || ny >= height || nz < 0 || nz >= depth) continue;
+				if (blocks[nx][ny][nz] != 0) continue;
+
+				// full sky light travels straight down without dimming
+				int next = (channel == SKY && dir == DOWN && level == MAX_LIGHT) ? MAX_LIGHT : level-1;
+
+				if (nx < slab.x1) {
+					slab.outLeft.add(pack(nx, ny, nz));
+					slab.outLeft.add(channel << 8 | next);
+				} else if (nx >= slab.x2) {
+					slab.outRight.add(pack(nx, ny, nz));
+					slab.outRight.add(channel << 8 | next);
+				} else if (get(channel, nx, ny, nz) < next) {
+					set(channel, nx, ny, nz, next);
+					queue.add(pack(nx, ny, nz));
+				}
+			}
+		}
+
+		queue.clear();
+	}
+
+	/**
+	 * Updates the light after a single cell changed. The new value must
+	 * already be in the voxel data.
+	 *
+	 * @param x the x coordinate of the changed cell
+	 * @param y the y coordinate of the changed cell
+	 * @param z the z coordinate of the changed cell
+	 * @param oldIndex the previous voxel index of the cell
+	 * @param changed a region to extend by every cell whose light changed,
+	 * or null
+	 */
+	public void update(int x, int y, int z, byte oldIndex, VoxelRegion changed) {
+		byte newIndex = blocks[x][y][z];
+		if (newIndex == oldIndex) return;
+		this.changed = changed;
+
+		// a single slab covering the whole grid
+		Slab all = new Slab(0, width);
+		int cell = pack(x, y, z);
+
+		// remove the light the cell had or gave off
+		IntArray removed = new IntArray();
+		for (int channel = SKY; channel <= BLOCK; ++channel) {
+			int old = get(channel, x, y, z);
+			if (old > 0) {
+				set(channel, x, y, z, 0);
+				removed.clear();
+				removed.add(cell);
+				removed.add(old);
+				remove(channel, removed, all.queue);
+			}
+
+			if (newIndex == 0) {
+				// an empty cell takes light from its neighbours; at the top
+				// of the grid it is lit by the sky
+				if (channel == SKY && y == height-1) {
+					set(SKY, x, y, z, MAX_LIGHT);
+					all.queue.add(cell);
+				}
+				for (int dir = 0; dir < 6; ++dir) {
+					int nx = x + DX[dir], ny = y + DY[dir], nz = z + DZ[dir];
+					if (nx < 0 || nx >= width || ny < 0 || ny >= height || nz < 0 || nz >= depth) continue;
+					if (get(channel, nx, ny, nz) > 0) all.queue.add(pack(nx, ny, nz));
+				}
+			} else if (channel == BLOCK) {
+				// a solid cell only has its own emission
+				int level = emission[newIndex & 0xFF];
+				if (level > 0) {
+					set(BLOCK, x, y, z, level);
+					all.queue.add(cell);
+				}
+			}
+
+			propagate(channel, all);
+		}
+
+		this.changed = null;
+	}
+
+	/**
+	 * Updates the light after any cell of a region may have changed, as
+	 * after cutting, pasting or turning it. The new values must already be
+	 * in the voxel data. All light in the region and the light that depended
+	 * on it is removed, then the region is lit again from the sky, its
+	 * emissive voxels and the light around it, so the cost depends on the
+	 * size of the region rather than of the grid.
+	 *
+	 * @param region the changed cells, inside the grid
+	 * @param changed a region to extend by every cell whose light changed,
+	 * or null
+	 */
+	public void update(VoxelRegion region, VoxelRegion changed) {
+		this.changed = changed;
+		Slab all = new Slab(0, width);
+		IntArray removed = new IntArray();
+
+		int x1 = Math.max(region.x1-1, 0), x2 = Math.min(region.x2+1, width),
+				y1 = Math.max(region.y1-1, 0), y2 = Math.min(region.y2+1, height),
+				z1 = Math.max(region.z1-1, 0), z2 = Math.min(region.z2+1, depth);
+
+		for (int channel = SKY; channel <= BLOCK; ++channel) {
+			removed.clear();
+			for (int i = region.x1; i < region.x2; ++i) {
+				for (int j = region.y1; j < region.y2; ++j) {
+					for (int k = region.z1; k < region.z2; ++k) {
+						int old = get(channel, i, j, k);
+						if (old > 0) {
+							set(channel, i, j, k, 0);
+							removed.add(pack(i, j, k));
+							removed.add(old);
+						}
+					}
+				}
+			}
+			remove(channel, removed, all.queue);
+
+			// seed the region like a full build, and let the light around
+			// it spread back in
+			for (int i = x1; i < x2; ++i) {
+				for (int j = y1; j < y2; ++j) {
+					for (int k = z1; k < z2; ++k) {
+						boolean inside = i >= region.x1 && i < region.x2 && j >= region.y1 &&
+								j < region.y2 && k >= region.z1 && k < region.z2;
+						int index = blocks[i][j][k] & 0xFF;
+						if (!inside) {
+							if (get(channel, i, j, k) > 0) all.queue.add(pack(i, j, k));
+						} else if (channel == SKY && index == 0 && j == height-1) {
+							set(SKY, i, j, k, MAX_LIGHT);
+							all.queue.add(pack(i, j, k));
+						} else if (channel == BLOCK && index != 0 && emission[index] > 0) {
+							set(BLOCK, i, j, k, emission[index]);
+							all.queue.add(pack(i, j, k));
+						}
+					}
+				}
+			}
+
+			propagate(channel, all);
+		}
+
+		this.changed = null;
+	}
+
+	/**
+	 * Updates the light after the emission level of a voxel index changed.
+	 * The new level must already be in the emission levels. Only light that
+	 * depended on voxels of the index is recomputed.
+	 *
+	 * @param index the voxel index whose emission changed
+	 * @param changed a region to extend by every cell whose light changed,
+	 * or null
+	 */
+	public void updateEmission(byte index, VoxelRegion changed) {
+		this.changed = changed;
+		Slab all = new Slab(0, width);
+		IntArray removed = new IntArray(), seeds = new IntArray();
+		int level = emission[index & 0xFF];
+
+		// solid cells hold exactly their own emission, so only the voxels of
+		// the index change; light that got dimmer has to be removed first
+		for (int i = 0; i < width; ++i) {
+			for (int j = 0; j < height; ++j) {
+				byte[] row = blocks[i][j];
+				for (int k = 0; k < depth; ++k) {
+					if (row[k] != index) continue;
+
+					int old = get(BLOCK, i, j, k);
+					if (old == level) continue;
+					if (old > level) {
+						set(BLOCK, i, j, k, 0);
+						removed.add(pack(i, j, k));
+						removed.add(old);
+					}
+					if (level > 0) seeds.add(pack(i, j, k));
+				}
+			}
+		}
+		remove(BLOCK, removed, all.queue);
+
+		for (int s = 0; s < seeds.size; ++s) {
+			int cell = seeds.items[s];
+			set(BLOCK, cell >> 16, (cell >> 8) & 0xFF, cell & 0xFF, level);
+			all.queue.add(cell);
+		}
+		propagate(BLOCK, all);
+
+		this.changed = null;
+	}
+
+	/**
+	 * Removes light that depended on cells which lost their light, and
+	 * queues the brighter light found at the edge of the removed area so it
+	 * can spread back in.
+	 *
+	 * @param channel the channel to remove light from
+	 * @param queue pairs of a packed cell that lost its light and the light
+	 * level it had; used up by the removal
+	 * @param refill the queue to add cells that should spread light again
+	 */
+	private void remove(int channel, IntArray queue, IntArray refill) {
+		for (int head = 0; head < queue.size; head += 2) {
+			int cell = queue.items[head], level = queue.items[head+1];
+			int x = cell >> 16, y = (cell >> 8) & 0xFF, z = cell & 0xFF;
+
+			for (int dir = 0; dir < 6; ++dir) {
+				int nx = x + DX[dir], ny = y + DY[dir], nz = z + DZ[dir];
+				if (nx < 0 || nx >= width || ny < 0 || ny >= height || nz < 0 || nz >= depth) continue;
+
+				int neighbour = get(channel, nx, ny, nz);
+				if (neighbour == 0) continue;
+
+				// solid cells only hold their own emission, which stays
+				if (blocks[nx][ny][nz] != 0) {
+					refill.add(pack(nx, ny, nz));
+					continue;
+				}
+
+				boolean dependent = neighbour < level ||
+						(channel == SKY && dir == DOWN && level == MAX_LIGHT && neighbour == MAX_LIGHT);
+
+				if (dependent) {
+					set(channel, nx, ny, nz, 0);
+					queue.add(pack(nx, ny, nz));
+					queue.add(neighbour);
+				} else {
+					// lit by something else: spread it into the removed area
+					refill.add(pack(nx, ny, nz));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the brightness of a vertex on a face: the average light of the
+	 * empty cells around the vertex on the outer side of the face. Cells
+	 * outside the grid count as open sky.
+	 *
+	 * @param x the vertex location in x
+	 * @param y the vertex location in y
+	 * @param z the vertex location in z
+	 * @param axis the normal axis of the face
+	 * @return the brightness, from AMBIENT to 1
+	 */
+	public float getVertexLight(int x, int y, int z, Axis axis) {
+		// the layer of cells in front of the face
+		int fx1 = x-1, fx2 = x, fy1 = y-1, fy2 = y, fz1 = z-1, fz2 = z;
+		switch (axis) {
+			case NEG_X: fx2 = fx1; break;
+			case POS_X: fx1 = fx2; break;
+			case NEG_Y: fy2 = fy1; break;
+			case POS_Y: fy1 = fy2; break;
+			case NEG_Z: fz2 = fz1; break;
+			case POS_Z: fz1 = fz2; break;
+		}
+		return getAverageLight(fx1, fy1, fz1, fx2, fy2, fz2);
+	}
+
+	/**
+	 * Returns the brightness of a point on a smooth surface: the average
+	 * light of the empty cells among the eight cells around the point.
+	 * Cells outside the grid count as open sky.
+	 *
+	 * @param x the point location in x
+	 * @param y the point location in y
+	 * @param z the point location in z
+	 * @return the brightness, from AMBIENT to 1
+	 */
+	public float getPointLight(int x, int y, int z) {
+		return getAverageLight(x-1, y-1, z-1, x, y, z);
+	}
+
+	/**
+	 * Returns the average light of the empty cells in a box of cells,
+	 * counting cells outside the grid as open sky.
+	 *
+	 * @param fx1 the lower x coordinate of the box (inclusive)
+	 * @param fy1 the lower y coordinate of the box (inclusive)
+	 * @param fz1 the lower z coordinate of the box (inclusive)
+	 * @param fx2 the upper x coordinate of the box (inclusive)
+	 * @param fy2 the upper y coordinate of the box (inclusive)
+	 * @param fz2 the upper z coordinate of the box (inclusive)
+	 * @return the brightness, from AMBIENT to 1
+	 */
+	private float getAverageLight(int fx1, int fy1, int fz1, int fx2, int fy2, int fz2) {
+		int sky = 0, block = 0, count = 0;
+		for (int i = fx1; i <= fx2; ++i) {
+			for (int j = fy1; j <= fy2; ++j) {
+				for (int k = fz1; k <= fz2; ++k) {
+					if (i < 0 || i >= width || j < 0 || j >= height || k < 0 || k >= depth) {
+						sky += MAX_LIGHT;
+						count++;
+					} else if (blocks[i][j][k] == 0) {
+						sky += get(SKY, i, j, k);
+						block += get(BLOCK, i, j, k);
+						count++;
+					}
+				}
+			}
+		}
+
+		if (count == 0) return AMBIENT;
+		float level = Math.max(sky, block)/(float)(MAX_LIGHT*count);
+		return AMBIENT + (1-AMBIENT)*level;
+	}
+
+	/**
+	 * Runs tasks on the shared threads and waits for all of them. Called from
+	 * one of the shared threads, the tasks run inline on it instead, since
+	 * waiting there for tasks queued behind it can deadlock the pool.
+	 *
+	 * @param tasks the tasks to run
+	 */
+	static void runAll(ArrayList<Callable<Object>> tasks) {
+		if (Thread.currentThread().getName().equals(WORKER_NAME)) {
+			runInline(tasks);
+		} else {
+			runAll(getExecutor(), tasks);
+		}
+	}
+
+	/**
+	 * Runs tasks on the given threads and waits for all of them. The tasks
+	 * must not wait for other tasks on the same threads.
+	 *
+	 * @param executor the threads to run the tasks on
+	 * @param tasks the tasks to run
+	 */
+	static void runAll(ExecutorService executor, ArrayList<Callable<Object>> tasks) {
+		if (tasks.size() == 1) {
+			runInline(tasks);
+			return;
+		}
+
+		try {
+			for (Future<Object> result : executor.invokeAll(tasks)) {
+				result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new GdxRuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new GdxRuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Runs tasks one after another on the calling thread.
+	 *
+	 * @param tasks the tasks to run
+	 */
+	private static void runInline(ArrayList<Callable<Object>> tasks) {
+		try {
+			for (Callable<Object> task : tasks) task.call();
+		} catch (Exception e) {
+			throw new GdxRuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the shared daemon threads, creating them on first use.
+	 *
+	 * @return the executor for parallel work
+	 */
+	static synchronized ExecutorService getExecutor() {
+		if (executor == null) executor = newPool(WORKER_NAME);
+		return executor;
+	}
+
+	/**
+	 * Creates daemon threads, one per core.
+	 *
+	 * @param name the name of the threads
+	 * @return the executor for the threads
+	 */
+	static ExecutorService newPool(final String name) {
+		return Executors.newFixedThreadPool(
+				Runtime.getRuntime().availableProcessors(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, name);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+}
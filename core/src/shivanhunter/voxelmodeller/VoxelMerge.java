@@ -0,0 +1,408 @@
+package shivanhunter.voxelmodeller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.math.Vector3;
+
+/**
+ * A three-way merge of two versions of a model that were both edited from a
+ * common base version. Each cell, the size, the placement and the emission
+ * of each color take whichever version changed them. Where both versions
+ * changed something in different ways, that's a conflict, and our version
+ * wins.
+ *
+ * The merged palette is our palette followed by the colors only their
+ * version has, so our indices stay the same. Colors that we removed are
+ * only kept if their version still uses them in merged cells.
+ *
+ * As in VoxelDiff, all three versions are hashed by chunk. A chunk that only
+ * one version changed is taken from that version whole, and only chunks
+ * that both versions changed are merged cell by cell. Conflicting cells are
+ * reported as one box per chunk that contains them.
+ */
+public class VoxelMerge {
+	private VoxelData result;
+
+	// conflicting cells and boxes around them, one per chunk
+	private int conflictCount;
+	private ArrayList<int[]> conflictRegions = new ArrayList<int[]>();
+
+	// conflicts outside the cells
+	private boolean sizeConflict, placementConflict, emissionConflict;
+
+	private VoxelMerge() {}
+
+	/**
+	 * Merges two versions of a model. Throws an IllegalArgumentException if
+	 * the merged palette would have more than 255 colors.
+	 *
+	 * @param base the version both others were edited from
+	 * @param ours our version, which wins conflicts
+	 * @param theirs their version
+	 * @return the merge
+	 */
+	public static VoxelMerge merge(final VoxelData base, final VoxelData ours, final VoxelData theirs) {
+		final VoxelMerge merge = new VoxelMerge();
+
+		// our colors keep their indices, then colors only they have; base
+		// colors neither version has can't end up in merged cells
+		final ArrayList<Color> colors = new ArrayList<Color>();
+		for (Color c : ours.getColors()) colors.add(new Color(c));
+		final int oursColors = colors.size();
+		final int[] oursMap = VoxelDiff.identity();
+		final int[] theirsMap = VoxelDiff.matchColors(theirs.getColors(), colors, true);
+		final int[] baseMap = VoxelDiff.matchColors(base.getColors(), colors, false);
+		if (colors.size() > 255) {
+			throw new IllegalArgumentException("The merged palette has " + colors.size() + " colors");
+		}
+
+		// their colors that we removed are dropped again if no cell uses them
+		boolean[] removed = new boolean[colors.size()+1];
+		boolean anyRemoved = false;
+		for (int i = oursColors+1; i <= colors.size(); ++i) {
+			for (int index : baseMap) removed[i] |= index == i;
+			anyRemoved |= removed[i];
+		}
+		final boolean trackUse = anyRemoved;
+
+		// size and placement
+		List<Integer> baseSize = Arrays.asList(base.getWidth(), base.getHeight(), base.getDepth());
+		List<Integer> oursSize = Arrays.asList(ours.getWidth(), ours.getHeight(), ours.getDepth());
+		List<Integer> theirsSize = Arrays.asList(theirs.getWidth(), theirs.getHeight(), theirs.getDepth());
+		List<Integer> size = pick(baseSize, oursSize, theirsSize);
+		merge.sizeConflict = conflict(baseSize, oursSize, theirsSize);
+		int scale = pick(base.getScale(), ours.getScale(), theirs.getScale());
+		Vector3 root = pick(base.getRootLocation(), ours.getRootLocation(), theirs.getRootLocation());
+		merge.placementConflict = conflict(base.getScale(), ours.getScale(), theirs.getScale()) ||
+				conflict(base.getRootLocation(), ours.getRootLocation(), theirs.getRootLocation());
+
+		final int width = size.get(0), height = size.get(1), depth = size.get(2);
+		final byte[][][] blocks = new byte[width][height][depth];
+
+		// hash all three over the size covering them all
+		final int uw = Math.max(base.getWidth(), Math.max(ours.getWidth(), theirs.getWidth()));
+		final int uh = Math.max(base.getHeight(), Math.max(ours.getHeight(), theirs.getHeight()));
+		final int ud = Math.max(base.getDepth(), Math.max(ours.getDepth(), theirs.getDepth()));
+		final long[] baseHashes = VoxelDiff.hashChunks(base.getBlocks(),
+				VoxelDiff.isIdentity(baseMap, base.getColors().size()) ? null : baseMap, uw, uh, ud);
+		final long[] oursHashes = VoxelDiff.hashChunks(ours.getBlocks(), null, uw, uh, ud);
+		final long[] theirsHashes = VoxelDiff.hashChunks(theirs.getBlocks(),
+				VoxelDiff.isIdentity(theirsMap, theirs.getColors().size()) ? null : theirsMap, uw, uh, ud);
+
+		final int cx = VoxelChunks.chunks(width), cy = VoxelChunks.chunks(height), cz = VoxelChunks.chunks(depth);
+		final int hy = VoxelChunks.chunks(uh), hz = VoxelChunks.chunks(ud);
+		final int[] conflicts = new int[cx];
+		final boolean[][] used = new boolean[cx][];
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		final ArrayList<int[]>[] regions = new ArrayList[cx];
+
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>(cx);
+		for (int i = 0; i < cx; ++i) {
+			final int slab = i;
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					boolean[] slabUsed = trackUse ? new boolean[256] : null;
+					ArrayList<int[]> slabRegions = new ArrayList<int[]>();
+					int x = slab*VoxelChunks.CHUNK_SIZE;
+					for (int j = 0; j < cy; ++j) {
+						for (int k = 0; k < cz; ++k) {
+							int y = j*VoxelChunks.CHUNK_SIZE, z = k*VoxelChunks.CHUNK_SIZE;
+							int chunk = (slab*hy + j)*hz + k;
+							long b = baseHashes[chunk], o = oursHashes[chunk], t = theirsHashes[chunk];
+
+							if (o == t || t == b) {
+								copy(ours.getBlocks(), null, blocks, x, y, z, null);
+							} else if (o == b) {
+								copy(theirs.getBlocks(), theirsMap, blocks, x, y, z, slabUsed);
+							} else {
+								int[] region = mergeChunk(base.getBlocks(), baseMap, ours.getBlocks(), oursMap,
+										theirs.getBlocks(), theirsMap, blocks, x, y, z, slabUsed);
+								if (region != null) {
+									conflicts[slab] += region[6];
+									slabRegions.add(region);
+								}
+							}
+						}
+					}
+					used[slab] = slabUsed;
+					regions[slab] = slabRegions;
+					return null;
+				}
+			});
+		}
+		VoxelLighting.runAll(tasks);
+
+		for (int i = 0; i < cx; ++i) {
+			merge.conflictCount += conflicts[i];
+			for (int[] region : regions[i]) {
+				merge.conflictRegions.add(new int[] {region[0], region[1], region[2],
+						region[3], region[4], region[5]});
+			}
+		}
+
+		// drop removed colors no cell uses, shifting the indices after them
+		if (trackUse) {
+			int[] compact = VoxelDiff.identity();
+			int kept = 0;
+			boolean shifted = false;
+			for (int i = 1; i <= colors.size(); ++i) {
+				boolean isUsed = false;
+				for (boolean[] slabUsed : used) isUsed |= slabUsed[i];
+				if (removed[i] && !isUsed) {
+					compact[i] = 0;
+					continue;
+				}
+				compact[i] = ++kept;
+				shifted |= kept != i;
+			}
+			for (int i = colors.size(); i > 0; --i) {
+				if (compact[i] == 0) colors.remove(i-1);
+			}
+			for (int j = 0; j < 256; ++j) {
+				if (theirsMap[j] < 256) theirsMap[j] = compact[theirsMap[j]];
+				if (baseMap[j] < 256) baseMap[j] = compact[baseMap[j]];
+			}
+			if (shifted) remap(blocks, compact);
+		}
+
+		// emission of each merged color, from whichever version changed it;
+		// a color both versions added is a change from no emission level
+		byte[] emission = new byte[256];
+		for (int i = 1; i <= colors.size(); ++i) {
+			int o = i <= oursColors ? ours.getEmission()[i] : -1;
+			int t = -1, b = -1;
+			for (int j = 1; j <= theirs.getColors().size(); ++j) {
+				if (theirsMap[j] == i) t = theirs.getEmission()[j];
+			}
+			for (int j = 1; j <= base.getColors().size(); ++j) {
+				if (baseMap[j] == i) b = base.getEmission()[j];
+			}
+			if (o < 0) o = t;
+			if (t < 0) t = o;
+			merge.emissionConflict |= o != b && t != b && o != t;
+			emission[i] = (byte)(o != b ? o : t);
+		}
+
+		merge.result = new VoxelData(blocks, colors, emission, new Vector3(root), scale);
+		return merge;
+	}
+
+	/**
+	 * Picks the value that changed from the base, our value if both did.
+	 *
+	 * @param base the base value
+	 * @param ours our value
+	 * @param theirs their value
+	 * @return the merged value
+	 */
+	private static <T> T pick(T base, T ours, T theirs) {
+		return ours.equals(base) ? theirs : ours;
+	}
+
+	/**
+	 * Returns whether both versions changed a value in different ways.
+	 *
+	 * @param base the base value
+	 * @param ours our value
+	 * @param theirs their value
+	 * @return true if the value conflicts
+	 */
+	private static boolean conflict(Object base, Object ours, Object theirs) {
+		return !ours.equals(base) && !theirs.equals(base) && !ours.equals(theirs);
+	}
+
+	/**
+	 * Copies a chunk of one version into the merged cells.
+	 *
+	 * @param source the version's voxel data
+	 * @param map the merged index for each of the version's indices, or
+	 *        null if they are the same
+	 * @param blocks the merged voxel data
+	 * @param x the first x cell of the chunk
+	 * @param y the first y cell of the chunk
+	 * @param z the first z cell of the chunk
+	 * @param used if not null, receives true for each merged index copied
+	 */
+	private static void copy(byte[][][] source, int[] map, byte[][][] blocks,
+			int x, int y, int z, boolean[] used) {
+		int x2 = Math.min(Math.min(x + VoxelChunks.CHUNK_SIZE, blocks.length), source.length);
+		int y2 = Math.min(Math.min(y + VoxelChunks.CHUNK_SIZE, blocks[0].length), source[0].length);
+		int z2 = Math.min(Math.min(z + VoxelChunks.CHUNK_SIZE, blocks[0][0].length), source[0][0].length);
+		for (int i = x; i < x2; ++i) {
+			for (int j = y; j < y2; ++j) {
+				byte[] from = source[i][j], to = blocks[i][j];
+				if (map == null) {
+					if (z2 > z) System.arraycopy(from, z, to, z, z2-z);
+					continue;
+				}
+				for (int k = z; k < z2; ++k) {
+					int index = map[from[k] & 0xFF];
+					to[k] = (byte)index;
+					if (used != null) used[index] = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges a chunk that both versions changed, cell by cell.
+	 *
+	 * @param base the base voxel data
+	 * @param baseMap the merged index for each base index
+	 * @param ours our voxel data
+	 * @param oursMap the merged index for each of our indices
+	 * @param theirs their voxel data
+	 * @param theirsMap the merged index for each of their indices
+	 * @param blocks the merged voxel data
+	 * @param x the first x cell of the chunk
+	 * @param y the first y cell of the chunk
+	 * @param z the first z cell of the chunk
+	 * @param used if not null, receives true for each merged index written
+	 * @return the box around conflicting cells (lowest cells, one past the
+	 *         highest cells, then the number of conflicts), or null if there
+	 *         are none
+	 */
+	private static int[] mergeChunk(byte[][][] base, int[] baseMap, byte[][][] ours, int[] oursMap,
+			byte[][][] theirs, int[] theirsMap, byte[][][] blocks, int x, int y, int z, boolean[] used) {
+		int x2 = Math.min(x + VoxelChunks.CHUNK_SIZE, blocks.length);
+		int y2 = Math.min(y + VoxelChunks.CHUNK_SIZE, blocks[0].length);
+		int z2 = Math.min(z + VoxelChunks.CHUNK_SIZE, blocks[0][0].length);
+		int[] region = null;
+		for (int i = x; i < x2; ++i) {
+			for (int j = y; j < y2; ++j) {
+				byte[] row = blocks[i][j];
+				byte[] baseRow = row(base, i, j), oursRow = row(ours, i, j), theirsRow = row(theirs, i, j);
+				int baseEnd = end(baseRow, z, z2), oursEnd = end(oursRow, z, z2), theirsEnd = end(theirsRow, z, z2);
+				for (int k = z; k < z2; ++k) {
+					int b = k < baseEnd ? baseMap[baseRow[k] & 0xFF] : 0;
+					int o = k < oursEnd ? oursMap[oursRow[k] & 0xFF] : 0;
+					int t = k < theirsEnd ? theirsMap[theirsRow[k] & 0xFF] : 0;
+
+					int index = o;
+					if (o == b) {
+						index = t;
+					} else if (t != b && t != o) {
+						if (region == null) region = new int[] {i, j, k, i+1, j+1, k+1, 0};
+						region[0] = Math.min(region[0], i);
+						region[1] = Math.min(region[1], j);
+						region[2] = Math.min(region[2], k);
+						region[3] = Math.max(region[3], i+1);
+						region[4] = Math.max(region[4], j+1);
+						region[5] = Math.max(region[5], k+1);
+						region[6]++;
+					}
+					row[k] = (byte)index;
+					if (used != null) used[index] = true;
+				}
+			}
+		}
+		return region;
+	}
+
+	/**
+	 * Returns a row of a model, if the model has it.
+	 *
+	 * @param blocks the voxel data
+	 * @param x the x position of the row
+	 * @param y the y position of the row
+	 * @return the row, or null if it is outside the model
+	 */
+	private static byte[] row(byte[][][] blocks, int x, int y) {
+		return x < blocks.length && y < blocks[0].length ? blocks[x][y] : null;
+	}
+
+	/**
+	 * Returns where the cells of a row end within a chunk.
+	 *
+	 * @param row the row, or null if it is outside the model
+	 * @param z the first z cell of the chunk
+	 * @param z2 the z cell after the chunk
+	 * @return the z cell after the last one the row has, at least z
+	 */
+	private static int end(byte[] row, int z, int z2) {
+		return row == null ? z : Math.max(z, Math.min(z2, row.length));
+	}
+
+	/**
+	 * Changes every cell's index through a map.
+	 *
+	 * @param blocks the voxel data
+	 * @param map the new index for each index
+	 */
+	private static void remap(byte[][][] blocks, int[] map) {
+		for (byte[][] plane : blocks) {
+			for (byte[] row : plane) {
+				for (int k = 0; k < row.length; ++k) row[k] = (byte)map[row[k] & 0xFF];
+			}
+		}
+	}
+
+	/**
+	 * Returns the merged model. Where the versions conflict, it has our
+	 * version's cells, size, placement or emission.
+	 *
+	 * @return the merged voxel data
+	 */
+	public VoxelData getResult() {
+		return result;
+	}
+
+	/**
+	 * Returns whether anything conflicted.
+	 * @return true if both versions changed the same thing in different ways
+	 */
+	public boolean hasConflicts() {
+		return conflictCount > 0 || sizeConflict || placementConflict || emissionConflict;
+	}
+
+	/**
+	 * Returns the number of cells that both versions changed to different
+	 * colors.
+	 *
+	 * @return the number of conflicting cells
+	 */
+	public int getConflictCount() {
+		return conflictCount;
+	}
+
+	/**
+	 * Returns boxes containing every conflicting cell, at most one per chunk,
+	 * in chunk order.
+	 *
+	 * @return boxes as the lowest x, y and z cells and one past the highest
+	 *         x, y and z cells
+	 */
+	public ArrayList<int[]> getConflictRegions() {
+		return conflictRegions;
+	}
+
+	/**
+	 * Returns whether both versions resized the model differently.
+	 * @return true if the sizes conflict
+	 */
+	public boolean isSizeConflict() {
+		return sizeConflict;
+	}
+
+	/**
+	 * Returns whether both versions changed the scale or root location
+	 * differently.
+	 * @return true if the placements conflict
+	 */
+	public boolean isPlacementConflict() {
+		return placementConflict;
+	}
+
+	/**
+	 * Returns whether both versions changed the emission of a color
+	 * differently.
+	 * @return true if the emission levels conflict
+	 */
+	public boolean isEmissionConflict() {
+		return emissionConflict;
+	}
+}
@@ -0,0 +1,750 @@
+package shivanhunter.voxelmodeller;
+
+import java.util.ArrayList;
+
+import shivanhunter.voxelmodeller.VoxelModel.Axis;
+
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.VertexAttributes;
+import com.badlogic.gdx.graphics.g3d.Material;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.graphics.g3d.utils.ModelBuilder;
+import com.badlogic.gdx.utils.FloatArray;
+
+/**
+ * Generates vertex data for a grid of voxel indices. A VoxelMesher works on
+ * any grid, so it is used both for a VoxelModel's own voxel data and for its
+ * downsampled levels of detail.
+ * 
+ * A mesher can mesh the whole grid or any region of it, and may be used for
+ * several regions in a row. The grid must not change while a mesher is in
+ * use.
+ */
+public class VoxelMesher {
+	/* 
+	 * Constants: number of verts and indices in a quad, number of floats
+	 * in a vertex
+	 */
+	public static final int VERTS = 4, INDS = 6, FLOATS = 9;
+	
+	/*
+	 * Maximum number of quads in one mesh part. Indices are shorts read as
+	 * unsigned by GL, so a part can address at most 65536 vertices.
+	 */
+	public static final int MAX_QUADS = 65536/VERTS;
+	
+	/*
+	 * Version of the mesher output. Must be increased whenever the generated
+	 * vertices change, so that cached meshes are not reused.
+	 */
+	public static final int VERSION = 1;
+	
+	/*
+	 * Data in a vertex: 3 position floats, 3 color floats, 3 normal floats
+	 */
+	public static final VertexAttributes attributes = new VertexAttributes(
+			new VertexAttribute(VertexAttributes.Usage.Position, 3, "a_position"),
+			new VertexAttribute(VertexAttributes.Usage.ColorUnpacked, 3, "a_color"),
+			new VertexAttribute(VertexAttributes.Usage.Normal, 3, "a_normal")
+			);
+	
+	// the grid being meshed, in the same layout as VoxelModel's voxel data
+	private byte[][][] blocks;
+	
+	// size of the grid in x, y and z
+	private int width, height, depth;
+	
+	// colors for voxel indices (index 1 is colors[0])
+	private ArrayList<Color> colors;
+	
+	// baked light multiplied into vertex colors, or null for no lighting
+	private VoxelLighting lighting;
+	
+	// whether mesh() uses the packed rows (see setPackedRows)
+	private boolean packedRows = true;
+	
+	// packed occupancy bits of the grid, [x][y][z/64]; rows are null until packed
+	private long[][][] occupancy;
+	
+	// whether the current mesh() call uses the packed rows
+	private boolean packed;
+	
+	// size of a cell of the grid in cells of the lighting's grid
+	private int lightScale = 1;
+	
+	/**
+	 * Creates a mesher for the given grid.
+	 * 
+	 * @param blocks the voxel indices to mesh
+	 * @param width the size of the grid in x
+	 * @param height the size of the grid in y
+	 * @param depth the size of the grid in z
+	 * @param colors the colors for voxel indices
+	 */
+	public VoxelMesher(byte[][][] blocks, int width, int height, int depth, ArrayList<Color> colors) {
+		this.blocks = blocks;
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.colors = colors;
+	}
+	
+	/**
+	 * Sets baked lighting to darken vertex colors with, on top of ambient
+	 * occlusion. The lighting must be for the same grid as this mesher, or
+	 * for the original grid if this one is downsampled: mesh() looks light
+	 * up at vertex positions multiplied by its cellSize.
+	 * 
+	 * @param lighting the lighting of the grid, or null for none
+	 * @return this mesher for chaining
+	 */
+	public VoxelMesher setLighting(VoxelLighting lighting) {
+		this.lighting = lighting;
+		return this;
+	}
+	
+	/**
+	 * Sets whether to use the packed row kernels, which are on by default.
+	 * The scalar path is kept as the reference implementation; both produce
+	 * exactly the same vertices.
+	 * 
+	 * @param enabled true for the packed row kernels, false for the scalar
+	 *        path
+	 * @return this mesher for chaining
+	 */
+	public VoxelMesher setPackedRows(boolean enabled) {
+		this.packedRows = enabled;
+		return this;
+	}
+	
+	/**
+	 * Generates the vertices of every visible face in the grid, FLOATS floats
+	 * per vertex and VERTS vertices per quad. Vertex positions are multiplied
+	 * by cellSize, so a downsampled grid can be meshed at the size of the
+	 * original.
+	 * 
+	 * Uses the packed row kernels unless setPackedRows(false) was called.
+	 * Both paths produce exactly the same vertices.
+	 * 
+	 * @param cellSize the size of one grid cell in voxels
+	 * @return the generated vertices
+	 */
+	public float[] mesh(float cellSize) {
+		return mesh(cellSize, 0, 0, 0, width, height, depth);
+	}
+	
+	/**
+	 * Generates the vertices of the visible faces of the cells in a region of
+	 * the grid. Neighbours and ambient occlusion still take the whole grid
+	 * into account, so meshing a set of regions that cover the grid gives the
+	 * same faces as meshing the whole grid at once. Refer to mesh(float).
+	 * 
+	 * @param cellSize the size of one grid cell in voxels
+	 * @param x1 the lower x coordinate of the region (inclusive)
+	 * @param y1 the lower y coordinate of the region (inclusive)
+	 * @param z1 the lower z coordinate of the region (inclusive)
+	 * @param x2 the upper x coordinate of the region (exclusive)
+	 * @param y2 the upper y coordinate of the region (exclusive)
+	 * @param z2 the upper z coordinate of the region (exclusive)
+	 * @return the generated vertices
+	 */
+	public float[] mesh(float cellSize, int x1, int y1, int z1, int x2, int y2, int z2) {
+		FloatArray vertices = new FloatArray();
+		
+		x1 = Math.max(x1, 0);
+		y1 = Math.max(y1, 0);
+		z1 = Math.max(z1, 0);
+		x2 = Math.min(x2, width);
+		y2 = Math.min(y2, height);
+		z2 = Math.min(z2, depth);
+		if (x1 >= x2 || y1 >= y2 || z1 >= z2) return vertices.toArray();
+		
+		lightScale = Math.max(1, Math.round(cellSize));
+		packed = packedRows;
+		if (packed) {
+			// faces look one cell past the region and ambient occlusion up to
+			// AO_Quality cells past its vertices
+			int margin = AO_Quality+1;
+			packRows(x1-margin, y1-margin, x2+margin, y2+margin);
+			meshPacked(vertices, x1, y1, z1, x2, y2, z2);
+		} else {
+			meshScalar(vertices, x1, y1, z1, x2, y2, z2);
+		}
+		
+		// scale positions for downsampled grids
+		if (cellSize != 1) {
+			for (int i = 0; i < vertices.size; i += FLOATS) {
+				vertices.items[i]   *= cellSize;
+				vertices.items[i+1] *= cellSize;
+				vertices.items[i+2] *= cellSize;
+			}
+		}
+		
+		return vertices.toArray();
+	}
+	
+	/**
+	 * Reference mesher: visits every cell of a region and checks its six
+	 * neighbours one at a time.
+	 * 
+	 * @param vertices the list to add vertices to
+	 * @param x1 the lower x coordinate of the region (inclusive)
+	 * @param y1 the lower y coordinate of the region (inclusive)
+	 * @param z1 the lower z coordinate of the region (inclusive)
+	 * @param x2 the upper x coordinate of the region (exclusive)
+	 * @param y2 the upper y coordinate of the region (exclusive)
+	 * @param z2 the upper z coordinate of the region (exclusive)
+	 */
+	private void meshScalar(FloatArray vertices, int x1, int y1, int z1, int x2, int y2, int z2) {
+		for (int i = x1; i < x2; ++i) {
+			for (int j = y1; j < y2; ++j) {
+				for (int k = z1; k < z2; ++k) {
+					
+					// only create quad facing outwards if there's a block at this cell
+					if (blocks[i][j][k] != 0) {
+						Color c = colors.get((blocks[i][j][k] & 0xFF)-1);
+						
+						// only add quads if the block they're facing towards is empty
+						if (i == 0 || blocks[i-1][j][k] == 0)
+							appendFace(vertices, i, j, k, c, Axis.NEG_X);
+						if (i == width-1 || blocks[i+1][j][k] == 0)
+							appendFace(vertices, i, j, k, c, Axis.POS_X);
+						if (j == 0 || blocks[i][j-1][k] == 0)
+							appendFace(vertices, i, j, k, c, Axis.NEG_Y);
+						if (j == height-1 || blocks[i][j+1][k] == 0)
+							appendFace(vertices, i, j, k, c, Axis.POS_Y);
+						if (k == 0 || blocks[i][j][k-1] == 0)
+							appendFace(vertices, i, j, k, c, Axis.NEG_Z);
+						if (k == depth-1 || blocks[i][j][k+1] == 0)
+							appendFace(vertices, i, j, k, c, Axis.POS_Z);
+					}
+				}
+			}
+		}
+	}
+	
+	/*
+	 * PACKED ROWS:
+	 * 
+	 * Each row of the grid along z is packed into longs, one bit per cell,
+	 * so 64 cells are tested at once with plain bitwise operations. A face
+	 * is exposed where a row has a bit that its neighbouring row does not:
+	 * neighbours in x and y are the rows next to it, neighbours in z are the
+	 * same row shifted by one bit. The set bits of the six resulting masks
+	 * are then visited in increasing z, emitting faces in the same order as
+	 * the scalar mesher.
+	 * 
+	 * Rows are packed the first time a region near them is meshed, so
+	 * meshing a small region of a large grid only packs the rows around it.
+	 * 
+	 * Ambient occlusion counts opaque cells in boxes around each vertex; with
+	 * packed rows each row of a box is one masked Long.bitCount instead of a
+	 * cell-by-cell test.
+	 */
+	
+	/**
+	 * Packs the rows in a range of x and y into occupancy bits, skipping rows
+	 * that were already packed. Bits past the depth of the grid are left
+	 * clear, so they read as empty neighbours.
+	 * 
+	 * @param x1 the lower x coordinate of the range (inclusive)
+	 * @param y1 the lower y coordinate of the range (inclusive)
+	 * @param x2 the upper x coordinate of the range (exclusive)
+	 * @param y2 the upper y coordinate of the range (exclusive)
+	 */
+	private void packRows(int x1, int y1, int x2, int y2) {
+		int words = (depth+63) >>> 6;
+		if (occupancy == null) occupancy = new long[width][height][];
+		
+		for (int i = Math.max(x1, 0); i < Math.min(x2, width); ++i) {
+			for (int j = Math.max(y1, 0); j < Math.min(y2, height); ++j) {
+				if (occupancy[i][j] != null) continue;
+				
+				byte[] row = blocks[i][j];
+				long[] bits = new long[words];
+				for (int k = 0; k < depth; ++k) {
+					if (row[k] != 0) bits[k >>> 6] |= 1L << (k & 63);
+				}
+				occupancy[i][j] = bits;
+			}
+		}
+	}
+	
+	/**
+	 * Packed row mesher: finds the exposed faces of 64 cells at a time within
+	 * a region.
+	 * 
+	 * @param vertices the list to add vertices to
+	 * @param x1 the lower x coordinate of the region (inclusive)
+	 * @param y1 the lower y coordinate of the region (inclusive)
+	 * @param z1 the lower z coordinate of the region (inclusive)
+	 * @param x2 the upper x coordinate of the region (exclusive)
+	 * @param y2 the upper y coordinate of the region (exclusive)
+	 * @param z2 the upper z coordinate of the region (exclusive)
+	 */
+	private void meshPacked(FloatArray vertices, int x1, int y1, int z1, int x2, int y2, int z2) {
+		int words = (depth+63) >>> 6;
+		long[] empty = new long[words];
+		
+		// words and masks selecting z1..z2-1
+		int w1 = z1 >>> 6, w2 = (z2-1) >>> 6;
+		long firstMask = -1L << (z1 & 63);
+		long lastMask = -1L >>> (63 - ((z2-1) & 63));
+		
+		for (int i = x1; i < x2; ++i) {
+			for (int j = y1; j < y2; ++j) {
+				long[] row = occupancy[i][j];
+				
+				// neighbouring rows, or empty rows outside the grid
+				long[] negX = i > 0        ? occupancy[i-1][j] : empty,
+						posX = i < width-1  ? occupancy[i+1][j] : empty,
+						negY = j > 0        ? occupancy[i][j-1] : empty,
+						posY = j < height-1 ? occupancy[i][j+1] : empty;
+				
+				for (int w = w1; w <= w2; ++w) {
+					long bits = row[w];
+					if (w == w1) bits &= firstMask;
+					if (w == w2) bits &= lastMask;
+					if (bits == 0) continue;
+					
+					// neighbours in z: the row shifted by one cell, carrying
+					// the edge bit across from the adjacent word
+					long below = row[w] << 1, above = row[w] >>> 1;
+					if (w > 0) below |= row[w-1] >>> 63;
+					if (w < words-1) above |= row[w+1] << 63;
+					
+					// exposed faces in each direction
+					long facesNegX = bits & ~negX[w],
+							facesPosX = bits & ~posX[w],
+							facesNegY = bits & ~negY[w],
+							facesPosY = bits & ~posY[w],
+							facesNegZ = bits & ~below,
+							facesPosZ = bits & ~above;
+					
+					long any = facesNegX | facesPosX | facesNegY | facesPosY | facesNegZ | facesPosZ;
+					
+					// visit each cell with at least one exposed face
+					while (any != 0) {
+						int bit = Long.numberOfTrailingZeros(any);
+						long mask = 1L << bit;
+						any &= ~mask;
+						
+						int k = (w << 6) + bit;
+						Color c = colors.get((blocks[i][j][k] & 0xFF)-1);
+						
+						if ((facesNegX & mask) != 0) appendFace(vertices, i, j, k, c, Axis.NEG_X);
+						if ((facesPosX & mask) != 0) appendFace(vertices, i, j, k, c, Axis.POS_X);
+						if ((facesNegY & mask) != 0) appendFace(vertices, i, j, k, c, Axis.NEG_Y);
+						if ((facesPosY & mask) != 0) appendFace(vertices, i, j, k, c, Axis.POS_Y);
+						if ((facesNegZ & mask) != 0) appendFace(vertices, i, j, k, c, Axis.NEG_Z);
+						if ((facesPosZ & mask) != 0) appendFace(vertices, i, j, k, c, Axis.POS_Z);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adds the quad for one face of a cell, with its vertices in
+	 * counterclockwise order seen from outside the cell.
+	 * 
+	 * @param vertices the list to add vertices to
+	 * @param i the x coordinate of the cell
+	 * @param j the y coordinate of the cell
+	 * @param k the z coordinate of the cell
+	 * @param c the color of the cell
+	 * @param axis the direction the face points in
+	 */
+	private void appendFace(FloatArray vertices, int i, int j, int k, Color c, Axis axis) {
+		switch (axis) {
+			case NEG_X:
+				appendQuad(
+						vertices,
+						i,   j,   k,
+						i,   j,   k+1,
+						i,   j+1, k+1,
+						i,   j+1, k,
+						c.r, c.g, c.b,
+						axis);
+				break;
+			case POS_X:
+				appendQuad(
+						vertices,
+						i+1, j,   k,
+						i+1, j+1, k,
+						i+1, j+1, k+1,
+						i+1, j,   k+1,
+						c.r, c.g, c.b,
+						axis);
+				break;
+			case NEG_Y:
+				appendQuad(
+						vertices,
+						i,   j,   k,
+						i+1, j,   k,
+						i+1, j,   k+1,
+						i,   j,   k+1,
+						c.r, c.g, c.b,
+						axis);
+				break;
+			case POS_Y:
+				appendQuad(
+						vertices,
+						i,   j+1, k,
+						i,   j+1, k+1,
+						i+1, j+1, k+1,
+						i+1, j+1, k,
+						c.r, c.g, c.b,
+						axis);
+				break;
+			case NEG_Z:
+				appendQuad(
+						vertices,
+						i,   j,   k,
+						i,   j+1, k,
+						i+1, j+1, k,
+						i+1, j,   k,
+						c.r, c.g, c.b,
+						axis);
+				break;
+			case POS_Z:
+				appendQuad(
+						vertices,
+						i,   j,   k+1,
+						i+1, j,   k+1,
+						i+1, j+1, k+1,
+						i,   j+1, k+1,
+						c.r, c.g, c.b,
+						axis);
+				break;
+		}
+	}
+	
+	/**
+	 * Counts the opaque cells in a box, clipped to the grid. Uses the packed
+	 * occupancy bits if the grid was packed.
+	 * 
+	 * @param x1 the lower x coordinate of the box (inclusive)
+	 * @param y1 the lower y coordinate of the box (inclusive)
+	 * @param z1 the lower z coordinate of the box (inclusive)
+	 * @param x2 the upper x coordinate of the box (exclusive)
+	 * @param y2 the upper y coordinate of the box (exclusive)
+	 * @param z2 the upper z coordinate of the box (exclusive)
+	 * @return the number of opaque cells
+	 */
+	private int countOpaque(int x1, int y1, int z1, int x2, int y2, int z2) {
+		x1 = Math.max(x1, 0);
+		y1 = Math.max(y1, 0);
+		z1 = Math.max(z1, 0);
+		x2 = Math.min(x2, width);
+		y2 = Math.min(y2, height);
+		z2 = Math.min(z2, depth);
+		if (x1 >= x2 || y1 >= y2 || z1 >= z2) return 0;
+		
+		int cells = 0;
+		
+		if (!packed) {
+			for (int i = x1; i < x2; ++i) {
+				for (int j = y1; j < y2; ++j) {
+					for (int k = z1; k < z2; ++k) {
+						if (blocks[i][j][k] != 0) cells++;
+					}
+				}
+			}
+			return cells;
+		}
+		
+		// masks selecting z1..z2-1 within the first and last word
+		int w1 = z1 >>> 6, w2 = (z2-1) >>> 6;
+		long firstMask = -1L << (z1 & 63);
+		long lastMask = -1L >>> (63 - ((z2-1) & 63));
+		
+		for (int i = x1; i < x2; ++i) {
+			for (int j = y1; j < y2; ++j) {
+				long[] row = occupancy[i][j];
+				for (int w = w1; w <= w2; ++w) {
+					long mask = -1L;
+					if (w == w1) mask &= firstMask;
+					if (w == w2) mask &= lastMask;
+					cells += Long.bitCount(row[w] & mask);
+				}
+			}
+		}
+		
+		return cells;
+	}
+	
+	/**
+	 * Builds a LibGDX Model from generated vertices. The quads are split into
+	 * as many mesh parts as needed to stay within the range of short indices.
+	 * 
+	 * @param vertices vertices generated by mesh()
+	 * @param mat the material to render the model with
+	 * @return the new Model
+	 */
+	public static Model buildModel(float[] vertices, Material mat) {
+		int numQuads = vertices.length/(FLOATS*VERTS);
+		
+		ModelBuilder builder = new ModelBuilder();
+		builder.begin();
+		
+		int start = 0;
+		do {
+			int quads = Math.min(numQuads - start, MAX_QUADS);
+			
+			// create a mesh with room for this part's polygons
+			Mesh mesh = new Mesh(true, quads*VERTS, quads*INDS, attributes);
+			
+			// each polygon is 6 indices for each 4 vertices: two triangles
+			// for each quad
+			short[] indices = new short[quads*INDS];
+			for (int i = 0; i < quads; ++i) {
+				indices[i*INDS + 0] = (short)(i*VERTS + 0);
+				indices[i*INDS + 1] = (short)(i*VERTS + 1);
+				indices[i*INDS + 2] = (short)(i*VERTS + 2);
+				
+				indices[i*INDS + 3] = (short)(i*VERTS + 2);
+				indices[i*INDS + 4] = (short)(i*VERTS + 3);
+				indices[i*INDS + 5] = (short)(i*VERTS + 0);
+			}
+			
+			// put generated lists in mesh
+			mesh.setVertices(vertices, start*FLOATS*VERTS, quads*FLOATS*VERTS);
+			mesh.setIndices(indices);
+			builder.part("", mesh, GL20.GL_TRIANGLES, mat);
+			
+			start += quads;
+		} while (start < numQuads);
+		
+		return builder.end();
+	}
+	
+	/*
+	 * AMBIENT OCCLUSION:
+	 * 
+	 * AO in a voxel model works by darkening cartain vertices based on the
+	 * arrangement of the vaces around them. Refer to
+	 *  
+	 * http://0fps.net/2013/07/03/ambient-occlusion-for-minecraft-like-worlds/
+	 * 
+	 * for details.
+	 * 
+	 * This algorithm uses the proportion of opaque cells around a vertex to
+	 * generate a darkening factor which is multiplied to the vertex color.
+	 * This proportion is based on the cells in a cubic area around the vertex,
+	 * but only in a given direction - if the face normal points toward the
+	 * negative X axis, only cells with x coordinates less than the vertex's
+	 * coordinate will be counted. The total area of cells checked for
+	 * opaqueness is radius^3 / 2.
+	 * 
+	 * Since large radii lead to less detail around sharp edges, the algorithm
+	 * works recursively, further darkening the cells by using lower radii as
+	 * well. Therefore, a radius of 2 will lead to a total of
+	 * (4*4*4/2) + (2*2*2/2) = 40 cells being checked.
+	 */
+	
+	// The radius to use for ambient occlusion
+	static final int AO_Quality = 3;
+	
+	/**
+	 * Gets a value from 0 to 1 representing ambient occlusion for the vertex
+	 * at the given lcoation, using the given normal axis. The returned value
+	 * if to be multiplied by the vertex color: a value of 1 means no darkening.
+	 * This method calls the recursive method using AO_Quality as a radius.
+	 * 
+	 * @param x the vertex location in x
+	 * @param y the vertex location in y
+	 * @param z the vertex location in z
+	 * @param axis the normal axis
+	 * @return the lightness of the AO at the given point
+	 */
+	private float getAmbientOcclusion(int x, int y, int z, Axis axis) {
+		return getAmbientOcclusion(x, y, z, axis, AO_Quality);
+	}
+	
+	/**
+	 * Gets the factor mesh() multiplies into the color of a vertex: ambient
+	 * occlusion, and baked lighting if set. Used to shade voxels the same way
+	 * without building a mesh; must not be called while mesh() runs.
+	 * 
+	 * @param x the vertex location in x
+	 * @param y the vertex location in y
+	 * @param z the vertex location in z
+	 * @param axis the normal axis
+	 * @return the lightness of the vertex, from 0 to 1
+	 */
+	float getVertexShade(int x, int y, int z, Axis axis) {
+		float shade = getAmbientOcclusion(x, y, z, axis);
+		if (lighting != null) shade *= lighting.getVertexLight(x, y, z, axis);
+		return shade;
+	}
+	
+	/**
+	 * Recursive method used to get AO within a given radius.
+	 * 
+	 * @param x the vertex location in x
+	 * @param y the vertex location in y
+	 * @param z the vertex location in z
+	 * @param axis the normal axis
+	 * @param radius the radius of blocks to check for opaqueness
+	 * @return the lightness of the AO at the given point
+	 */
+	private float getAmbientOcclusion(int x, int y, int z, Axis axis, int radius) {
+		// base case - no darkening
+		if (radius < 1) return 1;
+		
+		// start and end values based on radius
+		int startX = -radius,
+				endX = radius,
+				startY = -radius,
+				endY = radius,
+				startZ = -radius,
+				endZ = radius;
+		
+		// cut one of them short based on which direction is being checked
+		switch (axis) {
+			case NEG_X: endX = 0; break;
+			case NEG_Y: endY = 0; break;
+			case NEG_Z: endZ = 0; break;
+			case POS_X: startX = 0; break;
+			case POS_Y: startY = 0; break;
+			case POS_Z: startZ = 0; break;
+		}
+		
+		// count up opaque cells
+		int cells = countOpaque(x+startX, y+startY, z+startZ, x+endX, y+endY, z+endZ);
+		
+		// number of opaque cells out of the maximum
+		float proportion = (float)(cells/((Math.pow(radius*2, 3)/2)));
+		
+		// light amount is the inverse of this proportion
+		float ao =  1-proportion;
+		
+		// recurse to get better results in tight corners
+		return ao * (getAmbientOcclusion(x, y, z, axis, radius-1)+.1f)/1.1f;
+	}
+	
+	/**
+	 * Adds a quad to the vertex list.
+	 * 
+	 * @param vertexList the list under construction
+	 * @param x1 the x coordinate of the first vertex in counterclockwise order
+	 * @param y1 the y coordinate of the first vertex in counterclockwise order
+	 * @param z1 the z coordinate of the first vertex in counterclockwise order
+	 * @param x2 the x coordinate of the second vertex in counterclockwise order
+	 * @param y2 the y coordinate of the second vertex in counterclockwise order
+	 * @param z2 the z coordinate of the second vertex in counterclockwise order
+	 * @param x3 the x coordinate of the third vertex in counterclockwise order
+	 * @param y3 the y coordinate of the third vertex in counterclockwise order
+	 * @param z3 the z coordinate of the third vertex in counterclockwise order
+	 * @param x4 the x coordinate of the fourth vertex in counterclockwise order
+	 * @param y4 the y coordinate of the fourth vertex in counterclockwise order
+	 * @param z4 the z coordinate of the fourth vertex in counterclockwise order
+	 * @param r the red channel of the vertex color
+	 * @param g the green channel of the vertex color
+	 * @param b the blue channel of the vertex color
+	 * @param axis the axis of the quad normal
+	 */
+	public void appendQuad(
+			FloatArray vertexList, 
+			float x1, float y1, float z1,
+			float x2, float y2, float z2,
+			float x3, float y3, float z3,
+			float x4, float y4, float z4,
+			float r, float g, float b,
+			Axis axis) {
+		
+		// calculate ambient occlusion for each vertex
+		float ambientOcclusion1 = getAmbientOcclusion((int)x1, (int)y1, (int)z1, axis);
+		float ambientOcclusion2 = getAmbientOcclusion((int)x2, (int)y2, (int)z2, axis);
+		float ambientOcclusion3 = getAmbientOcclusion((int)x3, (int)y3, (int)z3, axis);
+		float ambientOcclusion4 = getAmbientOcclusion((int)x4, (int)y4, (int)z4, axis);
+		
+		// darken further by baked lighting, if any
+		if (lighting != null) {
+			int l = lightScale;
+			ambientOcclusion1 *= lighting.getVertexLight((int)x1*l, (int)y1*l, (int)z1*l, axis);
+			ambientOcclusion2 *= lighting.getVertexLight((int)x2*l, (int)y2*l, (int)z2*l, axis);
+			ambientOcclusion3 *= lighting.getVertexLight((int)x3*l, (int)y3*l, (int)z3*l, axis);
+			ambientOcclusion4 *= lighting.getVertexLight((int)x4*l, (int)y4*l, (int)z4*l, axis);
+		}
+		
+		// flip quad if necessary because of ambient occlusion
+		// see "details regarding meshing":
+		// http://0fps.net/2013/07/03/ambient-occlusion-for-minecraft-like-worlds/
+		boolean flipped = (
+				ambientOcclusion1 + ambientOcclusion3 < 
+				ambientOcclusion2 + ambientOcclusion4);
+		
+		// convert normal axis enum to xyz vector
+		// vector components will be 0 except for the axis along which the normal points
+		float nx = 0, ny = 0, nz = 0;
+		switch(axis) {
+			case NEG_X: nx = -1; break;
+			case NEG_Y: ny = -1; break;
+			case NEG_Z: nz = -1; break;
+			case POS_X: nx = 1; break;
+			case POS_Y: ny = 1; break;
+			case POS_Z: nz = 1; break;
+		}
+		
+		// add the first vertex first if quad is not flipped
+		if (!flipped) {
+			vertexList.add(x1);
+			vertexList.add(y1);
+			vertexList.add(z1);
+			vertexList.add(r*ambientOcclusion1);
+			vertexList.add(g*ambientOcclusion1);
+			vertexList.add(b*ambientOcclusion1);
+			vertexList.add(nx);
+			vertexList.add(ny);
+			vertexList.add(nz);
+		}
+		
+		vertexList.add(x2);
+		vertexList.add(y2);
+		vertexList.add(z2);
+		vertexList.add(r*ambientOcclusion2);
+		vertexList.add(g*ambientOcclusion2);
+		vertexList.add(b*ambientOcclusion2);
+		vertexList.add(nx);
+		vertexList.add(ny);
+		vertexList.add(nz);
+		
+		vertexList.add(x3);
+		vertexList.add(y3);
+		vertexList.add(z3);
+		vertexList.add(r*ambientOcclusion3);
+		vertexList.add(g*ambientOcclusion3);
+		vertexList.add(b*ambientOcclusion3);
+		vertexList.add(nx);
+		vertexList.add(ny);
+		vertexList.add(nz);
+		
+		vertexList.add(x4);
+		vertexList.add(y4);
+		vertexList.add(z4);
+		vertexList.add(r*ambientOcclusion4);
+		vertexList.add(g*ambientOcclusion4);
+		vertexList.add(b*ambientOcclusion4);
+		vertexList.add(nx);
+		vertexList.add(ny);
+		vertexList.add(nz);
+		
+		// add first vertex last if quad is flipped
+		if (flipped) {
+			vertexList.add(x1);
+			vertexList.add(y1);
+			vertexList.add(z1);
+			vertexList.add(r*ambientOcclusion1);
+			vertexList.add(g*ambientOcclusion1);
+			vertexList.add(b*ambientOcclusion1);
+			vertexList.add(nx);
+			vertexList.add(ny);
+			vertexList.add(nz);
+		}
+	}
+}
@@ -1,14 +1,11 @@
 package shivanhunter.voxelmodeller;
 
-import java.nio.BufferUnderflowException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import com.badlogic.gdx.graphics.Color;
 import com.badlogic.gdx.graphics.GL20;
 import com.badlogic.gdx.graphics.Mesh;
-import com.badlogic.gdx.graphics.VertexAttribute;
-import com.badlogic.gdx.graphics.VertexAttributes;
 import com.badlogic.gdx.graphics.VertexAttributes.Usage;
 import com.badlogic.gdx.graphics.g3d.Material;
 import com.badlogic.gdx.graphics.g3d.Model;
@@ -16,8 +13,12 @@ import com.badlogic.gdx.graphics.g3d.ModelInstance;
 import com.badlogic.gdx.graphics.g3d.attributes.ColorAttribute;
 import com.badlogic.gdx.graphics.g3d.utils.MeshPartBuilder;
 import com.badlogic.gdx.graphics.g3d.utils.ModelBuilder;
+import com.badlogic.gdx.math.MathUtils;
 import com.badlogic.gdx.math.Vector3;
 import com.badlogic.gdx.math.collision.Ray;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.IntSet;
 
 public class VoxelModel {
 	/*
@@ -32,11 +33,20 @@ public class VoxelModel {
 	private ArrayList<Color> colors;
 	
 	/*
-	 * Cubic size of the voxel data
-	 * (this may be split into width/height/depth later since flat models could
-	 *  be storing many empty blocks)
+	 * Emission level of each voxel index, 0 to 15. Index 0 (no voxel) never
+	 * emits.
 	 */
-	private int size;
+	private byte[] emission = new byte[256];
+	
+	// baked lighting, or null if lighting is off
+	private VoxelLighting lighting;
+	
+	/*
+	 * Size of the voxel data along each axis: width in x, height in y and
+	 * depth in z. The dimensions are independent so flat models don't store
+	 * empty blocks.
+	 */
+	private int width, height, depth;
 	
 	/*
 	 * Scale of the model. Has no relevance to this modeller program, but
@@ -53,17 +63,88 @@ public class VoxelModel {
 	// basic diffuse material for rendering voxels
 	private Material mat;
 	
-	// the model representing the voxel data
-	private Model model;
-	public ModelInstance instance;
+	/*
+	 * Size of a mesh chunk along each axis. The voxel data is meshed in
+	 * chunks so an edit only remeshes the chunks around it.
+	 */
+	public static final int CHUNK_SIZE = 32;
+	
+	// the models representing the voxel data, one per chunk, null where a
+	// chunk has no faces; null as a whole if meshes are released
+	private Model[] chunks;
+	private int chunksX, chunksY, chunksZ;
+	
+	/*
+	 * Vertices of chunks meshed since their models were last built, null for
+	 * chunks whose models are up to date. Meshing only produces these arrays;
+	 * GPU models are built from them the next time something asks for
+	 * renderable objects, so loading, editing, meshing and picking all work
+	 * without a GL context. Smooth chunks also have their triangles' vertex
+	 * indices; blocky chunks are plain quads.
+	 */
+	private float[][] pendingVertices;
+	private int[][] pendingIndices;
+	private boolean uploadPending;
+	
+	// whether the voxel data is meshed as a smooth surface, see SmoothMesher
+	private boolean smooth;
+	
+	// instances of the non-empty chunks, to be rendered
+	private Array<ModelInstance> instances = new Array<ModelInstance>();
+	
+	// meshes of the non-empty chunks, or null until requested
+	private Array<Mesh> meshes;
+	
+	// cache of generated meshes used when loading, or null
+	private MeshCache meshCache;
+	
+	// whether the model changed since it was loaded or last saved
+	private boolean modified;
+	
+	/*
+	 * Cells edited and cells whose light changed since the meshes were last
+	 * updated. Edits are applied right away but only remeshed once per
+	 * flushEdits() call.
+	 */
+	private VoxelRegion pendingEdits = new VoxelRegion(), pendingLight = new VoxelRegion();
+	
+	/*
+	 * Cells painted during the current brush stroke, or null outside a
+	 * stroke, and whether the stroke removes voxels
+	 */
+	private IntSet strokeCells;
+	private boolean strokeRemoves;
+	
+	// brush used by modify()
+	private static final VoxelBrush SINGLE_VOXEL = new VoxelBrush();
+	
+	/*
+	 * Mirror editing along x, y and z: edits are repeated on the other side
+	 * of the center of the model along each enabled axis
+	 */
+	private boolean[] symmetry = new boolean[3];
+	
+	/*
+	 * Scratch space for picking, which happens on every mouse move: the hit,
+	 * the ray and the model's size per axis, and the cell hit by paint()
+	 */
+	private final RayHit pickHit = new RayHit();
+	private final float[] pickOrigin = new float[3], pickDirection = new float[3];
+	private final int[] pickSize = new int[3];
+	private final int[] paintCell = new int[3];
+	private static final Axis[] NEG_FACES = {Axis.NEG_X, Axis.NEG_Y, Axis.NEG_Z};
+	private static final Axis[] POS_FACES = {Axis.POS_X, Axis.POS_Y, Axis.POS_Z};
 	
-	// the wireframe box representing the bounds of the model
+	// downsampled levels of detail, built on demand
+	private VoxelLOD lod;
+	
+	// the wireframe box representing the bounds of the model, built on demand
 	private Model boundsModel;
-	public ModelInstance boundsInstance;
+	private ModelInstance boundsInstance;
 	
-	// the wireframe widget representing the root location
+	// the wireframe widget representing the root location, built on demand
 	private Model rootModel;
-	public ModelInstance rootInstance;
+	private ModelInstance rootInstance;
 	
 	/*
 	 * Axis is used to select an orthogonal direction in 3d space
@@ -79,113 +160,241 @@ public class VoxelModel {
 	
 	/**
 	 * Constructs a VoxelModel using byte data from a file. Refer to
-	 * voxel_spec.txt. Throws an IllegalArgumentException if the buffer's size
-	 * does not match what is expected from the model's size and number of colors.
+	 * voxel_spec.txt. Throws an IllegalArgumentException if the version is
+	 * unknown or the buffer's size does not match what is expected from the
+	 * model's dimensions and number of colors.
 	 * 
 	 * @param data the byte data from which to construct a model
 	 */
 	public VoxelModel(byte[] data) {
-		ByteBuffer buffer = ByteBuffer.wrap(data);
-		byte version, num_materials;
-		
-		try {
-			// first four bytes give basic info
-			version = buffer.get(); // version unused since only version 0 exists
-			num_materials = buffer.get();
-			size = buffer.get()+1;
-			scale = buffer.get()+1;
-		} catch (BufferUnderflowException e) {
-			throw new IllegalArgumentException();
-		}
-		
-		// verify size
-		if (buffer.capacity() != 16 + num_materials*12 + size*size*size) {
-			throw new IllegalArgumentException();
-		}
+		this(data, null);
+	}
+	
+	/**
+	 * Constructs a VoxelModel using byte data from a file, reusing a cached
+	 * mesh if the same data was meshed before. Refer to VoxelModel(byte[]).
+	 * 
+	 * @param data the byte data from which to construct a model
+	 * @param meshCache the cache to look up and store the mesh in, or null
+	 */
+	public VoxelModel(byte[] data, MeshCache meshCache) {
+		this(VoxelData.read(data), meshCache);
+	}
+	
+	/**
+	 * Constructs a VoxelModel around existing voxel data, such as a loaded
+	 * file or a model imported from another format. The data's arrays are
+	 * used as they are, not copied.
+	 * 
+	 * @param data the voxel data, colors and placement of the model
+	 * @param meshCache the cache to look up and store the mesh in, or null
+	 */
+	VoxelModel(VoxelData data, MeshCache meshCache) {
+		blocks = data.getBlocks();
+		colors = data.getColors();
+		emission = data.getEmission();
+		rootLocation = data.getRootLocation();
+		width = data.getWidth();
+		height = data.getHeight();
+		depth = data.getDepth();
+		scale = data.getScale();
 		
-		// set up objects/lists
 		mat = new Material(ColorAttribute.createDiffuse(1f, 1f, 1f, 1));
-		colors = new ArrayList<Color>();
-		blocks = new byte[size][size][size];
-		
-		// next three floats are the root location
-		rootLocation = new Vector3(
-				buffer.getFloat(),
-				buffer.getFloat(),
-				buffer.getFloat());
-		
-		// next n*3 floats are the block colors
-		for (int i = 0; i < num_materials; ++i) {
-			colors.add(new Color(
-					buffer.getFloat(),
-					buffer.getFloat(),
-					buffer.getFloat(),
-					1));
-		}
-		
-		// next n^3 bytes are the indices (block data)
-		for (int i = 0; i < size; ++i) {
-			for (int j = 0; j < size; ++j) {
-				for (int k = 0; k < size; ++k) {
-					blocks[i][j][k] = buffer.get();
-				}
-			}
-		}
-
-		// create model from loaded data
+		lod = new VoxelLOD(this);
+		
+		// create model from loaded data, using the cache only for this first
+		// mesh since edited data is unlikely to be loaded again
+		this.meshCache = meshCache;
 		updateBounds();
 		updateMesh();
 		updateRoot();
+		this.meshCache = null;
 	}
 	
 	/**
-	 * Creates a new VoxelModel with a given size. Initializes the model with a
-	 * single white voxel near the center to build from.
+	 * Creates a new cubic VoxelModel with a given size. Initializes the model
+	 * with a single white voxel near the center to build from.
 	 * 
 	 * @param size the cubic size of the model, in voxels
 	 */
 	public VoxelModel(int size) {
-		// sanitize: size must be a byte value from 0-255
+		this(size, size, size);
+	}
+	
+	/**
+	 * Creates a new VoxelModel with the given dimensions. Initializes the
+	 * model with a single white voxel near the center to build from.
+	 * 
+	 * @param width the size of the model in x, in voxels
+	 * @param height the size of the model in y, in voxels
+	 * @param depth the size of the model in z, in voxels
+	 */
+	public VoxelModel(int width, int height, int depth) {
+		// sanitize: each dimension must be a byte value from 0-255
 		// valid values are 1-256 since a size of 0 makes no sense
-		if (size > 256) size = 256;
-		if (size < 1) size = 1;
-		this.size = size;
+		this.width = clampDimension(width);
+		this.height = clampDimension(height);
+		this.depth = clampDimension(depth);
 		
 		scale = 16;
 		
 		// set up objects/lists
 		mat = new Material(ColorAttribute.createDiffuse(1f, 1f, 1f, 1));
 		colors = new ArrayList<Color>();
-		blocks = new byte[size][size][size];
+		blocks = new byte[this.width][this.height][this.depth];
 		
 		// initialize defaults:
 		// root location in the exact middle
-		rootLocation = new Vector3(-size/2f, -size/2f, -size/2f);
+		rootLocation = new Vector3(-this.width/2f, -this.height/2f, -this.depth/2f);
 		
 		// white color
 		colors.add(new Color(1, 1, 1, 1));
 		
 		// a block near the middle using that color
-		blocks[size/2][size/2][size/2] = 1;
+		blocks[this.width/2][this.height/2][this.depth/2] = 1;
+		
+		lod = new VoxelLOD(this);
 		
 		// create model from initial data
 		update();
 	}
 	
+	/**
+	 * Clamps a dimension to the valid range of 1 to 256.
+	 * 
+	 * @param dimension the requested dimension
+	 * @return the dimension within the valid range
+	 */
+	private static int clampDimension(int dimension) {
+		if (dimension > 256) return 256;
+		if (dimension < 1) return 1;
+		return dimension;
+	}
+	
 	/**
 	 * Deallocate LibGDX objects not handled by GC. Needs to be called on a
 	 * VoxelModel before it is GC'd to prevent memory leak.
 	 */
 	public void dispose() {
-		model.dispose();
-		boundsModel.dispose();
-		rootModel.dispose();
+		releaseMeshes();
+	}
+	
+	/**
+	 * Deallocates the GPU meshes of this model while keeping its voxel data.
+	 * The model can't be rendered until restoreMeshes() is called.
+	 */
+	public void releaseMeshes() {
+		disposeChunks();
+		updateBounds();
+		updateRoot();
+		lod.dispose();
+		
+		chunks = null;
+		pendingVertices = null;
+		pendingIndices = null;
+		uploadPending = false;
+	}
+	
+	/**
+	 * Rebuilds the GPU meshes released by releaseMeshes(), reusing a cached
+	 * mesh if possible. Does nothing if the meshes were not released.
+	 * 
+	 * @param meshCache the cache to look up the mesh in, or null
+	 */
+	public void restoreMeshes(MeshCache meshCache) {
+		if (hasMeshes()) return;
+		
+		this.meshCache = meshCache;
+		updateBounds();
+		updateMesh();
+		updateRoot();
+		this.meshCache = null;
+	}
+	
+	/**
+	 * Returns whether the model's GPU meshes currently exist.
+	 * 
+	 * @return false if the meshes were released
+	 */
+	public boolean hasMeshes() {
+		return chunks != null;
+	}
+	
+	/**
+	 * Returns the approximate heap memory used by the voxel data.
+	 * 
+	 * @return the size of the voxel data in bytes
+	 */
+	public long getVoxelBytes() {
+		// each row is an array with a header of roughly 16 bytes
+		return (long)width*height*(depth + 16) + colors.size()*32;
 	}
 	
 	/**
-	 * Recreates all rendered models in this VoxelModel.
+	 * Returns the GPU memory used by the model's meshes, including levels of
+	 * detail that have been built.
+	 * 
+	 * @return the size of vertex and index buffers in bytes, or 0 if the
+	 * meshes were released
+	 */
+	public long getMeshBytes() {
+		if (!hasMeshes()) return 0;
+		long bytes = getMeshBytes(boundsModel) + getMeshBytes(rootModel) + lod.getMeshBytes();
+		for (int c = 0; c < chunks.length; ++c) {
+			// chunks waiting to be built count as the size they will have
+			float[] vertices = pendingVertices[c];
+			if (vertices == null) {
+				bytes += getMeshBytes(chunks[c]);
+			} else if (pendingIndices[c] != null) {
+				bytes += (long)vertices.length*4 + pendingIndices[c].length*2;
+			} else {
+				int quads = vertices.length/(VoxelMesher.FLOATS*VoxelMesher.VERTS);
+				bytes += (long)vertices.length*4 + quads*VoxelMesher.INDS*2;
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Returns the size of the vertex and index buffers of a LibGDX Model.
+	 * 
+	 * @param model the model to measure, may be null
+	 * @return the size of the model's meshes in bytes
+	 */
+	static long getMeshBytes(Model model) {
+		if (model == null) return 0;
+		long bytes = 0;
+		for (Mesh mesh : model.meshes) {
+			bytes += (long)mesh.getNumVertices()*mesh.getVertexSize() + mesh.getNumIndices()*2;
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Returns whether the model changed since it was loaded or last saved.
+	 * 
+	 * @return true if there are unsaved changes
+	 */
+	public boolean isModified() {
+		return modified;
+	}
+	
+	/**
+	 * Marks the model as saved. Should be called after the serialized model
+	 * has been written.
+	 */
+	public void markSaved() {
+		modified = false;
+	}
+	
+	/**
+	 * Recreates all rendered models in this VoxelModel. Should be called
+	 * after changing the model from outside, so it also marks the model as
+	 * modified.
 	 */
 	public void update() {
+		modified = true;
+		lod.invalidateAll();
 		updateBounds();
 		updateMesh();
 		updateRoot();
@@ -193,36 +402,80 @@ public class VoxelModel {
 	
 	/**
 	 * Updates the wireframe box representing the bounds of the voxel data.
-	 * Should be called whenever the size or root location is changed.
+	 * Should be called whenever the size or root location is changed. The
+	 * box is rebuilt the next time getBoundsInstance() is called.
 	 */
 	private void updateBounds() {
+		if (boundsModel != null) boundsModel.dispose();
+		boundsModel = null;
+		boundsInstance = null;
+	}
+	
+	/**
+	 * Returns the wireframe box representing the bounds of the voxel data,
+	 * building it if needed.
+	 * 
+	 * @return the instance to render, or null if the meshes were released
+	 */
+	public ModelInstance getBoundsInstance() {
+		if (boundsInstance == null && hasMeshes()) {
+			boundsModel = buildWireBox(width, height, depth, mat);
+			boundsInstance = new ModelInstance(boundsModel);
+			boundsInstance.transform.translate(rootLocation);
+		}
+		return boundsInstance;
+	}
+	
+	/**
+	 * Builds a wireframe box from the origin to the given size.
+	 * 
+	 * @param w the size of the box in x
+	 * @param h the size of the box in y
+	 * @param d the size of the box in z
+	 * @param mat the material to draw the lines with
+	 * @return the new Model
+	 */
+	static Model buildWireBox(float w, float h, float d, Material mat) {
 		ModelBuilder builder = new ModelBuilder();
 		builder.begin();
 		MeshPartBuilder partBuilder = builder.part("lines", GL20.GL_LINES, Usage.Position, mat);
 		
-		partBuilder.line(0,    0,    0,    0,    0,    size);
-		partBuilder.line(0,    0,    0,    0,    size, 0);
-		partBuilder.line(0,    0,    0,    size, 0,    0);
-		partBuilder.line(0,    0,    size, 0,    size, size);
-		partBuilder.line(0,    0,    size, size, 0,    size);
-		partBuilder.line(0,    size, 0,    0,    size, size);
-		partBuilder.line(0,    size, 0,    size, size, 0);
-		partBuilder.line(size, 0,    0,    size, 0,    size);
-		partBuilder.line(size, 0,    0,    size, size, 0);
-		partBuilder.line(0,    size, size, size, size, size);
-		partBuilder.line(size, 0,    size, size, size, size);
-		partBuilder.line(size, size, 0,    size, size, size);
+		partBuilder.line(0, 0, 0, 0, 0, d);
+		partBuilder.line(0, 0, 0, 0, h, 0);
+		partBuilder.line(0, 0, 0, w, 0, 0);
+		partBuilder.line(0, 0, d, 0, h, d);
+		partBuilder.line(0, 0, d, w, 0, d);
+		partBuilder.line(0, h, 0, 0, h, d);
+		partBuilder.line(0, h, 0, w, h, 0);
+		partBuilder.line(w, 0, 0, w, 0, d);
+		partBuilder.line(w, 0, 0, w, h, 0);
+		partBuilder.line(0, h, d, w, h, d);
+		partBuilder.line(w, 0, d, w, h, d);
+		partBuilder.line(w, h, 0, w, h, d);
 		
-		boundsModel = builder.end();
-		boundsInstance = new ModelInstance(boundsModel);
-		boundsInstance.transform.translate(rootLocation);
+		return builder.end();
 	}
 	
 	/**
 	 * Updates the wireframe widget representing the root location of the model.
-	 * Should be called whenever the root location is changed.
+	 * Should be called whenever the root location is changed. The widget is
+	 * rebuilt the next time getRootInstance() is called.
 	 */
 	private void updateRoot() {
+		if (rootModel != null) rootModel.dispose();
+		rootModel = null;
+		rootInstance = null;
+	}
+	
+	/**
+	 * Returns the wireframe widget representing the root location, building
+	 * it if needed.
+	 * 
+	 * @return the instance to render, or null if the meshes were released
+	 */
+	public ModelInstance getRootInstance() {
+		if (rootInstance != null || !hasMeshes()) return rootInstance;
+		
 		ModelBuilder builder = new ModelBuilder();
 		builder.begin();
 		
@@ -243,406 +496,250 @@ public class VoxelModel {
 		
 		rootModel = builder.end();
 		rootInstance = new ModelInstance(rootModel);
+		return rootInstance;
 	}
 	
 	/**
 	 * Updates the mesh representing the voxel data. Should be called whenever
-	 * the size, root location or any blockdata is changed.
+	 * the size, root location or any blockdata is changed. Remeshes every
+	 * chunk; use updateChunks() after small edits. Only the vertices are
+	 * generated here, see upload().
 	 */
 	private void updateMesh() {
-		/* 
-		 * Constants: number of verts and indices in a quad, number of floats
-		 * in a vertex
-		 */
-        final int VERTS = 4, INDS = 6, FLOATS = 9;
-        
-        /*
-         * Data in a vertex: 3 position floats, 3 color floats, 3 normal floats
-         */
-        VertexAttributes attributes = new VertexAttributes(
-        		new VertexAttribute(VertexAttributes.Usage.Position, 3, "a_position"),
-        		new VertexAttribute(VertexAttributes.Usage.ColorUnpacked, 3, "a_color"),
-        		new VertexAttribute(VertexAttributes.Usage.Normal, 3, "a_normal")
-        		);
-        
-        // count of quads to add
-        int numQuads = 0;
-        
-        // temp list of vertices
-        ArrayList<Float> verticesList = new ArrayList<Float>();
-    	float r, g, b;
-        
-        for (int i = 0; i < size; ++i) {
-            for (int j = 0; j < size; ++j) {
-                for (int k = 0; k < size; ++k) {
-                	
-                	// only create quad facing outwards if there's a block at this cell
-                	if (blocks[i][j][k] > 0) {
-                		
-                		// set color for any of this block's quads
-                		r = colors.get(blocks[i][j][k]-1).r;
-                		g = colors.get(blocks[i][j][k]-1).g;
-                		b = colors.get(blocks[i][j][k]-1).b;
-                		
-                		// only add quads if the block they're facing towards is empty
-                		if (i == 0 || blocks[i-1][j][k] == 0) {
-                			appendQuad(
-                					verticesList,
-                					i,   j,   k,
-                					i,   j,   k+1,
-                					i,   j+1, k+1,
-                					i,   j+1, k,
-                					r,   g,   b,  
-                					Axis.NEG_X);
-                			numQuads++;
-                		}
-                		if (i == size-1 || blocks[i+1][j][k] == 0) {
-                			appendQuad(
-                					verticesList,
-                					i+1, j,   k,
-                					i+1, j+1, k,
-                					i+1, j+1, k+1,
-                					i+1, j,   k+1,
-                					r,   g,   b,
-                					Axis.POS_X);
-                			numQuads++;
-                		}
-                		if (j == 0 || blocks[i][j-1][k] == 0) {
-                			appendQuad(
-                					verticesList,
-                					i,   j,   k,
-                					i+1, j,   k,
-                					i+1, j,   k+1,
-                					i,   j,   k+1,
-                					r,   g,   b,
-                					Axis.NEG_Y);
-                			numQuads++;
-                		}
-                		if (j == size-1 || blocks[i][j+1][k] == 0) {
-                			appendQuad(
-                					verticesList,
-                					i,   j+1, k,
-                					i,   j+1, k+1,
-                					i+1, j+1, k+1,
-                					i+1, j+1, k,
-                					r,   g,   b,
-                					Axis.POS_Y);
-                			numQuads++;
-                		}
-                		if (k == 0 || blocks[i][j][k-1] == 0) {
-                			appendQuad(
-                					verticesList,
-                					i,   j,   k,
-                					i,   j+1, k,
-                					i+1, j+1, k,
-                					i+1, j,   k,
-                					r,   g,   b,
-                					Axis.NEG_Z);
-                			numQuads++;
-                		}
-                		if (k == size-1 || blocks[i][j][k+1] == 0) {
-                			appendQuad(
-                					verticesList,
-                					i,   j,   k+1,
-                					i+1, j,   k+1,
-                					i+1, j+1, k+1,
-                					i,   j+1, k+1,
-                					r,   g,   b,
-                					Axis.POS_Z);
-                			numQuads++;
-                		}
-                	}
-                }
-            }
-        }
-
-        // create a mesh with room for the generated polygons
-        Mesh mesh = new Mesh(true, numQuads*VERTS, numQuads*INDS, attributes);
-        
-        // create indices array
-        short[] indices = new short[numQuads*INDS];
-        
-        // each polygon is 6 indices for each 4 vertices: two triangles
-        // for each quad
-        for (int i = 0; i < numQuads; ++i) {
-        	indices[i*INDS + 0] = (short)(i*VERTS + 0);
-        	indices[i*INDS + 1] = (short)(i*VERTS + 1);
-        	indices[i*INDS + 2] = (short)(i*VERTS + 2);
-        	
-        	indices[i*INDS + 3] = (short)(i*VERTS + 2);
-        	indices[i*INDS + 4] = (short)(i*VERTS + 3);
-        	indices[i*INDS + 5] = (short)(i*VERTS + 0);
-        }
-        
-        // convert list of verts to float[]
-        float[] vertices = new float[numQuads*FLOATS*VERTS];
-        
-        // a list of Float can't be converted directly to a float[] because java sucks
-        // so iterate through
-        for (int i = 0; i < verticesList.size(); ++i) {
-        	vertices[i] = verticesList.get(i);
-        }
-
-        // put generated lists in mesh
-		mesh.setVertices(vertices);
-		mesh.setIndices(indices);
+		// dispose the previous meshes before replacing them
+		disposeChunks();
+		pendingEdits.clear();
+		pendingLight.clear();
+		lod.invalidateMeshes();
 		
-		// build a LibGDX Model using mesh and material
-		ModelBuilder builder = new ModelBuilder();
-		builder.begin();
-		builder.part("", mesh, GL20.GL_TRIANGLES, mat);
-		model = builder.end();
+		chunksX = (width + CHUNK_SIZE - 1)/CHUNK_SIZE;
+		chunksY = (height + CHUNK_SIZE - 1)/CHUNK_SIZE;
+		chunksZ = (depth + CHUNK_SIZE - 1)/CHUNK_SIZE;
+		chunks = new Model[chunksX*chunksY*chunksZ];
+		pendingIndices = new int[chunks.length][];
+		uploadPending = true;
+		
+		if (smooth) {
+			SmoothMesher.Surface[] surfaces = new SmoothMesher(blocks, width, height, depth, colors)
+					.setLighting(lighting)
+					.meshChunks(CHUNK_SIZE);
+			pendingVertices = new float[chunks.length][];
+			for (int c = 0; c < chunks.length; ++c) {
+				pendingVertices[c] = surfaces[c].vertices;
+				pendingIndices[c] = surfaces[c].indices;
+			}
+			return;
+		}
+		
+		float[] vertices = null;
+		String key = null;
+		
+		if (meshCache != null) {
+			key = MeshCache.key(blocks, width, height, depth, colors,
+					lighting != null ? emission : null);
+			vertices = meshCache.get(key);
+		}
+		
+		if (vertices == null) {
+			long start = System.nanoTime();
+			vertices = new VoxelMesher(blocks, width, height, depth, colors)
+					.setLighting(lighting)
+					.mesh(1);
+			if (meshCache != null) meshCache.put(key, vertices, System.nanoTime() - start);
+		}
+		
+		// sort the quads into the chunks of the cells they belong to
+		int quadFloats = VoxelMesher.FLOATS*VoxelMesher.VERTS;
+		int numQuads = vertices.length/quadFloats;
+		int[] quadChunks = new int[numQuads];
+		int[] sizes = new int[chunks.length];
+		for (int q = 0; q < numQuads; ++q) {
+			quadChunks[q] = getQuadChunk(vertices, q*quadFloats);
+			sizes[quadChunks[q]] += quadFloats;
+		}
 		
-		// create an instance to be rendered
-		instance = new ModelInstance(model);
-		instance.transform.translate(rootLocation);
+		float[][] chunkVertices = new float[chunks.length][];
+		for (int c = 0; c < chunks.length; ++c) {
+			if (sizes[c] > 0) chunkVertices[c] = new float[sizes[c]];
+			sizes[c] = 0;
+		}
+		for (int q = 0; q < numQuads; ++q) {
+			int c = quadChunks[q];
+			System.arraycopy(vertices, q*quadFloats, chunkVertices[c], sizes[c], quadFloats);
+			sizes[c] += quadFloats;
+		}
+		
+		pendingVertices = chunkVertices;
 	}
 	
-	/*
-	 * AMBIENT OCCLUSION:
-	 * 
-	 * AO in a voxel model works by darkening cartain vertices based on the
-	 * arrangement of the vaces around them. Refer to
-	 *  
-	 * http://0fps.net/2013/07/03/ambient-occlusion-for-minecraft-like-worlds/
-	 * 
-	 * for details.
-	 * 
-	 * This algorithm uses the proportion of opaque cells around a vertex to
-	 * generate a darkening factor which is multiplied to the vertex color.
-	 * This proportion is based on the cells in a cubic area around the vertex,
-	 * but only in a given direction - if the face normal points toward the
-	 * negative X axis, only cells with x coordinates less than the vertex's
-	 * coordinate will be counted. The total area of cells checked for
-	 * opaqueness is radius^3 / 2.
-	 * 
-	 * Since large radii lead to less detail around sharp edges, the algorithm
-	 * works recursively, further darkening the cells by using lower radii as
-	 * well. Therefore, a radius of 2 will lead to a total of
-	 * (4*4*4/2) + (2*2*2/2) = 40 cells being checked.
-	 */
-	
-	// The radius to use for ambient occlusion
-	private static final int AO_Quality = 3;
-	
 	/**
-	 * Gets a value from 0 to 1 representing ambient occlusion for the vertex
-	 * at the given lcoation, using the given normal axis. The returned value
-	 * if to be multiplied by the vertex color: a value of 1 means no darkening.
-	 * This method calls the recursive method using AO_Quality as a radius.
+	 * Finds the chunk a quad belongs to: the chunk of the cell whose face it
+	 * is. The cell is the quad's lowest corner, moved back by one along the
+	 * normal for faces pointing in a positive direction.
 	 * 
-	 * @param x the vertex location in x
-	 * @param y the vertex location in y
-	 * @param z the vertex location in z
-	 * @param axis the normal axis
-	 * @return the lightness of the AO at the given point
+	 * @param vertices the generated vertices
+	 * @param start the index of the first float of the quad
+	 * @return the index of the chunk in chunks
 	 */
-	private float getAmbientOcclusion(int x, int y, int z, Axis axis) {
-		return getAmbientOcclusion(x, y, z, axis, AO_Quality);
+	private int getQuadChunk(float[] vertices, int start) {
+		float x = vertices[start], y = vertices[start+1], z = vertices[start+2];
+		for (int v = 1; v < VoxelMesher.VERTS; ++v) {
+			int i = start + v*VoxelMesher.FLOATS;
+			x = Math.min(x, vertices[i]);
+			y = Math.min(y, vertices[i+1]);
+			z = Math.min(z, vertices[i+2]);
+		}
+		
+		// the normal is the last three floats of a vertex
+		int cellX = (int)x - (vertices[start+6] > 0 ? 1 : 0),
+				cellY = (int)y - (vertices[start+7] > 0 ? 1 : 0),
+				cellZ = (int)z - (vertices[start+8] > 0 ? 1 : 0);
+		
+		return (cellX/CHUNK_SIZE*chunksY + cellY/CHUNK_SIZE)*chunksZ + cellZ/CHUNK_SIZE;
 	}
 	
 	/**
-	 * Recursive method used to get AO within a given radius.
+	 * Remeshes only the chunks overlapping a region of cells.
 	 * 
-	 * @param x the vertex location in x
-	 * @param y the vertex location in y
-	 * @param z the vertex location in z
-	 * @param axis the normal axis
-	 * @param radius the radius of blocks to check for opaqueness
-	 * @return the lightness of the AO at the given point
+	 * @param region the cells whose faces may have changed
 	 */
-	private float getAmbientOcclusion(int x, int y, int z, Axis axis, int radius) {
-		// base case - no darkening
-		if (radius < 1) return 1;
+	private void updateChunks(VoxelRegion region) {
+		VoxelMesher mesher = new VoxelMesher(blocks, width, height, depth, colors)
+				.setLighting(lighting);
+		SmoothMesher smoothMesher = new SmoothMesher(blocks, width, height, depth, colors)
+				.setLighting(lighting);
 		
-		// count of opaque cells
-		int cells = 0;
+		int cx1 = Math.max(region.x1, 0)/CHUNK_SIZE, cx2 = (Math.min(region.x2, width)-1)/CHUNK_SIZE,
+				cy1 = Math.max(region.y1, 0)/CHUNK_SIZE, cy2 = (Math.min(region.y2, height)-1)/CHUNK_SIZE,
+				cz1 = Math.max(region.z1, 0)/CHUNK_SIZE, cz2 = (Math.min(region.z2, depth)-1)/CHUNK_SIZE;
 		
-		// start and end values based on radius
-		int startX = -radius,
-				endX = radius,
-				startY = -radius,
-				endY = radius,
-				startZ = -radius,
-				endZ = radius;
-		
-		// cut one of them short based on which direction is being checked
-		switch (axis) {
-			case NEG_X: endX = 0; break;
-			case NEG_Y: endY = 0; break;
-			case NEG_Z: endZ = 0; break;
-			case POS_X: startX = 0; break;
-			case POS_Y: startY = 0; break;
-			case POS_Z: startZ = 0; break;
-		}
-		
-		// count up opaque cells
-		for (int i = startX; i < endX; ++i) {
-			for (int j = startY; j < endY; ++j) {
-				for (int k = startZ; k < endZ; ++k) {
-					if (x+i >= 0 && x+i < size &&
-							y+j >= 0 && y+j < size &&
-							z+k >= 0 && z+k < size &&
-							blocks[x+i][y+j][z+k] > 0) cells++;
+		for (int cx = cx1; cx <= cx2; ++cx) {
+			for (int cy = cy1; cy <= cy2; ++cy) {
+				for (int cz = cz1; cz <= cz2; ++cz) {
+					int c = (cx*chunksY + cy)*chunksZ + cz;
+					int x = cx*CHUNK_SIZE, y = cy*CHUNK_SIZE, z = cz*CHUNK_SIZE;
+					if (smooth) {
+						SmoothMesher.Surface surface = smoothMesher.mesh(x, y, z,
+								x+CHUNK_SIZE, y+CHUNK_SIZE, z+CHUNK_SIZE);
+						pendingVertices[c] = surface.vertices;
+						pendingIndices[c] = surface.indices;
+					} else {
+						pendingVertices[c] = mesher.mesh(1, x, y, z,
+								x+CHUNK_SIZE, y+CHUNK_SIZE, z+CHUNK_SIZE);
+						pendingIndices[c] = null;
+					}
 				}
 			}
 		}
+		uploadPending = true;
+	}
+	
+	/**
+	 * Builds the models of chunks that were meshed since their models were
+	 * last built, replacing their old models, and updates the instances.
+	 * Needs a GL context; called by the methods that return renderable
+	 * objects.
+	 */
+	private void upload() {
+		if (!uploadPending) return;
 		
-		// number of opaque cells out of the maximum
-		float proportion = (float)(cells/((Math.pow(radius*2, 3)/2)));
-		
-		// light amount is the inverse of this proportion
-		float ao =  1-proportion;
-		
-		// recurse to get better results in tight corners
-		return ao * (getAmbientOcclusion(x, y, z, axis, radius-1)+.1f)/1.1f;
-	}
-	
-	/**
-	 * Adds a quad to the VertexList.
-	 * 
-	 * @param vertexList the list under construction
-	 * @param x1 the x coordinate of the first vertex in counterclockwise order
-	 * @param y1 the y coordinate of the first vertex in counterclockwise order
-	 * @param z1 the z coordinate of the first vertex in counterclockwise order
-	 * @param x2 the x coordinate of the second vertex in counterclockwise order
-	 * @param y2 the y coordinate of the second vertex in counterclockwise order
-	 * @param z2 the z coordinate of the second vertex in counterclockwise order
-	 * @param x3 the x coordinate of the third vertex in counterclockwise order
-	 * @param y3 the y coordinate of the third vertex in counterclockwise order
-	 * @param z3 the z coordinate of the third vertex in counterclockwise order
-	 * @param x4 the x coordinate of the fourth vertex in counterclockwise order
-	 * @param y4 the y coordinate of the fourth vertex in counterclockwise order
-	 * @param z4 the z coordinate of the fourth vertex in counterclockwise order
-	 * @param r the red channel of the vertex color
-	 * @param g the green channel of the vertex color
-	 * @param b the blue channel of the vertex color
-	 * @param axis the axis of the quad normal
-	 */
-	public void appendQuad(
-			ArrayList<Float> vertexList, 
-			float x1, float y1, float z1,
-			float x2, float y2, float z2,
-			float x3, float y3, float z3,
-			float x4, float y4, float z4,
-			float r, float g, float b,
-			Axis axis) {
-		
-		// calculate ambient occlusion for each vertex
-		float ambientOcclusion1 = getAmbientOcclusion((int)x1, (int)y1, (int)z1, axis);
-		float ambientOcclusion2 = getAmbientOcclusion((int)x2, (int)y2, (int)z2, axis);
-		float ambientOcclusion3 = getAmbientOcclusion((int)x3, (int)y3, (int)z3, axis);
-		float ambientOcclusion4 = getAmbientOcclusion((int)x4, (int)y4, (int)z4, axis);
-		
-		// flip quad if necessary because of ambient occlusion
-		// see "details regarding meshing":
-		// http://0fps.net/2013/07/03/ambient-occlusion-for-minecraft-like-worlds/
-		boolean flipped = (
-				ambientOcclusion1 + ambientOcclusion3 < 
-				ambientOcclusion2 + ambientOcclusion4);
-		
-		// convert normal axis enum to xyz vector
-		// vector components will be 0 except for the axis along which the normal points
-		float nx = 0, ny = 0, nz = 0;
-		switch(axis) {
-			case NEG_X: nx = -1; break;
-			case NEG_Y: ny = -1; break;
-			case NEG_Z: nz = -1; break;
-			case POS_X: nx = 1; break;
-			case POS_Y: ny = 1; break;
-			case POS_Z: nz = 1; break;
-		}
-		
-		// add the first vertex first if quad is not flipped
-		if (!flipped) {
-			vertexList.add(x1);
-			vertexList.add(y1);
-			vertexList.add(z1);
-			vertexList.add(r*ambientOcclusion1);
-			vertexList.add(g*ambientOcclusion1);
-			vertexList.add(b*ambientOcclusion1);
-			vertexList.add(nx);
-			vertexList.add(ny);
-			vertexList.add(nz);
-		}
-		
-		vertexList.add(x2);
-		vertexList.add(y2);
-		vertexList.add(z2);
-		vertexList.add(r*ambientOcclusion2);
-		vertexList.add(g*ambientOcclusion2);
-		vertexList.add(b*ambientOcclusion2);
-		vertexList.add(nx);
-		vertexList.add(ny);
-		vertexList.add(nz);
-		
-		vertexList.add(x3);
-		vertexList.add(y3);
-		vertexList.add(z3);
-		vertexList.add(r*ambientOcclusion3);
-		vertexList.add(g*ambientOcclusion3);
-		vertexList.add(b*ambientOcclusion3);
-		vertexList.add(nx);
-		vertexList.add(ny);
-		vertexList.add(nz);
-		
-		vertexList.add(x4);
-		vertexList.add(y4);
-		vertexList.add(z4);
-		vertexList.add(r*ambientOcclusion4);
-		vertexList.add(g*ambientOcclusion4);
-		vertexList.add(b*ambientOcclusion4);
-		vertexList.add(nx);
-		vertexList.add(ny);
-		vertexList.add(nz);
-		
-		// add first vertex last if quad is flipped
-		if (flipped) {
-			vertexList.add(x1);
-			vertexList.add(y1);
-			vertexList.add(z1);
-			vertexList.add(r*ambientOcclusion1);
-			vertexList.add(g*ambientOcclusion1);
-			vertexList.add(b*ambientOcclusion1);
-			vertexList.add(nx);
-			vertexList.add(ny);
-			vertexList.add(nz);
-		}
-	}
-	
-	/**
-	 * Serializes the model. For fotmat information refer to voxel_spec.txt
-	 * size in bytes = 15 + 12*materials + size*size*size
+		for (int c = 0; c < chunks.length; ++c) {
+			float[] vertices = pendingVertices[c];
+			if (vertices == null) continue;
+			
+			if (chunks[c] != null) chunks[c].dispose();
+			if (vertices.length == 0) chunks[c] = null;
+			else if (pendingIndices[c] == null) chunks[c] = VoxelMesher.buildModel(vertices, mat);
+			else chunks[c] = SmoothMesher.buildModel(new SmoothMesher.Surface(vertices, pendingIndices[c]), mat);
+			pendingVertices[c] = null;
+			pendingIndices[c] = null;
+		}
+		uploadPending = false;
+		updateInstances();
+	}
+	
+	/**
+	 * Returns the vertices of the model's mesh, in the layout generated by
+	 * VoxelMesher: the vertices of every chunk, one chunk after another.
+	 * Works without a GL context as long as the chunks haven't been built
+	 * into GPU models yet; built chunks are read back from their meshes. If
+	 * the meshes were released, the voxel data is meshed again. For a smooth
+	 * model, these are the shared vertices of the surface, without the
+	 * indices that make them triangles.
 	 * 
-	 * @return the model in serialized format
+	 * @return the vertices of every visible face
 	 */
-	public byte[] serialize() {
-		ByteBuffer buffer = ByteBuffer.allocate(16 + 12*colors.size() + size*size*size);
-		
-		buffer.put((byte)0); // version
-		buffer.put((byte)colors.size()); // number of materials
-		buffer.put((byte)(size-1)); // model size
-		buffer.put((byte)(scale-1)); // model scale
-		
-		buffer.putFloat(rootLocation.x);
-		buffer.putFloat(rootLocation.y);
-		buffer.putFloat(rootLocation.z);
-		
-		for (Color c : colors) {
-			buffer.putFloat(c.r);
-			buffer.putFloat(c.g);
-			buffer.putFloat(c.b);
+	public float[] getVertices() {
+		if (!hasMeshes() && smooth) {
+			return new SmoothMesher(blocks, width, height, depth, colors).setLighting(lighting)
+					.mesh(0, 0, 0, width, height, depth).vertices;
+		}
+		if (!hasMeshes()) {
+			return new VoxelMesher(blocks, width, height, depth, colors).setLighting(lighting).mesh(1);
 		}
 		
-		for (int i = 0; i < size; ++i) {
-			for (int j = 0; j < size; ++j) {
-				for (int k = 0; k < size; ++k) {
-					buffer.put(blocks[i][j][k]);
+		FloatArray vertices = new FloatArray();
+		for (int c = 0; c < chunks.length; ++c) {
+			if (pendingVertices[c] != null) {
+				vertices.addAll(pendingVertices[c]);
+			} else if (chunks[c] != null) {
+				for (Mesh mesh : chunks[c].meshes) {
+					int start = vertices.size;
+					int floats = mesh.getNumVertices()*VoxelMesher.FLOATS;
+					vertices.ensureCapacity(floats);
+					vertices.size += floats;
+					mesh.getVertices(0, -1, vertices.items, start);
 				}
 			}
 		}
-		
-		return buffer.array();
+		return vertices.toArray();
+	}
+	
+	/**
+	 * Recreates the list of instances to render from the chunk models.
+	 */
+	private void updateInstances() {
+		instances.clear();
+		meshes = null;
+		for (Model chunk : chunks) {
+			if (chunk == null) continue;
+			ModelInstance instance = new ModelInstance(chunk);
+			instance.transform.translate(rootLocation);
+			instances.add(instance);
+		}
+	}
+	
+	/**
+	 * Disposes the models of every chunk that was built.
+	 */
+	private void disposeChunks() {
+		if (chunks == null) return;
+		for (Model chunk : chunks) {
+			if (chunk != null) chunk.dispose();
+		}
+		instances.clear();
+		meshes = null;
+	}
+	
+	/**
+	 * Serializes the model in format version 3. For format information refer
+	 * to voxel_spec.txt
+	 * 
+	 * @return the model in serialized format
+	 */
+	public byte[] serialize() {
+		return getData().serialize();
+	}
+	
+	/**
+	 * Returns the model's voxel data, colors and placement. The result
+	 * shares this model's arrays, so it only stays valid until the model is
+	 * next changed.
+	 * 
+	 * @return the model's data
+	 */
+	VoxelData getData() {
+		return new VoxelData(blocks, colors, emission, rootLocation, scale);
 	}
 	
 	/**
@@ -657,42 +754,555 @@ public class VoxelModel {
 	}
 	
 	/**
-	 * Sets the size of the model and rebuilds the array as an array of the
-	 * new size. Valid values for size are 1 to 256.
+	 * Returns the scale of the model.
+	 * 
+	 * @return the scale of the model
+	 */
+	public int getScale() {
+		return scale;
+	}
+	
+	/**
+	 * Returns the meshes representing the voxel data. Large models are split
+	 * into several meshes to stay within the range of short indices. The
+	 * meshes are owned by this VoxelModel and are replaced whenever the voxel
+	 * data changes, so they should not be kept across edits or disposed by
+	 * the caller. Returns an empty array while the meshes are released.
+	 * 
+	 * @return the meshes of the voxel data
+	 */
+	public Array<Mesh> getMeshes() {
+		if (!hasMeshes()) return new Array<Mesh>();
+		upload();
+		if (meshes == null) {
+			meshes = new Array<Mesh>();
+			for (Model chunk : chunks) {
+				if (chunk != null) meshes.addAll(chunk.meshes);
+			}
+		}
+		return meshes;
+	}
+	
+	/**
+	 * Sets the dimensions of the model and rebuilds the array as an array of
+	 * the new size, keeping the existing voxels centered. Valid values for
+	 * each dimension are 1 to 256.
+	 * 
+	 * @param newWidth the desired size of the array in x
+	 * @param newHeight the desired size of the array in y
+	 * @param newDepth the desired size of the array in z
+	 */
+	public void setSize(int newWidth, int newHeight, int newDepth) {
+		newWidth = clampDimension(newWidth);
+		newHeight = clampDimension(newHeight);
+		newDepth = clampDimension(newDepth);
+		
+		resize(newWidth, newHeight, newDepth,
+				(newWidth-width)/2, (newHeight-height)/2, (newDepth-depth)/2);
+	}
+	
+	/**
+	 * Adds empty space around the voxel data. Negative amounts remove space
+	 * from that side instead. The root location is moved so that existing
+	 * voxels stay in the same place.
+	 * 
+	 * @param negX cells to add below x = 0
+	 * @param posX cells to add above the current width
+	 * @param negY cells to add below y = 0
+	 * @param posY cells to add above the current height
+	 * @param negZ cells to add below z = 0
+	 * @param posZ cells to add above the current depth
+	 */
+	public void pad(int negX, int posX, int negY, int posY, int negZ, int posZ) {
+		int newWidth = clampDimension(width + negX + posX),
+				newHeight = clampDimension(height + negY + posY),
+				newDepth = clampDimension(depth + negZ + posZ);
+		
+		rootLocation.sub(negX, negY, negZ);
+		resize(newWidth, newHeight, newDepth, negX, negY, negZ);
+		updateRoot();
+	}
+	
+	/**
+	 * Crops the voxel data to the given region. Parts of the region outside
+	 * the current bounds become empty space. The root location is moved so
+	 * that the remaining voxels stay in the same place.
 	 * 
-	 * @param newSize the desired size of the array
+	 * @param region the region to keep
 	 */
-	public void setSize(int newSize) {
-		if (newSize < 1) newSize = 1;
-		if (newSize > 256) newSize = 256;
+	public void crop(VoxelRegion region) {
+		if (region.isEmpty()) return;
 		
-		byte[][][] newBlocks = new byte[newSize][newSize][newSize];
-		int offset = (size-newSize)/2;
-		for (int i = 0; i < size; ++i) {
-			for (int j = 0; j < size; ++j) {
-				for (int k = 0; k < size; ++k) {
-					if (i+offset >= 0 && i+offset < newSize &&
-							j+offset >= 0 && j+offset < newSize &&
-							k+offset >= 0 && k+offset < newSize) {
-						newBlocks[i+offset][j+offset][k+offset] = blocks[i][j][k];
+		int newWidth = clampDimension(region.x2 - region.x1),
+				newHeight = clampDimension(region.y2 - region.y1),
+				newDepth = clampDimension(region.z2 - region.z1);
+		
+		rootLocation.add(region.x1, region.y1, region.z1);
+		resize(newWidth, newHeight, newDepth, -region.x1, -region.y1, -region.z1);
+		updateRoot();
+	}
+	
+	/**
+	 * Crops the voxel data to the tightest box that holds every solid voxel.
+	 * Does nothing if the model has no voxels.
+	 * 
+	 * @return true if the model was cropped
+	 */
+	public boolean shrinkToFit() {
+		VoxelRegion bounds = getContentBounds();
+		if (bounds.isEmpty()) return false;
+		if (bounds.x1 == 0 && bounds.y1 == 0 && bounds.z1 == 0 &&
+				bounds.x2 == width && bounds.y2 == height && bounds.z2 == depth) return false;
+		
+		crop(bounds);
+		return true;
+	}
+	
+	/**
+	 * Finds the tightest box that holds every solid voxel in a single pass
+	 * over the voxel data. Each row in z is scanned from both ends, so only
+	 * the empty space before the first and after the last voxel of a row is
+	 * read twice.
+	 * 
+	 * @return the bounds of the solid voxels, or an empty region if none
+	 */
+	public VoxelRegion getContentBounds() {
+		VoxelRegion bounds = new VoxelRegion();
+		
+		for (int i = 0; i < width; ++i) {
+			for (int j = 0; j < height; ++j) {
+				byte[] row = blocks[i][j];
+				
+				// find the first solid voxel in the row
+				int first = 0;
+				while (first < depth && row[first] == 0) first++;
+				if (first == depth) continue;
+				
+				// and the last, which exists since the first does
+				int last = depth-1;
+				while (row[last] == 0) last--;
+				
+				bounds.extend(i, j, first, i+1, j+1, last+1);
+			}
+		}
+		
+		return bounds;
+	}
+	
+	/**
+	 * Replaces the voxel data with an array of the given size. The old cell
+	 * at (x, y, z) moves to (x+offsetX, y+offsetY, z+offsetZ); cells that
+	 * fall outside the new size are discarded.
+	 * 
+	 * The overlapping region is computed once and copied a row at a time.
+	 * When the depth and z offset don't change, rows are moved into the new
+	 * array without copying at all.
+	 * 
+	 * @param newWidth the new size in x, from 1 to 256
+	 * @param newHeight the new size in y, from 1 to 256
+	 * @param newDepth the new size in z, from 1 to 256
+	 * @param offsetX the offset of old cells in x
+	 * @param offsetY the offset of old cells in y
+	 * @param offsetZ the offset of old cells in z
+	 */
+	private void resize(int newWidth, int newHeight, int newDepth,
+			int offsetX, int offsetY, int offsetZ) {
+		// range of old cells that land inside the new array
+		int x1 = Math.max(0, -offsetX), x2 = Math.min(width, newWidth-offsetX),
+				y1 = Math.max(0, -offsetY), y2 = Math.min(height, newHeight-offsetY),
+				z1 = Math.max(0, -offsetZ), z2 = Math.min(depth, newDepth-offsetZ);
+		
+		// rows can be reused as they are if they keep their length and layout
+		boolean reuseRows = newDepth == depth && offsetZ == 0;
+		
+		byte[][][] newBlocks = new byte[newWidth][newHeight][];
+		if (z1 < z2) {
+			for (int i = x1; i < x2; ++i) {
+				for (int j = y1; j < y2; ++j) {
+					if (reuseRows) {
+						newBlocks[i+offsetX][j+offsetY] = blocks[i][j];
+					} else {
+						byte[] row = new byte[newDepth];
+						System.arraycopy(blocks[i][j], z1, row, z1+offsetZ, z2-z1);
+						newBlocks[i+offsetX][j+offsetY] = row;
 					}
 				}
 			}
 		}
 		
+		// fill in rows that had no overlap with the old data
+		for (int i = 0; i < newWidth; ++i) {
+			for (int j = 0; j < newHeight; ++j) {
+				if (newBlocks[i][j] == null) newBlocks[i][j] = new byte[newDepth];
+			}
+		}
+		
 		blocks = newBlocks;
-		size = newSize;
+		width = newWidth;
+		height = newHeight;
+		depth = newDepth;
+		
+		replacedBlocks();
+	}
+	
+	/**
+	 * Rebuilds everything derived from the voxel data after the whole array
+	 * was replaced or rearranged.
+	 */
+	private void replacedBlocks() {
+		modified = true;
+		strokeCells = null;
+		lod.invalidateAll();
+		if (lighting != null) rebuildLighting();
 		
 		updateMesh();
 		updateBounds();
 	}
 	
 	/**
-	 * Returns the size of the model.
-	 * @return the size of the model
+	 * Mirrors the whole model along an axis, around the plane through the
+	 * root location, so the model stays mirrored around its origin in a game
+	 * world.
+	 * 
+	 * @param axis 0 for x, 1 for y, 2 for z
+	 */
+	public void flip(int axis) {
+		flipBlocks(axis);
+		replacedBlocks();
+	}
+	
+	/**
+	 * Turns the whole model around an axis through the root location, in
+	 * steps of 90 degrees following the right-hand rule. A half turn is done
+	 * in place as two flips; quarter turns use one new array since the
+	 * model's dimensions change.
+	 * 
+	 * @param axis 0 for x, 1 for y, 2 for z
+	 * @param quarterTurns the number of quarter turns, may be negative
+	 */
+	public void rotate(int axis, int quarterTurns) {
+		int turns = ((quarterTurns % 4) + 4) % 4;
+		if (turns == 0) return;
+		
+		if (turns != 2) {
+			VoxelRegion all = new VoxelRegion(0, 0, 0, width, height, depth);
+			byte[][][] turned = VoxelTransforms.turn(blocks, all, axis);
+			int[] size = VoxelTransforms.getTurnedSize(all, axis);
+			
+			// the lower corner of the turned bounds is the new root location
+			Vector3 r = rootLocation;
+			switch (axis) {
+				case 0: r.set(r.x, -(r.z + depth), r.y); break;
+				case 1: r.set(r.z, r.y, -(r.x + width)); break;
+				default: r.set(-(r.y + height), r.x, r.z); break;
+			}
+			
+			blocks = turned;
+			width = size[0];
+			height = size[1];
+			depth = size[2];
+		}
+		
+		// a half turn is a flip along both other axes
+		if (turns >= 2) {
+			flipBlocks((axis+1) % 3);
+			flipBlocks((axis+2) % 3);
+		}
+		
+		replacedBlocks();
+	}
+	
+	/**
+	 * Mirrors the voxel data and root location along an axis without
+	 * updating anything derived from them.
+	 * 
+	 * @param axis 0 for x, 1 for y, 2 for z
+	 */
+	private void flipBlocks(int axis) {
+		VoxelTransforms.flip(blocks, depth, new VoxelRegion(0, 0, 0, width, height, depth), axis);
+		
+		switch (axis) {
+			case 0: rootLocation.x = -(rootLocation.x + width); break;
+			case 1: rootLocation.y = -(rootLocation.y + height); break;
+			default: rootLocation.z = -(rootLocation.z + depth); break;
+		}
+	}
+	
+	/**
+	 * Mirrors a region of the voxel data along an axis, in place. Parts of
+	 * the region outside the model are ignored.
+	 * 
+	 * @param region the region to mirror
+	 * @param axis 0 for x, 1 for y, 2 for z
+	 */
+	public void flip(VoxelRegion region, int axis) {
+		VoxelRegion r = new VoxelRegion().extend(region).clamp(0, 0, 0, width, height, depth);
+		if (r.isEmpty()) return;
+		
+		VoxelTransforms.flip(blocks, depth, r, axis);
+		regionChanged(r);
+	}
+	
+	/**
+	 * Turns a region of the voxel data around an axis, in steps of 90 degrees
+	 * following the right-hand rule. The turned region is centered where the
+	 * region was; voxels that end up outside the model are lost.
+	 * 
+	 * @param region the region to turn
+	 * @param axis 0 for x, 1 for y, 2 for z
+	 * @param quarterTurns the number of quarter turns, may be negative
+	 */
+	public void rotate(VoxelRegion region, int axis, int quarterTurns) {
+		VoxelRegion r = new VoxelRegion().extend(region).clamp(0, 0, 0, width, height, depth);
+		int turns = ((quarterTurns % 4) + 4) % 4;
+		if (r.isEmpty() || turns == 0) return;
+		
+		// a half turn keeps the region's shape, so it's done in place
+		if (turns == 2) {
+			VoxelTransforms.flip(blocks, depth, r, (axis+1) % 3);
+			VoxelTransforms.flip(blocks, depth, r, (axis+2) % 3);
+			regionChanged(r);
+			return;
+		}
+		
+		byte[][][] turned = VoxelTransforms.turn(blocks, r, axis);
+		int[] size = VoxelTransforms.getTurnedSize(r, axis);
+		if (turns == 3) {
+			VoxelRegion all = new VoxelRegion(0, 0, 0, size[0], size[1], size[2]);
+			VoxelTransforms.flip(turned, size[2], all, (axis+1) % 3);
+			VoxelTransforms.flip(turned, size[2], all, (axis+2) % 3);
+		}
+		
+		// clear the old region
+		for (int i = r.x1; i < r.x2; ++i) {
+			for (int j = r.y1; j < r.y2; ++j) {
+				Arrays.fill(blocks[i][j], r.z1, r.z2, (byte)0);
+			}
+		}
+		
+		// place the turned region around the same center, clipped to the model
+		VoxelRegion placed = new VoxelRegion(
+				r.x1 + (r.x2 - r.x1 - size[0])/2,
+				r.y1 + (r.y2 - r.y1 - size[1])/2,
+				r.z1 + (r.z2 - r.z1 - size[2])/2, 0, 0, 0);
+		placed.x2 = placed.x1 + size[0];
+		placed.y2 = placed.y1 + size[1];
+		placed.z2 = placed.z1 + size[2];
+		VoxelRegion clipped = new VoxelRegion().extend(placed).clamp(0, 0, 0, width, height, depth);
+		
+		for (int i = clipped.x1; i < clipped.x2; ++i) {
+			for (int j = clipped.y1; j < clipped.y2; ++j) {
+				System.arraycopy(turned[i - placed.x1][j - placed.y1], clipped.z1 - placed.z1,
+						blocks[i][j], clipped.z1, clipped.z2 - clipped.z1);
+			}
+		}
+		
+		regionChanged(r.extend(clipped));
+	}
+	
+	/**
+	 * Updates everything derived from the voxel data after a region of it
+	 * was changed in bulk, with a single remesh.
+	 * 
+	 * @param region the changed region
+	 */
+	private void regionChanged(VoxelRegion region) {
+		modified = true;
+		lod.invalidate(region.x1, region.y1, region.z1, region.x2, region.y2, region.z2);
+		
+		// relight only what depended on the region, then remesh the chunks
+		// around it and wherever the light changed
+		if (lighting != null) lighting.update(region, pendingLight);
+		pendingEdits.extend(region);
+		flushEdits();
+	}
+	
+	/**
+	 * Returns whether edits are mirrored along an axis.
+	 * 
+	 * @param axis 0 for x, 1 for y, 2 for z
+	 * @return true if mirror editing is on for the axis
+	 */
+	public boolean getSymmetry(int axis) {
+		return symmetry[axis];
+	}
+	
+	/**
+	 * Turns mirror editing along an axis on or off. While on, every voxel
+	 * painted or removed is also painted or removed on the other side of the
+	 * center of the model along that axis. With several axes on, edits are
+	 * repeated in every combination, up to eight times.
+	 * 
+	 * @param axis 0 for x, 1 for y, 2 for z
+	 * @param enabled whether to mirror edits along the axis
+	 */
+	public void setSymmetry(int axis, boolean enabled) {
+		symmetry[axis] = enabled;
+	}
+	
+	/**
+	 * Returns whether baked lighting is shown.
+	 * 
+	 * @return true if vertex colors include baked lighting
+	 */
+	public boolean hasBakedLighting() {
+		return lighting != null;
+	}
+	
+	/**
+	 * Turns baked lighting on or off. With lighting on, the mesh is darkened
+	 * where neither sky light nor light from emitting voxels reaches, see
+	 * VoxelLighting. Lighting is kept up to date incrementally as the model
+	 * is edited.
+	 * 
+	 * @param enabled whether to show baked lighting
+	 */
+	public void setBakedLighting(boolean enabled) {
+		if (enabled == hasBakedLighting()) return;
+		
+		if (enabled) rebuildLighting();
+		else lighting = null;
+		updateMesh();
+	}
+	
+	/**
+	 * Returns whether the voxel data is meshed as a smooth surface.
+	 * 
+	 * @return true for a smooth surface, false for blocky voxels
+	 */
+	public boolean isSmooth() {
+		return smooth;
+	}
+	
+	/**
+	 * Switches between meshing the voxel data as blocky voxels and as a
+	 * smooth surface through the voxel centers, see SmoothMesher. Only the
+	 * full-detail mesh is smooth; levels of detail stay blocky. The voxel
+	 * data itself is not changed, so editing and picking work on voxels
+	 * either way.
+	 * 
+	 * @param enabled whether to mesh a smooth surface
+	 */
+	public void setSmooth(boolean enabled) {
+		if (enabled == smooth) return;
+		
+		smooth = enabled;
+		if (hasMeshes()) updateMesh();
+	}
+	
+	/**
+	 * Recomputes the lighting of the whole model from scratch.
 	 */
-	public int getSize() {
-		return size;
+	private void rebuildLighting() {
+		lighting = new VoxelLighting(blocks, width, height, depth, emission);
+		lighting.rebuild();
+	}
+	
+	/**
+	 * Returns the emission level of a color in this model's palette.
+	 * 
+	 * @param color the color to look up
+	 * @return the emission level from 0 to 15, or 0 if the model doesn't use
+	 * the color
+	 */
+	public int getEmission(Color color) {
+		int index = colors.indexOf(color);
+		return index < 0 ? 0 : emission[index+1];
+	}
+	
+	/**
+	 * Sets how much light voxels of a color give off. Does nothing if the
+	 * model doesn't use the color.
+	 * 
+	 * @param color the color to change
+	 * @param level the emission level, from 0 (none) to 15
+	 */
+	public void setEmission(Color color, int level) {
+		int index = colors.indexOf(color);
+		if (index < 0) return;
+		
+		level = Math.max(0, Math.min(level, VoxelLighting.MAX_LIGHT));
+		if (emission[index+1] == level) return;
+		
+		emission[index+1] = (byte)level;
+		modified = true;
+		
+		// only light from voxels of the color changes, so only the chunks
+		// it reaches are remeshed
+		if (lighting != null) {
+			lighting.updateEmission((byte)(index+1), pendingLight);
+			flushEdits();
+		}
+	}
+	
+	/**
+	 * Returns the size of the model in x.
+	 * @return the width of the model
+	 */
+	public int getWidth() {
+		return width;
+	}
+	
+	/**
+	 * Returns the size of the model in y.
+	 * @return the height of the model
+	 */
+	public int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * Returns the size of the model in z.
+	 * @return the depth of the model
+	 */
+	public int getDepth() {
+		return depth;
+	}
+	
+	/**
+	 * Returns the voxel data of the model. Used by the mesher and levels of
+	 * detail; callers must not modify the array.
+	 * 
+	 * @return the voxel data
+	 */
+	byte[][][] getBlocks() {
+		return blocks;
+	}
+	
+	/**
+	 * Returns the list of colors for voxel indices.
+	 * 
+	 * @return the color list
+	 */
+	ArrayList<Color> getColors() {
+		return colors;
+	}
+	
+	/**
+	 * Returns the baked lighting of the voxel data.
+	 * 
+	 * @return the lighting, or null if lighting is off
+	 */
+	VoxelLighting getLighting() {
+		return lighting;
+	}
+	
+	/**
+	 * Returns the instances of the model at the given level of detail. Level
+	 * 0 is the full voxel data, one instance per non-empty chunk; levels 1 to
+	 * VoxelLOD.LEVELS are downsampled 2x, 4x and 8x and are built the first
+	 * time they are requested. The returned array is reused.
+	 * 
+	 * @param level the level of detail, see VoxelLOD.selectLevel
+	 * @return the instances to render
+	 */
+	public Array<ModelInstance> getInstances(int level) {
+		if (level <= 0) {
+			upload();
+			return instances;
+		}
+		
+		return lod.getInstances(level, mat, rootLocation);
 	}
 	
 	/**
@@ -718,176 +1328,454 @@ public class VoxelModel {
 	 * tests collision against the voxel data and stores the nearest voxel to
 	 * collide with it, and the axis representing the face the ray collided
 	 * with.
-	 * 
+	 *
 	 * If the Color's alpha channel is 0 (transparent), the collided voxel is
 	 * removed; otherwise, a new voxel is added with the given color on the
 	 * other side of the face the ray collided with.
-	 * 
+	 *
+	 * The mesh is updated right away; use paint() and flushEdits() to make
+	 * many edits with a single update.
+	 *
 	 * @param pickRay the ray representing the pick
 	 * @param toAdd the color to add
 	 */
 	public void modify(Ray pickRay, Color toAdd) {
-		// analyze given color
-		boolean remove = false;
+		paint(pickRay, toAdd, SINGLE_VOXEL);
+		flushEdits();
+	}
+	
+	/**
+	 * Starts a brush stroke. Until endStroke() is called, voxels painted by
+	 * the stroke are ignored when picking, so dragging across the model
+	 * paints along its surface as it was when the stroke started instead of
+	 * piling voxels up towards the camera or digging into the model.
+	 */
+	public void beginStroke() {
+		strokeCells = new IntSet();
+	}
+	
+	/**
+	 * Ends the current brush stroke.
+	 */
+	public void endStroke() {
+		strokeCells = null;
+	}
+	
+	/**
+	 * Paints the brush at the voxel hit by a pickRay. Works like modify():
+	 * a transparent color removes the voxels inside the brush around the hit
+	 * voxel, any other color fills the empty cells inside the brush around
+	 * the cell in front of the hit face.
+	 *
+	 * The voxel data and lighting change right away, but the mesh is only
+	 * updated by the next call to flushEdits(), so any number of paint()
+	 * calls can share one update.
+	 *
+	 * @param pickRay the ray representing the pick
+	 * @param toAdd the color to add
+	 * @param brush the shape and size of the area to paint
+	 * @return true if any voxel changed
+	 */
+	public boolean paint(Ray pickRay, Color toAdd, VoxelBrush brush) {
+		boolean remove = toAdd.a == 0;
 		byte index = 0;
 		
-		// if transparent, remove rather than add a new color
-		if (toAdd.a == 0) remove = true;
-		// else, try to find the given color in the existing list
-		else {
-			for (int i = 0; i < colors.size(); ++i) {
-				if (toAdd.equals(colors.get(i))) index = (byte)(i+1);
-			}
-
-			// if not found, add a new color
-			if (index == 0) {
-				// if the color list can't support a new color, return
-				if (colors.size() >= 254) return;
-				
-				index = (byte)(colors.size()+1);
-				colors.add(toAdd);
+		// find the given color, adding it to the list if necessary
+		if (!remove) {
+			index = findColor(toAdd);
+			if (index == 0) return false;
+		}
+		
+		int[] cell = paintCell;
+		RayHit hit = pick(pickRay, cell);
+		if (hit == null) return false;
+		
+		// the brush is centered on the hit voxel itself when removing,
+		// otherwise on the cell on the other side of the hit face
+		if (!remove) {
+			switch(hit.axis) {
+				case NEG_X: cell[0]--; break;
+				case NEG_Y: cell[1]--; break;
+				case NEG_Z: cell[2]--; break;
+				case POS_X: cell[0]++; break;
+				case POS_Y: cell[1]++; break;
+				case POS_Z: cell[2]++; break;
 			}
 		}
 		
-		// test hit
-		RayHit hit = null;
-		int x = -1, y = -1, z = -1;
+		if (strokeCells != null && strokeCells.size == 0) strokeRemoves = remove;
+		
+		// paint at every mirrored position; brushes are symmetric, so
+		// mirroring the center mirrors every painted cell
+		boolean changed = false;
+		for (int mirror = 0; mirror < 8; ++mirror) {
+			if ((mirror & 1) != 0 && !symmetry[0] ||
+					(mirror & 2) != 0 && !symmetry[1] ||
+					(mirror & 4) != 0 && !symmetry[2]) continue;
+			
+			changed |= applyBrush(brush, remove, index,
+					(mirror & 1) != 0 ? width-1-cell[0] : cell[0],
+					(mirror & 2) != 0 ? height-1-cell[1] : cell[1],
+					(mirror & 4) != 0 ? depth-1-cell[2] : cell[2]);
+		}
+		
+		if (changed) modified = true;
+		return changed;
+	}
+	
+	/**
+	 * Paints a brush centered on a cell without remeshing.
+	 * 
+	 * @param brush the shape and size of the area to paint
+	 * @param remove whether to remove voxels rather than add them
+	 * @param index the voxel index to add
+	 * @param cx the x coordinate of the center
+	 * @param cy the y coordinate of the center
+	 * @param cz the z coordinate of the center
+	 * @return true if any voxel changed
+	 */
+	private boolean applyBrush(VoxelBrush brush, boolean remove, byte index, int cx, int cy, int cz) {
+		int radius = brush.getRadius();
+		int x1 = Math.max(cx-radius, 0), x2 = Math.min(cx+radius+1, width),
+				y1 = Math.max(cy-radius, 0), y2 = Math.min(cy+radius+1, height),
+				z1 = Math.max(cz-radius, 0), z2 = Math.min(cz+radius+1, depth);
+		boolean changed = false;
 		
-		for (int i = 0; i < size; ++i) {
-			for (int j = 0; j < size; ++j) {
-				for (int k = 0; k < size; ++k) {
-					// don't hit test against empty blocks
-					if (blocks[i][j][k] == 0) continue;
+		for (int i = x1; i < x2; ++i) {
+			for (int j = y1; j < y2; ++j) {
+				for (int k = z1; k < z2; ++k) {
+					if (!brush.contains(i-cx, j-cy, k-cz)) continue;
 					
-					// get result of hit test
-					RayHit tempHit = hitTest(pickRay,
-							i+rootLocation.x, j+rootLocation.y, k+rootLocation.z,
-							i+rootLocation.x+1, j+rootLocation.y+1, k+rootLocation.z+1);
+					// removing only affects voxels, adding only empty cells
+					byte old = blocks[i][j][k];
+					if ((old != 0) != remove) continue;
 					
-					// if there was a hit, and it's closer than any existing hit
-					if (tempHit != null && (hit == null ||
-							tempHit.hitPoint.dst(pickRay.origin) < hit.hitPoint.dst(pickRay.origin))) {
-						
-						// store this hit
-						hit = tempHit;
-						x = i;
-						y = j;
-						z = k;
-					}
+					blocks[i][j][k] = index;
+					if (lighting != null) lighting.update(i, j, k, old, pendingLight);
+					if (strokeCells != null) strokeCells.add(i << 16 | j << 8 | k);
+					pendingEdits.extend(i, j, k, i+1, j+1, k+1);
+					changed = true;
 				}
 			}
 		}
 		
-		// if a nearest hit exists
-		if (hit != null) {
-			// do stuff
-			if (remove) {
-				blocks[x][y][z] = 0;
-			} else {
-				switch(hit.axis) {
-					case NEG_X: if (x > 0)      blocks[x-1][y][z] = index; break;
-					case NEG_Y: if (y > 0)      blocks[x][y-1][z] = index; break;
-					case NEG_Z: if (z > 0)      blocks[x][y][z-1] = index; break;
-					case POS_X: if (x < size-1) blocks[x+1][y][z] = index; break;
-					case POS_Y: if (y < size-1) blocks[x][y+1][z] = index; break;
-					case POS_Z: if (z < size-1) blocks[x][y][z+1] = index; break;
-				}
+		if (changed) lod.invalidate(x1, y1, z1, x2, y2, z2);
+		return changed;
+	}
+	
+	/**
+	 * Remeshes the chunks affected by edits since the last call. Meant to be
+	 * called once per frame, so a brush stroke remeshes each touched chunk at
+	 * most once per frame no matter how many voxels it painted.
+	 *
+	 * @return true if anything was remeshed
+	 */
+	public boolean flushEdits() {
+		if (pendingEdits.isEmpty() && pendingLight.isEmpty()) return false;
+		
+		// an edit changes the faces of its neighbours and the ambient
+		// occlusion up to AO_Quality cells away; a change of light changes
+		// the vertices next to it
+		int margin = VoxelMesher.AO_Quality+1;
+		VoxelRegion region = new VoxelRegion().extend(
+				pendingEdits.x1-margin, pendingEdits.y1-margin, pendingEdits.z1-margin,
+				pendingEdits.x2+margin, pendingEdits.y2+margin, pendingEdits.z2+margin);
+		if (!pendingLight.isEmpty()) {
+			region.extend(
+					pendingLight.x1-1, pendingLight.y1-1, pendingLight.z1-1,
+					pendingLight.x2+1, pendingLight.y2+1, pendingLight.z2+1);
+		}
+		region.clamp(0, 0, 0, width, height, depth);
+		
+		if (!pendingLight.isEmpty()) lod.invalidateLight(pendingLight);
+		pendingEdits.clear();
+		pendingLight.clear();
+		
+		if (hasMeshes()) updateChunks(region);
+		return true;
+	}
+	
+	/**
+	 * Covers the solid voxels of the model with axis-aligned boxes, for use
+	 * as collision shapes.
+	 * 
+	 * @return the boxes, in the model's current coordinates
+	 */
+	public CollisionBoxes getCollisionBoxes() {
+		return new CollisionBoxes(blocks, width, height, depth, rootLocation, scale);
+	}
+	
+	/**
+	 * Takes a snapshot of the model's solid voxels for spatial queries, such
+	 * as raycasts and overlap tests from game code. The snapshot may be used
+	 * from any number of threads, but doesn't see later edits; take a new one
+	 * after changing the model.
+	 * 
+	 * @return the snapshot, in the model's current coordinates
+	 */
+	public VoxelQuery getQuery() {
+		return new VoxelQuery(blocks, width, height, depth, rootLocation);
+	}
+	
+	/**
+	 * Copies a region of the voxel data. Parts of the region outside the
+	 * model are left out.
+	 * 
+	 * @param region the region to copy
+	 * @return the copied region, or null if the region doesn't overlap the
+	 * model
+	 */
+	public VoxelClipboard copy(VoxelRegion region) {
+		VoxelRegion r = new VoxelRegion().extend(region).clamp(0, 0, 0, width, height, depth);
+		if (r.isEmpty()) return null;
+		return new VoxelClipboard(blocks, colors, r);
+	}
+	
+	/**
+	 * Copies a region of the voxel data and then clears it.
+	 * 
+	 * @param region the region to cut
+	 * @return the copied region, or null if the region doesn't overlap the
+	 * model
+	 */
+	public VoxelClipboard cut(VoxelRegion region) {
+		VoxelClipboard clipboard = copy(region);
+		if (clipboard == null) return null;
+		
+		VoxelRegion r = new VoxelRegion().extend(region).clamp(0, 0, 0, width, height, depth);
+		for (int i = r.x1; i < r.x2; ++i) {
+			for (int j = r.y1; j < r.y2; ++j) {
+				Arrays.fill(blocks[i][j], r.z1, r.z2, (byte)0);
 			}
-			updateMesh();
-		}
-	}
-	
-	/**
-	 * Find where the given pickRay intersects a given voxel. Returns a RayHit
-	 * object representing the hit. If the ray intersects the voxel, the object
-	 * will contain the precise location of the hit and the axis of the nearest
-	 * face that intersects the ray. If the ray does not intersect the voxel,
-	 * the object will be null.
-	 *  
-	 * @param pickRay The ray to test against
-	 * @param x1 the lower x coordinate of the voxel
-	 * @param y1 the lower y coordinate of the voxel
-	 * @param z1 the lower z coordinate of the voxel
-	 * @param x2 the higher x coordinate of the voxel
-	 * @param y2 the higher y coordinate of the voxel
-	 * @param z2 the higher z coordinate of the voxel
-	 * @return a RayHit object or null
-	 */
-	private RayHit hitTest(Ray pickRay, float x1, float y1, float z1, float x2, float y2, float z2) {
-		// get distances from the camera to each face
-		float   dx1 = Math.abs(x1 - pickRay.origin.x),
-				dx2 = Math.abs(x2 - pickRay.origin.x),
-				dy1 = Math.abs(y1 - pickRay.origin.y),
-				dy2 = Math.abs(y2 - pickRay.origin.y),
-				dz1 = Math.abs(z1 - pickRay.origin.z),
-				dz2 = Math.abs(z2 - pickRay.origin.z);
-
-		float hitDistance, hitX, hitY, hitZ;
-		
-		// test X first
-		// test the nearer of the two block sides that are on the YZ plane
-		if (dx1 < dx2) {
-			// distance of the hit is the distance in x from the camera to the plane
-			// divided by the x component of the pickRay's direction unit vector
-			hitDistance = dx1/pickRay.direction.x;
-			// extend the ray out to find the exact point of the hit
-			hitX = x1;
-			hitY = pickRay.origin.y + pickRay.direction.y*hitDistance;
-			hitZ = pickRay.origin.z + pickRay.direction.z*hitDistance;
-			// check if the hit's Y and Z are within the square defined by the
-			// block's side, given by y1, y2, z1, and z2
-			if (hitY >= y1 && hitY <= y2 && hitZ >= z1 && hitZ <= z2) {
-				// returning immediately incorrectly handles some cases where
-				// the camera is between y1 and y2, or z1 and z2
-				// TODO: fix
-				return new RayHit(Axis.NEG_X, new Vector3(hitX, hitY, hitZ));
+		}
+		regionChanged(r);
+		
+		return clipboard;
+	}
+	
+	/**
+	 * Pastes copied voxels with their first cell at the given cell. Empty
+	 * cells of the clipboard leave the model unchanged and voxels outside the
+	 * model are dropped. The clipboard's colors are added to the color list
+	 * as needed; if the list is full, the nearest existing color is used.
+	 * With mirror editing on, the paste is mirrored as well. The model is
+	 * remeshed once, only around the pasted region.
+	 * 
+	 * @param clipboard the voxels to paste, possibly copied from another model
+	 * @param x the x coordinate of the first cell
+	 * @param y the y coordinate of the first cell
+	 * @param z the z coordinate of the first cell
+	 */
+	public void paste(VoxelClipboard clipboard, int x, int y, int z) {
+		// map clipboard indices to this model's palette
+		ArrayList<Color> clipColors = clipboard.getColors();
+		byte[] indices = new byte[clipColors.size()+1];
+		for (int i = 0; i < clipColors.size(); ++i) {
+			byte index = findColor(clipColors.get(i));
+			indices[i+1] = index != 0 ? index : findNearestColor(clipColors.get(i));
+		}
+		
+		VoxelRegion changed = new VoxelRegion();
+		clipboard.pasteInto(blocks, new int[] {width, height, depth}, x, y, z,
+				indices, symmetry, changed);
+		if (!changed.isEmpty()) regionChanged(changed);
+	}
+	
+	/**
+	 * Finds the color in the color list closest to the given color.
+	 * 
+	 * @param color the color to match
+	 * @return the voxel index of the closest color
+	 */
+	private byte findNearestColor(Color color) {
+		int best = 0;
+		float bestDistance = Float.MAX_VALUE;
+		for (int i = 0; i < colors.size(); ++i) {
+			Color c = colors.get(i);
+			float dr = c.r - color.r, dg = c.g - color.g, db = c.b - color.b;
+			float distance = dr*dr + dg*dg + db*db;
+			if (distance < bestDistance) {
+				best = i;
+				bestDistance = distance;
 			}
-		} else {
-			hitDistance = dx2/pickRay.direction.x;
-			hitX = x2;
-			hitY = pickRay.origin.y - pickRay.direction.y*hitDistance;
-			hitZ = pickRay.origin.z - pickRay.direction.z*hitDistance;
-			if (hitY >= y1 && hitY <= y2 && hitZ >= z1 && hitZ <= z2) {
-				return new RayHit(Axis.POS_X, new Vector3(hitX, hitY, hitZ));
+		}
+		return (byte)(best+1);
+	}
+	
+	/**
+	 * Finds the voxel hit by a pickRay, or the empty cell in front of the hit
+	 * face.
+	 * 
+	 * @param pickRay the ray to test against
+	 * @param cell receives the x, y and z coordinates of the cell
+	 * @param inFront whether to return the cell in front of the hit face
+	 * rather than the hit voxel
+	 * @return true if the ray hit a voxel and the cell is inside the model
+	 */
+	public boolean pickCell(Ray pickRay, int[] cell, boolean inFront) {
+		RayHit hit = pick(pickRay, cell);
+		if (hit == null) return false;
+		
+		if (inFront) {
+			switch(hit.axis) {
+				case NEG_X: cell[0]--; break;
+				case NEG_Y: cell[1]--; break;
+				case NEG_Z: cell[2]--; break;
+				case POS_X: cell[0]++; break;
+				case POS_Y: cell[1]++; break;
+				case POS_Z: cell[2]++; break;
 			}
 		}
-
-		if (dy1 < dy2) {
-			hitDistance = dy1/pickRay.direction.y;
-			hitY = y1;
-			hitX = pickRay.origin.x + pickRay.direction.x*hitDistance;
-			hitZ = pickRay.origin.z + pickRay.direction.z*hitDistance;
-			if (hitX >= x1 && hitX <= x2 && hitZ >= z1 && hitZ <= z2) {
-				return new RayHit(Axis.NEG_Y, new Vector3(hitX, hitY, hitZ));
+		
+		return cell[0] >= 0 && cell[0] < width && cell[1] >= 0 && cell[1] < height &&
+				cell[2] >= 0 && cell[2] < depth;
+	}
+	
+	/**
+	 * Finds the index of a color, adding it to the color list if it's not
+	 * there yet.
+	 *
+	 * @param color the color to look for
+	 * @return the voxel index of the color, or 0 if the list is full
+	 */
+	private byte findColor(Color color) {
+		for (int i = 0; i < colors.size(); ++i) {
+			if (color.equals(colors.get(i))) return (byte)(i+1);
+		}
+		
+		// if the color list can't support a new color, give up
+		if (colors.size() >= 254) return 0;
+		
+		colors.add(color);
+		return (byte)colors.size();
+	}
+	
+	/**
+	 * Finds the first voxel along a pickRay by stepping through the cells
+	 * the ray crosses, in order, until a solid one is found (a 3D DDA). Only
+	 * the cells actually crossed are visited, instead of testing every voxel.
+	 *
+	 * During a brush stroke, painted cells are treated as they were before
+	 * the stroke.
+	 *
+	 * @param pickRay the ray to test against
+	 * @param cell receives the x, y and z coordinates of the hit voxel
+	 * @return a RayHit with the point and the face through which the ray
+	 * entered the voxel, or null if the ray misses every voxel; the same
+	 * RayHit is reused by every pick
+	 */
+	private RayHit pick(Ray pickRay, int[] cell) {
+		// ray in voxel coordinates
+		float ox = pickRay.origin.x - rootLocation.x,
+				oy = pickRay.origin.y - rootLocation.y,
+				oz = pickRay.origin.z - rootLocation.z;
+		float dx = pickRay.direction.x, dy = pickRay.direction.y, dz = pickRay.direction.z;
+		
+		// clip the ray to the bounds, remembering the face it enters through
+		float tMin = 0, tMax = Float.MAX_VALUE;
+		Axis face = null;
+		float[] origin = pickOrigin, direction = pickDirection;
+		int[] size = pickSize;
+		origin[0] = ox;
+		origin[1] = oy;
+		origin[2] = oz;
+		direction[0] = dx;
+		direction[1] = dy;
+		direction[2] = dz;
+		size[0] = width;
+		size[1] = height;
+		size[2] = depth;
+		
+		for (int a = 0; a < 3; ++a) {
+			if (direction[a] == 0) {
+				if (origin[a] < 0 || origin[a] > size[a]) return null;
+				continue;
 			}
-		} else if (dy2 < dy1) {
-			hitDistance = dy2/pickRay.direction.y;
-			hitY = y2;
-			hitX = pickRay.origin.x - pickRay.direction.x*hitDistance;
-			hitZ = pickRay.origin.z - pickRay.direction.z*hitDistance;
-			if (hitX >= x1 && hitX <= x2 && hitZ >= z1 && hitZ <= z2) {
-				return new RayHit(Axis.POS_Y, new Vector3(hitX, hitY, hitZ));
+			
+			float t1 = -origin[a]/direction[a], t2 = (size[a] - origin[a])/direction[a];
+			if (t1 > t2) {
+				float t = t1;
+				t1 = t2;
+				t2 = t;
 			}
+			if (t1 > tMin) {
+				tMin = t1;
+				face = direction[a] > 0 ? NEG_FACES[a] : POS_FACES[a];
+			}
+			tMax = Math.min(tMax, t2);
 		}
-
-		if (dz1 < dz2) {
-			hitDistance = dz1/pickRay.direction.z;
-			hitZ = z1;
-			hitX = pickRay.origin.x + pickRay.direction.x*hitDistance;
-			hitY = pickRay.origin.y + pickRay.direction.y*hitDistance;
-			if (hitX >= x1 && hitX <= x2 && hitY >= y1 && hitY <= y2) {
-				return new RayHit(Axis.NEG_Z, new Vector3(hitX, hitY, hitZ));
+		if (tMin > tMax) return null;
+		
+		// the first cell inside the bounds
+		int x = MathUtils.clamp((int)Math.floor(ox + dx*tMin), 0, width-1),
+				y = MathUtils.clamp((int)Math.floor(oy + dy*tMin), 0, height-1),
+				z = MathUtils.clamp((int)Math.floor(oz + dz*tMin), 0, depth-1);
+		
+		// a ray starting inside the bounds enters against its direction
+		if (face == null) {
+			float ax = Math.abs(dx), ay = Math.abs(dy), az = Math.abs(dz);
+			if (ax >= ay && ax >= az) face = dx > 0 ? Axis.NEG_X : Axis.POS_X;
+			else if (ay >= az) face = dy > 0 ? Axis.NEG_Y : Axis.POS_Y;
+			else face = dz > 0 ? Axis.NEG_Z : Axis.POS_Z;
+		}
+		
+		// distance along the ray to the next cell boundary on each axis, and
+		// between boundaries
+		int stepX = dx > 0 ? 1 : -1, stepY = dy > 0 ? 1 : -1, stepZ = dz > 0 ? 1 : -1;
+		float deltaX = dx != 0 ? Math.abs(1/dx) : Float.MAX_VALUE,
+				deltaY = dy != 0 ? Math.abs(1/dy) : Float.MAX_VALUE,
+				deltaZ = dz != 0 ? Math.abs(1/dz) : Float.MAX_VALUE;
+		float nextX = dx != 0 ? ((dx > 0 ? x+1 : x) - ox)/dx : Float.MAX_VALUE,
+				nextY = dy != 0 ? ((dy > 0 ? y+1 : y) - oy)/dy : Float.MAX_VALUE,
+				nextZ = dz != 0 ? ((dz > 0 ? z+1 : z) - oz)/dz : Float.MAX_VALUE;
+		float t = tMin;
+		
+		while (true) {
+			if (isSolidForPick(x, y, z)) {
+				cell[0] = x;
+				cell[1] = y;
+				cell[2] = z;
+				return pickHit.set(face,
+						pickRay.origin.x + dx*t,
+						pickRay.origin.y + dy*t,
+						pickRay.origin.z + dz*t);
 			}
-		} else if (dz2 < dz1) {
-			hitDistance = dz2/pickRay.direction.z;
-			hitZ = z2;
-			hitX = pickRay.origin.x - pickRay.direction.x*hitDistance;
-			hitY = pickRay.origin.y - pickRay.direction.y*hitDistance;
-			if (hitX >= x1 && hitX <= x2 && hitY >= y1 && hitY <= y2) {
-				return new RayHit(Axis.POS_Z, new Vector3(hitX, hitY, hitZ));
+			
+			// step to the nearest boundary
+			if (nextX <= nextY && nextX <= nextZ) {
+				x += stepX;
+				if (x < 0 || x >= width) return null;
+				t = nextX;
+				nextX += deltaX;
+				face = stepX > 0 ? Axis.NEG_X : Axis.POS_X;
+			} else if (nextY <= nextZ) {
+				y += stepY;
+				if (y < 0 || y >= height) return null;
+				t = nextY;
+				nextY += deltaY;
+				face = stepY > 0 ? Axis.NEG_Y : Axis.POS_Y;
+			} else {
+				z += stepZ;
+				if (z < 0 || z >= depth) return null;
+				t = nextZ;
+				nextZ += deltaZ;
+				face = stepZ > 0 ? Axis.NEG_Z : Axis.POS_Z;
 			}
 		}
-		
-		return null;
+	}
+	
+	/**
+	 * Returns whether a cell counts as solid when picking. Cells painted
+	 * during the current stroke count as they were before it: empty if the
+	 * stroke adds voxels, solid if it removes them.
+	 *
+	 * @param x the x coordinate of the cell
+	 * @param y the y coordinate of the cell
+	 * @param z the z coordinate of the cell
+	 * @return true if a pickRay should stop at the cell
+	 */
+	private boolean isSolidForPick(int x, int y, int z) {
+		if (strokeCells != null && strokeCells.contains(x << 16 | y << 8 | z)) return strokeRemoves;
+		return blocks[x][y][z] != 0;
 	}
 }
@@ -0,0 +1,568 @@
+package shivanhunter.voxelmodeller;
+
+import shivanhunter.voxelmodeller.VoxelModel.Axis;
+
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.math.collision.Ray;
+import com.badlogic.gdx.utils.IntArray;
+
+/**
+ * Read-only spatial queries over the solid voxels of a model, for code that
+ * uses models rather than edits them: point tests, raycasts, box overlap,
+ * nearest solid voxel, and counting or listing the solid voxels in a
+ * region.
+ *
+ * A VoxelQuery is a snapshot: it copies the occupancy of the voxel data
+ * when it is created and never changes afterwards, so it may be used by any
+ * number of threads at once, and later edits of the model are not seen.
+ *
+ * Occupancy is kept as bit rows along z, 64 cells per word, plus a pyramid
+ * of coarser levels: a cell of level n covers 2^n voxels along each axis
+ * and is set if any voxel inside it is solid. Queries skip empty space a
+ * whole pyramid cell at a time, so a ray crossing an empty half of a model
+ * takes a few steps rather than a hundred.
+ *
+ * Points, rays and boxes are in model coordinates, like CollisionBoxes: the
+ * cell (x, y, z) spans rootLocation + (x, y, z) to rootLocation + (x+1,
+ * y+1, z+1). Cells are packed into ints as x << 16 | y << 8 | z.
+ */
+public class VoxelQuery {
+	/**
+	 * The first solid voxel along a ray.
+	 */
+	public static class Hit {
+		// the hit cell
+		public int x, y, z;
+
+		// the face the ray entered the cell through
+		public Axis face;
+
+		// the distance along the ray to the hit, in lengths of its direction
+		public float distance;
+
+		// the point where the ray entered the cell, in model coordinates
+		public final Vector3 point = new Vector3();
+	}
+
+	// children of a pyramid cell in the order findNearest() visits them, as
+	// the axes flipped away from the child nearest the point
+	private static final int[] FLIP_ORDER = {0, 1, 2, 4, 3, 5, 6, 7};
+
+	// size of the grid in x, y and z
+	private final int width, height, depth;
+
+	// the position of the grid's first corner
+	private final Vector3 rootLocation;
+
+	// longs per bit row, and the rows, indexed x*height + y
+	private final int words;
+	private final long[][] rows;
+
+	/*
+	 * Pyramid levels from 1 up to the level that holds the whole grid in one
+	 * cell, as bit sets indexed (x*sizeY + y)*sizeZ + z, and their sizes
+	 * (level 0 is the bit rows)
+	 */
+	private final int levels;
+	private final long[][] pyramid;
+	private final int[][] sizes;
+
+	/**
+	 * Creates a snapshot of the solid voxels of a model's data.
+	 *
+	 * @param data the voxel data and placement of the model
+	 */
+	public VoxelQuery(VoxelData data) {
+		this(data.getBlocks(), data.getWidth(), data.getHeight(), data.getDepth(), data.getRootLocation());
+	}
+
+	/**
+	 * Creates a snapshot of the solid voxels of a grid.
+	 *
+	 * @param blocks the voxel data
+	 * @param width the size of the grid in x
+	 * @param height the size of the grid in y
+	 * @param depth the size of the grid in z
+	 * @param rootLocation the position of the grid's first corner
+	 */
+	VoxelQuery(byte[][][] blocks, int width, int height, int depth, Vector3 rootLocation) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.rootLocation = rootLocation.cpy();
+
+		words = (depth + 63) >> 6;
+		rows = new long[width*height][words];
+		for (int i = 0; i < width; ++i) {
+			for (int j = 0; j < height; ++j) {
+				byte[] column = blocks[i][j];
+				long[] row = rows[i*height + j];
+				for (int k = 0; k < depth; ++k) {
+					if (column[k] != 0) row[k >> 6] |= 1L << k;
+				}
+			}
+		}
+
+		int top = 0;
+		while (1 << top < Math.max(width, Math.max(height, depth))) top++;
+		levels = top;
+		pyramid = new long[levels+1][];
+		sizes = new int[levels+1][];
+		sizes[0] = new int[] {width, height, depth};
+		for (int level = 1; level <= levels; ++level) buildLevel(level);
+	}
+
+	/**
+	 * Builds a pyramid level from the level below it.
+	 *
+	 * @param level the level to build, from 1
+	 */
+	private void buildLevel(int level) {
+		int[] finer = sizes[level-1];
+		int sx = (finer[0] + 1) >> 1, sy = (finer[1] + 1) >> 1, sz = (finer[2] + 1) >> 1;
+		sizes[level] = new int[] {sx, sy, sz};
+		long[] bits = pyramid[level] = new long[(sx*sy*sz + 63) >> 6];
+
+		for (int i = 0; i < finer[0]; ++i) {
+			for (int j = 0; j < finer[1]; ++j) {
+				int parent = ((i >> 1)*sy + (j >> 1))*sz;
+				if (level == 1) {
+					// pairs of bits of a row make one cell; collect the set
+					// pairs at their even bit
+					long[] row = rows[i*height + j];
+					for (int w = 0; w < words; ++w) {
+						long pairs = (row[w] | row[w] >>> 1) & 0x5555555555555555L;
+						while (pairs != 0) {
+							int k = ((w << 6) + Long.numberOfTrailingZeros(pairs)) >> 1;
+							set(bits, parent + k);
+							pairs &= pairs - 1;
+						}
+					}
+				} else {
+					for (int k = 0; k < finer[2]; ++k) {
+						if (isSet(level-1, i, j, k)) set(bits, parent + (k >> 1));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets a bit in a bit set.
+	 *
+	 * @param bits the bit set
+	 * @param index the index of the bit
+	 */
+	private static void set(long[] bits, int index) {
+		bits[index >> 6] |= 1L << index;
+	}
+
+	/**
+	 * Returns whether a cell of a pyramid level holds any solid voxel.
+	 *
+	 * @param level the level, from 0
+	 * @param i the x coordinate of the cell in the level
+	 * @param j the y coordinate of the cell in the level
+	 * @param k the z coordinate of the cell in the level
+	 * @return true if the cell is not empty
+	 */
+	private boolean isSet(int level, int i, int j, int k) {
+		if (level == 0) return (rows[i*height + j][k >> 6] >>> k & 1) != 0;
+		int[] size = sizes[level];
+		int index = (i*size[1] + j)*size[2] + k;
+		return (pyramid[level][index >> 6] >>> index & 1) != 0;
+	}
+
+	/**
+	 * Returns the size of the grid in x.
+	 *
+	 * @return the width of the grid
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Returns the size of the grid in y.
+	 *
+	 * @return the height of the grid
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Returns the size of the grid in z.
+	 *
+	 * @return the depth of the grid
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Returns whether a cell is solid.
+	 *
+	 * @param x the x coordinate of the cell
+	 * @param y the y coordinate of the cell
+	 * @param z the z coordinate of the cell
+	 * @return true if the cell holds a voxel; false outside the grid
+	 */
+	public boolean isSolid(int x, int y, int z) {
+		return x >= 0 && x < width && y >= 0 && y < height && z >= 0 && z < depth &&
+				isSet(0, x, y, z);
+	}
+
+	/**
+	 * Returns whether a point lies inside a solid voxel.
+	 *
+	 * @param point the point, in model coordinates
+	 * @return true if the cell containing the point holds a voxel
+	 */
+	public boolean isSolidAt(Vector3 point) {
+		return isSolid((int)Math.floor(point.x - rootLocation.x), (int)Math.floor(point.y - rootLocation.y),
+				(int)Math.floor(point.z - rootLocation.z));
+	}
+
+	/**
+	 * Finds the first solid voxel along a ray. Starting inside a solid voxel
+	 * counts as hitting it at distance 0.
+	 *
+	 * @param ray the ray, in model coordinates
+	 * @param maxDistance how far along the ray to look, in lengths of its
+	 * direction
+	 * @param hit receives the hit cell, face, distance and point
+	 * @return true if the ray hit a voxel within maxDistance
+	 */
+	public boolean raycast(Ray ray, float maxDistance, Hit hit) {
+		float[] origin = {ray.origin.x - rootLocation.x, ray.origin.y - rootLocation.y,
+				ray.origin.z - rootLocation.z};
+		float[] direction = {ray.direction.x, ray.direction.y, ray.direction.z};
+		int[] size = sizes[0];
+
+		// clip the ray to the bounds, remembering the axis it enters through
+		float tMin = 0, tMax = maxDistance;
+		int face = -1;
+		for (int a = 0; a < 3; ++a) {
+			if (direction[a] == 0) {
+				if (origin[a] < 0 || origin[a] > size[a]) return false;
+				continue;
+			}
+
+			float t1 = -origin[a]/direction[a], t2 = (size[a] - origin[a])/direction[a];
+			if (t1 > t2) {
+				float t = t1;
+				t1 = t2;
+				t2 = t;
+			}
+			if (t1 > tMin) {
+				tMin = t1;
+				face = a;
+			}
+			tMax = Math.min(tMax, t2);
+		}
+		if (tMin > tMax) return false;
+
+		int[] cell = new int[3];
+		for (int a = 0; a < 3; ++a) {
+			cell[a] = MathUtils.clamp((int)Math.floor(origin[a] + direction[a]*tMin), 0, size[a]-1);
+		}
+		float t = tMin;
+
+		while (true) {
+			// the largest empty pyramid cell around the current cell; level
+			// 0 means the cell itself may be solid
+			int level = 0;
+			while (level < levels &&
+					!isSet(level+1, cell[0] >> level+1, cell[1] >> level+1, cell[2] >> level+1)) {
+				level++;
+			}
+			if (level == 0 && isSet(0, cell[0], cell[1], cell[2])) break;
+
+			// leave the empty cube through the face the ray reaches first
+			float exit = Float.MAX_VALUE;
+			int axis = -1, boundary = 0;
+			for (int a = 0; a < 3; ++a) {
+				if (direction[a] == 0) continue;
+				int b = direction[a] > 0 ? ((cell[a] >> level) + 1) << level : (cell[a] >> level) << level;
+				float tExit = (b - origin[a])/direction[a];
+				if (tExit < exit) {
+					exit = tExit;
+					axis = a;
+					boundary = b;
+				}
+			}
+			if (axis < 0 || exit > tMax) return false;
+
+			// the other coordinates stay inside the cube they were in
+			for (int a = 0; a < 3; ++a) {
+				if (a == axis) continue;
+				int base = (cell[a] >> level) << level;
+				cell[a] = MathUtils.clamp((int)Math.floor(origin[a] + direction[a]*exit),
+						base, Math.min(base + (1 << level), size[a]) - 1);
+			}
+			cell[axis] = direction[axis] > 0 ? boundary : boundary - 1;
+			if (cell[axis] < 0 || cell[axis] >= size[axis]) return false;
+
+			t = Math.max(t, exit);
+			face = axis;
+		}
+
+		// a ray starting inside the bounds enters against its direction
+		if (face < 0) {
+			float ax = Math.abs(direction[0]), ay = Math.abs(direction[1]), az = Math.abs(direction[2]);
+			face = ax >= ay && ax >= az ? 0 : ay >= az ? 1 : 2;
+		}
+		boolean positive = direction[face] > 0;
+		switch (face) {
+			case 0: hit.face = positive ? Axis.NEG_X : Axis.POS_X; break;
+			case 1: hit.face = positive ? Axis.NEG_Y : Axis.POS_Y; break;
+			default: hit.face = positive ? Axis.NEG_Z : Axis.POS_Z; break;
+		}
+		hit.x = cell[0];
+		hit.y = cell[1];
+		hit.z = cell[2];
+		hit.distance = t;
+		hit.point.set(ray.direction).scl(t).add(ray.origin);
+		return true;
+	}
+
+	/**
+	 * Returns whether any solid voxel overlaps a box. Voxels that only touch
+	 * the box count as overlapping, as in CollisionBoxes.
+	 *
+	 * @param bounds the box, in model coordinates
+	 * @return true if a solid voxel overlaps or touches the box
+	 */
+	public boolean overlaps(BoundingBox bounds) {
+		// cell x spans x to x+1, so it touches [min, max] if x+1 >= min and
+		// x <= max
+		int x1 = (int)Math.ceil(bounds.min.x - rootLocation.x) - 1,
+				y1 = (int)Math.ceil(bounds.min.y - rootLocation.y) - 1,
+				z1 = (int)Math.ceil(bounds.min.z - rootLocation.z) - 1,
+				x2 = (int)Math.floor(bounds.max.x - rootLocation.x) + 1,
+				y2 = (int)Math.floor(bounds.max.y - rootLocation.y) + 1,
+				z2 = (int)Math.floor(bounds.max.z - rootLocation.z) + 1;
+		return visit(x1, y1, z1, x2, y2, z2, null, true) > 0;
+	}
+
+	/**
+	 * Counts the solid voxels in a region.
+	 *
+	 * @param region the cells to count; parts outside the grid are ignored
+	 * @return the number of solid cells
+	 */
+	public int countSolids(VoxelRegion region) {
+		return visit(region.x1, region.y1, region.z1, region.x2, region.y2, region.z2, null, false);
+	}
+
+	/**
+	 * Lists the solid voxels in a region, in no particular order.
+	 *
+	 * @param region the cells to look at; parts outside the grid are ignored
+	 * @param results receives the solid cells, packed as x << 16 | y << 8 | z
+	 * @return the number of solid cells
+	 */
+	public int findSolids(VoxelRegion region, IntArray results) {
+		return visit(region.x1, region.y1, region.z1, region.x2, region.y2, region.z2, results, false);
+	}
+
+	/**
+	 * Visits the solid voxels in a region of cells, descending the pyramid
+	 * from its top cell.
+	 *
+	 * @param x1 the lower x coordinate of the region (inclusive)
+	 * @param y1 the lower y coordinate of the region (inclusive)
+	 * @param z1 the lower z coordinate of the region (inclusive)
+	 * @param x2 the upper x coordinate of the region (exclusive)
+	 * @param y2 the upper y coordinate of the region (exclusive)
+	 * @param z2 the upper z coordinate of the region (exclusive)
+	 * @param results receives the solid cells, or null
+	 * @param first whether to stop after finding one
+	 * @return the number of solid cells found
+	 */
+	private int visit(int x1, int y1, int z1, int x2, int y2, int z2, IntArray results, boolean first) {
+		x1 = Math.max(x1, 0);
+		y1 = Math.max(y1, 0);
+		z1 = Math.max(z1, 0);
+		x2 = Math.min(x2, width);
+		y2 = Math.min(y2, height);
+		z2 = Math.min(z2, depth);
+		if (x1 >= x2 || y1 >= y2 || z1 >= z2) return 0;
+		return visit(levels, 0, 0, 0, x1, y1, z1, x2, y2, z2, results, first);
+	}
+
+	/**
+	 * Visits the solid voxels in the part of a region covered by a pyramid
+	 * cell. Empty cells are skipped; small cells, and cells that are
+	 * entirely inside the region and no wider than a bit row word, are
+	 * counted straight from the bit rows.
+	 *
+	 * @param level the level of the cell
+	 * @param i the x coordinate of the cell in its level
+	 * @param j the y coordinate of the cell in its level
+	 * @param k the z coordinate of the cell in its level
+	 * @param x1 the lower x coordinate of the region (inclusive)
+	 * @param y1 the lower y coordinate of the region (inclusive)
+	 * @param z1 the lower z coordinate of the region (inclusive)
+	 * @param x2 the upper x coordinate of the region (exclusive)
+	 * @param y2 the upper y coordinate of the region (exclusive)
+	 * @param z2 the upper z coordinate of the region (exclusive)
+	 * @param results receives the solid cells, or null
+	 * @param first whether to stop after finding one
+	 * @return the number of solid cells found
+	 */
+	private int visit(int level, int i, int j, int k, int x1, int y1, int z1, int x2, int y2, int z2,
+			IntArray results, boolean first) {
+		if (!isSet(level, i, j, k)) return 0;
+
+		// the part of the region inside the cell
+		int cx1 = Math.max(i << level, x1), cx2 = Math.min((i+1) << level, x2),
+				cy1 = Math.max(j << level, y1), cy2 = Math.min((j+1) << level, y2),
+				cz1 = Math.max(k << level, z1), cz2 = Math.min((k+1) << level, z2);
+		if (cx1 >= cx2 || cy1 >= cy2 || cz1 >= cz2) return 0;
+
+		boolean inside = cx1 == i << level && cy1 == j << level && cz1 == k << level &&
+				cx2 == Math.min((i+1) << level, width) && cy2 == Math.min((j+1) << level, height) &&
+				cz2 == Math.min((k+1) << level, depth);
+		if (level <= 1 || inside && level <= 6) {
+			return scanRows(cx1, cy1, cz1, cx2, cy2, cz2, results, first);
+		}
+
+		int found = 0;
+		for (int c = 0; c < 8; ++c) {
+			int ci = i*2 + (c & 1), cj = j*2 + (c >> 1 & 1), ck = k*2 + (c >> 2);
+			int[] size = sizes[level-1];
+			if (ci >= size[0] || cj >= size[1] || ck >= size[2]) continue;
+
+			found += visit(level-1, ci, cj, ck, cx1, cy1, cz1, cx2, cy2, cz2, results, first);
+			if (first && found > 0) break;
+		}
+		return found;
+	}
+
+	/**
+	 * Counts and lists the solid voxels of a region using the bit rows.
+	 *
+	 * @param x1 the lower x coordinate of the region (inclusive)
+	 * @param y1 the lower y coordinate of the region (inclusive)
+	 * @param z1 the lower z coordinate of the region (inclusive)
+	 * @param x2 the upper x coordinate of the region (exclusive)
+	 * @param y2 the upper y coordinate of the region (exclusive)
+	 * @param z2 the upper z coordinate of the region (exclusive)
+	 * @param results receives the solid cells, or null
+	 * @param first whether to stop after finding one
+	 * @return the number of solid cells found
+	 */
+	private int scanRows(int x1, int y1, int z1, int x2, int y2, int z2, IntArray results, boolean first) {
+		int found = 0;
+		for (int x = x1; x < x2; ++x) {
+			for (int y = y1; y < y2; ++y) {
+				long[] row = rows[x*height + y];
+				for (int w = z1 >> 6; w <= (z2-1) >> 6; ++w) {
+					// the bits of the word between z1 and z2
+					long mask = -1L;
+					if (w == z1 >> 6) mask &= -1L << z1;
+					if (w == (z2-1) >> 6) mask &= -1L >>> (63 - ((z2-1) & 63));
+					long bits = row[w] & mask;
+					if (bits == 0) continue;
+
+					if (first) return 1;
+					found += Long.bitCount(bits);
+					if (results != null) {
+						while (bits != 0) {
+							results.add(x << 16 | y << 8 | (w << 6) + Long.numberOfTrailingZeros(bits));
+							bits &= bits - 1;
+						}
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Finds the solid voxel nearest to a point, measuring to the nearest
+	 * point of each voxel, so a point inside a solid voxel is at distance 0.
+	 *
+	 * @param point the point, in model coordinates
+	 * @param radius how far from the point to look
+	 * @param cell receives the x, y and z coordinates of the nearest voxel
+	 * @return the distance to the voxel, or -1 if no voxel is within radius
+	 */
+	public float findNearest(Vector3 point, float radius, int[] cell) {
+		float px = point.x - rootLocation.x, py = point.y - rootLocation.y, pz = point.z - rootLocation.z;
+
+		// the best squared distance so far and its cell, packed
+		float[] best = {radius*radius};
+		int[] nearest = {-1};
+		findNearest(levels, 0, 0, 0, px, py, pz, best, nearest);
+
+		if (nearest[0] < 0) return -1;
+		cell[0] = nearest[0] >> 16;
+		cell[1] = nearest[0] >> 8 & 0xFF;
+		cell[2] = nearest[0] & 0xFF;
+		return (float)Math.sqrt(best[0]);
+	}
+
+	/**
+	 * Searches a pyramid cell for a solid voxel nearer than the best found so
+	 * far, trying the children nearest the point first.
+	 *
+	 * @param level the level of the cell
+	 * @param i the x coordinate of the cell in its level
+	 * @param j the y coordinate of the cell in its level
+	 * @param k the z coordinate of the cell in its level
+	 * @param px the x coordinate of the point, relative to the grid
+	 * @param py the y coordinate of the point, relative to the grid
+	 * @param pz the z coordinate of the point, relative to the grid
+	 * @param best the best squared distance so far, updated when a nearer
+	 * voxel is found
+	 * @param nearest the packed cell of the best voxel so far, updated with it
+	 */
+	private void findNearest(int level, int i, int j, int k, float px, float py, float pz,
+			float[] best, int[] nearest) {
+		if (!isSet(level, i, j, k)) return;
+
+		int span = 1 << level;
+		float distance = distance(px, i*span, (i+1)*span) + distance(py, j*span, (j+1)*span) +
+				distance(pz, k*span, (k+1)*span);
+		if (distance > best[0]) return;
+
+		if (level == 0) {
+			best[0] = distance;
+			nearest[0] = i << 16 | j << 8 | k;
+			return;
+		}
+
+		// start with the child on the point's side of the middle in every
+		// axis; flipping the fewest axes from there visits nearer children
+		// first, so more of the rest are pruned
+		int half = span >> 1;
+		int near = (px >= i*span + half ? 1 : 0) | (py >= j*span + half ? 2 : 0) |
+				(pz >= k*span + half ? 4 : 0);
+		int[] size = sizes[level-1];
+		for (int flip : FLIP_ORDER) {
+			int c = near ^ flip;
+			int ci = i*2 + (c & 1), cj = j*2 + (c >> 1 & 1), ck = k*2 + (c >> 2);
+			if (ci >= size[0] || cj >= size[1] || ck >= size[2]) continue;
+			findNearest(level-1, ci, cj, ck, px, py, pz, best, nearest);
+		}
+	}
+
+	/**
+	 * Returns the squared distance from a coordinate to a range along one
+	 * axis.
+	 *
+	 * @param p the coordinate
+	 * @param min the start of the range
+	 * @param max the end of the range
+	 * @return 0 inside the range, otherwise the squared distance to it
+	 */
+	private static float distance(float p, float min, float max) {
+		float d = p < min ? min - p : p > max ? p - max : 0;
+		return d*d;
+	}
+}
@@ -0,0 +1,132 @@
+package shivanhunter.voxelmodeller;
+
+/**
+ * An axis-aligned box of voxel cells. The lower corner is inclusive and the
+ * upper corner is exclusive, so a region from (0, 0, 0) to (1, 1, 1) holds
+ * exactly one cell. A region whose upper corner is not above its lower
+ * corner on every axis is empty.
+ */
+public class VoxelRegion {
+	public int x1, y1, z1, x2, y2, z2;
+
+	/**
+	 * Creates an empty region.
+	 */
+	public VoxelRegion() {
+		clear();
+	}
+
+	/**
+	 * Creates a region with the given corners.
+	 *
+	 * @param x1 the lower x coordinate (inclusive)
+	 * @param y1 the lower y coordinate (inclusive)
+	 * @param z1 the lower z coordinate (inclusive)
+	 * @param x2 the upper x coordinate (exclusive)
+	 * @param y2 the upper y coordinate (exclusive)
+	 * @param z2 the upper z coordinate (exclusive)
+	 */
+	public VoxelRegion(int x1, int y1, int z1, int x2, int y2, int z2) {
+		set(x1, y1, z1, x2, y2, z2);
+	}
+
+	/**
+	 * Sets the corners of this region.
+	 *
+	 * @param x1 the lower x coordinate (inclusive)
+	 * @param y1 the lower y coordinate (inclusive)
+	 * @param z1 the lower z coordinate (inclusive)
+	 * @param x2 the upper x coordinate (exclusive)
+	 * @param y2 the upper y coordinate (exclusive)
+	 * @param z2 the upper z coordinate (exclusive)
+	 * @return this region for chaining
+	 */
+	public VoxelRegion set(int x1, int y1, int z1, int x2, int y2, int z2) {
+		this.x1 = x1;
+		this.y1 = y1;
+		this.z1 = z1;
+		this.x2 = x2;
+		this.y2 = y2;
+		this.z2 = z2;
+		return this;
+	}
+
+	/**
+	 * Makes this region empty.
+	 *
+	 * @return this region for chaining
+	 */
+	public VoxelRegion clear() {
+		return set(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+				Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE);
+	}
+
+	/**
+	 * Returns whether this region contains no cells.
+	 *
+	 * @return true if the region is empty
+	 */
+	public boolean isEmpty() {
+		return x2 <= x1 || y2 <= y1 || z2 <= z1;
+	}
+
+	/**
+	 * Grows this region to the smallest region containing both this region
+	 * and the given box. An empty box leaves the region unchanged.
+	 *
+	 * @param x1 the lower x coordinate (inclusive)
+	 * @param y1 the lower y coordinate (inclusive)
+	 * @param z1 the lower z coordinate (inclusive)
+	 * @param x2 the upper x coordinate (exclusive)
+	 * @param y2 the upper y coordinate (exclusive)
+	 * @param z2 the upper z coordinate (exclusive)
+	 * @return this region for chaining
+	 */
+	public VoxelRegion extend(int x1, int y1, int z1, int x2, int y2, int z2) {
+		if (x2 <= x1 || y2 <= y1 || z2 <= z1) return this;
+		if (isEmpty()) return set(x1, y1, z1, x2, y2, z2);
+
+		this.x1 = Math.min(this.x1, x1);
+		this.y1 = Math.min(this.y1, y1);
+		this.z1 = Math.min(this.z1, z1);
+		this.x2 = Math.max(this.x2, x2);
+		this.y2 = Math.max(this.y2, y2);
+		this.z2 = Math.max(this.z2, z2);
+		return this;
+	}
+
+	/**
+	 * Grows this region to contain the given region.
+	 *
+	 * @param other the region to include
+	 * @return this region for chaining
+	 */
+	public VoxelRegion extend(VoxelRegion other) {
+		return extend(other.x1, other.y1, other.z1, other.x2, other.y2, other.z2);
+	}
+
+	/**
+	 * Shrinks this region to the part that lies inside the given box.
+	 *
+	 * @param x1 the lower x coordinate (inclusive)
+	 * @param y1 the lower y coordinate (inclusive)
+	 * @param z1 the lower z coordinate (inclusive)
+	 * @param x2 the upper x coordinate (exclusive)
+	 * @param y2 the upper y coordinate (exclusive)
+	 * @param z2 the upper z coordinate (exclusive)
+	 * @return this region for chaining
+	 */
+	public VoxelRegion clamp(int x1, int y1, int z1, int x2, int y2, int z2) {
+		this.x1 = Math.max(this.x1, x1);
+		this.y1 = Math.max(this.y1, y1);
+		this.z1 = Math.max(this.z1, z1);
+		this.x2 = Math.min(this.x2, x2);
+		this.y2 = Math.min(this.y2, y2);
+		this.z2 = Math.min(this.z2, z2);
+		return this;
+	}
+
+	@Override public String toString() {
+		return "(" + x1 + ", " + y1 + ", " + z1 + ") - (" + x2 + ", " + y2 + ", " + z2 + ")";
+	}
+}
@@ -0,0 +1,149 @@
+package shivanhunter.voxelmodeller;
+
+/**
+ * Flips and quarter turns of grids of voxel data, in the [x][y][z] layout
+ * of VoxelModel. Axes are given as 0 for x, 1 for y and 2 for z.
+ *
+ * Flips work in place. Where a flip covers whole rows or planes, those are
+ * swapped as references instead of copying their contents. Quarter turns
+ * write into one new grid, since the rotated region generally has a
+ * different shape.
+ *
+ * Rotations follow the right-hand rule: a quarter turn around y takes +z to
+ * +x and +x to -z.
+ */
+class VoxelTransforms {
+	/**
+	 * Mirrors a region of a grid along an axis, in place.
+	 *
+	 * @param grid the grid to change
+	 * @param depth the size of the grid in z
+	 * @param region the region to mirror, inside the grid
+	 * @param axis the axis to mirror along
+	 */
+	static void flip(byte[][][] grid, int depth, VoxelRegion region, int axis) {
+		int x1 = region.x1, y1 = region.y1, z1 = region.z1,
+				x2 = region.x2, y2 = region.y2, z2 = region.z2;
+
+		// whole rows can be swapped if the region covers them
+		boolean wholeRows = z1 == 0 && z2 == depth;
+
+		switch (axis) {
+			case 0:
+				for (int i = x1, mi = x2-1; i < mi; ++i, --mi) {
+					for (int j = y1; j < y2; ++j) {
+						if (wholeRows) {
+							byte[] row = grid[i][j];
+							grid[i][j] = grid[mi][j];
+							grid[mi][j] = row;
+						} else {
+							swap(grid[i][j], grid[mi][j], z1, z2);
+						}
+					}
+				}
+				break;
+			case 1:
+				for (int i = x1; i < x2; ++i) {
+					for (int j = y1, mj = y2-1; j < mj; ++j, --mj) {
+						if (wholeRows) {
+							byte[] row = grid[i][j];
+							grid[i][j] = grid[i][mj];
+							grid[i][mj] = row;
+						} else {
+							swap(grid[i][j], grid[i][mj], z1, z2);
+						}
+					}
+				}
+				break;
+			default:
+				for (int i = x1; i < x2; ++i) {
+					for (int j = y1; j < y2; ++j) {
+						byte[] row = grid[i][j];
+						for (int k = z1, mk = z2-1; k < mk; ++k, --mk) {
+							byte b = row[k];
+							row[k] = row[mk];
+							row[mk] = b;
+						}
+					}
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Swaps part of two rows.
+	 *
+	 * @param a the first row
+	 * @param b the second row
+	 * @param from the first index to swap (inclusive)
+	 * @param to the last index to swap (exclusive)
+	 */
+	private static void swap(byte[] a, byte[] b, int from, int to) {
+		for (int k = from; k < to; ++k) {
+			byte t = a[k];
+			a[k] = b[k];
+			b[k] = t;
+		}
+	}
+
+	/**
+	 * Returns the size of a region after a quarter turn around an axis: the
+	 * sizes along the other two axes swap.
+	 *
+	 * @param region the region to turn
+	 * @param axis the axis to turn around
+	 * @return the width, height and depth of the turned region
+	 */
+	static int[] getTurnedSize(VoxelRegion region, int axis) {
+		int w = region.x2 - region.x1, h = region.y2 - region.y1, d = region.z2 - region.z1;
+		switch (axis) {
+			case 0: return new int[] {w, d, h};
+			case 1: return new int[] {d, h, w};
+			default: return new int[] {h, w, d};
+		}
+	}
+
+	/**
+	 * Copies a region of a grid into a new grid, turned a quarter turn
+	 * around an axis. The inner loop runs along the rows of the new grid, so
+	 * every row is written front to back.
+	 *
+	 * @param grid the grid to read
+	 * @param region the region to turn, inside the grid
+	 * @param axis the axis to turn around
+	 * @return the turned region as a new grid, sized by getTurnedSize()
+	 */
+	static byte[][][] turn(byte[][][] grid, VoxelRegion region, int axis) {
+		int[] size = getTurnedSize(region, axis);
+		int x1 = region.x1, y1 = region.y1, z1 = region.z1;
+		int w = region.x2 - x1, h = region.y2 - y1, d = region.z2 - z1;
+		byte[][][] turned = new byte[size[0]][size[1]][size[2]];
+
+		for (int ni = 0; ni < size[0]; ++ni) {
+			for (int nj = 0; nj < size[1]; ++nj) {
+				byte[] row = turned[ni][nj];
+				switch (axis) {
+					case 0:
+						// y' = -z, z' = y: new cell (i, d-1-k, j) is old (i, j, k)
+						for (int nk = 0; nk < size[2]; ++nk) {
+							row[nk] = grid[x1+ni][y1+nk][z1+d-1-nj];
+						}
+						break;
+					case 1:
+						// x' = z, z' = -x: new cell (k, j, w-1-i) is old (i, j, k)
+						for (int nk = 0; nk < size[2]; ++nk) {
+							row[nk] = grid[x1+w-1-nk][y1+nj][z1+ni];
+						}
+						break;
+					default:
+						// x' = -y, y' = x: new cell (h-1-j, i, k) is old (i, j, k),
+						// so rows along z are copied whole
+						System.arraycopy(grid[x1+nj][y1+h-1-ni], z1, row, 0, size[2]);
+						break;
+				}
+			}
+		}
+
+		return turned;
+	}
+}
@@ -0,0 +1,861 @@
+package shivanhunter.voxelmodeller.desktop;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import shivanhunter.voxelmodeller.SmoothMesher;
+import shivanhunter.voxelmodeller.ThumbnailRenderer;
+import shivanhunter.voxelmodeller.VoxelBrush;
+import shivanhunter.voxelmodeller.VoxelData;
+import shivanhunter.voxelmodeller.VoxelJournal;
+import shivanhunter.voxelmodeller.VoxelLOD;
+import shivanhunter.voxelmodeller.VoxelLighting;
+import shivanhunter.voxelmodeller.VoxelMesher;
+import shivanhunter.voxelmodeller.VoxelModel;
+import shivanhunter.voxelmodeller.VoxelQuery;
+import shivanhunter.voxelmodeller.VoxelRegion;
+
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.g3d.ModelInstance;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.math.collision.Ray;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.IntSet;
+
+/**
+ * Checks the optimized paths of the modeller against simple reference
+ * implementations on randomized models, and times them, without a window.
+ *
+ * Everything except the last check runs on a plain JVM with no libGDX
+ * backend at all: the packed mesher against the scalar one, the smooth
+ * surface meshed in chunks against meshing it at once, chunked
+ * remeshing and incremental lighting after edits against meshing the final
+ * data from scratch, the ray picker and spatial queries against testing
+ * every voxel, the chunked file format and journals against the flat version 0 layout,
+ * that picking allocates nothing, that released meshes can be asked for
+ * and restored, and that a batch of thumbnails larger than the worker
+ * threads finishes. The last check builds the GPU meshes under
+ * the headless backend, with a GL stub that accepts every call, and checks
+ * that they hold the vertices they were built from, and that levels of
+ * detail remeshed after edits match levels built from scratch.
+ *
+ * Usage: HeadlessChecks [models] [seed]
+ * Exits with 1 if any check fails.
+ */
+public class HeadlessChecks {
+	private static Random random;
+	private static int failures;
+
+	public static void main (String[] arg) {
+		int models = arg.length > 0 ? Integer.parseInt(arg[0]) : 10;
+		long seed = arg.length > 1 ? Long.parseLong(arg[1]) : System.nanoTime();
+		random = new Random(seed);
+		System.out.println("seed " + seed + ", " + models + " models");
+
+		long start = System.nanoTime();
+		for (int n = 0; n < models; ++n) checkMesher(generate(1 + random.nextInt(64)));
+		report("packed mesher", start);
+
+		start = System.nanoTime();
+		for (int n = 0; n < models; ++n) checkSmooth(generate(1 + random.nextInt(64)));
+		report("smooth surface", start);
+
+		start = System.nanoTime();
+		for (int n = 0; n < models; ++n) checkRemesh(generate(8 + random.nextInt(56)));
+		report("chunked remesh and lighting", start);
+
+		start = System.nanoTime();
+		for (int n = 0; n < models; ++n) checkPick(generate(1 + random.nextInt(48)));
+		report("picking", start);
+
+		start = System.nanoTime();
+		for (int n = 0; n < models; ++n) checkQuery(generate(1 + random.nextInt(48)));
+		report("spatial queries", start);
+
+		start = System.nanoTime();
+		for (int n = 0; n < models; ++n) checkSerialization(generate(1 + random.nextInt(64)));
+		report("serialization and journal", start);
+
+		start = System.nanoTime();
+		checkPickAllocation(generate(64));
+		report("picking without allocation", start);
+
+		start = System.nanoTime();
+		for (int n = 0; n < models; ++n) checkRelease(generate(1 + random.nextInt(64)));
+		report("releasing meshes", start);
+
+		start = System.nanoTime();
+		checkThumbnails();
+		report("batch thumbnails", start);
+
+		start = System.nanoTime();
+		checkUpload(generate(64));
+		report("GPU upload", start);
+
+		System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Prints that a group of checks finished.
+	 *
+	 * @param name the name of the checks
+	 * @param start when the checks started, from System.nanoTime()
+	 */
+	private static void report(String name, long start) {
+		System.out.println(String.format("%-30s %6d ms", name, (System.nanoTime() - start)/1000000));
+	}
+
+	/**
+	 * Records a failed check.
+	 *
+	 * @param message what went wrong
+	 */
+	private static void fail(String message) {
+		System.out.println("  FAILED: " + message);
+		failures++;
+	}
+
+	/**
+	 * Checks that the packed row kernels of the mesher produce exactly the
+	 * vertices of the scalar mesher, with and without lighting.
+	 *
+	 * @param data the model to mesh
+	 */
+	private static void checkMesher(VoxelData data) {
+		VoxelLighting lighting = new VoxelLighting(data.getBlocks(),
+				data.getWidth(), data.getHeight(), data.getDepth(), data.getEmission());
+		lighting.rebuild();
+
+		for (VoxelLighting light : new VoxelLighting[] {null, lighting}) {
+			VoxelMesher mesher = new VoxelMesher(data.getBlocks(),
+					data.getWidth(), data.getHeight(), data.getDepth(), data.getColors()).setLighting(light);
+			float[] fast = mesher.setPackedRows(true).mesh(1);
+			float[] reference = mesher.setPackedRows(false).mesh(1);
+			if (!Arrays.equals(fast, reference)) {
+				fail("packed mesher differs on " + describe(data) + (light != null ? " with lighting" : ""));
+			}
+		}
+	}
+
+	/**
+	 * Checks that the smooth surface meshed in chunks has the same triangles
+	 * as the surface meshed at once, and that it is closed and faces
+	 * outwards: every edge runs as often one way as the other, and the
+	 * volume enclosed by the triangles' winding is positive.
+	 *
+	 * @param data the model to mesh
+	 */
+	private static void checkSmooth(VoxelData data) {
+		SmoothMesher mesher = new SmoothMesher(data.getBlocks(),
+				data.getWidth(), data.getHeight(), data.getDepth(), data.getColors());
+		ArrayList<String> whole = triangles(mesher.mesh(0, 0, 0, data.getWidth(), data.getHeight(), data.getDepth()));
+		ArrayList<String> chunked = new ArrayList<String>();
+		for (SmoothMesher.Surface surface : mesher.meshChunks(1 + random.nextInt(32))) {
+			chunked.addAll(triangles(surface));
+		}
+		Collections.sort(chunked);
+		if (!whole.equals(chunked)) fail("smooth chunks differ from the whole surface on " + describe(data));
+
+		SmoothMesher.Surface surface = mesher.mesh(0, 0, 0, data.getWidth(), data.getHeight(), data.getDepth());
+		float[] v = surface.vertices;
+		int[] indices = surface.indices;
+		HashMap<String, Integer> edges = new HashMap<String, Integer>();
+		float volume = 0;
+		for (int t = 0; t < indices.length; t += 3) {
+			for (int i = 0; i < 3; ++i) {
+				String edge = indices[t+i] + " " + indices[t + (i+1) % 3];
+				Integer count = edges.get(edge);
+				edges.put(edge, count == null ? 1 : count + 1);
+			}
+
+			// the signed volume of the tetrahedron from the origin to the
+			// triangle; summed over a closed surface, this is its volume
+			int a = indices[t]*VoxelMesher.FLOATS, b = indices[t+1]*VoxelMesher.FLOATS,
+					c = indices[t+2]*VoxelMesher.FLOATS;
+			volume += new Vector3(v[a], v[a+1], v[a+2])
+					.dot(new Vector3(v[b], v[b+1], v[b+2]).crs(v[c], v[c+1], v[c+2]))/6;
+		}
+		for (String edge : edges.keySet()) {
+			String[] ends = edge.split(" ");
+			if (!edges.get(edge).equals(edges.get(ends[1] + " " + ends[0]))) {
+				fail("smooth surface is not closed on " + describe(data));
+				return;
+			}
+		}
+		if (indices.length > 0 && volume <= 0) fail("smooth surface faces inwards on " + describe(data));
+	}
+
+	/**
+	 * Lists the triangles of a surface by the positions of their vertices,
+	 * starting at the smallest, and sorts them, so that surfaces holding the
+	 * same triangles compare equal.
+	 *
+	 * @param surface the surface generated by SmoothMesher
+	 * @return the sorted triangles
+	 */
+	private static ArrayList<String> triangles(SmoothMesher.Surface surface) {
+		ArrayList<String> triangles = new ArrayList<String>();
+		float[] v = surface.vertices;
+		String[] corners = new String[3];
+		for (int t = 0; t < surface.indices.length; t += 3) {
+			int first = 0;
+			for (int i = 0; i < 3; ++i) {
+				int start = surface.indices[t+i]*VoxelMesher.FLOATS;
+				corners[i] = Arrays.toString(Arrays.copyOfRange(v, start, start + VoxelMesher.FLOATS));
+				if (corners[i].compareTo(corners[first]) < 0) first = i;
+			}
+			triangles.add(corners[first] + corners[(first+1) % 3] + corners[(first+2) % 3]);
+		}
+		Collections.sort(triangles);
+		return triangles;
+	}
+
+	/**
+	 * Checks that after painting, cutting, pasting, turning and changing
+	 * emission, the chunks remeshed by flushEdits() and the incrementally
+	 * updated lighting produce the same faces as meshing and lighting the
+	 * final data from scratch, blocky or smooth.
+	 *
+	 * @param data the model to edit
+	 */
+	private static void checkRemesh(VoxelData data) {
+		VoxelModel model = new VoxelModel(data.serialize());
+		model.setSmooth(random.nextBoolean());
+		model.setBakedLighting(random.nextBoolean());
+		if (model.hasBakedLighting()) model.setEmission(data.getColors().get(0), 1 + random.nextInt(15));
+
+		VoxelBrush brush = new VoxelBrush();
+		Color clear = new Color(0, 0, 0, 0);
+		for (int stroke = 0; stroke < 10; ++stroke) {
+			if (random.nextInt(3) == 0) {
+				editRegion(model);
+				continue;
+			}
+			if (random.nextInt(4) == 0) {
+				Color color = data.getColors().get(random.nextInt(data.getColors().size()));
+				model.setEmission(color, random.nextInt(2) == 0 ? 0 : random.nextInt(16));
+				continue;
+			}
+
+			brush.setShape(VoxelBrush.Shape.values()[random.nextInt(VoxelBrush.Shape.values().length)]);
+			brush.setRadius(random.nextInt(4));
+			Color color = random.nextInt(3) == 0 ? clear : data.getColors().get(random.nextInt(data.getColors().size()));
+
+			model.beginStroke();
+			for (int n = 0; n < 5; ++n) model.paint(randomRay(model), color, brush);
+			model.endStroke();
+			if (random.nextBoolean()) model.flushEdits();
+		}
+		model.flushEdits();
+
+		VoxelModel fresh = new VoxelModel(model.serialize());
+		fresh.setSmooth(model.isSmooth());
+		fresh.setBakedLighting(model.hasBakedLighting());
+
+		// smooth chunks are meshed the same way either way, blocky chunks
+		// may list their quads in a different order
+		boolean same = model.isSmooth() ? Arrays.equals(model.getVertices(), fresh.getVertices()) :
+				quads(model.getVertices()).equals(quads(fresh.getVertices()));
+		if (!same) {
+			fail("remeshed chunks differ from a full mesh on " + describe(data) +
+					(model.isSmooth() ? ", smooth" : "") + (model.hasBakedLighting() ? " with lighting" : ""));
+		}
+	}
+
+	/**
+	 * Makes a random bulk edit of a random region: a cut, a paste of a copy
+	 * somewhere else, a turn or a flip.
+	 *
+	 * @param model the model to edit
+	 */
+	private static void editRegion(VoxelModel model) {
+		int w = model.getWidth(), h = model.getHeight(), d = model.getDepth();
+		int x = random.nextInt(w), y = random.nextInt(h), z = random.nextInt(d);
+		VoxelRegion region = new VoxelRegion(x, y, z, x + 1 + random.nextInt(w - x),
+				y + 1 + random.nextInt(h - y), z + 1 + random.nextInt(d - z));
+		int axis = random.nextInt(3);
+
+		switch (random.nextInt(4)) {
+			case 0: model.cut(region); break;
+			case 1:
+				model.paste(model.copy(region), random.nextInt(w), random.nextInt(h), random.nextInt(d));
+				break;
+			case 2: model.rotate(region, axis, 1 + random.nextInt(3)); break;
+			default: model.flip(region, axis); break;
+		}
+	}
+
+	/**
+	 * Splits vertices into quads and sorts them, so that meshes holding the
+	 * same faces in a different order compare equal.
+	 *
+	 * @param vertices the vertices generated by VoxelMesher
+	 * @return the sorted quads
+	 */
+	private static ArrayList<String> quads(float[] vertices) {
+		int quadFloats = VoxelMesher.FLOATS*VoxelMesher.VERTS;
+		ArrayList<String> quads = new ArrayList<String>();
+		for (int q = 0; q < vertices.length; q += quadFloats) {
+			quads.add(Arrays.toString(Arrays.copyOfRange(vertices, q, q + quadFloats)));
+		}
+		Collections.sort(quads);
+		return quads;
+	}
+
+	/**
+	 * Checks that pickCell() finds the nearest voxel along random rays, by
+	 * intersecting each ray with every voxel.
+	 *
+	 * @param data the model to pick
+	 */
+	private static void checkPick(VoxelData data) {
+		VoxelModel model = new VoxelModel(data.serialize());
+		byte[][][] blocks = data.getBlocks();
+		Vector3 root = data.getRootLocation();
+		int[] cell = new int[3];
+
+		for (int n = 0; n < 200; ++n) {
+			Ray ray = randomRay(model);
+			boolean hit = model.pickCell(ray, cell, false);
+
+			// the entry distance of the nearest voxel, and of the picked one
+			float nearest = Float.MAX_VALUE, picked = Float.MAX_VALUE;
+			for (int x = 0; x < data.getWidth(); ++x) {
+				for (int y = 0; y < data.getHeight(); ++y) {
+					for (int z = 0; z < data.getDepth(); ++z) {
+						if (blocks[x][y][z] == 0) continue;
+						float t = intersect(ray, root.x + x, root.y + y, root.z + z);
+						nearest = Math.min(nearest, t);
+						if (hit && x == cell[0] && y == cell[1] && z == cell[2]) picked = t;
+					}
+				}
+			}
+
+			// rays grazing an edge may pick either of two voxels at the same
+			// distance
+			if (hit != (nearest != Float.MAX_VALUE) || hit && picked - nearest > 1e-3f) {
+				fail("picked " + (hit ? Arrays.toString(cell) + " at " + picked : "nothing") +
+						" instead of a voxel at " + nearest + " on " + describe(data) + ", " + ray);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Checks the spatial queries against testing every voxel: raycasts,
+	 * nearest voxels, counting and listing voxels in regions, and box
+	 * overlap.
+	 *
+	 * @param data the model to query
+	 */
+	private static void checkQuery(VoxelData data) {
+		VoxelModel model = new VoxelModel(data.serialize());
+		VoxelQuery query = new VoxelQuery(data);
+		byte[][][] blocks = data.getBlocks();
+		Vector3 root = data.getRootLocation();
+		int w = data.getWidth(), h = data.getHeight(), d = data.getDepth();
+		VoxelQuery.Hit hit = new VoxelQuery.Hit();
+		int[] cell = new int[3];
+
+		for (int n = 0; n < 100; ++n) {
+			// the nearest voxel along a ray, within a random distance
+			Ray ray = randomRay(model);
+			float maxDistance = random.nextFloat()*3*(w + h + d);
+			float nearest = Float.MAX_VALUE, picked = Float.MAX_VALUE;
+			boolean found = query.raycast(ray, maxDistance, hit);
+			for (int x = 0; x < w; ++x) {
+				for (int y = 0; y < h; ++y) {
+					for (int z = 0; z < d; ++z) {
+						if (blocks[x][y][z] == 0) continue;
+						float t = intersect(ray, root.x + x, root.y + y, root.z + z);
+						nearest = Math.min(nearest, t);
+						if (found && x == hit.x && y == hit.y && z == hit.z) picked = t;
+					}
+				}
+			}
+			if (found != nearest <= maxDistance && Math.abs(nearest - maxDistance) > 1e-3f ||
+					found && (picked - nearest > 1e-3f || Math.abs(hit.distance - picked) > 1e-3f)) {
+				fail("raycast found " + (found ? hit.x + "," + hit.y + "," + hit.z + " at " + hit.distance :
+						"nothing") + " instead of a voxel at " + nearest + " on " + describe(data));
+				return;
+			}
+
+			// the nearest voxel to a point around the model
+			Vector3 point = new Vector3(root.x + (random.nextFloat()*1.5f - 0.25f)*w,
+					root.y + (random.nextFloat()*1.5f - 0.25f)*h, root.z + (random.nextFloat()*1.5f - 0.25f)*d);
+			float radius = random.nextFloat()*(w + h + d)/2;
+			float distance = query.findNearest(point, radius, cell);
+			float expected = Float.MAX_VALUE;
+			for (int x = 0; x < w; ++x) {
+				for (int y = 0; y < h; ++y) {
+					for (int z = 0; z < d; ++z) {
+						if (blocks[x][y][z] == 0) continue;
+						float dx = Math.max(Math.max(root.x + x - point.x, point.x - root.x - x - 1), 0),
+								dy = Math.max(Math.max(root.y + y - point.y, point.y - root.y - y - 1), 0),
+								dz = Math.max(Math.max(root.z + z - point.z, point.z - root.z - z - 1), 0);
+						expected = Math.min(expected, (float)Math.sqrt(dx*dx + dy*dy + dz*dz));
+					}
+				}
+			}
+			boolean within = expected <= radius;
+			if (Math.abs(expected - radius) > 1e-3f && (distance >= 0) != within ||
+					distance >= 0 && (Math.abs(distance - expected) > 1e-3f || blocks[cell[0]][cell[1]][cell[2]] == 0)) {
+				fail("nearest voxel at " + distance + " instead of " + expected + " on " + describe(data));
+				return;
+			}
+
+			// the voxels of a region, which may stick out of the model
+			VoxelRegion region = new VoxelRegion(random.nextInt(w+2) - 1, random.nextInt(h+2) - 1,
+					random.nextInt(d+2) - 1, 0, 0, 0);
+			region.x2 = region.x1 + random.nextInt(w+1);
+			region.y2 = region.y1 + random.nextInt(h+1);
+			region.z2 = region.z1 + random.nextInt(d+1);
+			int count = 0;
+			for (int x = Math.max(region.x1, 0); x < Math.min(region.x2, w); ++x) {
+				for (int y = Math.max(region.y1, 0); y < Math.min(region.y2, h); ++y) {
+					for (int z = Math.max(region.z1, 0); z < Math.min(region.z2, d); ++z) {
+						if (blocks[x][y][z] != 0) count++;
+					}
+				}
+			}
+			IntArray cells = new IntArray();
+			query.findSolids(region, cells);
+			IntSet unique = new IntSet();
+			for (int c = 0; c < cells.size; ++c) {
+				int x = cells.get(c) >> 16, y = cells.get(c) >> 8 & 0xFF, z = cells.get(c) & 0xFF;
+				if (blocks[x][y][z] != 0 && x >= region.x1 && x < region.x2 && y >= region.y1 &&
+						y < region.y2 && z >= region.z1 && z < region.z2) unique.add(cells.get(c));
+			}
+			if (query.countSolids(region) != count || cells.size != count || unique.size != count) {
+				fail("counted " + query.countSolids(region) + " and listed " + cells.size + " voxels instead of " +
+						count + " on " + describe(data));
+				return;
+			}
+
+			// a box overlapping the region's cells; shrinking it a little
+			// keeps it from touching the cells around them
+			BoundingBox box = new BoundingBox(
+					new Vector3(root.x + region.x1 + 0.01f, root.y + region.y1 + 0.01f, root.z + region.z1 + 0.01f),
+					new Vector3(root.x + region.x2 - 0.01f, root.y + region.y2 - 0.01f, root.z + region.z2 - 0.01f));
+			if (!region.isEmpty() && query.overlaps(box) != (count > 0)) {
+				fail("box overlap is " + query.overlaps(box) + " with " + count + " voxels inside on " + describe(data));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Intersects a ray with a unit cube.
+	 *
+	 * @param ray the ray
+	 * @param x the minimum x of the cube
+	 * @param y the minimum y of the cube
+	 * @param z the minimum z of the cube
+	 * @return the distance along the ray at which it enters the cube, 0 if
+	 * it starts inside, or Float.MAX_VALUE if it misses
+	 */
+	private static float intersect(Ray ray, float x, float y, float z) {
+		float[] origin = {ray.origin.x, ray.origin.y, ray.origin.z};
+		float[] direction = {ray.direction.x, ray.direction.y, ray.direction.z};
+		float[] min = {x, y, z};
+		float tMin = 0, tMax = Float.MAX_VALUE;
+		for (int a = 0; a < 3; ++a) {
+			if (direction[a] == 0) {
+				if (origin[a] < min[a] || origin[a] > min[a] + 1) return Float.MAX_VALUE;
+				continue;
+			}
+			float t1 = (min[a] - origin[a])/direction[a], t2 = (min[a] + 1 - origin[a])/direction[a];
+			tMin = Math.max(tMin, Math.min(t1, t2));
+			tMax = Math.min(tMax, Math.max(t1, t2));
+		}
+		return tMin <= tMax ? tMin : Float.MAX_VALUE;
+	}
+
+	/**
+	 * Checks that the chunked file format and journals reproduce a model
+	 * exactly, compared to the flat version 0 layout.
+	 *
+	 * @param data the model to save
+	 */
+	private static void checkSerialization(VoxelData data) {
+		VoxelData reference = VoxelData.read(SerializationBenchmark.writeVersion0(data));
+		if (!same(VoxelData.read(data.serialize()), reference)) {
+			fail("version 3 round trip differs on " + describe(data));
+		}
+		if (!same(VoxelData.read(new VoxelModel(data.serialize()).serialize()), reference)) {
+			fail("saving a loaded model differs on " + describe(data));
+		}
+
+		File file = null;
+		try {
+			file = File.createTempFile("checks", ".voxel");
+			VoxelJournal journal = new VoxelJournal(new FileHandle(file));
+			journal.save(data);
+
+			// journal random edits, then replay them; halfway through, the
+			// journal's copy is released and taken again as the model cache does
+			byte[][][] blocks = data.getBlocks();
+			for (int n = 0; n < 5; ++n) {
+				if (n == 2) {
+					journal.releaseCopy();
+					if (journal.getCopyBytes() != 0) fail("released journal copy still counts memory");
+					journal.restoreCopy(data);
+				}
+				for (int m = random.nextInt(50); m >= 0; --m) {
+					blocks[random.nextInt(data.getWidth())][random.nextInt(data.getHeight())]
+							[random.nextInt(data.getDepth())] = (byte)random.nextInt(data.getColors().size() + 1);
+				}
+				journal.append(data);
+			}
+			if (!same(VoxelJournal.read(new FileHandle(file)), data)) {
+				fail("journal replay differs on " + describe(data));
+			}
+
+			// a fold that can't write must leave the file and journal intact
+			File temp = new File(file.getPath() + ".tmp");
+			temp.mkdir();
+			try {
+				journal.save(generate(1));
+				fail("folding over an unwritable temporary file succeeded");
+			} catch (GdxRuntimeException e) {
+				if (!same(new VoxelJournal(new FileHandle(file)).load(), data)) {
+					fail("failed fold damaged the file on " + describe(data));
+				}
+			}
+			temp.delete();
+
+			journal.save(data);
+			if (new File(file.getPath() + ".journal").exists() || temp.exists()) {
+				fail("folding left the journal or temporary file behind");
+			}
+			if (!same(new VoxelJournal(new FileHandle(file)).load(), data)) {
+				fail("folded file differs on " + describe(data));
+			}
+		} catch (IOException e) {
+			fail("can't create a temporary file: " + e);
+		} finally {
+			if (file != null) {
+				file.delete();
+				new File(file.getPath() + ".journal").delete();
+			}
+		}
+	}
+
+	/**
+	 * Compares the voxels, colors and placement of two models.
+	 *
+	 * @param a the first model
+	 * @param b the second model
+	 * @return true if they are the same
+	 */
+	private static boolean same(VoxelData a, VoxelData b) {
+		return Arrays.deepEquals(a.getBlocks(), b.getBlocks()) && a.getColors().equals(b.getColors()) &&
+				a.getScale() == b.getScale() && a.getRootLocation().equals(b.getRootLocation());
+	}
+
+	/**
+	 * Checks that picking allocates nothing, since it runs on every mouse
+	 * move. Needs a JVM that counts allocated bytes per thread.
+	 *
+	 * @param data the model to pick
+	 */
+	private static void checkPickAllocation(VoxelData data) {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			System.out.println("  skipped: allocation counting not supported");
+			return;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+
+		VoxelModel model = new VoxelModel(data.serialize());
+		Ray[] rays = new Ray[256];
+		for (int n = 0; n < rays.length; ++n) rays[n] = randomRay(model);
+		int[] cell = new int[3];
+
+		// warm up so that nothing is allocated by class loading or the JIT
+		for (int n = 0; n < 100000; ++n) model.pickCell(rays[n % rays.length], cell, n % 2 == 0);
+
+		long id = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(id);
+		for (int n = 0; n < 100000; ++n) model.pickCell(rays[n % rays.length], cell, n % 2 == 0);
+		long bytes = threads.getThreadAllocatedBytes(id) - before;
+
+		// allow for the measurement itself
+		if (bytes > 1024) fail("100000 picks allocated " + bytes + " bytes");
+	}
+
+	/**
+	 * Checks that building a model's GPU meshes keeps its vertices, and
+	 * that the chunks of each level of detail remeshed after edits match
+	 * the level meshed from scratch, under the headless backend with a GL
+	 * stub in place of a real context.
+	 *
+	 * @param data the model to build
+	 */
+	private static void checkUpload(final VoxelData data) {
+		final CountDownLatch done = new CountDownLatch(1);
+		ApplicationAdapter listener = new ApplicationAdapter() {
+			@Override
+			public void create() {
+				try {
+					Gdx.gl = Gdx.gl20 = stubGL();
+					VoxelModel model = new VoxelModel(data.serialize());
+					float[] before = model.getVertices();
+					if (model.getInstances(0).size == 0) fail("no chunks were built");
+					if (!Arrays.equals(model.getVertices(), before)) {
+						fail("GPU meshes differ from the generated vertices on " + describe(data));
+					}
+					model.dispose();
+					checkLevels(data);
+				} catch (RuntimeException e) {
+					fail("building GPU meshes failed: " + e);
+				} finally {
+					done.countDown();
+					Gdx.app.exit();
+				}
+			}
+		};
+
+		try {
+			new HeadlessApplication(listener);
+		} catch (GdxRuntimeException e) {
+			fail("can't start the headless backend: " + e.getMessage());
+			return;
+		}
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Renders every level of detail of a lit model, paints and changes
+	 * emission while each level is shown, and compares the levels with
+	 * those of the final data meshed from scratch. Needs a GL context.
+	 *
+	 * @param data the model to edit
+	 */
+	private static void checkLevels(VoxelData data) {
+		VoxelModel model = new VoxelModel(data.serialize());
+		model.setBakedLighting(true);
+		for (int level = 1; level <= VoxelLOD.LEVELS; ++level) model.getInstances(level);
+
+		VoxelBrush brush = new VoxelBrush();
+		for (int stroke = 0; stroke < 10; ++stroke) {
+			Color color = data.getColors().get(random.nextInt(data.getColors().size()));
+			if (random.nextInt(4) == 0) {
+				model.setEmission(color, random.nextInt(16));
+			} else {
+				brush.setRadius(random.nextInt(4));
+				model.beginStroke();
+				for (int n = 0; n < 5; ++n) {
+					model.paint(randomRay(model), random.nextInt(3) == 0 ? new Color(0, 0, 0, 0) : color, brush);
+				}
+				model.endStroke();
+				model.flushEdits();
+			}
+			model.getInstances(1 + random.nextInt(VoxelLOD.LEVELS));
+		}
+
+		VoxelModel fresh = new VoxelModel(model.serialize());
+		fresh.setBakedLighting(true);
+		for (int level = 1; level <= VoxelLOD.LEVELS; ++level) {
+			if (!quads(vertices(model.getInstances(level))).equals(quads(vertices(fresh.getInstances(level))))) {
+				fail("level " + level + " remeshed after edits differs from a full mesh on " + describe(data));
+			}
+		}
+		model.dispose();
+		fresh.dispose();
+	}
+
+	/**
+	 * Reads back the vertices of a set of instances.
+	 *
+	 * @param instances the instances to read
+	 * @return the vertices of every mesh of every instance
+	 */
+	private static float[] vertices(Array<ModelInstance> instances) {
+		FloatArray vertices = new FloatArray();
+		for (ModelInstance instance : instances) {
+			for (Mesh mesh : instance.model.meshes) {
+				float[] floats = new float[mesh.getNumVertices()*VoxelMesher.FLOATS];
+				mesh.getVertices(floats);
+				vertices.addAll(floats);
+			}
+		}
+		return vertices.toArray();
+	}
+
+	/**
+	 * Checks that a model whose meshes were released, as the model cache
+	 * does for inactive models, reports no meshes instead of failing, and
+	 * builds the same vertices again when restored.
+	 *
+	 * @param data the model to release
+	 */
+	private static void checkRelease(VoxelData data) {
+		VoxelModel model = new VoxelModel(data.serialize());
+		float[] before = model.getVertices();
+		model.releaseMeshes();
+		try {
+			if (model.hasMeshes()) fail("model still has meshes after releasing them");
+			if (model.getMeshes().size != 0) fail("released model returned meshes");
+			if (model.getInstances(0).size != 0) fail("released model returned instances");
+		} catch (RuntimeException e) {
+			fail("released model failed: " + e + " on " + describe(data));
+		}
+		model.restoreMeshes(null);
+		if (!model.hasMeshes()) fail("restoring meshes did not rebuild them");
+		if (!Arrays.equals(model.getVertices(), before)) {
+			fail("restored vertices differ on " + describe(data));
+		}
+		model.dispose();
+	}
+
+	/**
+	 * Checks that rendering thumbnails of more multi-chunk files than there
+	 * are cores finishes, since every file is decoded in parallel from a
+	 * task that itself runs on the shared worker threads.
+	 */
+	private static void checkThumbnails() {
+		final ArrayList<File> files = new ArrayList<File>();
+		final File output = new File(System.getProperty("java.io.tmpdir"), "checks-thumbnails-" + System.nanoTime());
+		final int[] written = new int[1];
+		output.mkdir();
+		try {
+			int count = 2*Runtime.getRuntime().availableProcessors() + 2;
+			for (int n = 0; n < count; ++n) {
+				File file = File.createTempFile("checks", ".voxel");
+				files.add(file);
+				new VoxelJournal(new FileHandle(file)).save(generate(33 + random.nextInt(32)));
+			}
+
+			Thread render = new Thread(new Runnable() {
+				public void run() {
+					written[0] = new ThumbnailRenderer(32, 32).renderAll(files, output);
+				}
+			});
+			render.setDaemon(true);
+			render.start();
+			render.join(60000);
+			if (render.isAlive()) {
+				fail("rendering " + count + " thumbnails did not finish within 60 s");
+			} else if (written[0] != count) {
+				fail("rendered " + written[0] + " of " + count + " thumbnails");
+			}
+		} catch (IOException e) {
+			fail("can't create a temporary file: " + e);
+		} catch (InterruptedException e) {
+			fail("interrupted while rendering thumbnails");
+		} finally {
+			for (File file : files) file.delete();
+			File[] thumbnails = output.listFiles();
+			if (thumbnails != null) {
+				for (File thumbnail : thumbnails) thumbnail.delete();
+			}
+			output.delete();
+		}
+	}
+
+	/**
+	 * Creates a GL20 that does nothing, returning zero, false or null from
+	 * every call.
+	 *
+	 * @return the stub
+	 */
+	private static GL20 stubGL() {
+		return (GL20)Proxy.newProxyInstance(GL20.class.getClassLoader(), new Class<?>[] {GL20.class},
+				new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				Class<?> type = method.getReturnType();
+				if (type == int.class) return 0;
+				if (type == boolean.class) return false;
+				if (type == float.class) return 0f;
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Creates a ray from a random point around a model towards a random
+	 * point inside its bounds.
+	 *
+	 * @param model the model to aim at
+	 * @return the ray
+	 */
+	private static Ray randomRay(VoxelModel model) {
+		Vector3 root = model.getRootLocation();
+		float w = model.getWidth(), h = model.getHeight(), d = model.getDepth();
+		Vector3 target = new Vector3(root.x + random.nextFloat()*w,
+				root.y + random.nextFloat()*h, root.z + random.nextFloat()*d);
+		Vector3 origin = new Vector3(random.nextFloat()*2 - 1, random.nextFloat()*2 - 1, random.nextFloat()*2 - 1)
+				.nor().scl(2*(w + h + d)).add(target);
+		return new Ray(origin, target.sub(origin).nor());
+	}
+
+	/**
+	 * Describes a test model.
+	 *
+	 * @param data the model
+	 * @return its size and number of colors
+	 */
+	private static String describe(VoxelData data) {
+		return data.getWidth() + "x" + data.getHeight() + "x" + data.getDepth() + " model with " +
+				data.getColors().size() + " colors";
+	}
+
+	/**
+	 * Generates a random cubic model: noise of a random density, optionally
+	 * carved into a ball so that it has a surface to pick and paint.
+	 *
+	 * @param size the size of the model in each dimension
+	 * @return the model
+	 */
+	private static VoxelData generate(int size) {
+		int colors = 1 + random.nextInt(20);
+		ByteBuffer buffer = ByteBuffer.allocate(16 + 12*colors + size*size*size);
+		buffer.put((byte)0).put((byte)colors).put((byte)(size-1)).put((byte)random.nextInt(16));
+		buffer.putFloat(random.nextInt(64) - 32).putFloat(random.nextInt(64) - 32).putFloat(random.nextInt(64) - 32);
+		for (int i = 0; i < colors; ++i) {
+			buffer.putFloat(random.nextFloat()).putFloat(random.nextFloat()).putFloat(random.nextFloat());
+		}
+
+		int density = 1 + random.nextInt(10);
+		boolean ball = random.nextBoolean();
+		float center = (size-1)/2f, radius = size/2f;
+		for (int i = 0; i < size; ++i) {
+			for (int j = 0; j < size; ++j) {
+				for (int k = 0; k < size; ++k) {
+					float x = i - center, y = j - center, z = k - center;
+					boolean solid = ball ? x*x + y*y + z*z < radius*radius : random.nextInt(10) < density;
+					buffer.put((byte)(solid ? 1 + random.nextInt(colors) : 0));
+				}
+			}
+		}
+		return VoxelData.read(buffer.array());
+	}
+}
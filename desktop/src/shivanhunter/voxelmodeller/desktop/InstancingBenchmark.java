@@ -0,0 +1,244 @@
+package shivanhunter.voxelmodeller.desktop;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.CountDownLatch;
+
+import shivanhunter.voxelmodeller.InstancedVoxelRenderer;
+import shivanhunter.voxelmodeller.VoxelModel;
+
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.GL30;
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.graphics.g3d.Environment;
+import com.badlogic.gdx.graphics.g3d.ModelBatch;
+import com.badlogic.gdx.graphics.g3d.ModelInstance;
+import com.badlogic.gdx.graphics.g3d.environment.DirectionalLight;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+
+/**
+ * Measures the CPU cost of submitting many copies of one voxel model:
+ * with ModelBatch, one ModelInstance per chunk of each copy, against
+ * InstancedVoxelRenderer with and without hardware instancing. Runs under
+ * the headless backend with a GL stub that only counts draw calls, so the
+ * times are what it costs to issue the draws, not to execute them.
+ *
+ * Usage: InstancingBenchmark [model size] [frames]
+ */
+public class InstancingBenchmark {
+	// numbers of copies to draw
+	private static final int[] COPIES = {1000, 10000};
+
+	// draw calls issued through the GL stub
+	private static int drawCalls;
+
+	public static void main (String[] arg) {
+		final int size = arg.length > 0 ? Integer.parseInt(arg[0]) : 16;
+		final int frames = arg.length > 1 ? Integer.parseInt(arg[1]) : 20;
+
+		final CountDownLatch done = new CountDownLatch(1);
+		ApplicationAdapter listener = new ApplicationAdapter() {
+			@Override
+			public void create() {
+				try {
+					run(size, frames);
+				} finally {
+					done.countDown();
+					Gdx.app.exit();
+				}
+			}
+		};
+
+		try {
+			new HeadlessApplication(listener);
+		} catch (GdxRuntimeException e) {
+			System.err.println("Can't start the headless backend: " + e.getMessage());
+			System.exit(1);
+		}
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Draws the copies each way and prints the draw calls and time per frame.
+	 *
+	 * @param size the size of the model in each dimension
+	 * @param frames the number of frames to time each way, best of which counts
+	 */
+	private static void run(int size, int frames) {
+		GL30 gl = countingGL();
+		Gdx.gl = Gdx.gl20 = Gdx.gl30 = gl;
+
+		final VoxelModel model = new VoxelModel(ball(size));
+		final PerspectiveCamera cam = new PerspectiveCamera(67, 1280, 720);
+		cam.position.set(0, 100, 200);
+		cam.lookAt(0, 0, 0);
+		cam.update();
+
+		// the same lights as the editor
+		final Environment environment = new Environment();
+		environment.add(new DirectionalLight().set(1f, 1f, 1f, -1f, -0.8f, -0.4f));
+		environment.add(new DirectionalLight().set(0.2f, 0.2f, 0.25f, 1f, 0.8f, 0.4f));
+
+		final ModelBatch modelBatch = new ModelBatch();
+		final InstancedVoxelRenderer renderer = new InstancedVoxelRenderer();
+
+		System.out.println(size + "^3 model in " + model.getInstances(0).size + " chunks, best of " +
+				frames + " frames");
+		System.out.println(String.format("%-24s %7s %11s %9s", "renderer", "copies", "draw calls", "ms/frame"));
+
+		for (final int copies : COPIES) {
+			// a scene drawn with ModelBatch holds an instance per chunk per copy
+			final Array<ModelInstance> instances = new Array<ModelInstance>();
+			for (int n = 0; n < copies; ++n) {
+				for (ModelInstance chunk : model.getInstances(0)) {
+					Matrix4 transform = new Matrix4(chunk.transform).trn(x(n), 0, z(n));
+					instances.add(new ModelInstance(chunk.model, transform));
+				}
+			}
+
+			time("ModelBatch", copies, frames, new Runnable() {
+				public void run() {
+					modelBatch.begin(cam);
+					modelBatch.render(instances, environment);
+					modelBatch.end();
+				}
+			});
+
+			Runnable instanced = new Runnable() {
+				public void run() {
+					renderer.begin(cam);
+					for (int n = 0; n < copies; ++n) renderer.render(model, x(n), 0, z(n));
+					renderer.end();
+				}
+			};
+			time("instanced", copies, frames, instanced);
+
+			// without GL 3.0 the renderer falls back to a draw call per copy
+			Gdx.gl30 = null;
+			time("instanced, no GL 3.0", copies, frames, instanced);
+			Gdx.gl30 = gl;
+		}
+
+		renderer.dispose();
+		modelBatch.dispose();
+		model.dispose();
+	}
+
+	/**
+	 * Times drawing frames and prints the best time and the draw calls of
+	 * one frame. One frame is drawn first to warm up.
+	 *
+	 * @param name what is being timed
+	 * @param copies the number of copies drawn per frame
+	 * @param frames the number of frames to time
+	 * @param frame draws one frame
+	 */
+	private static void time(String name, int copies, int frames, Runnable frame) {
+		frame.run();
+
+		long best = Long.MAX_VALUE;
+		int calls = 0;
+		for (int f = 0; f < frames; ++f) {
+			drawCalls = 0;
+			long start = System.nanoTime();
+			frame.run();
+			best = Math.min(best, System.nanoTime() - start);
+			calls = drawCalls;
+		}
+
+		System.out.println(String.format("%-24s %7d %11d %9.2f", name, copies, calls, best/1e6));
+	}
+
+	/**
+	 * Returns the x position of a copy, on a square grid of copies.
+	 *
+	 * @param n the index of the copy
+	 * @return the world x position
+	 */
+	private static float x(int n) {
+		return (n % 100)*2;
+	}
+
+	/**
+	 * Returns the z position of a copy, on a square grid of copies.
+	 *
+	 * @param n the index of the copy
+	 * @return the world z position
+	 */
+	private static float z(int n) {
+		return (n / 100)*2;
+	}
+
+	/**
+	 * Creates a two-colored ball, in the flat version 0 layout.
+	 *
+	 * @param size the size of the model in each dimension
+	 * @return the model file's bytes
+	 */
+	private static byte[] ball(int size) {
+		ByteBuffer buffer = ByteBuffer.allocate(16 + 12*2 + size*size*size);
+		buffer.put((byte)0).put((byte)2).put((byte)(size-1)).put((byte)(size-1));
+		buffer.putFloat(-size/2f).putFloat(0).putFloat(-size/2f);
+		buffer.putFloat(0.8f).putFloat(0.3f).putFloat(0.2f);
+		buffer.putFloat(0.3f).putFloat(0.6f).putFloat(0.2f);
+
+		float center = (size-1)/2f, radius = size/2f;
+		for (int i = 0; i < size; ++i) {
+			for (int j = 0; j < size; ++j) {
+				for (int k = 0; k < size; ++k) {
+					float x = i - center, y = j - center, z = k - center;
+					boolean solid = x*x + y*y + z*z < radius*radius;
+					buffer.put((byte)(!solid ? 0 : j > center ? 2 : 1));
+				}
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Creates a GL30 that does nothing but count draw calls. Objects it is
+	 * asked to create get the name 1, and shaders and programs report that
+	 * they compiled and linked.
+	 *
+	 * @return the stub
+	 */
+	private static GL30 countingGL() {
+		return (GL30)Proxy.newProxyInstance(GL30.class.getClassLoader(), new Class<?>[] {GL30.class},
+				new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if (name.startsWith("glDraw")) drawCalls++;
+
+				if ((name.equals("glGetShaderiv") || name.equals("glGetProgramiv")) &&
+						((Integer)args[1] == GL20.GL_COMPILE_STATUS || (Integer)args[1] == GL20.GL_LINK_STATUS)) {
+					((IntBuffer)args[2]).put(0, 1);
+				} else if (name.equals("glGetIntegerv")) {
+					((IntBuffer)args[1]).put(0, 16);
+				} else if (name.startsWith("glGen") && args.length == 2 && args[1] instanceof IntBuffer) {
+					IntBuffer names = (IntBuffer)args[1];
+					for (int i = names.position(); i < names.position() + (Integer)args[0]; ++i) names.put(i, 1);
+				}
+
+				Class<?> type = method.getReturnType();
+				if (type == int.class) return 1;
+				if (type == boolean.class) return false;
+				if (type == float.class) return 0f;
+				if (type == String.class) return "";
+				return null;
+			}
+		});
+	}
+}
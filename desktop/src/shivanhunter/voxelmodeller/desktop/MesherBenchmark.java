@@ -0,0 +1,63 @@
+package shivanhunter.voxelmodeller.desktop;
+
+import shivanhunter.voxelmodeller.VoxelData;
+import shivanhunter.voxelmodeller.VoxelMesher;
+
+/**
+ * Measures how long the mesher takes to mesh a whole model, ambient
+ * occlusion included, with the packed row kernels and with the scalar
+ * path. Uses the terrain and hollow sphere models of
+ * SerializationBenchmark; the noise model is left out, since at 256^3 its
+ * mesh alone takes gigabytes.
+ *
+ * Usage: MesherBenchmark [size] [runs]
+ */
+public class MesherBenchmark {
+	public static void main (String[] arg) {
+		int size = arg.length > 0 ? Integer.parseInt(arg[0]) : 256;
+		int runs = arg.length > 1 ? Integer.parseInt(arg[1]) : 3;
+		System.out.println(size + "^3 models, best of " + runs + " runs");
+		System.out.println(String.format("%-8s %9s %9s %9s %8s", "model", "quads", "scalar", "packed", "speedup"));
+
+		for (String name : new String[] {"terrain", "sphere"}) {
+			VoxelData data = VoxelData.read(SerializationBenchmark.generate(name, size));
+
+			long scalar = Long.MAX_VALUE, packed = Long.MAX_VALUE;
+			for (int r = 0; r < runs; ++r) {
+				scalar = Math.min(scalar, time(data, false));
+				packed = Math.min(packed, time(data, true));
+			}
+			int quads = mesher(data, true).mesh(1).length/(VoxelMesher.VERTS*VoxelMesher.FLOATS);
+
+			System.out.println(String.format("%-8s %9d %6d ms %6d ms %7.2fx",
+					name, quads, scalar/1000000, packed/1000000, scalar/(double)packed));
+		}
+	}
+
+	/**
+	 * Times meshing a whole model with a new mesher, so no packed rows are
+	 * reused from an earlier run.
+	 *
+	 * @param data the model to mesh
+	 * @param packedRows whether to use the packed row kernels
+	 * @return the time taken in nanoseconds
+	 */
+	private static long time(VoxelData data, boolean packedRows) {
+		VoxelMesher mesher = mesher(data, packedRows);
+		long start = System.nanoTime();
+		mesher.mesh(1);
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Creates a mesher for a whole model.
+	 *
+	 * @param data the model to mesh
+	 * @param packedRows whether to use the packed row kernels
+	 * @return the mesher
+	 */
+	private static VoxelMesher mesher(VoxelData data, boolean packedRows) {
+		return new VoxelMesher(data.getBlocks(), data.getWidth(), data.getHeight(), data.getDepth(),
+				data.getColors()).setPackedRows(packedRows);
+	}
+}
@@ -0,0 +1,138 @@
+package shivanhunter.voxelmodeller.desktop;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import shivanhunter.voxelmodeller.VoxelData;
+
+/**
+ * Measures how fast models are saved and loaded in the flat version 0
+ * layout and the chunked version 3 layout, in MB of voxel cells per second.
+ * Cubic test models are generated: terrain with a few layered colors, a
+ * hollow sphere, and noise, which compresses worst.
+ *
+ * Usage: SerializationBenchmark [size] [runs]
+ */
+public class SerializationBenchmark {
+	public static void main (String[] arg) {
+		int size = arg.length > 0 ? Integer.parseInt(arg[0]) : 256;
+		int runs = arg.length > 1 ? Integer.parseInt(arg[1]) : 5;
+		System.out.println(Runtime.getRuntime().availableProcessors() + " threads, " +
+				size + "^3 models, best of " + runs + " runs");
+		System.out.println(String.format("%-8s %9s %9s %9s %9s %11s",
+				"model", "v0 save", "v0 load", "v3 save", "v3 load", "v3 size"));
+
+		for (String name : new String[] {"terrain", "sphere", "noise"}) {
+			byte[] version0 = generate(name, size);
+			VoxelData data = VoxelData.read(version0);
+			double megabytes = (double)size*size*size / (1 << 20);
+
+			long save0 = Long.MAX_VALUE, load0 = Long.MAX_VALUE;
+			long save3 = Long.MAX_VALUE, load3 = Long.MAX_VALUE;
+			byte[] version3 = null;
+			for (int r = 0; r < runs; ++r) {
+				long start = System.nanoTime();
+				writeVersion0(data);
+				save0 = Math.min(save0, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				VoxelData.read(version0);
+				load0 = Math.min(load0, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				version3 = data.serialize();
+				save3 = Math.min(save3, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				VoxelData.read(version3);
+				load3 = Math.min(load3, System.nanoTime() - start);
+			}
+
+			System.out.println(String.format("%-8s %9s %9s %9s %9s %11d",
+					name, rate(megabytes, save0), rate(megabytes, load0),
+					rate(megabytes, save3), rate(megabytes, load3), version3.length));
+		}
+	}
+
+	/**
+	 * Formats a throughput.
+	 *
+	 * @param megabytes the amount of data
+	 * @param nanos the time taken
+	 * @return the throughput in MB/s
+	 */
+	private static String rate(double megabytes, long nanos) {
+		return String.format("%.0f MB/s", megabytes / (nanos / 1e9));
+	}
+
+	/**
+	 * Writes data in format version 0, one cell at a time as the editor used
+	 * to. The data must be cubic.
+	 *
+	 * @param data the data to write
+	 * @return the serialized data
+	 */
+	static byte[] writeVersion0(VoxelData data) {
+		int size = data.getWidth();
+		int colors = data.getColors().size();
+		ByteBuffer buffer = ByteBuffer.allocate(16 + 12*colors + size*size*size);
+		buffer.put((byte)0).put((byte)colors).put((byte)(size-1)).put((byte)(data.getScale()-1));
+		buffer.putFloat(data.getRootLocation().x);
+		buffer.putFloat(data.getRootLocation().y);
+		buffer.putFloat(data.getRootLocation().z);
+		for (int i = 0; i < colors; ++i) {
+			buffer.putFloat(data.getColors().get(i).r);
+			buffer.putFloat(data.getColors().get(i).g);
+			buffer.putFloat(data.getColors().get(i).b);
+		}
+
+		byte[][][] blocks = data.getBlocks();
+		for (int i = 0; i < size; ++i) {
+			for (int j = 0; j < size; ++j) {
+				for (int k = 0; k < size; ++k) {
+					buffer.put(blocks[i][j][k]);
+				}
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Generates a cubic test model in format version 0.
+	 *
+	 * @param name terrain, sphere or noise
+	 * @param size the size of the model in each dimension
+	 * @return the serialized model
+	 */
+	static byte[] generate(String name, int size) {
+		int colors = 8;
+		ByteBuffer buffer = ByteBuffer.allocate(16 + 12*colors + size*size*size);
+		buffer.put((byte)0).put((byte)colors).put((byte)(size-1)).put((byte)0);
+		buffer.putFloat(-size/2f).putFloat(-size/2f).putFloat(-size/2f);
+		for (int i = 0; i < colors; ++i) {
+			buffer.putFloat(i/8f).putFloat(1 - i/8f).putFloat(.5f);
+		}
+
+		Random random = new Random(1);
+		float center = (size-1)/2f, radius = size*0.45f;
+		for (int i = 0; i < size; ++i) {
+			for (int j = 0; j < size; ++j) {
+				for (int k = 0; k < size; ++k) {
+					int index = 0;
+					if (name.equals("terrain")) {
+						double ground = size*(0.4 + 0.1*Math.sin(i*0.05) + 0.1*Math.cos(k*0.07));
+						if (j < ground) index = 1 + Math.min(7, (int)(ground - j)/4);
+					} else if (name.equals("sphere")) {
+						float x = i - center, y = j - center, z = k - center;
+						double distance = Math.sqrt(x*x + y*y + z*z);
+						if (distance < radius && distance > radius - 3) index = 1 + (j*8)/size;
+					} else if (random.nextInt(10) < 3) {
+						index = 1 + random.nextInt(colors);
+					}
+					buffer.put((byte)index);
+				}
+			}
+		}
+		return buffer.array();
+	}
+}
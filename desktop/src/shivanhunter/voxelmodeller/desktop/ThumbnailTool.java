@@ -0,0 +1,57 @@
+package shivanhunter.voxelmodeller.desktop;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import shivanhunter.voxelmodeller.ThumbnailRenderer;
+
+/**
+ * Writes PNG thumbnails for .voxel files without opening a window.
+ * 
+ * Usage: ThumbnailTool [-size pixels] [-ortho] output_dir file_or_dir...
+ * Directories are searched for .voxel files, not recursively.
+ */
+public class ThumbnailTool {
+	public static void main (String[] arg) {
+		System.setProperty("java.awt.headless", "true");
+		
+		int size = 128;
+		boolean ortho = false;
+		int n = 0;
+		for (; n < arg.length && arg[n].startsWith("-"); ++n) {
+			if (arg[n].equals("-ortho")) {
+				ortho = true;
+			} else if (arg[n].equals("-size") && n+1 < arg.length) {
+				size = Integer.parseInt(arg[++n]);
+			}
+		}
+		if (arg.length - n < 2) {
+			System.err.println("Usage: ThumbnailTool [-size pixels] [-ortho] output_dir file_or_dir...");
+			System.exit(1);
+		}
+		
+		File output = new File(arg[n++]);
+		output.mkdirs();
+		
+		ArrayList<File> files = new ArrayList<File>();
+		for (; n < arg.length; ++n) {
+			File file = new File(arg[n]);
+			File[] children = file.listFiles();
+			if (children == null) {
+				files.add(file);
+				continue;
+			}
+			for (File child : children) {
+				if (child.isFile() && child.getName().endsWith(".voxel")) files.add(child);
+			}
+		}
+		
+		ThumbnailRenderer renderer = new ThumbnailRenderer(size, size);
+		renderer.setPerspective(!ortho);
+		
+		long start = System.nanoTime();
+		int written = renderer.renderAll(files, output);
+		long millis = (System.nanoTime() - start)/1000000;
+		System.out.println("Wrote " + written + " of " + files.size() + " thumbnails in " + millis + " ms");
+	}
+}
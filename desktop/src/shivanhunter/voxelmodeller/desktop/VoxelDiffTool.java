@@ -0,0 +1,230 @@
+package shivanhunter.voxelmodeller.desktop;
+
+import java.io.File;
+import java.util.Arrays;
+
+import shivanhunter.voxelmodeller.VoxelData;
+import shivanhunter.voxelmodeller.VoxelDiff;
+import shivanhunter.voxelmodeller.VoxelJournal;
+import shivanhunter.voxelmodeller.VoxelMerge;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Color;
+
+/**
+ * Compares and merges .voxel files from the command line, for use from git.
+ * Journaled edits next to a file are included.
+ *
+ * Usage:
+ *   VoxelDiffTool diff [-cells] old.voxel new.voxel
+ *     Prints what changed. Exits with 0 if nothing did, 1 if something did.
+ *     Also accepts the 7 arguments git passes to an external diff; then it
+ *     always exits with 0, since git stops at any other exit code, and a
+ *     file git passes as /dev/null is read as an empty model.
+ *   VoxelDiffTool merge base.voxel ours.voxel theirs.voxel [output.voxel]
+ *     Merges their changes into ours, writing ours unless an output is
+ *     given. Where both changed the same thing, ours wins; exits with 1 and
+ *     prints the conflicts if there are any.
+ *
+ * To have git use it, add "*.voxel diff=voxel merge=voxel" to
+ * .gitattributes, then:
+ *   git config diff.voxel.command "java -cp desktop.jar shivanhunter.voxelmodeller.desktop.VoxelDiffTool diff"
+ *   git config merge.voxel.driver "java -cp desktop.jar shivanhunter.voxelmodeller.desktop.VoxelDiffTool merge %O %A %B"
+ */
+public class VoxelDiffTool {
+	// the path git passes for the missing side of an added or deleted file
+	private static final String NULL_FILE = "/dev/null";
+
+	public static void main (String[] arg) {
+		int n = 0;
+		boolean cells = false;
+		String command = arg.length > 0 ? arg[n++] : "";
+		if (n < arg.length && arg[n].equals("-cells")) {
+			cells = true;
+			n++;
+		}
+		String[] files = Arrays.copyOfRange(arg, n, arg.length);
+
+		try {
+			if (command.equals("diff") && files.length == 7) {
+				// path old-file old-hash old-mode new-file new-hash new-mode
+				System.out.println("diff " + files[0]);
+				diff(files[1], files[4], cells);
+				System.exit(0);
+			} else if (command.equals("diff") && files.length == 2) {
+				System.exit(diff(files[0], files[1], cells) ? 1 : 0);
+			} else if (command.equals("merge") && (files.length == 3 || files.length == 4)) {
+				String output = files.length == 4 ? files[3] : files[1];
+				System.exit(merge(files[0], files[1], files[2], output) ? 1 : 0);
+			}
+		} catch (RuntimeException e) {
+			System.err.println(e.getMessage() != null ? e.getMessage() : e.toString());
+			System.exit(2);
+		}
+
+		System.err.println("Usage: VoxelDiffTool diff [-cells] old.voxel new.voxel");
+		System.err.println("       VoxelDiffTool merge base.voxel ours.voxel theirs.voxel [output.voxel]");
+		System.exit(2);
+	}
+
+	/**
+	 * Prints the differences between two files.
+	 *
+	 * @param from the path of the old file
+	 * @param to the path of the new file
+	 * @param cells whether to print every changed cell
+	 * @return true if the files differ
+	 */
+	private static boolean diff(String from, String to, boolean cells) {
+		VoxelData old = load(from), current = load(to);
+		if (old == null && current == null) {
+			System.out.println("No changes");
+			return false;
+		} else if (old == null) {
+			System.out.println("New file");
+			old = empty(current);
+		} else if (current == null) {
+			System.out.println("Deleted file");
+			current = empty(old);
+		}
+
+		long start = System.nanoTime();
+		VoxelDiff diff = VoxelDiff.compare(old, current);
+		long millis = (System.nanoTime() - start)/1000000;
+
+		if (diff.isEmpty()) {
+			System.out.println("No changes (" + millis + " ms)");
+			return false;
+		}
+		if (diff.isResized()) {
+			System.out.println("Size: " + size(old) + " -> " + size(current));
+		}
+		if (diff.isPlacementChanged()) {
+			System.out.println("Placement: scale " + old.getScale() + " at " + old.getRootLocation() +
+					" -> scale " + current.getScale() + " at " + current.getRootLocation());
+		}
+		if (diff.isPaletteChanged()) {
+			System.out.println("Palette: " + diff.getAddedColorCount() + " colors added, " +
+					diff.getRemovedColors().length + " removed");
+			for (int i = diff.getColors().size() - diff.getAddedColorCount(); i < diff.getColors().size(); ++i) {
+				System.out.println("  + " + diff.getColors().get(i));
+			}
+			for (int index : diff.getRemovedColors()) {
+				System.out.println("  - " + diff.getColors().get(index-1));
+			}
+		}
+
+		System.out.print(diff.getChangeCount() + " cells changed in " +
+				diff.getChangedChunkCount() + " chunks");
+		int[] bounds = diff.getBounds();
+		if (bounds != null) {
+			System.out.print(", within " + bounds[0] + "," + bounds[1] + "," + bounds[2] +
+					" to " + (bounds[3]-1) + "," + (bounds[4]-1) + "," + (bounds[5]-1));
+		}
+		System.out.println(" (" + millis + " ms)");
+
+		if (cells) {
+			for (int c = 0; c < diff.getChangeCount(); ++c) {
+				System.out.println("  " + diff.getX(c) + "," + diff.getY(c) + "," + diff.getZ(c) + ": " +
+						color(diff, diff.getBefore(c)) + " -> " + color(diff, diff.getAfter(c)));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Merges two files edited from a common base and writes the result.
+	 *
+	 * @param base the path of the common base
+	 * @param ours the path of our version
+	 * @param theirs the path of their version
+	 * @param output the path to write the merged file to
+	 * @return true if there were conflicts
+	 */
+	private static boolean merge(String base, String ours, String theirs, String output) {
+		VoxelData baseData = load(base), oursData = load(ours), theirsData = load(theirs);
+		if (oursData == null || theirsData == null) throw new IllegalArgumentException("Can't merge a deleted file");
+		if (baseData == null) baseData = empty(oursData);
+
+		long start = System.nanoTime();
+		VoxelMerge merge = VoxelMerge.merge(baseData, oursData, theirsData);
+		long millis = (System.nanoTime() - start)/1000000;
+		new VoxelJournal(new FileHandle(new File(output))).save(merge.getResult());
+
+		if (!merge.hasConflicts()) {
+			System.out.println("Merged without conflicts (" + millis + " ms)");
+			return false;
+		}
+		System.out.println("Merged with conflicts, keeping ours (" + millis + " ms):");
+		if (merge.isSizeConflict()) System.out.println("  size");
+		if (merge.isPlacementConflict()) System.out.println("  scale or root location");
+		if (merge.isEmissionConflict()) System.out.println("  emission of a color");
+		if (merge.getConflictCount() > 0) {
+			System.out.println("  " + merge.getConflictCount() + " cells in " +
+					merge.getConflictRegions().size() + " regions:");
+			for (int[] box : merge.getConflictRegions()) {
+				System.out.println("    " + box[0] + "," + box[1] + "," + box[2] +
+						" to " + (box[3]-1) + "," + (box[4]-1) + "," + (box[5]-1));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Loads a .voxel file and any journal next to it.
+	 *
+	 * @param path the path of the file
+	 * @return the file's data, or null if the path is /dev/null, which git
+	 *         passes for the missing side of an added or deleted file
+	 */
+	private static VoxelData load(String path) {
+		if (path.equals(NULL_FILE)) return null;
+		File file = new File(path);
+		if (!file.isFile()) throw new IllegalArgumentException("No such file: " + path);
+		try {
+			return VoxelJournal.read(new FileHandle(file));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Not a valid .voxel file: " + path, e);
+		}
+	}
+
+	/**
+	 * Creates a model with no voxels or colors but the size and placement of
+	 * another, to compare an added or deleted file against.
+	 *
+	 * @param like the model to copy the size and placement of
+	 * @return the empty model
+	 */
+	private static VoxelData empty(VoxelData like) {
+		VoxelData data = VoxelData.read(like.serialize());
+		for (byte[][] plane : data.getBlocks()) {
+			for (byte[] row : plane) Arrays.fill(row, (byte)0);
+		}
+		data.getColors().clear();
+		Arrays.fill(data.getEmission(), (byte)0);
+		return data;
+	}
+
+	/**
+	 * Describes a model's size.
+	 *
+	 * @param data the model
+	 * @return the size as width x height x depth
+	 */
+	private static String size(VoxelData data) {
+		return data.getWidth() + "x" + data.getHeight() + "x" + data.getDepth();
+	}
+
+	/**
+	 * Describes a color of a diff.
+	 *
+	 * @param diff the diff
+	 * @param index an index in the diff's palette
+	 * @return the color as hex RGBA, or "empty"
+	 */
+	private static String color(VoxelDiff diff, int index) {
+		if (index == 0) return "empty";
+		Color color = diff.getColors().get(index-1);
+		return color.toString();
+	}
+}